@@ -69,7 +69,8 @@ public class Main {
 				// + "    -x level\t\tSet debug level (0-3)\n"
 				+ "    -v\t\t\tShow version and exit\n"
 				// + "    -e\t\t\tEnable Encryption\n"
-				+ "  Commands include:\n" + "    q <filename>\tQueue a track\n"
+				+ "  Commands include:\n"
+				+ "    q <file|dir|glob>...\tQueue tracks\n"
 				+ "    vo\t\t\tVote-off current track\n"
 				+ "    ls\t\t\tShow playlist\n\n");
 	}
@@ -40,13 +40,17 @@ public abstract class AbstractCommand {
 	// A flag indicating the need for authentication
 	private boolean authenticationRequired;
 
+	// A flag indicating that numberOfArguments is a minimum
+	private boolean variableArguments;
+
 	public void execute(List<String> args, HGDClient clientConnection)
 			throws Exception {
 		doCommand(args, clientConnection);
 	}
 
 	public boolean checkNumberOfArguments(List<String> arguments) throws Exception {
-		if (arguments.size() != numberOfArguments) {
+		if (variableArguments ? arguments.size() < numberOfArguments
+				: arguments.size() != numberOfArguments) {
 			throw new Exception("Wrong number of arguments");
 		}
 		return true;
@@ -67,6 +71,10 @@ public abstract class AbstractCommand {
 		this.numberOfArguments = numberOfArguments;
 	}
 
+	protected void setVariableArguments(boolean variableArguments) {
+		this.variableArguments = variableArguments;
+	}
+
 	/**
 	 * Method to recover the number of arguments expected by the command.
 	 * 
@@ -76,6 +84,16 @@ public abstract class AbstractCommand {
 		return this.numberOfArguments;
 	}
 
+	/**
+	 * Method to query if the command accepts more arguments than
+	 * getNumberOfArguments().
+	 * 
+	 * @return True if the number of arguments is a minimum.
+	 */
+	public boolean hasVariableArguments() {
+		return this.variableArguments;
+	}
+
 	protected void setAuthenticationRequired(boolean authenticationRequired) {
 		this.authenticationRequired = authenticationRequired;
 	}
@@ -20,9 +20,14 @@
 
 package jhgdc.text.commands;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.List;
 
 import jhgdc.library.HGDClient;
+import jhgdc.library.PlaylistHandler;
 
 /**
  * Class implementing the request playlist command.
@@ -48,9 +53,18 @@ public class CommandRequestPlaylist extends AbstractCommand {
 	@Override
 	protected void doCommand(List<String> args, HGDClient clientConnection)
 			throws Exception {
-		String playlist[] = clientConnection.requestPlaylist();
-		for (String playlistItem : playlist ){
-			System.out.println("Item: " + playlistItem);
+		// Print the items as they arrive, writing the console in large blocks
+		final PrintWriter out = new PrintWriter(new BufferedWriter(
+				new OutputStreamWriter(System.out), 64 * 1024), false);
+		try {
+			clientConnection.requestPlaylist(new PlaylistHandler() {
+				public boolean handle(String playlistItem) throws IOException {
+					out.println("Item: " + playlistItem);
+					return true;
+				}
+			});
+		} finally {
+			out.flush();
 		}
 	}
 
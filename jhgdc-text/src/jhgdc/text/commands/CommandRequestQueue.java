@@ -23,19 +23,69 @@ package jhgdc.text.commands;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
 import jhgdc.library.HGDClient;
+import jhgdc.library.HGDClientPool;
+import jhgdc.library.HGDConsts;
+import jhgdc.library.JHGDException;
+import jhgdc.library.PlaylistItem;
+import jhgdc.library.UploadIndex;
 
 /**
  * Class implementing the queue command.
  * 
+ * Each argument is a file, a directory whose files are all queued, or a
+ * glob pattern such as "album/*.mp3" or "music/**.ogg". The files are
+ * uploaded over a few parallel connections opened with the credentials of
+ * the given client, so the password is only asked once. Files larger than
+ * HGDConsts.DEFAULT_MAX_UPLOAD, and files above the HGDConsts.MAX_USER_QUEUE
+ * tracks a user may have in the playlist, are skipped.
+ * 
+ * The files uploaded are remembered in an UploadIndex kept in
+ * ~/.jhgdc/uploads.idx. Files already queued on the same daemon during the
+ * last day are skipped, older duplicates only cause a warning. Only the files
+ * the index knows can be told to be duplicates: new files are hashed while
+ * they are uploaded, so that they are read once.
+ * 
+ * Since the uploads run in parallel, the tracks may be queued in a different
+ * order than given.
+ * 
  * @author Carlos Eduardo da Silva
  * @version 13/05/2011
  * 
  */
 public class CommandRequestQueue extends AbstractCommand {
 
+	/**
+	 * Maximum number of connections uploading at the same time.
+	 */
+	public static final int MAX_CONNECTIONS = 4;
+
+	/**
+	 * Time during which a file queued again is skipped, in milliseconds.
+	 */
+	public static final long DUPLICATE_WINDOW = 24 * 60 * 60 * 1000;
+
 	/**
 	 * 
 	 */
@@ -43,6 +93,7 @@ public class CommandRequestQueue extends AbstractCommand {
 		super();
 		this.setAuthenticationRequired(true);
 		this.setNumberOfArguments(1);
+		this.setVariableArguments(true);
 	}
 
 	/*
@@ -56,12 +107,301 @@ public class CommandRequestQueue extends AbstractCommand {
 			throws FileNotFoundException, IllegalStateException, IOException,
 			Exception {
 
-		String fileName = args.get(0);
+		List<File> files = collectFiles(args);
+		UploadIndex index = openIndex();
+		try {
+			if (index != null) {
+				files = skipDuplicates(files, index, clientConnection);
+			}
+			files = selectFiles(files, clientConnection);
+			if (files.isEmpty()) {
+				throw new Exception("No file to queue");
+			}
+			clientConnection.setUploadIndex(index);
+
+			if (files.size() == 1) {
+				// No need for another connection
+				long start = System.nanoTime();
+				clientConnection.requestQueue(files.get(0));
+				printSummary(1, files.get(0).length(), System.nanoTime()
+						- start);
+				return;
+			}
+
+			upload(files, clientConnection);
+		} finally {
+			if (index != null) {
+				index.close();
+			}
+		}
+	}
+
+	/**
+	 * Opens the index of the uploads, or returns null if not available.
+	 */
+	private static UploadIndex openIndex() {
+		File dir = new File(System.getProperty("user.home"), ".jhgdc");
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Cannot create " + dir);
+			}
+			return new UploadIndex(new File(dir, "uploads.idx"));
+		} catch (IOException e) {
+			System.err.println("Not checking duplicates: "
+					+ e.getLocalizedMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Drops the files recently queued on the daemon, and the files with the
+	 * same content as a previous one, among the files already known by the
+	 * index. The others are recorded by the upload.
+	 */
+	private static List<File> skipDuplicates(List<File> files,
+			UploadIndex index, HGDClient clientConnection) {
+		long now = System.currentTimeMillis();
+		Set<ByteBuffer> contents = new HashSet<ByteBuffer>();
+		List<File> selected = new ArrayList<File>(files.size());
+		for (File file : files) {
+			byte[] hash = index.getHash(file);
+			if (hash == null) {
+				selected.add(file);
+				continue;
+			}
+			if (!contents.add(ByteBuffer.wrap(hash))) {
+				System.err.println("Skipping " + file.getPath()
+						+ ": same content as another file");
+				continue;
+			}
+			long last = index.getLastUpload(hash, file.length(),
+					clientConnection.getHost(), clientConnection.getPort());
+			if (last >= 0 && now - last < DUPLICATE_WINDOW) {
+				System.err.println("Skipping " + file.getPath()
+						+ ": already queued on " + new Date(last));
+				continue;
+			}
+			if (last >= 0) {
+				System.err.println("Warning: " + file.getPath()
+						+ " was already queued on " + new Date(last));
+			}
+			selected.add(file);
+		}
+		return selected;
+	}
+
+	/**
+	 * Uploads the files over parallel connections authenticated as the
+	 * given client.
+	 */
+	private void upload(List<File> files, final HGDClient clientConnection)
+			throws Exception {
+		final HGDClientPool.Key key = new HGDClientPool.Key(
+				clientConnection.getHost(), clientConnection.getPort(),
+				clientConnection.getUsername(),
+				clientConnection.isEncrypted());
+		final String password = clientConnection.getPassword();
+		int connections = Math.min(MAX_CONNECTIONS, files.size());
+
+		final HGDClientPool pool = new HGDClientPool(connections,
+				HGDClientPool.DEFAULT_MAX_IDLE,
+				HGDClientPool.DEFAULT_VALIDATION_INTERVAL,
+				HGDClientPool.DEFAULT_BORROW_TIMEOUT);
+		ExecutorService executor = Executors.newFixedThreadPool(connections);
+		long start = System.nanoTime();
+		int queued = 0;
+		long bytes = 0;
+		try {
+			List<Future<Long>> uploads = new ArrayList<Future<Long>>();
+			for (final File file : files) {
+				uploads.add(executor.submit(new Callable<Long>() {
+					public Long call() throws Exception {
+						long fileStart = System.nanoTime();
+						pool.execute(key, password,
+								new HGDClientPool.Operation<Void>() {
+									public Void execute(HGDClient client)
+											throws IOException, JHGDException {
+										client.setUploadIndex(clientConnection
+												.getUploadIndex());
+										client.requestQueue(file);
+										return null;
+									}
+								});
+						long nanos = System.nanoTime() - fileStart;
+						System.out.println("Queued " + file.getPath() + " ("
+								+ formatRate(file.length(), nanos) + ")");
+						return file.length();
+					}
+				}));
+			}
+			for (int i = 0; i < uploads.size(); i++) {
+				try {
+					bytes += uploads.get(i).get();
+					queued++;
+				} catch (ExecutionException e) {
+					System.err.println("Failed to queue "
+							+ files.get(i).getPath() + ": "
+							+ e.getCause().getLocalizedMessage());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+			pool.close();
+		}
+		printSummary(queued, bytes, System.nanoTime() - start);
+		if (queued < files.size()) {
+			throw new Exception((files.size() - queued) + " of "
+					+ files.size() + " files could not be queued");
+		}
+	}
+
+	/**
+	 * Expands the arguments into the list of files to queue, without
+	 * duplicates.
+	 */
+	private static List<File> collectFiles(List<String> args) throws IOException {
+		Set<Path> paths = new LinkedHashSet<Path>();
+		for (String arg : args) {
+			File file = new File(arg);
+			if (file.isDirectory()) {
+				walk(file.toPath(), Integer.MAX_VALUE, null, paths);
+			} else if (!file.exists() && isGlob(arg)) {
+				int before = paths.size();
+				expandGlob(arg, paths);
+				if (paths.size() == before) {
+					throw new FileNotFoundException("No file matches " + arg);
+				}
+			} else if (file.isFile()) {
+				paths.add(file.toPath().normalize());
+			} else {
+				throw new FileNotFoundException(arg + " (No such file)");
+			}
+		}
+		List<File> files = new ArrayList<File>(paths.size());
+		for (Path path : paths) {
+			files.add(path.toFile());
+		}
+		return files;
+	}
+
+	/**
+	 * Drops the files the daemon would refuse: the files too large, and the
+	 * files above the queue limit of the user.
+	 */
+	private static List<File> selectFiles(List<File> files,
+			HGDClient clientConnection) throws IOException, JHGDException {
+		List<File> selected = new ArrayList<File>(files.size());
+		for (File file : files) {
+			if (file.length() > HGDConsts.DEFAULT_MAX_UPLOAD) {
+				System.err.println("Skipping " + file.getPath()
+						+ ": larger than "
+						+ (HGDConsts.DEFAULT_MAX_UPLOAD / (1024 * 1024))
+						+ " MB");
+			} else {
+				selected.add(file);
+			}
+		}
 
-		File file = new File(fileName);
+		int queued = 0;
+		for (PlaylistItem item : PlaylistItem.flyweight(clientConnection
+				.requestPlaylist())) {
+			if (item.fieldEquals(PlaylistItem.USER,
+					clientConnection.getUsername())) {
+				queued++;
+			}
+		}
+		int allowed = Math.max(0, HGDConsts.MAX_USER_QUEUE - queued);
+		if (selected.size() > allowed) {
+			System.err.println("Skipping " + (selected.size() - allowed)
+					+ " files: at most " + HGDConsts.MAX_USER_QUEUE
+					+ " tracks may be queued per user, " + queued
+					+ " already queued");
+			selected = selected.subList(0, allowed);
+		}
+		return selected;
+	}
 
-		clientConnection.requestQueue(file);
+	private static boolean isGlob(String arg) {
+		for (int i = 0; i < arg.length(); i++) {
+			switch (arg.charAt(i)) {
+			case '*':
+			case '?':
+			case '[':
+			case '{':
+				return true;
+			}
+		}
+		return false;
+	}
 
+	/**
+	 * Adds the files matching a glob pattern. The pattern is matched against
+	 * the paths relative to its longest directory without wildcards.
+	 */
+	private static void expandGlob(String pattern, Set<Path> paths)
+			throws IOException {
+		Path path = Paths.get(pattern);
+		Path base = path.getRoot();
+		int count = path.getNameCount();
+		int first = 0;
+		while (first < count - 1 && !isGlob(path.getName(first).toString())) {
+			Path name = path.getName(first++);
+			base = base == null ? name : base.resolve(name);
+		}
+		if (base == null) {
+			base = Paths.get("");
+		}
+		Path relative = path.subpath(first, count);
+		int depth = pattern.contains("**") ? Integer.MAX_VALUE : count - first;
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher(
+				"glob:" + relative);
+		if (Files.isDirectory(base.toString().isEmpty() ? Paths.get(".")
+				: base)) {
+			walk(base, depth, matcher, paths);
+		}
+	}
+
+	/**
+	 * Adds the regular files under a directory, in name order.
+	 */
+	private static void walk(Path base, int depth, PathMatcher matcher,
+			Set<Path> paths) throws IOException {
+		Path start = base.toString().isEmpty() ? Paths.get(".") : base;
+		List<Path> found = new ArrayList<Path>();
+		Stream<Path> stream = Files.walk(start, depth);
+		try {
+			Iterator<Path> it = stream.iterator();
+			while (it.hasNext()) {
+				Path file = it.next();
+				if (Files.isRegularFile(file)) {
+					found.add(file);
+				}
+			}
+		} finally {
+			stream.close();
+		}
+		Collections.sort(found);
+		for (Path file : found) {
+			Path relative = start.relativize(file);
+			if (matcher == null || matcher.matches(relative)) {
+				paths.add(base.resolve(relative).normalize());
+			}
+		}
+	}
+
+	private static void printSummary(int files, long bytes, long nanos) {
+		System.out.println("Queued " + files
+				+ (files == 1 ? " file, " : " files, ")
+				+ formatRate(bytes, nanos));
+	}
+
+	/**
+	 * Formats a size and its transfer rate.
+	 */
+	private static String formatRate(long bytes, long nanos) {
+		double seconds = Math.max(nanos, 1) / 1e9;
+		return String.format("%.1f KB in %.2f s, %.1f KB/s", bytes / 1024.0,
+				seconds, bytes / 1024.0 / seconds);
 	}
 
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the encoding of commands, from the message to the bytes handed
+ * to the socket. sendLineCommand() encodes the whole line, as HGDPipeline
+ * does; sendVoteOff() encodes a pre-encoded verb and its argument, as the
+ * requests of HGDClient do.
+ *
+ * @since 16/10/2026
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EncodingBenchmark {
+
+	@Param({ "ls", "vo|1234", "user|kaduardo|secret",
+			"q|Some Artist - Some Title (Remastered).ogg|4194304" })
+	String command;
+
+	private HGDClient client;
+
+	private CommandEncoder encoder;
+
+	@Setup
+	public void setUp() throws IOException {
+		client = new HGDClient();
+		client.attach(InputStream.nullInputStream(),
+				OutputStream.nullOutputStream());
+		encoder = new CommandEncoder(OutputStream.nullOutputStream(),
+				HGDClientConfig.DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Writes and flushes a single command line.
+	 */
+	@Benchmark
+	public void sendLineCommand() throws IOException {
+		client.writeLineCommand(command);
+		client.flushCommands();
+	}
+
+	/**
+	 * Writes and flushes "vo|1234" from its verb constant.
+	 */
+	@Benchmark
+	public void sendVoteOff() throws IOException {
+		encoder.begin(CommandEncoder.VO).arg("1234").end();
+		encoder.flush();
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the framing of the replies by HGDClient.receiveLine().
+ *
+ * Encrypted connections to the daemon pad every reply to 512 bytes, which
+ * the client has to strip; the padded case measures that. receiveText()
+ * measures the framing alone, without creating a String.
+ *
+ * @since 16/10/2026
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FramingBenchmark {
+
+	/**
+	 * Length of the reply, without the line terminator.
+	 */
+	@Param({ "16", "128", "1024" })
+	int length;
+
+	/**
+	 * Whether the reply is padded to 512 bytes.
+	 */
+	@Param({ "false", "true" })
+	boolean padded;
+
+	private HGDClient client;
+
+	@Setup
+	public void setUp() throws IOException {
+		StringBuilder line = new StringBuilder("ok|");
+		while (line.length() < length) {
+			line.append((char) ('a' + line.length() % 26));
+		}
+		while (padded && line.length() < 512) {
+			line.append('\0');
+		}
+		line.append("\r\n");
+		byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		do {
+			data.write(bytes);
+		} while (data.size() < 64 * 1024);
+
+		client = new HGDClient(HGDClientConfig.builder().maxLineLength(2048)
+				.build());
+		client.attach(new LoopInputStream(data.toByteArray()),
+				OutputStream.nullOutputStream());
+	}
+
+	@Benchmark
+	public String receiveLine() throws IOException {
+		return client.receiveLine();
+	}
+
+	@Benchmark
+	public CharSequence receiveText() throws IOException {
+		return client.receiveText();
+	}
+}
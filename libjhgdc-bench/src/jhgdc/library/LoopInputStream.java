@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.InputStream;
+
+/**
+ * An endless stream repeating the same bytes, used to feed the client with
+ * replies without any network.
+ *
+ * @since 16/10/2026
+ */
+class LoopInputStream extends InputStream {
+
+	private final byte[] data;
+
+	private int position = 0;
+
+	/**
+	 * @param data
+	 *            The bytes to repeat, ending with a whole line.
+	 */
+	LoopInputStream(byte[] data) {
+		this.data = data;
+	}
+
+	@Override
+	public int read() {
+		int b = data[position] & 0xff;
+		position = (position + 1) % data.length;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		int n = Math.min(len, data.length - position);
+		System.arraycopy(data, position, b, off, n);
+		position = (position + n) % data.length;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return data.length - position;
+	}
+}
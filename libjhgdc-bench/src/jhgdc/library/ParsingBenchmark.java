@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the parsing of the replies of "ls" and "np".
+ *
+ * The split() case is the way the replies were parsed before PlaylistItem,
+ * and serves as a baseline.
+ *
+ * @since 16/10/2026
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ParsingBenchmark {
+
+	private String line;
+
+	private String nowPlayingLine;
+
+	private final PlaylistItem item = new PlaylistItem();
+
+	private final NowPlaying nowPlaying = new NowPlaying();
+
+	@Setup
+	public void setUp() {
+		line = "1234|Some Artist - Some Title.ogg|Some Artist|Some Title|kaduardo"
+				+ "|Some Album|Rock|245|192|44100|2|1997|3|0";
+		nowPlayingLine = "ok|1|" + line;
+	}
+
+	@Benchmark
+	public void split(Blackhole bh) {
+		String[] fields = line.split("\\|");
+		bh.consume(Integer.parseInt(fields[0]));
+		bh.consume(fields[1]);
+		bh.consume(Integer.parseInt(fields[7]));
+	}
+
+	@Benchmark
+	public void parse(Blackhole bh) {
+		PlaylistItem parsed = PlaylistItem.parse(line);
+		bh.consume(parsed.getTrackId());
+		bh.consume(parsed.getFilename());
+		bh.consume(parsed.getDuration());
+	}
+
+	/**
+	 * Parses with a reused instance, as PlaylistItem.flyweight() does.
+	 */
+	@Benchmark
+	public void reset(Blackhole bh) {
+		item.reset(line);
+		bh.consume(item.getTrackId());
+		bh.consume(item.getFilename());
+		bh.consume(item.getDuration());
+	}
+
+	@Benchmark
+	public void nowPlaying(Blackhole bh) {
+		PlaylistItem playing = nowPlaying.reset(nowPlayingLine).getItem();
+		bh.consume(playing.getTrackId());
+		bh.consume(playing.getVotesNeeded());
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a whole session: connect, login, ls and bye, as a short-lived
+ * client such as jhgdc-text does.
+ *
+ * @since 16/10/2026
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RoundTripBenchmark {
+
+	@Param({ "10", "1000" })
+	int playlistSize;
+
+	@Param({ "false", "true" })
+	boolean encrypted;
+
+	private FakeHGDDaemon daemon;
+
+	@Setup
+	public void setUp() throws Exception {
+		daemon = new FakeHGDDaemon(playlistSize);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		daemon.close();
+	}
+
+	@Benchmark
+	public String[] session() throws Exception {
+		HGDClient client = new HGDClient();
+		client.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+		try {
+			if (encrypted) {
+				client.requestEncryption();
+			}
+			client.login(FakeHGDDaemon.DEFAULT_USER,
+					FakeHGDDaemon.DEFAULT_PASSWORD);
+			return client.requestPlaylist();
+		} finally {
+			client.disconnect(true);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures requestQueue() over loopback, to the fake daemon.
+ *
+ * The upload engine picks its own chunk sizes, so the file sizes are chosen
+ * to exercise each of its paths: a single chunk, the read-ahead path with
+ * the chunk still growing, and large transfers at the largest chunk. Plain
+ * connections use zero-copy transfers; encrypted ones use the buffered path.
+ *
+ * @since 16/10/2026
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UploadBenchmark {
+
+	@Param({ "65536", "1048576", "16777216" })
+	int size;
+
+	@Param({ "false", "true" })
+	boolean encrypted;
+
+	private FakeHGDDaemon daemon;
+
+	private HGDClient client;
+
+	private File file;
+
+	@Setup
+	public void setUp() throws Exception {
+		byte[] data = new byte[size];
+		new Random(17).nextBytes(data);
+		file = File.createTempFile("upload", ".ogg");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+
+		daemon = new FakeHGDDaemon(0);
+		client = new HGDClient();
+		client.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+		if (encrypted) {
+			client.requestEncryption();
+		}
+		client.login(FakeHGDDaemon.DEFAULT_USER,
+				FakeHGDDaemon.DEFAULT_PASSWORD);
+	}
+
+	/**
+	 * Empties the playlist, which grows with every upload.
+	 */
+	@TearDown(Level.Iteration)
+	public void clearPlaylist() {
+		daemon.setPlaylistSize(0);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		client.disconnect(true);
+		daemon.close();
+		file.delete();
+	}
+
+	@Benchmark
+	public void requestQueue() throws IOException, JHGDException {
+		client.requestQueue(file);
+	}
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.InterruptedIOException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class shares an upload rate between the clients of the process.
+ *
+ * The rate is enforced with a token bucket. Uploads ask for tokens before
+ * writing each chunk; when they have to wait, they are served by start-time
+ * fair queueing, so each Share gets bandwidth in proportion to its weight.
+ * Clients of the same user may use the same Share, so a user with several
+ * sessions does not get more than its weight.
+ *
+ * The command lines sent by the clients are charged to the bucket but never
+ * wait: interactive commands such as "np" or "vo" keep their latency, and
+ * the uploads slow down to make room for them.
+ *
+ * @see HGDClient#setBandwidthShare(BandwidthScheduler.Share)
+ * @since 16/10/2026
+ */
+public class BandwidthScheduler {
+
+	/**
+	 * Default weight of a share.
+	 */
+	public static final int DEFAULT_WEIGHT = 1;
+
+	/**
+	 * Default size of the bucket, in bytes.
+	 */
+	public static final long DEFAULT_BURST = 256 * 1024;
+
+	/**
+	 * The scheduler shared by the whole process, unlimited until a rate is
+	 * set.
+	 */
+	private static final BandwidthScheduler shared = new BandwidthScheduler(
+			0, DEFAULT_BURST);
+
+	/**
+	 * The bandwidth given to a user or a session.
+	 */
+	public final class Share {
+
+		private final String name;
+
+		private volatile int weight;
+
+		/**
+		 * The virtual finish time of the last grant.
+		 */
+		private double finish;
+
+		private volatile long granted;
+
+		private Share(String name, int weight) {
+			this.name = name;
+			this.weight = weight;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getWeight() {
+			return weight;
+		}
+
+		/**
+		 * @return The number of bytes granted to this share.
+		 */
+		public long getBytesGranted() {
+			return granted;
+		}
+
+		/**
+		 * Returns the scheduler of this share.
+		 *
+		 * @return The scheduler.
+		 */
+		public BandwidthScheduler getScheduler() {
+			return BandwidthScheduler.this;
+		}
+
+		/**
+		 * Waits until bytes of payload may be sent.
+		 *
+		 * @param bytes
+		 *            The number of bytes about to be written.
+		 * @throws InterruptedIOException
+		 *             If the thread is interrupted while waiting.
+		 */
+		public void acquire(int bytes) throws InterruptedIOException {
+			BandwidthScheduler.this.acquire(this, bytes);
+		}
+
+		/**
+		 * Charges bytes of control traffic, without waiting.
+		 *
+		 * @param bytes
+		 *            The number of bytes written.
+		 */
+		public void charge(int bytes) {
+			BandwidthScheduler.this.charge(this, bytes);
+		}
+	}
+
+	/**
+	 * A thread waiting for tokens.
+	 */
+	private final class Waiter implements Comparable<Waiter> {
+
+		final double start;
+
+		final long sequence;
+
+		final int bytes;
+
+		final Condition turn = lock.newCondition();
+
+		Waiter(double start, long sequence, int bytes) {
+			this.start = start;
+			this.sequence = sequence;
+			this.bytes = bytes;
+		}
+
+		public int compareTo(Waiter other) {
+			int c = Double.compare(start, other.start);
+			return c != 0 ? c : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>();
+
+	private final ConcurrentHashMap<String, Share> shares = new ConcurrentHashMap<String, Share>();
+
+	/**
+	 * Bytes per second, or 0 for unlimited.
+	 */
+	private volatile long rate;
+
+	private final long burst;
+
+	/**
+	 * Available tokens; negative when control traffic went over the rate.
+	 */
+	private double tokens;
+
+	private long refilled = System.nanoTime();
+
+	/**
+	 * The virtual time: the start tag of the last grant.
+	 */
+	private double virtualTime;
+
+	private long sequence;
+
+	/**
+	 * Creates a scheduler.
+	 *
+	 * @param rate
+	 *            The maximum upload rate, in bytes per second, or 0 for
+	 *            unlimited.
+	 * @param burst
+	 *            The number of bytes that may be sent at once after an idle
+	 *            period.
+	 */
+	public BandwidthScheduler(long rate, long burst) {
+		if (rate < 0 || burst <= 0) {
+			throw new IllegalArgumentException("Invalid rate or burst");
+		}
+		this.rate = rate;
+		this.burst = burst;
+		this.tokens = burst;
+	}
+
+	/**
+	 * Returns the scheduler shared by the process. It is unlimited until
+	 * setRate() is called.
+	 *
+	 * @return The shared scheduler.
+	 */
+	public static BandwidthScheduler getShared() {
+		return shared;
+	}
+
+	/**
+	 * Returns the share with the given name, creating it if needed.
+	 *
+	 * @param name
+	 *            The name of the share, such as a username.
+	 * @param weight
+	 *            The weight of the share, compared to the other shares.
+	 * @return The share.
+	 */
+	public Share getShare(String name, int weight) {
+		if (weight <= 0) {
+			throw new IllegalArgumentException("Invalid weight: " + weight);
+		}
+		Share share = shares.get(name);
+		if (share == null) {
+			Share created = new Share(name, weight);
+			share = shares.putIfAbsent(name, created);
+			if (share == null) {
+				return created;
+			}
+		}
+		share.weight = weight;
+		return share;
+	}
+
+	/**
+	 * Returns the share with the given name and the default weight.
+	 *
+	 * @see #getShare(String, int)
+	 */
+	public Share getShare(String name) {
+		Share share = shares.get(name);
+		return share != null ? share : getShare(name, DEFAULT_WEIGHT);
+	}
+
+	/**
+	 * Returns the maximum upload rate.
+	 *
+	 * @return The rate in bytes per second, or 0 if unlimited.
+	 */
+	public long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Changes the maximum upload rate.
+	 *
+	 * @param rate
+	 *            The rate in bytes per second, or 0 for unlimited.
+	 */
+	public void setRate(long rate) {
+		if (rate < 0) {
+			throw new IllegalArgumentException("Invalid rate: " + rate);
+		}
+		lock.lock();
+		try {
+			refill();
+			this.rate = rate;
+			if (rate == 0) {
+				tokens = burst;
+			}
+			Waiter head = waiters.peek();
+			if (head != null) {
+				head.turn.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getBurst() {
+		return burst;
+	}
+
+	private void acquire(Share share, int bytes) throws InterruptedIOException {
+		lock.lock();
+		try {
+			if (rate == 0 && waiters.isEmpty()) {
+				share.granted += bytes;
+				return;
+			}
+			double start = Math.max(virtualTime, share.finish);
+			share.finish = start + (double) bytes / share.weight;
+			refill();
+			if (waiters.isEmpty() && tokens >= Math.min(bytes, burst)) {
+				grant(share, start, bytes);
+				return;
+			}
+
+			Waiter waiter = new Waiter(start, sequence++, bytes);
+			waiters.add(waiter);
+			try {
+				while (true) {
+					refill();
+					if (waiters.peek() == waiter) {
+						double missing = Math.min(bytes, burst) - tokens;
+						if (rate == 0 || missing <= 0) {
+							break;
+						}
+						waiter.turn.awaitNanos((long) Math.ceil(missing
+								* TimeUnit.SECONDS.toNanos(1) / rate));
+					} else {
+						waiter.turn.await();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted waiting for bandwidth");
+			} finally {
+				waiters.remove(waiter);
+				Waiter head = waiters.peek();
+				if (head != null) {
+					head.turn.signal();
+				}
+			}
+			grant(share, start, bytes);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void charge(Share share, int bytes) {
+		if (rate == 0) {
+			return;
+		}
+		lock.lock();
+		try {
+			refill();
+			tokens -= bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void grant(Share share, double start, int bytes) {
+		if (rate != 0) {
+			tokens -= bytes;
+		}
+		virtualTime = Math.max(virtualTime, start);
+		share.granted += bytes;
+	}
+
+	/**
+	 * Adds the tokens earned since the last refill.
+	 */
+	private void refill() {
+		long now = System.nanoTime();
+		if (rate != 0) {
+			tokens = Math.min(burst, tokens + (now - refilled) * (double) rate
+					/ TimeUnit.SECONDS.toNanos(1));
+		}
+		refilled = now;
+	}
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class caches the playlist and the now playing track of a HGDClient,
+ * and lets several threads share the client.
+ *
+ * The replies of "ls" and "np" are kept for a configurable time. When several
+ * threads ask for the same expired reply at once, a single command is sent
+ * and its reply is given to all of them. The cache is cleared whenever this
+ * object queues a file or votes off a track.
+ *
+ * Commands are sent to the client one at a time; the client must not be used
+ * directly while wrapped.
+ *
+ * @since 16/10/2026
+ */
+public class CachingHGDClient {
+
+	/**
+	 * Default time the replies are kept, in milliseconds.
+	 */
+	public static final long DEFAULT_TTL = 1000;
+
+	/**
+	 * Loads a value from the daemon.
+	 */
+	private interface Loader<T> {
+		T load() throws IOException, JHGDException;
+	}
+
+	/**
+	 * A cached value.
+	 */
+	private static final class Entry<T> {
+
+		final T value;
+
+		final long expires;
+
+		final long generation;
+
+		Entry(T value, long expires, long generation) {
+			this.value = value;
+			this.expires = expires;
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * The cached reply of a command, and the command in flight, if any.
+	 */
+	private final class Slot<T> {
+
+		private final Loader<T> loader;
+
+		private volatile Entry<T> entry;
+
+		private final AtomicReference<CompletableFuture<T>> inFlight = new AtomicReference<CompletableFuture<T>>();
+
+		Slot(Loader<T> loader) {
+			this.loader = loader;
+		}
+
+		T get() throws IOException, JHGDException {
+			Entry<T> cached = entry;
+			if (cached != null && cached.generation == generation.get()
+					&& System.nanoTime() - cached.expires < 0) {
+				hits.increment();
+				return cached.value;
+			}
+
+			while (true) {
+				CompletableFuture<T> running = inFlight.get();
+				if (running != null) {
+					coalesced.increment();
+					return join(running);
+				}
+				CompletableFuture<T> mine = new CompletableFuture<T>();
+				if (!inFlight.compareAndSet(null, mine)) {
+					continue;
+				}
+				misses.increment();
+				long start = generation.get();
+				try {
+					T value;
+					lock.lock();
+					try {
+						value = loader.load();
+					} finally {
+						lock.unlock();
+					}
+					if (generation.get() == start) {
+						entry = new Entry<T>(value, System.nanoTime() + ttl,
+								start);
+					}
+					mine.complete(value);
+					return value;
+				} catch (IOException e) {
+					mine.completeExceptionally(e);
+					throw e;
+				} catch (JHGDException e) {
+					mine.completeExceptionally(e);
+					throw e;
+				} catch (RuntimeException e) {
+					mine.completeExceptionally(e);
+					throw e;
+				} finally {
+					inFlight.set(null);
+				}
+			}
+		}
+
+		void clear() {
+			entry = null;
+		}
+	}
+
+	private final HGDClient client;
+
+	/**
+	 * Time to live, in nanoseconds.
+	 */
+	private final long ttl;
+
+	/**
+	 * Serializes the commands sent to the client.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Incremented by each invalidation, so replies loaded before it are not
+	 * cached.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder coalesced = new LongAdder();
+
+	private final Slot<String[]> playlist;
+
+	private final Slot<String> nowPlaying;
+
+	/**
+	 * Wraps a client with the default time to live.
+	 *
+	 * @param client
+	 *            The client, connected or not.
+	 */
+	public CachingHGDClient(HGDClient client) {
+		this(client, DEFAULT_TTL);
+	}
+
+	/**
+	 * Wraps a client.
+	 *
+	 * @param client
+	 *            The client, connected or not.
+	 * @param ttl
+	 *            The time the replies are kept, in milliseconds.
+	 */
+	public CachingHGDClient(final HGDClient client, long ttl) {
+		this.client = client;
+		this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+		this.playlist = new Slot<String[]>(new Loader<String[]>() {
+			public String[] load() throws IOException, JHGDException {
+				return client.requestPlaylist();
+			}
+		});
+		this.nowPlaying = new Slot<String>(new Loader<String>() {
+			public String load() throws IOException, JHGDException {
+				return client.requestNowPlaying();
+			}
+		});
+	}
+
+	/**
+	 * Returns the wrapped client.
+	 *
+	 * @return The client.
+	 */
+	public HGDClient getClient() {
+		return client;
+	}
+
+	/**
+	 * Returns the playlist, from the cache if still valid.
+	 *
+	 * @return A copy of the playlist, in the format of
+	 *         HGDClient.requestPlaylist().
+	 * @see HGDClient#requestPlaylist()
+	 */
+	public String[] requestPlaylist() throws IllegalStateException,
+			IOException, JHGDException {
+		return playlist.get().clone();
+	}
+
+	/**
+	 * Returns the now playing line, from the cache if still valid.
+	 *
+	 * @return The line, in the format of HGDClient.requestNowPlaying().
+	 * @see HGDClient#requestNowPlaying()
+	 */
+	public String requestNowPlaying() throws IllegalStateException,
+			IOException, JHGDException {
+		return nowPlaying.get();
+	}
+
+	/**
+	 * Sends a file to the daemon and clears the cache.
+	 *
+	 * @see HGDClient#requestQueue(File)
+	 */
+	public void requestQueue(File file) throws IllegalStateException,
+			IOException, JHGDException {
+		lock.lock();
+		try {
+			client.requestQueue(file);
+		} finally {
+			invalidate();
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Votes off the current track and clears the cache.
+	 *
+	 * @see HGDClient#requestVoteOff()
+	 */
+	public void requestVoteOff() throws IllegalStateException, IOException,
+			JHGDException {
+		lock.lock();
+		try {
+			client.requestVoteOff();
+		} finally {
+			invalidate();
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Votes off a track and clears the cache.
+	 *
+	 * @see HGDClient#requestVoteOff(String)
+	 */
+	public void requestVoteOff(String trackId) throws IllegalStateException,
+			IOException, JHGDException {
+		lock.lock();
+		try {
+			client.requestVoteOff(trackId);
+		} finally {
+			invalidate();
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Clears the cache.
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+		playlist.clear();
+		nowPlaying.clear();
+	}
+
+	/**
+	 * Returns the number of requests answered from the cache.
+	 *
+	 * @return The number of hits.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of requests that sent a command to the daemon.
+	 *
+	 * @return The number of misses.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of requests that waited for the reply of a command
+	 * sent by another thread.
+	 *
+	 * @return The number of coalesced requests.
+	 */
+	public long getCoalesced() {
+		return coalesced.sum();
+	}
+
+	/**
+	 * Waits for a command sent by another thread, and rethrows its error.
+	 */
+	private static <T> T join(CompletableFuture<T> future)
+			throws IOException, JHGDException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof JHGDException) {
+				throw (JHGDException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the commands sent to the daemon straight into a reusable byte
+ * buffer.
+ *
+ * The verbs are encoded once, in the Verb constants. Arguments are encoded
+ * as UTF-8, ASCII characters being copied as they are, and every command
+ * ends with CR LF whatever the platform. The commands written since the last
+ * flush() go out in a single write, so a command is never split between
+ * writes, and thus TCP segments, by the client.
+ *
+ * @since 16/10/2026
+ */
+final class CommandEncoder {
+
+	/**
+	 * A command verb, encoded once.
+	 */
+	static final class Verb {
+
+		private final String name;
+
+		private final byte[] bytes;
+
+		Verb(String name) {
+			this.name = name;
+			this.bytes = name.getBytes(StandardCharsets.US_ASCII);
+		}
+
+		/**
+		 * Returns the verb, as reported to the metrics.
+		 *
+		 * @return The name of the verb.
+		 */
+		String getName() {
+			return name;
+		}
+	}
+
+	static final Verb BYE = new Verb("bye");
+
+	static final Verb USER = new Verb("user");
+
+	static final Verb LS = new Verb("ls");
+
+	static final Verb NP = new Verb("np");
+
+	static final Verb PROTO = new Verb("proto");
+
+	static final Verb VO = new Verb("vo");
+
+	static final Verb QUEUE = new Verb("q");
+
+	static final Verb ID = new Verb("id");
+
+	static final Verb ENCRYPT = new Verb("encrypt");
+
+	static final Verb ENCRYPT_QUERY = new Verb("encrypt?");
+
+	private final OutputStream out;
+
+	private byte[] buffer;
+
+	/**
+	 * The bytes encoded and not written yet.
+	 */
+	private int count;
+
+	/**
+	 * Where the command being encoded starts.
+	 */
+	private int command;
+
+	/**
+	 * Creates an encoder.
+	 *
+	 * @param out
+	 *            Where the commands are written.
+	 * @param bufferSize
+	 *            The initial size of the buffer. It grows to hold the longest
+	 *            command.
+	 */
+	CommandEncoder(OutputStream out, int bufferSize) {
+		this.out = out;
+		this.buffer = new byte[Math.max(bufferSize, 64)];
+	}
+
+	/**
+	 * Starts a command.
+	 *
+	 * @param verb
+	 *            The verb of the command.
+	 * @return This encoder, to add the arguments.
+	 */
+	CommandEncoder begin(Verb verb) throws IOException {
+		command = count;
+		ensure(verb.bytes.length);
+		System.arraycopy(verb.bytes, 0, buffer, count, verb.bytes.length);
+		count += verb.bytes.length;
+		return this;
+	}
+
+	/**
+	 * Adds an argument to the command.
+	 *
+	 * @param value
+	 *            The argument.
+	 * @return This encoder.
+	 */
+	CommandEncoder arg(CharSequence value) throws IOException {
+		ensure(1);
+		buffer[count++] = '|';
+		encode(value);
+		return this;
+	}
+
+	/**
+	 * Adds a numeric argument to the command.
+	 *
+	 * @param value
+	 *            The argument.
+	 * @return This encoder.
+	 */
+	CommandEncoder arg(long value) throws IOException {
+		if (value < 0) {
+			return arg(Long.toString(value));
+		}
+		ensure(20);
+		buffer[count++] = '|';
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		count += digits;
+		for (int i = count - 1; i >= count - digits; i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		return this;
+	}
+
+	/**
+	 * Ends the command.
+	 */
+	void end() throws IOException {
+		ensure(2);
+		buffer[count++] = '\r';
+		buffer[count++] = '\n';
+	}
+
+	/**
+	 * Encodes a whole command, such as the ones queued by an HGDPipeline.
+	 *
+	 * @param message
+	 *            The command, without line terminator.
+	 */
+	void line(CharSequence message) throws IOException {
+		command = count;
+		encode(message);
+		end();
+	}
+
+	/**
+	 * Writes the commands encoded so far, in a single write.
+	 */
+	void flush() throws IOException {
+		if (count > 0) {
+			int length = count;
+			count = 0;
+			command = 0;
+			out.write(buffer, 0, length);
+		}
+		out.flush();
+	}
+
+	void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Encodes the characters as UTF-8.
+	 */
+	private void encode(CharSequence value) throws IOException {
+		int length = value.length();
+		ensure(length);
+		int i = 0;
+		for (; i < length; i++) {
+			char c = value.charAt(i);
+			if (c >= 0x80) {
+				break;
+			}
+			buffer[count++] = (byte) c;
+		}
+		if (i == length) {
+			return;
+		}
+
+		// Up to 3 bytes a char, a surrogate pair taking 4
+		ensure((length - i) * 3);
+		for (; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				buffer[count++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[count++] = (byte) (0xc0 | c >> 6);
+				buffer[count++] = (byte) (0x80 | c & 0x3f);
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int code = Character.toCodePoint(c, value.charAt(++i));
+				buffer[count++] = (byte) (0xf0 | code >> 18);
+				buffer[count++] = (byte) (0x80 | code >> 12 & 0x3f);
+				buffer[count++] = (byte) (0x80 | code >> 6 & 0x3f);
+				buffer[count++] = (byte) (0x80 | code & 0x3f);
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired, as String.getBytes() does
+				buffer[count++] = '?';
+			} else {
+				buffer[count++] = (byte) (0xe0 | c >> 12);
+				buffer[count++] = (byte) (0x80 | c >> 6 & 0x3f);
+				buffer[count++] = (byte) (0x80 | c & 0x3f);
+			}
+		}
+	}
+
+	/**
+	 * Makes room for the given number of bytes. The commands before the
+	 * current one are written if that is enough, so that the current one is
+	 * never split; otherwise the buffer grows.
+	 */
+	private void ensure(int bytes) throws IOException {
+		if (buffer.length - count >= bytes) {
+			return;
+		}
+		if (command > 0) {
+			out.write(buffer, 0, command);
+			System.arraycopy(buffer, command, buffer, 0, count - command);
+			count -= command;
+			command = 0;
+			if (buffer.length - count >= bytes) {
+				return;
+			}
+		}
+		byte[] grown = new byte[Math.max(buffer.length * 2, count + bytes)];
+		System.arraycopy(buffer, 0, grown, 0, count);
+		buffer = grown;
+	}
+}
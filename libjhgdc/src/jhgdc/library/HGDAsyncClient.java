@@ -0,0 +1,1359 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * This class implements a non-blocking HGD client.
+ *
+ * It offers the same commands as HGDClient, but every method returns
+ * immediately with a CompletableFuture, completed once the daemon replies.
+ * The connection is driven by one of the threads of a HGDEventLoopGroup,
+ * which can be shared by many clients.
+ *
+ * Commands can be issued without waiting for the previous ones: they are
+ * executed in order. A command refused by the daemon completes its future
+ * exceptionally with a JHGDException; an I/O error closes the connection
+ * and fails every pending command with the IOException. So does a reply
+ * line longer than the limit set by setMaxLineLength().
+ *
+ * The event loops never block: host names are resolved, and the files
+ * uploaded are read, by other threads.
+ *
+ * @since 16/10/2026
+ */
+public class HGDAsyncClient {
+
+	/**
+	 * Size of the chunks read from files during uploads.
+	 */
+	private static final int UPLOAD_CHUNK = 64 * 1024;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/**
+	 * Threads resolving the host names, so that the lookups never block an
+	 * event loop.
+	 */
+	private static final ExecutorService resolvers = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "jhgdc-resolver-"
+							+ count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/**
+	 * Threads reading the files uploaded, one chunk ahead of the event loops.
+	 */
+	private static final ExecutorService readers = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "jhgdc-file-reader-"
+							+ count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/**
+	 * The event loop driving this client.
+	 */
+	private final HGDEventLoopGroup.EventLoop loop;
+
+	/**
+	 * The TLS settings, or null for the default ones.
+	 */
+	private volatile HGDTlsContext tlsContext;
+
+	/**
+	 * The longest reply line accepted, padding excluded.
+	 */
+	private volatile int maxLineLength = HGDConsts.MAX_LINE;
+
+	/*
+	 * Flags read by any thread, written by the event loop.
+	 */
+	private volatile String host = null;
+
+	private volatile int port = 0;
+
+	private volatile String username;
+
+	private volatile boolean connected = false;
+
+	private volatile boolean authenticated = false;
+
+	private volatile boolean encrypted = false;
+
+	/*
+	 * State confined to the event loop.
+	 */
+	private SocketChannel channel;
+
+	private SelectionKey key;
+
+	private final ArrayDeque<Op<?>> ops = new ArrayDeque<Op<?>>();
+
+	private Op<?> current;
+
+	private ByteBuffer netIn = ByteBuffer.allocate(16 * 1024);
+
+	private ByteBuffer appIn = ByteBuffer.allocate(16 * 1024);
+
+	private ByteBuffer netOut = ByteBuffer.allocate(16 * 1024);
+
+	private final ByteArrayOutputStream line = new ByteArrayOutputStream(
+			HGDConsts.MAX_LINE);
+
+	/**
+	 * Whether padding was dropped from the line being received.
+	 */
+	private boolean padded = false;
+
+	private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+
+	private SSLEngine engine;
+
+	private boolean tlsPending = false;
+
+	private boolean blocked = false;
+
+	private Upload upload;
+
+	/**
+	 * Receives the events of the channel from the event loop.
+	 */
+	private final HGDEventLoopGroup.Handler handler = new HGDEventLoopGroup.Handler() {
+		public void handle(SelectionKey key) {
+			HGDAsyncClient.this.handle(key);
+		}
+
+		public void abort(IOException cause) {
+			HGDAsyncClient.this.abort(cause);
+		}
+	};
+
+	/**
+	 * Creates a client driven by the given group.
+	 *
+	 * @param group
+	 *            The event loops.
+	 */
+	public HGDAsyncClient(HGDEventLoopGroup group) {
+		this.loop = group.next();
+	}
+
+	/**
+	 * Sets the TLS settings used by requestEncryption().
+	 *
+	 * @param tlsContext
+	 *            The context, or null for HGDTlsContext.getDefault().
+	 * @see HGDClient#setTlsContext(HGDTlsContext)
+	 */
+	public void setTlsContext(HGDTlsContext tlsContext) {
+		this.tlsContext = tlsContext;
+	}
+
+	/**
+	 * Returns the TLS settings used by requestEncryption().
+	 *
+	 * @return The context, or null if the default one is used.
+	 */
+	public HGDTlsContext getTlsContext() {
+		return tlsContext;
+	}
+
+	/**
+	 * Sets the longest reply line accepted, padding excluded. A longer line
+	 * closes the connection and fails the pending commands with an
+	 * HGDProtocolException.
+	 *
+	 * @param length
+	 *            The length in bytes.
+	 * @see HGDClientConfig.Builder#maxLineLength(int)
+	 */
+	public void setMaxLineLength(int length) {
+		if (length < 1) {
+			throw new IllegalArgumentException("Invalid line length: "
+					+ length);
+		}
+		this.maxLineLength = length;
+	}
+
+	/**
+	 * Returns the longest reply line accepted.
+	 *
+	 * @return The length in bytes.
+	 */
+	public int getMaxLineLength() {
+		return maxLineLength;
+	}
+
+	/**
+	 * This method tests if this client is connected.
+	 *
+	 * @return true if the connect command completed and the connection is
+	 *         still open.
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * This method tests if this client is authenticated.
+	 *
+	 * @return true if this client is authenticated, false otherwise.
+	 */
+	public boolean isAuthenticated() {
+		return authenticated;
+	}
+
+	/**
+	 * This method tests if the connection is encrypted.
+	 *
+	 * @return true if requestEncryption() completed successfully.
+	 */
+	public boolean isEncrypted() {
+		return encrypted;
+	}
+
+	/**
+	 * Returns the host name or address of the HGD daemon if connected.
+	 *
+	 * @return The remote host name or address, or null if not connected.
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Returns the port number of the HGD daemon if connected.
+	 *
+	 * @return The HGD daemon port number.
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Returns the authentication username in case the client is
+	 * authenticated.
+	 *
+	 * @return The authentication username, or null if not authenticated.
+	 */
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * Connects the client to the HGD daemon using the default port.
+	 *
+	 * @param host
+	 *            The host name or address of the daemon.
+	 * @return Completed once the greeting and the protocol version have been
+	 *         checked.
+	 */
+	public CompletableFuture<Void> connect(String host) {
+		return connect(host, HGDConsts.DEFAULT_PORT);
+	}
+
+	/**
+	 * Connects the client to the HGD daemon.
+	 *
+	 * @param host
+	 *            The host name or address of the daemon.
+	 * @param port
+	 *            The port listened by the daemon.
+	 * @return Completed once the greeting and the protocol version have been
+	 *         checked.
+	 */
+	public CompletableFuture<Void> connect(String host, int port) {
+		InetSocketAddress address;
+		try {
+			address = InetSocketAddress.createUnresolved(host, port);
+		} catch (IllegalArgumentException e) {
+			return failed(e);
+		}
+		return connect(address);
+	}
+
+	/**
+	 * Connects the client to the HGD daemon. An unresolved address is
+	 * resolved on a separate thread, not on the event loop.
+	 *
+	 * @param address
+	 *            The address of the daemon, resolved or not.
+	 * @return Completed once the greeting and the protocol version have been
+	 *         checked.
+	 */
+	public CompletableFuture<Void> connect(final InetSocketAddress address) {
+		CompletableFuture<InetSocketAddress> resolved;
+		if (!address.isUnresolved()) {
+			resolved = CompletableFuture.completedFuture(address);
+		} else {
+			resolved = CompletableFuture.supplyAsync(
+					new Supplier<InetSocketAddress>() {
+						public InetSocketAddress get() {
+							return new InetSocketAddress(address
+									.getHostString(), address.getPort());
+						}
+					}, resolvers);
+		}
+		return submit(new ConnectOp(address.getHostString(),
+				address.getPort(), resolved));
+	}
+
+	/**
+	 * Authenticates the user against the HGD daemon.
+	 *
+	 * @param username
+	 *            The username.
+	 * @param password
+	 *            The password.
+	 * @return Completed once the daemon accepted the credentials.
+	 */
+	public CompletableFuture<Void> login(final String username,
+			final String password) {
+		if (username == null || username.isEmpty()) {
+			return failed(new JHGDException("Null or empty username"));
+		}
+		if (password == null) {
+			return failed(new JHGDException("Null password"));
+		}
+		return submit(new LineOp<Void>("user|" + username + "|" + password,
+				false) {
+			@Override
+			Void decode(String returnMessage) throws JHGDException {
+				check(returnMessage);
+				authenticated = true;
+				HGDAsyncClient.this.username = username;
+				return null;
+			}
+
+			@Override
+			void start() throws IOException {
+				authenticated = false;
+				super.start();
+			}
+		});
+	}
+
+	/**
+	 * Recovers the playlist from the daemon.
+	 *
+	 * @return The playlist, in the format returned by
+	 *         HGDClient.requestPlaylist().
+	 */
+	public CompletableFuture<String[]> requestPlaylist() {
+		return submit(new PlaylistOp());
+	}
+
+	/**
+	 * Gets the currently playing item, if any.
+	 *
+	 * @return The now playing line, in the format returned by
+	 *         HGDClient.requestNowPlaying().
+	 */
+	public CompletableFuture<String> requestNowPlaying() {
+		return submit(new LineOp<String>("np", false));
+	}
+
+	/**
+	 * Requests the protocol major version.
+	 *
+	 * @return The protocol major version of the daemon.
+	 */
+	public CompletableFuture<String> requestProto() {
+		return submit(new LineOp<String>("proto", false) {
+			@Override
+			String decode(String returnMessage) throws JHGDException {
+				return check(returnMessage).split("\\|")[1];
+			}
+		});
+	}
+
+	/**
+	 * Votes off the track with the given id if and only if it is now
+	 * playing.
+	 *
+	 * @param trackId
+	 *            The id of the track.
+	 * @return Completed once the vote has been accepted.
+	 */
+	public CompletableFuture<Void> requestVoteOff(String trackId) {
+		return submit(new LineOp<Void>("vo|" + trackId, true) {
+			@Override
+			Void decode(String returnMessage) throws JHGDException {
+				check(returnMessage);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Requests information about the currently logged in user.
+	 *
+	 * @return ok|&lt;username&gt;|&lt;permission_mask&gt;|&lt;voted?&gt;
+	 */
+	public CompletableFuture<String> requestUserInformation() {
+		return submit(new LineOp<String>("id", true));
+	}
+
+	/**
+	 * Asks the daemon if it supports encryption.
+	 *
+	 * @return ok|&lt;crypto-method&gt;
+	 */
+	public CompletableFuture<String> checkServerEncryption() {
+		return submit(new LineOp<String>("encrypt?", false));
+	}
+
+	/**
+	 * Asks the daemon to encrypt the connection.
+	 *
+	 * @return ok|, once the TLS handshake is complete.
+	 */
+	public CompletableFuture<String> requestEncryption() {
+		return submit(new EncryptOp());
+	}
+
+	/**
+	 * Sends a file to the daemon.
+	 *
+	 * @param file
+	 *            The file to be queued.
+	 * @return Completed once the daemon acknowledged the file.
+	 */
+	public CompletableFuture<Void> requestQueue(File file) {
+		if (file.isDirectory()) {
+			return failed(new JHGDException("Cannot send a directory"));
+		}
+		return submit(new QueueOp(file));
+	}
+
+	/**
+	 * Disconnects from the HGD daemon, optionally using the BYE command.
+	 *
+	 * @param sendQuitCommand
+	 *            If true, uses the BYE command, otherwise the connection is
+	 *            closed without notice.
+	 * @return Completed once the connection is closed.
+	 */
+	public CompletableFuture<Void> disconnect(boolean sendQuitCommand) {
+		if (sendQuitCommand) {
+			return submit(new LineOp<Void>("bye", false) {
+				@Override
+				Void decode(String returnMessage) throws JHGDException {
+					try {
+						check(returnMessage);
+					} finally {
+						close(null);
+					}
+					return null;
+				}
+			});
+		}
+		return submit(new Op<Void>() {
+			@Override
+			void start() {
+				close(null);
+				future.complete(null);
+			}
+
+			@Override
+			boolean onLine(String line) {
+				return true;
+			}
+		});
+	}
+
+	/*
+	 * Event loop side
+	 */
+
+	/**
+	 * Hands the operation to the event loop.
+	 */
+	private <T> CompletableFuture<T> submit(final Op<T> op) {
+		loop.execute(new HGDEventLoopGroup.Task() {
+			public void run() {
+				ops.add(op);
+				if (current == null) {
+					next();
+				}
+			}
+
+			@Override
+			void rejected(RejectedExecutionException e) {
+				op.future.completeExceptionally(new IOException(e
+						.getMessage()));
+			}
+		});
+		return op.future;
+	}
+
+	private static <T> CompletableFuture<T> failed(Exception error) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(error);
+		return future;
+	}
+
+	/**
+	 * Starts the next operation, if idle.
+	 */
+	private void next() {
+		while (current == null && !ops.isEmpty()) {
+			current = ops.poll();
+			try {
+				current.start();
+				if (current != null && current.future.isDone()) {
+					current = null;
+				}
+			} catch (IOException e) {
+				abort(e);
+			} catch (RuntimeException e) {
+				current.future.completeExceptionally(e);
+				current = null;
+			}
+		}
+	}
+
+	/**
+	 * Handles the readiness events of the channel.
+	 */
+	private void handle(SelectionKey key) {
+		try {
+			if (key.isConnectable() && channel.finishConnect()) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+			if (key.isReadable()) {
+				read();
+			}
+			if (key.isValid() && key.isWritable()) {
+				flush();
+			}
+		} catch (IOException e) {
+			abort(e);
+		}
+	}
+
+	/**
+	 * Closes the connection and fails all the pending operations.
+	 */
+	private void abort(IOException cause) {
+		// Closed first, so that the failed commands see a closed client
+		close(cause);
+		Op<?> failed = current;
+		current = null;
+		if (failed != null) {
+			failed.future.completeExceptionally(cause);
+		}
+		Op<?> op;
+		while ((op = ops.poll()) != null) {
+			op.future.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Closes the connection and resets the state.
+	 */
+	private void close(IOException cause) {
+		if (key != null) {
+			key.cancel();
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Already broken
+			}
+		}
+		if (upload != null) {
+			upload.close();
+		}
+		channel = null;
+		key = null;
+		engine = null;
+		upload = null;
+		tlsPending = false;
+		blocked = false;
+		outbound.clear();
+		netIn.clear();
+		appIn.clear();
+		netOut.clear();
+		line.reset();
+		padded = false;
+		connected = false;
+		authenticated = false;
+		encrypted = false;
+		username = null;
+		host = null;
+		port = 0;
+	}
+
+	/**
+	 * Reads the available data and dispatches the received lines.
+	 */
+	private void read() throws IOException {
+		if (channel.read(netIn) < 0) {
+			throw new EOFException("Connection closed by the daemon");
+		}
+		if (engine == null) {
+			netIn.flip();
+			frame(netIn);
+			netIn.clear();
+			return;
+		}
+
+		netIn.flip();
+		while (engine != null) {
+			SSLEngineResult result = engine.unwrap(netIn, appIn);
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				appIn = grow(appIn, engine.getSession()
+						.getApplicationBufferSize());
+				continue;
+			}
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+				int size = engine.getSession().getPacketBufferSize();
+				if (netIn.capacity() < size) {
+					netIn.compact();
+					netIn = grow(netIn, size);
+					netIn.flip();
+				}
+				break;
+			}
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				throw new EOFException("TLS session closed by the daemon");
+			}
+			handshake(result.getHandshakeStatus());
+
+			appIn.flip();
+			frame(appIn);
+			appIn.clear();
+			if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+					&& engine.getHandshakeStatus() != HandshakeStatus.NEED_UNWRAP) {
+				break;
+			}
+			if (!netIn.hasRemaining()
+					&& engine.getHandshakeStatus() != HandshakeStatus.NEED_UNWRAP_AGAIN) {
+				break;
+			}
+		}
+		if (engine != null) {
+			netIn.compact();
+			if (!outbound.isEmpty()) {
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * Splits the received bytes in lines.
+	 */
+	private void frame(ByteBuffer data) throws IOException {
+		int maxLine = maxLineLength;
+		while (data.hasRemaining()) {
+			byte b = data.get();
+			if (b != '\n') {
+				if ((b & 0xff) <= ' ') {
+					// Padding is trimmed, so it need not be kept before the
+					// line or once the line is full
+					if (line.size() == 0) {
+						continue;
+					}
+					if (line.size() >= maxLine) {
+						padded = true;
+						continue;
+					}
+				} else if (padded || line.size() >= maxLine) {
+					throw new HGDProtocolException("Reply line longer than "
+							+ maxLine + " bytes");
+				}
+				line.write(b);
+				continue;
+			}
+			// There is a bug with SSL on the daemon where it pads replies to
+			// 512 bytes. trim() removes the padding, as HGDClient does.
+			String received = new String(line.toByteArray(),
+					StandardCharsets.UTF_8).trim();
+			line.reset();
+			padded = false;
+			dispatch(received);
+			if (channel == null) {
+				// Closed by the operation
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Gives the received line to the running operation.
+	 */
+	private void dispatch(String received) throws IOException {
+		if (current == null) {
+			throw new IOException("Unexpected line from daemon: " + received);
+		}
+		boolean done;
+		try {
+			done = current.onLine(received);
+		} catch (JHGDException e) {
+			current.future.completeExceptionally(e);
+			done = true;
+		}
+		if (done) {
+			current = null;
+			next();
+		}
+	}
+
+	/**
+	 * Runs the delegated tasks of the SSL engine and sends the handshake
+	 * data it needs to send.
+	 */
+	private void handshake(HandshakeStatus status) throws IOException {
+		if (status == HandshakeStatus.NEED_TASK) {
+			Runnable task;
+			while ((task = engine.getDelegatedTask()) != null) {
+				task.run();
+			}
+			status = engine.getHandshakeStatus();
+		}
+		if (status == HandshakeStatus.NEED_WRAP) {
+			flush();
+		}
+	}
+
+	/**
+	 * Queues a command line.
+	 */
+	private void writeLine(String message) throws IOException {
+		outbound.add(ByteBuffer.wrap((message + "\r\n")
+				.getBytes(StandardCharsets.UTF_8)));
+		flush();
+	}
+
+	/**
+	 * Writes as much pending data as the socket accepts, and feeds the
+	 * running upload.
+	 */
+	private void flush() throws IOException {
+		if (channel == null || !channel.isConnected()) {
+			return;
+		}
+		blocked = false;
+		while (writeOutbound() && upload != null) {
+			if (!upload.pump()) {
+				break;
+			}
+			if (upload.isDone()) {
+				upload.close();
+				upload = null;
+			}
+		}
+		if (key.isValid()) {
+			key.interestOps(blocked ? SelectionKey.OP_READ
+					| SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Writes the outbound queue.
+	 *
+	 * @return true if everything has been written.
+	 */
+	private boolean writeOutbound() throws IOException {
+		if (engine == null) {
+			while (!outbound.isEmpty()) {
+				ByteBuffer buffer = outbound.peek();
+				channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					blocked = true;
+					return false;
+				}
+				outbound.poll();
+			}
+			if (!tlsPending) {
+				return true;
+			}
+			startTls();
+		}
+
+		while (true) {
+			if (netOut.position() > 0) {
+				netOut.flip();
+				channel.write(netOut);
+				boolean left = netOut.hasRemaining();
+				netOut.compact();
+				if (left) {
+					blocked = true;
+					return false;
+				}
+			}
+			HandshakeStatus status = engine.getHandshakeStatus();
+			boolean handshaking = status != HandshakeStatus.NOT_HANDSHAKING
+					&& status != HandshakeStatus.FINISHED;
+			if (status == HandshakeStatus.NEED_TASK) {
+				handshake(status);
+				continue;
+			}
+			if (status != HandshakeStatus.NEED_WRAP
+					&& (handshaking || outbound.isEmpty())) {
+				return !handshaking && outbound.isEmpty();
+			}
+			ByteBuffer source = handshaking ? EMPTY : outbound.peek();
+			SSLEngineResult result = engine.wrap(source, netOut);
+			if (!handshaking && !source.hasRemaining()) {
+				outbound.poll();
+			}
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				netOut = grow(netOut, engine.getSession()
+						.getPacketBufferSize());
+			} else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				throw new SSLException("TLS session closed");
+			}
+		}
+	}
+
+	/**
+	 * Switches the connection to TLS, once the "encrypt" line has been sent.
+	 */
+	private void startTls() throws IOException {
+		tlsPending = false;
+		HGDTlsContext tls = tlsContext;
+		try {
+			if (tls == null) {
+				tls = HGDTlsContext.getDefault();
+			}
+		} catch (Exception e) {
+			throw new SSLException(e);
+		}
+		engine = tls.createEngine(host, port);
+		engine.beginHandshake();
+		netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+		netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+		appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int size) {
+		if (buffer.capacity() >= size) {
+			return buffer;
+		}
+		ByteBuffer bigger = ByteBuffer.allocate(size);
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+
+	/**
+	 * Builds the message of the exception thrown on failures.
+	 */
+	private static String check(String returnMessage) throws JHGDException {
+		if (HGDClient.checkServerResponse(returnMessage) != HGDConsts.SUCCESS) {
+			throw new JHGDException(returnMessage.substring(returnMessage
+					.indexOf('|') + 1));
+		}
+		return returnMessage;
+	}
+
+	/*
+	 * Operations
+	 */
+
+	/**
+	 * A command being executed.
+	 */
+	private abstract class Op<T> {
+
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		/**
+		 * Sends the command. Called by the event loop once the previous
+		 * operations are finished.
+		 */
+		abstract void start() throws IOException;
+
+		/**
+		 * Handles a received line.
+		 *
+		 * @return true if the operation is finished.
+		 */
+		abstract boolean onLine(String line) throws IOException,
+				JHGDException;
+
+		void checkConnected() {
+			if (!connected) {
+				throw new IllegalStateException("Client not connected");
+			}
+		}
+
+		void checkAuthenticated() {
+			checkConnected();
+			if (!authenticated) {
+				throw new IllegalStateException("Client not authenticated");
+			}
+		}
+	}
+
+	/**
+	 * A command answered by a single line.
+	 */
+	private class LineOp<T> extends Op<T> {
+
+		private final String command;
+
+		private final boolean authenticationRequired;
+
+		LineOp(String command, boolean authenticationRequired) {
+			this.command = command;
+			this.authenticationRequired = authenticationRequired;
+		}
+
+		@Override
+		void start() throws IOException {
+			if (authenticationRequired) {
+				checkAuthenticated();
+			} else {
+				checkConnected();
+			}
+			writeLine(command);
+		}
+
+		@Override
+		boolean onLine(String returnMessage) throws JHGDException {
+			future.complete(decode(returnMessage));
+			return true;
+		}
+
+		/**
+		 * Converts the reply in the result of the operation. By default, the
+		 * reply is returned as is.
+		 */
+		@SuppressWarnings("unchecked")
+		T decode(String returnMessage) throws JHGDException {
+			return (T) check(returnMessage);
+		}
+	}
+
+	/**
+	 * Opens the connection, reads the greeting and checks the protocol.
+	 */
+	private class ConnectOp extends Op<Void> {
+
+		private final String host;
+
+		private final int port;
+
+		private final CompletableFuture<InetSocketAddress> address;
+
+		private boolean greeted = false;
+
+		ConnectOp(String host, int port,
+				CompletableFuture<InetSocketAddress> address) {
+			this.host = host;
+			this.port = port;
+			this.address = address;
+		}
+
+		@Override
+		void start() throws IOException {
+			if (channel != null) {
+				throw new IllegalStateException("Client already connected to "
+						+ HGDAsyncClient.this.host + " on port "
+						+ HGDAsyncClient.this.port);
+			}
+			HGDAsyncClient.this.host = host;
+			HGDAsyncClient.this.port = port;
+			if (address.isDone()) {
+				open();
+				return;
+			}
+			// The next operations wait, since this one stays the current one
+			address.whenComplete(new BiConsumer<InetSocketAddress, Throwable>() {
+				public void accept(InetSocketAddress a, Throwable e) {
+					loop.execute(new HGDEventLoopGroup.Task() {
+						public void run() {
+							resolved();
+						}
+
+						@Override
+						void rejected(RejectedExecutionException x) {
+							// The loop is gone, nothing else runs the session
+							abort(new IOException(x.getMessage()));
+						}
+					});
+				}
+			});
+		}
+
+		/**
+		 * Goes on once the address is resolved, unless aborted meanwhile.
+		 */
+		private void resolved() {
+			if (current != this) {
+				return;
+			}
+			try {
+				open();
+			} catch (IOException e) {
+				abort(e);
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
+				current = null;
+				next();
+			}
+		}
+
+		private void open() throws IOException {
+			InetSocketAddress resolved = address.join();
+			if (resolved.isUnresolved()) {
+				throw new UnknownHostException(host);
+			}
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			key = channel.register(loop.selector(), 0, handler);
+			if (channel.connect(resolved)) {
+				key.interestOps(SelectionKey.OP_READ);
+			} else {
+				key.interestOps(SelectionKey.OP_CONNECT);
+			}
+		}
+
+		@Override
+		boolean onLine(String returnMessage) throws IOException,
+				JHGDException {
+			if (!greeted) {
+				try {
+					check(returnMessage);
+				} catch (JHGDException e) {
+					close(null);
+					throw e;
+				}
+				greeted = true;
+				writeLine("proto");
+				return false;
+			}
+			String protocolVersion;
+			try {
+				protocolVersion = check(returnMessage).split("\\|")[1];
+			} catch (JHGDException e) {
+				close(null);
+				throw e;
+			}
+			if (!protocolVersion.equalsIgnoreCase(HGDConsts.PROTOCOLVERSION)) {
+				close(null);
+				throw new JHGDException("Incompatible protocols. Client: "
+						+ HGDConsts.PROTOCOLVERSION + ", Daemon: "
+						+ protocolVersion);
+			}
+			connected = true;
+			future.complete(null);
+			return true;
+		}
+	}
+
+	/**
+	 * Reads the playlist header and items.
+	 */
+	private class PlaylistOp extends Op<String[]> {
+
+		private String[] items;
+
+		private int received;
+
+		@Override
+		void start() throws IOException {
+			checkConnected();
+			writeLine("ls");
+		}
+
+		@Override
+		boolean onLine(String returnMessage) throws JHGDException {
+			if (items == null) {
+				check(returnMessage);
+				items = new String[Integer.parseInt(returnMessage
+						.split("\\|")[1])];
+			} else {
+				items[received++] = returnMessage;
+			}
+			if (received < items.length) {
+				return false;
+			}
+			future.complete(items);
+			return true;
+		}
+	}
+
+	/**
+	 * Sends the "encrypt" command and performs the TLS handshake.
+	 */
+	private class EncryptOp extends Op<String> {
+
+		@Override
+		void start() throws IOException {
+			checkConnected();
+			// The daemon starts the handshake as soon as it reads the
+			// command, and replies over TLS.
+			tlsPending = true;
+			writeLine("encrypt");
+		}
+
+		@Override
+		boolean onLine(String returnMessage) throws JHGDException {
+			encrypted = true;
+			future.complete(check(returnMessage));
+			return true;
+		}
+	}
+
+	/**
+	 * Sends the "q" command and the file.
+	 */
+	private class QueueOp extends Op<Void> {
+
+		private final File file;
+
+		private FileChannel source;
+
+		private boolean accepted = false;
+
+		QueueOp(File file) {
+			this.file = file;
+		}
+
+		@Override
+		void start() throws IOException {
+			checkAuthenticated();
+			try {
+				source = new FileInputStream(file).getChannel();
+			} catch (IOException e) {
+				// The connection is still usable
+				future.completeExceptionally(e);
+				return;
+			}
+			try {
+				writeLine("q|" + file.getName() + "|" + source.size());
+			} catch (IOException e) {
+				source.close();
+				throw e;
+			}
+		}
+
+		@Override
+		boolean onLine(String returnMessage) throws IOException,
+				JHGDException {
+			if (!accepted) {
+				try {
+					check(returnMessage);
+				} catch (JHGDException e) {
+					source.close();
+					throw e;
+				}
+				accepted = true;
+				upload = new Upload(source);
+				flush();
+				return false;
+			}
+			if (upload != null) {
+				// The payload can not be interrupted, the connection is lost
+				throw new IOException("Daemon replied before the end of the upload: "
+						+ returnMessage);
+			}
+			check(returnMessage);
+			future.complete(null);
+			return true;
+		}
+	}
+
+	/**
+	 * The payload of a "q" command being sent. The file is read by the
+	 * readers, the next chunk while the event loop writes the current one.
+	 */
+	private class Upload {
+
+		private final FileChannel source;
+
+		private final long size;
+
+		/**
+		 * The position of the next chunk to read.
+		 */
+		private long position = 0;
+
+		/**
+		 * The two chunks, one being written while the other is read.
+		 */
+		private final ByteBuffer[] chunks = new ByteBuffer[2];
+
+		private int nextChunk = 0;
+
+		/**
+		 * The chunk being read, or null.
+		 */
+		private CompletableFuture<ByteBuffer> reading;
+
+		Upload(FileChannel source) throws IOException {
+			this.source = source;
+			this.size = source.size();
+		}
+
+		boolean isDone() {
+			return position >= size && reading == null;
+		}
+
+		/**
+		 * Queues the next chunk of the file, once read.
+		 *
+		 * @return false if the chunk has not been read yet; the event loop
+		 *         flushes again when it has.
+		 */
+		boolean pump() throws IOException {
+			if (reading == null) {
+				if (position >= size) {
+					return true;
+				}
+				read();
+			}
+			if (!reading.isDone()) {
+				return false;
+			}
+			ByteBuffer chunk;
+			try {
+				chunk = reading.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+			reading = null;
+			outbound.add(chunk);
+			// The other chunk has been written, read ahead into it
+			if (position < size) {
+				read();
+			}
+			return true;
+		}
+
+		/**
+		 * Reads the next chunk on a reader thread.
+		 */
+		private void read() {
+			if (chunks[nextChunk] == null) {
+				chunks[nextChunk] = ByteBuffer.allocate(UPLOAD_CHUNK);
+			}
+			final ByteBuffer chunk = chunks[nextChunk];
+			final long start = position;
+			nextChunk ^= 1;
+			chunk.clear();
+			chunk.limit((int) Math.min(size - start, UPLOAD_CHUNK));
+			position += chunk.limit();
+
+			reading = new CompletableFuture<ByteBuffer>();
+			final CompletableFuture<ByteBuffer> read = reading;
+			try {
+				readers.execute(new Runnable() {
+					public void run() {
+						try {
+							while (chunk.hasRemaining()) {
+								if (source.read(chunk, start + chunk.position()) < 0) {
+									throw new EOFException(
+											"File shrank during upload");
+								}
+							}
+							chunk.flip();
+							read.complete(chunk);
+						} catch (IOException e) {
+							read.completeExceptionally(e);
+						}
+						resume();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				read.completeExceptionally(new IOException(e.getMessage()));
+			}
+		}
+
+		/**
+		 * Goes on sending on the event loop, unless aborted meanwhile.
+		 */
+		private void resume() {
+			loop.execute(new HGDEventLoopGroup.Task() {
+				public void run() {
+					if (upload != Upload.this) {
+						return;
+					}
+					try {
+						flush();
+					} catch (IOException e) {
+						abort(e);
+					}
+				}
+
+				@Override
+				void rejected(RejectedExecutionException e) {
+					// The event loop aborted the session
+				}
+			});
+		}
+
+		void close() {
+			try {
+				source.close();
+			} catch (IOException e) {
+				// Only read from
+			}
+		}
+	}
+}
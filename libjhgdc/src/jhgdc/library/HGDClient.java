@@ -20,25 +20,34 @@
 
 package jhgdc.library;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 
 /**
  * This class implements a HGD client.
@@ -54,6 +63,9 @@ import javax.net.ssl.X509TrustManager;
  * disconnected a HGDClient object you can use it again to connect to another
  * HGD daemon.
  * 
+ * A HGDClient object must be used by one thread at a time. To share a
+ * connection between threads, wrap it in a SharedHGDClient.
+ * 
  * @author Carlos Eduardo da Silva
  * @since 22/03/2011
  * 
@@ -93,15 +105,25 @@ public class HGDClient {
 	 */
 	private boolean authenticated = false;
 
+	/**
+	 * The playlist being streamed, if any.
+	 */
+	private PlaylistStream playlistStream;
+
+	/**
+	 * A flag with the encryption status.
+	 */
+	private boolean encrypted = false;
+
 	/**
 	 * Input channel.
 	 */
-	private BufferedReader input;
+	private ReplyFramer input;
 
 	/**
 	 * Output channel used for commands.
 	 */
-	private BufferedWriter output;
+	private CommandEncoder output;
 
 	/**
 	 * Output channel used to send files.
@@ -113,11 +135,224 @@ public class HGDClient {
 	 */
 	private Socket clientSocket;
 
+	/**
+	 * The channel of the plain socket, under the TLS layer if any.
+	 */
+	private volatile SocketChannel clientChannel;
+
+	/**
+	 * The receiver of the measurements, if any.
+	 */
+	private HGDMetricsListener metrics;
+
+	/**
+	 * The share of bandwidth used by uploads, if any.
+	 */
+	private BandwidthScheduler.Share bandwidth;
+
+	/**
+	 * The index remembering the files uploaded, if any.
+	 */
+	private UploadIndex uploadIndex;
+
+	/**
+	 * The transform applied to the files uploaded, if any.
+	 */
+	private UploadTransform uploadTransform;
+
+	/**
+	 * The TLS settings of requestEncryption(), or null for the default ones.
+	 */
+	private HGDTlsContext tlsContext;
+
+	/**
+	 * The command being timed, if any.
+	 */
+	private String command;
+
+	/**
+	 * The time the command being timed was sent.
+	 */
+	private long commandStart;
+
+	/**
+	 * The flight recorder event of the command being timed, if recorded.
+	 */
+	private HGDEvents.Command commandEvent;
+
+	/**
+	 * Bytes sent since the client was created, uploads included.
+	 */
+	private long bytesSent;
+
+	/**
+	 * Bytes received since the client was created.
+	 */
+	private long bytesReceived;
+
+	/**
+	 * The byte counts when the command being timed was sent.
+	 */
+	private long commandSent, commandReceived;
+
+	/**
+	 * The socket settings and timeouts.
+	 */
+	private final HGDClientConfig config;
+
+	/**
+	 * The time the daemon has to reply, in milliseconds, or 0.
+	 */
+	private int readTimeout;
+
+	/**
+	 * The time the reply to the commands sent must have started by, or 0.
+	 */
+	private long deadline;
+
+	/**
+	 * The read timeout currently set on the socket, or -1 if unknown.
+	 */
+	private int socketTimeout = -1;
+
 	/**
 	 * Default constructor initializes the client.
 	 */
 	public HGDClient() {
+		this(HGDClientConfig.DEFAULT);
+	}
 
+	/**
+	 * Initializes a client with the given socket settings and timeouts.
+	 * 
+	 * @param config
+	 *            The configuration.
+	 */
+	public HGDClient(HGDClientConfig config) {
+		if (config == null) {
+			throw new IllegalArgumentException("Null configuration");
+		}
+		this.config = config;
+		this.readTimeout = config.getReadTimeout();
+	}
+
+	/**
+	 * Returns the socket settings and timeouts of this client.
+	 * 
+	 * @return The configuration.
+	 */
+	public HGDClientConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Sets the receiver of the measurements of this client, such as a
+	 * HGDMetrics instance.
+	 * 
+	 * @param metrics
+	 *            The listener, or null to stop measuring.
+	 */
+	public void setMetricsListener(HGDMetricsListener metrics) {
+		this.metrics = metrics;
+		this.command = null;
+		this.commandEvent = null;
+	}
+
+	/**
+	 * Returns the receiver of the measurements of this client.
+	 * 
+	 * @return The listener, or null.
+	 */
+	public HGDMetricsListener getMetricsListener() {
+		return metrics;
+	}
+
+	/**
+	 * Limits the upload rate of this client. Uploads wait for the share
+	 * before writing each chunk; command lines are charged to it without
+	 * waiting.
+	 * 
+	 * @param bandwidth
+	 *            The share, usually one per user of a process-wide
+	 *            BandwidthScheduler, or null for no limit.
+	 */
+	public void setBandwidthShare(BandwidthScheduler.Share bandwidth) {
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * Returns the share of bandwidth used by this client.
+	 * 
+	 * @return The share, or null.
+	 */
+	public BandwidthScheduler.Share getBandwidthShare() {
+		return bandwidth;
+	}
+
+	/**
+	 * Makes this client remember the files it uploads. Each file is hashed
+	 * while it is sent, and recorded in the index with the daemon and the
+	 * time once the daemon accepted it.
+	 * 
+	 * @param uploadIndex
+	 *            The index, usually shared by the clients of the process, or
+	 *            null.
+	 * @see UploadIndex#getLastUpload(File, String, int)
+	 */
+	public void setUploadIndex(UploadIndex uploadIndex) {
+		this.uploadIndex = uploadIndex;
+	}
+
+	/**
+	 * Returns the index remembering the files uploaded by this client.
+	 * 
+	 * @return The index, or null.
+	 */
+	public UploadIndex getUploadIndex() {
+		return uploadIndex;
+	}
+
+	/**
+	 * Makes this client transform the files it uploads, for instance to strip
+	 * their embedded artwork. The files themselves are not changed: the
+	 * transformed content is sent on the fly. Streams, channels and buffers
+	 * are sent unchanged.
+	 * 
+	 * @param uploadTransform
+	 *            The transform, or null.
+	 * @see MetadataStripper
+	 */
+	public void setUploadTransform(UploadTransform uploadTransform) {
+		this.uploadTransform = uploadTransform;
+	}
+
+	/**
+	 * Returns the transform applied to the files uploaded by this client.
+	 * 
+	 * @return The transform, or null.
+	 */
+	public UploadTransform getUploadTransform() {
+		return uploadTransform;
+	}
+
+	/**
+	 * Sets the TLS settings used by requestEncryption(). Sharing a context
+	 * between clients lets them resume the sessions negotiated with a daemon.
+	 * 
+	 * @param tlsContext
+	 *            The context, or null for HGDTlsContext.getDefault().
+	 */
+	public void setTlsContext(HGDTlsContext tlsContext) {
+		this.tlsContext = tlsContext;
+	}
+
+	/**
+	 * Returns the TLS settings used by requestEncryption().
+	 * 
+	 * @return The context, or null if the default one is used.
+	 */
+	public HGDTlsContext getTlsContext() {
+		return tlsContext;
 	}
 
 	/**
@@ -139,6 +374,15 @@ public class HGDClient {
 		return connected;
 	}
 
+	/**
+	 * This method tests if the connection with the daemon is encrypted.
+	 * 
+	 * @return true if requestEncryption() succeeded on this connection.
+	 */
+	public boolean isEncrypted() {
+		return encrypted;
+	}
+
 	/**
 	 * Returns the host name or address of the HGD daemon if connected.
 	 * 
@@ -208,6 +452,32 @@ public class HGDClient {
 	 */
 	public void connect(String host, int port) throws IllegalStateException,
 			IOException, JHGDException {
+		if (!HGDEvents.CONNECT.isEnabled()) {
+			establish(host, port);
+			return;
+		}
+		HGDEvents.Connect event = new HGDEvents.Connect();
+		event.begin();
+		try {
+			establish(host, port);
+			event.success = true;
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.host = host;
+				event.port = port;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Connects to the daemon and checks its protocol.
+	 * 
+	 * @see #connect(String, int)
+	 */
+	private void establish(String host, int port)
+			throws IllegalStateException, IOException, JHGDException {
 		// Check if the client is already connected
 		if (connected) {
 			throw new IllegalStateException("Client already connected to "
@@ -215,19 +485,30 @@ public class HGDClient {
 		}
 
 		// Open socket
-		openSocket(host, port);
+		beginCommand("connect");
+		try {
+			openSocket(host, port);
+		} catch (IOException e) {
+			commandFailed(e.getClass().getSimpleName());
+			throw e;
+		}
+		commandDone();
+		armDeadline();
 
 		// set the first flags
+		this.playlistStream = null;
 		this.connected = true;
 		this.authenticated = false;
+		this.encrypted = false;
 
+		beginCommand("greeting");
 		String returnMessage = receiveLine();
 
 		if (checkServerResponse(returnMessage) != HGDConsts.SUCCESS) {
 			this.connected = false;
-			throw new JHGDException(returnMessage.substring(returnMessage
-					.indexOf('|') + 1));
+			throw daemonError(returnMessage);
 		}
+		commandDone();
 		
 		String protocolVersion = requestProto();
 		if ( !protocolVersion.equalsIgnoreCase(HGDConsts.PROTOCOLVERSION)) {
@@ -265,22 +546,24 @@ public class HGDClient {
 		}
 
 		if (sendQuitCommand) {
-			sendLineCommand("bye");
+			sendCommand(CommandEncoder.BYE);
 
 			String returnMessage = receiveLine();
 			// System.out.println("closeConnection - returned: "+returnMessage);
 			if (checkServerResponse(returnMessage) != HGDConsts.SUCCESS) {
-				throw new JHGDException(returnMessage.substring(returnMessage
-						.indexOf('|') + 1));
+				throw daemonError(returnMessage);
 			}
+			commandDone();
 		}
 
 		// close the socket and clean the flags
 		closeSocket();
+		playlistStream = null;
 
 		// Set the flags
 		connected = false;
 		authenticated = false;
+		encrypted = false;
 		username = null;
 		password = null;
 		host = null;
@@ -303,6 +586,32 @@ public class HGDClient {
 	 */
 	public void login(String username, String password)
 			throws IllegalStateException, IOException, JHGDException {
+		if (!HGDEvents.LOGIN.isEnabled()) {
+			authenticate(username, password);
+			return;
+		}
+		HGDEvents.Login event = new HGDEvents.Login();
+		event.begin();
+		try {
+			authenticate(username, password);
+			event.success = true;
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.host = HGDEvents.host(clientSocket);
+				event.username = username;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Sends the "user" command.
+	 * 
+	 * @see #login(String, String)
+	 */
+	private void authenticate(String username, String password)
+			throws IllegalStateException, IOException, JHGDException {
 		if (!connected) {
 			throw new IllegalStateException("Client not connected");
 		}
@@ -320,7 +629,7 @@ public class HGDClient {
 		}
 
 		// send the command: "user|%s|%s"
-		sendLineCommand("user|" + username + "|" + password);
+		sendCommand(CommandEncoder.USER, username, password);
 
 		String returnMessage = receiveLine();
 		// check server response
@@ -329,9 +638,9 @@ public class HGDClient {
 			this.authenticated = true;
 			this.username = username;
 			this.password = password;
+			commandDone();
 		} else {
-			throw new JHGDException(returnMessage.substring(returnMessage
-					.indexOf('|') + 1));
+			throw daemonError(returnMessage);
 		}
 
 	}
@@ -356,9 +665,96 @@ public class HGDClient {
 			throw new IllegalStateException("Client not connected");
 
 		// send the command
-		sendLineCommand("ls");
+		sendCommand(CommandEncoder.LS);
+
+		return readPlaylist(receiveLine());
+	}
+
+	/**
+	 * Recovers the playlist from the daemon, handing each track to the
+	 * handler as soon as it is read instead of keeping the whole playlist in
+	 * memory.
+	 * 
+	 * If the handler stops early, either by returning false or by throwing
+	 * an exception, the remaining tracks are read and discarded.
+	 * 
+	 * @param handler The receiver of the tracks.
+	 * @return The number of tracks of the playlist.
+	 * @throws IllegalStateException If the client is not connected to a HGD daemon.
+	 * @throws IOException If an I/O exception occurs, or if thrown by the handler.
+	 * @throws JHGDException If the server returns a message different than ok.
+	 */
+	public int requestPlaylist(PlaylistHandler handler)
+			throws IllegalStateException, IOException, JHGDException {
+		PlaylistStream stream = openPlaylist();
+		try {
+			while (stream.hasNext()) {
+				if (!handler.handle(stream.readNext())) {
+					break;
+				}
+			}
+		} finally {
+			stream.close();
+		}
+		return stream.size();
+	}
+
+	/**
+	 * Recovers the playlist from the daemon as a stream, reading each track
+	 * when it is requested.
+	 * 
+	 * The stream must be consumed or closed before other commands are sent;
+	 * if not, sending a command discards the remaining tracks first.
+	 * 
+	 * @return The playlist stream.
+	 * @throws IllegalStateException If the client is not connected to a HGD daemon.
+	 * @throws IOException If an I/O exception occurs.
+	 * @throws JHGDException If the server returns a message different than ok.
+	 */
+	public PlaylistStream openPlaylist() throws IllegalStateException,
+			IOException, JHGDException {
+		// Check if the connection is established
+		if (!connected)
+			throw new IllegalStateException("Client not connected");
+
+		// send the command
+		sendCommand(CommandEncoder.LS);
 
 		String returnMessage = receiveLine();
+		if (checkServerResponse(returnMessage) != HGDConsts.SUCCESS) {
+			throw daemonError(returnMessage);
+		}
+		PlaylistStream stream = new PlaylistStream(this,
+				Integer.parseInt(returnMessage.split("\\|")[1]));
+		if (stream.hasNext()) {
+			playlistStream = stream;
+		} else {
+			commandDone();
+		}
+		return stream;
+	}
+
+	/**
+	 * Called by a playlist stream once all its tracks have been read.
+	 */
+	void playlistDone(PlaylistStream stream) {
+		if (playlistStream == stream) {
+			playlistStream = null;
+			commandDone();
+		}
+	}
+
+	/**
+	 * Reads the reply of the "ls" command.
+	 * 
+	 * @param returnMessage
+	 *            The first line of the reply, already received.
+	 * @return The playlist, in the format returned by requestPlaylist().
+	 * @throws IOException If an I/O exception occurs.
+	 * @throws JHGDException If the server returns a message different than ok.
+	 */
+	String[] readPlaylist(String returnMessage) throws IOException,
+			JHGDException {
 		// Debug
 		// System.out.println("req_playlist - returned: "+returnMessage);
 
@@ -376,10 +772,10 @@ public class HGDClient {
 					returnList[i] = returnedItem;
 				}
 			}
+			commandDone();
 			return returnList;
 		} else {
-			throw new JHGDException(returnMessage.substring(returnMessage
-					.indexOf('|') + 1));
+			throw daemonError(returnMessage);
 		}
 	}
 
@@ -407,17 +803,50 @@ public class HGDClient {
 		if (!connected)
 			throw new IllegalStateException("Client not connected");
 
-		sendLineCommand("np");
+		sendCommand(CommandEncoder.NP);
 		String returnMessage = receiveLine();
 
 		if (checkServerResponse(returnMessage) == HGDConsts.SUCCESS) {
+			commandDone();
 			return returnMessage;
 		} else {
-			throw new JHGDException(returnMessage.substring(returnMessage
-					.indexOf('|') + 1));
+			throw daemonError(returnMessage);
 		}
 	}
 
+	/**
+	 * Recovers the playlist from the daemon as typed items.
+	 * 
+	 * @return The playlist, one PlaylistItem per track.
+	 * @throws IllegalStateException If the client is not connected to a HGD daemon.
+	 * @throws IOException If an I/O exception occurs.
+	 * @throws JHGDException If the server returns a message different than ok.
+	 * @see #requestPlaylist()
+	 */
+	public List<PlaylistItem> requestPlaylistItems()
+			throws IllegalStateException, IOException, JHGDException {
+		String[] playlist = requestPlaylist();
+		List<PlaylistItem> items = new ArrayList<PlaylistItem>(playlist.length);
+		for (String line : playlist) {
+			items.add(PlaylistItem.parse(line));
+		}
+		return items;
+	}
+
+	/**
+	 * Gets the currently playing item, if any, as a typed value.
+	 * 
+	 * @return The parsed reply of the "np" command.
+	 * @throws IllegalStateException If the client is not connected to a HGD daemon.
+	 * @throws IOException If an I/O exception occurs.
+	 * @throws JHGDException If the server returns a message different than ok.
+	 * @see #requestNowPlaying()
+	 */
+	public NowPlaying requestNowPlayingItem() throws IllegalStateException,
+			IOException, JHGDException {
+		return NowPlaying.parse(requestNowPlaying());
+	}
+
 	/**
 	 * Requests the protocol major version.
 	 * 
@@ -435,14 +864,14 @@ public class HGDClient {
 			throw new IllegalStateException("Client not connected");
 		}
 
-		sendLineCommand("proto");
+		sendCommand(CommandEncoder.PROTO);
 		String returnMessage = receiveLine();
 
 		if (checkServerResponse(returnMessage) == HGDConsts.SUCCESS) {
+			commandDone();
 			return returnMessage.split("\\|")[1];
 		} else {
-			throw new JHGDException(returnMessage.substring(returnMessage
-					.indexOf('|') + 1));
+			throw daemonError(returnMessage);
 		}
 	}
 
@@ -465,13 +894,13 @@ public class HGDClient {
 			throw new IllegalStateException("Client not authenticated");
 		}
 
-		sendLineCommand("vo");
+		sendCommand(CommandEncoder.VO);
 
 		String returnMessage = receiveLine();
 		if (checkServerResponse(returnMessage) != HGDConsts.SUCCESS) {
-			throw new JHGDException(returnMessage.substring(returnMessage
-					.indexOf('|') + 1));
+			throw daemonError(returnMessage);
 		}
+		commandDone();
 	}
 
     /**
@@ -492,71 +921,258 @@ public class HGDClient {
 		if (!authenticated) {
 			throw new IllegalStateException("Client not authenticated");
 		}
-		
-		sendLineCommand("vo|" + trackId);
+		checkArgument("track id", trackId);
+
+		sendCommand(CommandEncoder.VO, trackId);
 		String returnMessage = receiveLine();
 		if (checkServerResponse(returnMessage) != HGDConsts.SUCCESS) {
-			throw new JHGDException(returnMessage.substring(returnMessage
-					.indexOf('|') + 1));
+			throw daemonError(returnMessage);
 		}
+		commandDone();
 	}
 
 	/**
 	 * Sends a file to the daemon.
 	 * 
 	 * This method implements the "q" command of the HGD protocol.
+	 * The file is streamed by the UploadEngine: plain connections use a
+	 * zero-copy transfer, encrypted connections use large buffers read
+	 * ahead of the socket.
 	 * 
 	 * {"q", 1, 1, hgd_req_queue},
 	 * @throws IOException If an I/O exception occurs.
+	 * @see HGDUpload
 	 */
 	public void requestQueue(File file) throws IllegalStateException,
 			IOException, JHGDException {
-		// Check if the connection is established
-		if (!connected) {
-			throw new IllegalStateException("Client not connected");
-		}
+		requestQueue(file, null);
+	}
 
-		// Check authentication
-		if (!authenticated) {
-			throw new IllegalStateException("Client not authenticated");
-		}
+	/**
+	 * Sends the content of a stream to the daemon as a file.
+	 * 
+	 * Exactly size bytes are sent. If the stream ends earlier, or has more
+	 * bytes, the upload fails before the daemon gets the whole file, and the
+	 * client is disconnected since the daemon still expects the rest of it.
+	 * 
+	 * @param filename
+	 *            The name of the file for the daemon.
+	 * @param size
+	 *            The number of bytes of the stream.
+	 * @param in
+	 *            The stream, read up to its end.
+	 * @throws IllegalArgumentException
+	 *             If the filename contains a '|' or a line break, or if a
+	 *             FileInputStream does not have size bytes left.
+	 * @throws IOException
+	 *             If an I/O exception occurs, or if the stream does not have
+	 *             size bytes.
+	 * @see #requestQueue(File)
+	 */
+	public void requestQueue(String filename, long size, InputStream in)
+			throws IllegalArgumentException, IllegalStateException,
+			IOException, JHGDException {
+		requestQueue(filename, size, Channels.newChannel(in));
+	}
+
+	/**
+	 * Sends the content of a channel to the daemon as a file.
+	 * 
+	 * A FileChannel is sent from its position with the zero-copy transfer of
+	 * plain connections, and its position is moved to the end; its size
+	 * must then match the declared size. Other channels are read up to their
+	 * end, which must come after exactly size bytes, as with
+	 * requestQueue(String, long, InputStream).
+	 * 
+	 * @param filename
+	 *            The name of the file for the daemon.
+	 * @param size
+	 *            The number of bytes of the channel.
+	 * @param channel
+	 *            The channel, in blocking mode.
+	 * @throws IllegalArgumentException
+	 *             If the filename contains a '|' or a line break, if the
+	 *             FileChannel does not have size bytes left, or if the
+	 *             channel is in non-blocking mode.
+	 * @see #requestQueue(String, long, InputStream)
+	 */
+	public void requestQueue(String filename, long size,
+			ReadableByteChannel channel) throws IllegalArgumentException,
+			IllegalStateException, IOException, JHGDException {
+		upload(filename, size, UploadEngine.source(channel), null, null);
+	}
 
-		// Check if file exists
+	/**
+	 * Sends the remaining bytes of a buffer to the daemon as a file. Direct
+	 * buffers are written to plain connections without any copy. The
+	 * position of the buffer is moved to its limit.
+	 * 
+	 * @param filename
+	 *            The name of the file for the daemon.
+	 * @param data
+	 *            The content of the file.
+	 * @throws IllegalArgumentException
+	 *             If the filename contains a '|' or a line break.
+	 * @see #requestQueue(File)
+	 */
+	public void requestQueue(String filename, ByteBuffer data)
+			throws IllegalArgumentException, IllegalStateException,
+			IOException, JHGDException {
+		upload(filename, data.remaining(), UploadEngine.source(data), null,
+				null);
+	}
+
+	/**
+	 * Sends a file to the daemon, telling progress about the bytes sent.
+	 * 
+	 * @see #requestQueue(File)
+	 */
+	void requestQueue(File file, UploadEngine.Progress progress)
+			throws IllegalStateException, IOException, JHGDException {
+		checkAuthenticated();
 
 		// Check it is not a directory
 		if (file.isDirectory()) {
 			throw new JHGDException("Cannot send a directory");
 		}
 
-		// get size
-		long fileSize = file.length();
+		// Hash the file as it is sent, to remember the upload
+		UploadIndex index = uploadIndex;
+		UploadTransform transform = uploadTransform;
+		MessageDigest digest = index == null ? null : UploadIndex.newDigest();
+		long modified = file.lastModified();
+
+		FileChannel fileInput = new FileInputStream(file).getChannel();
+		long size;
+		byte[] hash = null;
+		try {
+			size = fileInput.size();
+			UploadPlan plan = transform == null ? null : transform
+					.plan(fileInput);
+			if (plan == null) {
+				upload(file.getName(), size, UploadEngine.source(fileInput),
+						progress, digest);
+			} else {
+				// The index knows files by their own content, not by the
+				// content sent: the plan hashes the ranges it sends and reads
+				// the bytes it leaves out. Ranges out of order can not be
+				// hashed in a single pass, the file is then read again.
+				if (digest != null && !plan.isOrdered()) {
+					digest = null;
+				}
+				upload(file.getName(), plan.getLength(), plan.source(
+						fileInput, digest), progress, null);
+			}
+			if (index != null) {
+				hash = digest != null ? digest.digest() : index.hash(file);
+			}
+		} finally {
+			fileInput.close();
+		}
+		if (index != null) {
+			index.recordUpload(file, size, modified, hash, host, port,
+					System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Sends a source to the daemon, recording the flight recorder event.
+	 */
+	private void upload(String filename, long size,
+			UploadEngine.Source source, UploadEngine.Progress progress,
+			MessageDigest digest) throws IllegalStateException, IOException,
+			JHGDException {
+		if (!HGDEvents.UPLOAD.isEnabled()) {
+			queue(filename, size, source, progress, digest);
+			return;
+		}
+		HGDEvents.Upload event = new HGDEvents.Upload();
+		event.begin();
+		try {
+			queue(filename, size, source, progress, digest);
+			event.success = true;
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.host = HGDEvents.host(clientSocket);
+				event.filename = filename;
+				event.bytes = size;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Sends the "q" command and the content of the source.
+	 * 
+	 * @see #requestQueue(File)
+	 */
+	private void queue(String filename, long size, UploadEngine.Source source,
+			UploadEngine.Progress progress, MessageDigest digest)
+			throws IllegalStateException, IOException, JHGDException {
+		checkAuthenticated();
 
-		BufferedInputStream fileInput = new BufferedInputStream(
-				new FileInputStream(file));
+		checkArgument("filename", filename);
+		long available = source.available();
+		if (size < 0 || (available >= 0 && available != size)) {
+			throw new IllegalArgumentException("Declared size " + size
+					+ " but the source has " + available + " bytes");
+		}
 
 		// send request to upload
-		sendLineCommand("q|" + file.getName() + "|" + fileSize);
+		sendCommand(CommandEncoder.QUEUE, filename, size);
 
 		// Check we are allowed
 		String returnMessage = receiveLine();
 		if (checkServerResponse(returnMessage) == HGDConsts.FAILURE) {
-			throw new JHGDException(returnMessage.substring(returnMessage
-					.indexOf('|') + 1));
+			throw daemonError(returnMessage);
 		}
 
 		// send file
-		byte[] buffer = new byte[HGDConsts.BINARY_CHUNK];
-		int bytesRead = 0;
-		while ((bytesRead = fileInput.read(buffer)) != -1) {
-			fileOutput.write(buffer, 0, bytesRead);
-			fileOutput.flush();
+		long start = metrics == null ? 0 : System.nanoTime();
+		try {
+			UploadEngine.Target target = new UploadEngine.Target(clientSocket,
+					fileOutput);
+			target.progress = progress;
+			target.share = bandwidth;
+			target.digest = digest;
+			source.send(size, target);
+		} catch (Throwable e) {
+			// Including the errors of a progress listener: the daemon still
+			// waits for the rest of the file
+			commandFailed(e.getClass().getSimpleName());
+			if (connected) {
+				disconnect(false);
+			}
+			throw e;
 		}
+		bytesSent += size;
+		if (metrics != null) {
+			metrics.bytesTransferred(size, 0);
+			metrics.uploadCompleted(size, System.nanoTime() - start);
+		}
+		armDeadline();
 
 		// check server response
 		returnMessage = receiveLine();
 		if (checkServerResponse(returnMessage) != HGDConsts.SUCCESS) {
-			throw new JHGDException(returnMessage.substring(returnMessage
-					.indexOf('|') + 1));
+			throw daemonError(returnMessage);
+		}
+		commandDone();
+	}
+
+	/**
+	 * Checks the client may send a command reserved to authenticated users.
+	 */
+	private void checkAuthenticated() throws IllegalStateException {
+		// Check if the connection is established
+		if (!connected) {
+			throw new IllegalStateException("Client not connected");
+		}
+
+		// Check authentication
+		if (!authenticated) {
+			throw new IllegalStateException("Client not authenticated");
 		}
 	}
 
@@ -571,19 +1187,60 @@ public class HGDClient {
 	private void openSocket(String host, int port) throws IOException {
 		// Debug - attempting connection
 
-		clientSocket = new Socket(InetAddress.getByName(host), port);
+		// Sockets created from a channel let uploads use zero-copy transfers
+		SocketChannel channel = SocketChannel.open();
+		try {
+			config.configure(channel.socket());
+			channel.socket().connect(
+					new InetSocketAddress(InetAddress.getByName(host), port),
+					config.getConnectTimeout());
+		} catch (SocketTimeoutException e) {
+			channel.close();
+			throw new HGDTimeoutException("Cannot connect to " + host + ":"
+					+ port + " within " + config.getConnectTimeout() + " ms", e);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		clientSocket = channel.socket();
+		clientChannel = channel;
 
-		output = new BufferedWriter(new OutputStreamWriter(
-				new NoCloseOutputStream(clientSocket.getOutputStream())));
-		output.flush();
+		openStreams(clientSocket.getInputStream(),
+				clientSocket.getOutputStream());
 
-		fileOutput = new BufferedOutputStream(
-				new NoCloseOutputStream(clientSocket.getOutputStream()));
+		// Debug - done
+	}
 
-		input = new BufferedReader(new InputStreamReader(
-				new NoCloseInputStream(clientSocket.getInputStream())));
+	/**
+	 * Wraps the streams of the connection.
+	 */
+	private void openStreams(InputStream in, OutputStream out)
+			throws IOException {
+		output = new CommandEncoder(new CountingOutputStream(
+				new NoCloseOutputStream(out)), config.getWriterBufferSize());
+
+		// Uploads are counted by requestQueue()
+		fileOutput = new BufferedOutputStream(new NoCloseOutputStream(out));
+
+		input = new ReplyFramer(new CountingInputStream(
+				new NoCloseInputStream(in)), config.getReaderBufferSize(),
+				config.getMaxLineLength());
+		socketTimeout = -1;
+	}
 
-		// Debug - done
+	/**
+	 * Attaches the client to streams instead of a socket, as if it had
+	 * connected and read the greeting. The benchmarks use it to measure the
+	 * line framing and encoding without any network.
+	 * 
+	 * @param in
+	 *            The replies of the "daemon".
+	 * @param out
+	 *            Where the commands are written.
+	 */
+	void attach(InputStream in, OutputStream out) throws IOException {
+		openStreams(in, out);
+		connected = true;
 	}
 
 	/**
@@ -600,7 +1257,7 @@ public class HGDClient {
 				fileOutput.close();
 
 			// close socket
-			if (!clientSocket.isClosed()) {
+			if (clientSocket != null && !clientSocket.isClosed()) {
 				clientSocket.close();
 			}
 		} catch (Exception e) {
@@ -610,36 +1267,345 @@ public class HGDClient {
 			output = null;
 			fileOutput = null;
 			clientSocket = null;
+			clientChannel = null;
 		}
 
 	}
 
 	/**
-	 * Sends the received message to the daemon
+	 * Closes the connection from another thread, unblocking any read or
+	 * write in progress. The TLS layer is bypassed, so a stuck connection
+	 * does not block on the close_notify alert. The thread using the client
+	 * sees an I/O exception and must disconnect it.
+	 */
+	void abort() {
+		SocketChannel channel = clientChannel;
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Nothing more can be done
+			}
+		}
+	}
+
+	/**
+	 * Overrides the time the daemon has to reply to the next commands.
+	 *
+	 * @param millis
+	 *            The timeout in milliseconds, or 0 to wait forever.
+	 * @see HGDClientConfig#getReadTimeout()
+	 */
+	void setReadTimeout(int millis) {
+		readTimeout = millis;
+	}
+
+	/**
+	 * Returns the time the daemon has to reply to the next commands.
+	 *
+	 * @return The timeout in milliseconds, or 0.
+	 */
+	int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Starts the deadline of the reply to the commands just sent.
+	 */
+	private void armDeadline() {
+		deadline = readTimeout > 0 ? System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(readTimeout) : 0;
+	}
+
+	/**
+	 * Sets the socket timeout of the next read to the time left before the
+	 * deadline, or to the read timeout once the reply has started.
+	 */
+	private void applyTimeout() throws IOException {
+		int timeout = readTimeout;
+		if (deadline != 0) {
+			long left = deadline - System.nanoTime();
+			if (left <= 0) {
+				throw new SocketTimeoutException("Deadline expired");
+			}
+			timeout = (int) Math.min(Integer.MAX_VALUE,
+					Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+		}
+		if (timeout != socketTimeout && clientSocket != null) {
+			clientSocket.setSoTimeout(timeout);
+			socketTimeout = timeout;
+		}
+	}
+
+	/**
+	 * Sends a command without arguments to the daemon.
+	 * 
+	 * @param verb
+	 *            The command to be sent.
+	 * @throws IllegalStateException in case the client is not connected.
+	 * @throws IOException If an I/O exception occurs.
+	 */
+	private void sendCommand(CommandEncoder.Verb verb) throws IOException,
+			IllegalStateException {
+		startCommand(verb).end();
+		flushCommand(verb.getName());
+	}
+
+	/**
+	 * Sends a command with one argument, such as "vo|&lt;track-id&gt;".
+	 */
+	private void sendCommand(CommandEncoder.Verb verb, String arg)
+			throws IOException, IllegalStateException {
+		startCommand(verb).arg(arg).end();
+		flushCommand(verb.getName());
+	}
+
+	/**
+	 * Sends a command with two arguments, such as
+	 * "user|&lt;name&gt;|&lt;password&gt;".
+	 */
+	private void sendCommand(CommandEncoder.Verb verb, String arg1,
+			String arg2) throws IOException, IllegalStateException {
+		startCommand(verb).arg(arg1).arg(arg2).end();
+		flushCommand(verb.getName());
+	}
+
+	/**
+	 * Sends a command with a name and a number, such as
+	 * "q|&lt;filename&gt;|&lt;size&gt;".
+	 */
+	private void sendCommand(CommandEncoder.Verb verb, String arg1, long arg2)
+			throws IOException, IllegalStateException {
+		startCommand(verb).arg(arg1).arg(arg2).end();
+		flushCommand(verb.getName());
+	}
+
+	/**
+	 * Starts writing a command, once the client is ready for it.
+	 */
+	private CommandEncoder startCommand(CommandEncoder.Verb verb)
+			throws IOException, IllegalStateException {
+		checkWritable();
+		return output.begin(verb);
+	}
+
+	/**
+	 * Sends the command just written.
+	 */
+	private void flushCommand(String verb) throws IOException {
+		if (metrics != null || HGDEvents.COMMAND.isEnabled()) {
+			beginCommand(verb);
+		}
+		try {
+			flushCommands();
+		} catch (IOException e) {
+			commandFailed(e.getClass().getSimpleName());
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the received message without flushing it, so several commands
+	 * can be sent to the daemon at once.
 	 * 
 	 * @param message
 	 *            The message to be sent.
 	 * @throws IllegalStateException in case the client is not connected.
 	 * @throws IOException If an I/O exception occurs.
 	 */
-	private void sendLineCommand(String message) throws IOException,
+	void writeLineCommand(String message) throws IOException,
 			IllegalStateException {
+		checkWritable();
+		output.line(message);
+	}
+
+	/**
+	 * Checks that a command can be written.
+	 */
+	private void checkWritable() throws IOException, IllegalStateException {
 		if (!connected) {
 			throw new IllegalStateException("Client not connected");
 		}
-		output.write(message + "\r");
-		output.newLine();
+		if (playlistStream != null) {
+			// Keep the replies in sync
+			playlistStream.close();
+		}
+	}
+
+	/**
+	 * Sends the commands written so far to the daemon.
+	 * 
+	 * @throws IOException If an I/O exception occurs.
+	 */
+	void flushCommands() throws IOException {
 		output.flush();
+		armDeadline();
 	}
 
 	/**
 	 * Receive one line of input from the server.
 	 *
 	 * There is a current bug with SSL on the server where it always
-	 * returns 512 bytes of data. We trim the excess.
+	 * returns 512 bytes of data. The framer skips the excess.
 	 */
-	private String receiveLine() throws IOException {
-		return input.readLine().trim();
+	String receiveLine() throws IOException {
+		return receiveText().toString();
+	}
+
+	/**
+	 * Receive one line of input from the server, without copying it.
+	 *
+	 * @return The line, valid until the next line is received.
+	 * @throws HGDProtocolException
+	 *             If the line is malformed; the client is then disconnected.
+	 */
+	CharSequence receiveText() throws IOException {
+		CharSequence line;
+		try {
+			line = input.readLine();
+		} catch (SocketTimeoutException e) {
+			throw timedOut(e);
+		} catch (HGDProtocolException e) {
+			commandFailed(e.getClass().getSimpleName());
+			connectionLost();
+			throw e;
+		} catch (IOException e) {
+			commandFailed(e.getClass().getSimpleName());
+			throw e;
+		}
+		if (line == null) {
+			commandFailed("EOFException");
+			connectionLost();
+			throw new EOFException("Connection closed by the daemon");
+		}
+		deadline = 0;
+		return line;
+	}
+
+	/**
+	 * Gives up on a reply that did not arrive in time. It may still arrive,
+	 * so the connection can not be used anymore.
+	 */
+	private HGDTimeoutException timedOut(SocketTimeoutException e) {
+		HGDTimeoutException timeout = new HGDTimeoutException(
+				"No reply from the daemon within " + readTimeout + " ms", e);
+		commandFailed(timeout.getClass().getSimpleName());
+		connectionLost();
+		return timeout;
+	}
+
+	/**
+	 * Closes a connection the daemon has closed, so the client is seen as
+	 * disconnected. The host, port and credentials are kept, so the session
+	 * can be restored.
+	 */
+	private void connectionLost() {
+		closeSocket();
+		playlistStream = null;
+		connected = false;
+		authenticated = false;
+		encrypted = false;
+	}
+
+	/**
+	 * Rejects a command argument which would break the command line.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the value contains a '|' or a line break.
+	 */
+	static void checkArgument(String name, String value) {
+		if (value.indexOf('|') >= 0 || value.indexOf('\n') >= 0
+				|| value.indexOf('\r') >= 0) {
+			throw new IllegalArgumentException("Invalid " + name + ": "
+					+ value);
+		}
+	}
+
+	/**
+	 * Gives up on a reply that could not be parsed. The rest of it can not
+	 * be told apart from the next reply, so the connection can not be used
+	 * anymore.
+	 */
+	HGDProtocolException malformedReply(String returnMessage,
+			RuntimeException e) {
+		HGDProtocolException malformed = new HGDProtocolException(
+				"Malformed reply from the daemon: " + returnMessage, e);
+		commandFailed(malformed.getClass().getSimpleName());
+		connectionLost();
+		return malformed;
+	}
+
+	/**
+	 * Builds the exception for an error reply of the daemon.
+	 * 
+	 * @param returnMessage
+	 *            The reply, in the format err|&lt;message&gt;.
+	 * @return The exception to be thrown.
+	 */
+	private JHGDException daemonError(String returnMessage) {
+		String message = returnMessage.substring(returnMessage.indexOf('|') + 1);
+		commandFailed(message);
+		return new JHGDException(message);
+	}
+
+	/**
+	 * Starts timing a command.
+	 */
+	private void beginCommand(String verb) {
+		command = null;
+		commandEvent = null;
+		if (HGDEvents.COMMAND.isEnabled()) {
+			command = verb;
+			commandEvent = new HGDEvents.Command();
+			commandEvent.begin();
+			commandSent = bytesSent;
+			commandReceived = bytesReceived;
+		}
+		if (metrics != null) {
+			command = verb;
+			commandStart = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Reports the command being timed as completed.
+	 */
+	private void commandDone() {
+		endCommand(null);
+	}
+
+	/**
+	 * Reports the command being timed as failed.
+	 */
+	private void commandFailed(String failure) {
+		endCommand(failure);
+	}
+
+	private void endCommand(String failure) {
+		if (command == null) {
+			return;
+		}
+		if (metrics != null) {
+			long nanos = System.nanoTime() - commandStart;
+			if (failure == null) {
+				metrics.commandCompleted(command, nanos);
+			} else {
+				metrics.commandFailed(command, nanos, failure);
+			}
+		}
+		if (commandEvent != null) {
+			commandEvent.end();
+			if (commandEvent.shouldCommit()) {
+				commandEvent.host = HGDEvents.host(clientSocket);
+				commandEvent.command = command;
+				commandEvent.bytesSent = bytesSent - commandSent;
+				commandEvent.bytesReceived = bytesReceived - commandReceived;
+				commandEvent.failure = failure;
+				commandEvent.commit();
+			}
+			commandEvent = null;
+		}
+		command = null;
 	}
 
 	/**
@@ -649,13 +1615,23 @@ public class HGDClient {
 	 *            The message received from the server.
 	 * @return The corresponding return code.
 	 */
-	private int checkServerResponse(String message) {
-		if (message.substring(0, 2).equalsIgnoreCase("ok")) {
+	static int checkServerResponse(String message) {
+		if (message.regionMatches(true, 0, "ok", 0, 2)) {
 			return HGDConsts.SUCCESS;
 		}
 		return HGDConsts.FAILURE;
 	}
 
+	/**
+	 * Creates a pipeline to send several commands to the daemon in a single
+	 * round trip.
+	 * 
+	 * @return A new, empty pipeline bound to this client.
+	 */
+	public HGDPipeline pipeline() {
+		return new HGDPipeline(this);
+	}
+
 	/**
 	 * Request information about the currently logged in user
 	 *
@@ -671,13 +1647,13 @@ public class HGDClient {
 			throw new IllegalStateException("Client not authenticated");
 		}
 
-		sendLineCommand("id");
+		sendCommand(CommandEncoder.ID);
 
 		String returnMessage = receiveLine();
 		if (checkServerResponse(returnMessage) == HGDConsts.FAILURE) {
-			throw new JHGDException(returnMessage.substring(returnMessage
-					.indexOf('|') + 1));
+			throw daemonError(returnMessage);
 		}
+		commandDone();
 
 		return returnMessage;
 	}
@@ -693,13 +1669,13 @@ public class HGDClient {
 			throw new IllegalStateException("Client not connected");
 		}
 
-		sendLineCommand("encrypt?");
+		sendCommand(CommandEncoder.ENCRYPT_QUERY);
 
 		String returnMessage = receiveLine();
 		if (checkServerResponse(returnMessage) == HGDConsts.FAILURE) {
-			throw new JHGDException(returnMessage.substring(returnMessage
-					.indexOf('|') + 1));
+			throw daemonError(returnMessage);
 		}
+		commandDone();
 
 		return returnMessage;
 	}
@@ -710,6 +1686,9 @@ public class HGDClient {
 	 * The sockets are replaced with encrypted counterparts.
 	 * All buffers must be replaced as well.
 	 *
+	 * The TLS settings come from the context set with setTlsContext(), or
+	 * the default one.
+	 *
 	 * @return On success, returns ok|
 	 */
 	public String requestEncryption() throws IllegalArgumentException,
@@ -722,53 +1701,186 @@ public class HGDClient {
 		//We want to replace the live socket, not close it.
 		input.close();
 
-		sendLineCommand("encrypt");
+		sendCommand(CommandEncoder.ENCRYPT);
 
 		fileOutput.close();
 		output.close();
 
-		//This TrustManager will not care about the server's certificate provanance.
-		TrustManager[] trustAllCerts = new TrustManager[]{
-				new X509TrustManager() {
-					public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-						return null;
-					}
-					public void checkClientTrusted(
-							java.security.cert.X509Certificate[] certs, String authType) {}
-					public void checkServerTrusted(
-							java.security.cert.X509Certificate[] certs, String authType) {}
-				}
-		};
-
-		//This needs to be changed when the server supports multiple algorithms
-		SSLContext sc = SSLContext.getInstance("TLSv1");
-		sc.init(null, trustAllCerts, new java.security.SecureRandom());
-		SSLSocketFactory factory = sc.getSocketFactory();
+		HGDTlsContext tls;
+		try {
+			tls = tlsContext != null ? tlsContext : HGDTlsContext.getDefault();
+		} catch (NoSuchAlgorithmException e) {
+			throw e;
+		} catch (GeneralSecurityException e) {
+			throw new KeyManagementException(e);
+		}
 
 		//Create the new socket and replace the old one without closing the connection.
-		SSLSocket sslClientSocket = (SSLSocket) factory.createSocket(
-				clientSocket, getHost(), getPort(), true);
-
-		sslClientSocket.setUseClientMode(true);
-		sslClientSocket.startHandshake();
+		SSLSocket sslClientSocket = tls.createSocket(clientSocket, getHost(),
+				getPort());
+		HGDEvents.TlsUpgrade event = null;
+		if (HGDEvents.TLS_UPGRADE.isEnabled()) {
+			event = new HGDEvents.TlsUpgrade();
+			event.begin();
+		}
+		long start = metrics == null ? 0 : System.nanoTime();
+		try {
+			applyTimeout();
+			sslClientSocket.startHandshake();
+		} catch (SocketTimeoutException e) {
+			throw timedOut(e);
+		} catch (IOException e) {
+			commandFailed(e.getClass().getSimpleName());
+			throw e;
+		} finally {
+			if (event != null) {
+				event.end();
+				if (event.shouldCommit()) {
+					event.host = HGDEvents.host(sslClientSocket);
+					if (sslClientSocket.getSession().isValid()) {
+						event.success = true;
+						event.protocol = sslClientSocket.getSession()
+								.getProtocol();
+						event.cipherSuite = sslClientSocket.getSession()
+								.getCipherSuite();
+					}
+					event.commit();
+				}
+			}
+		}
+		if (metrics != null) {
+			metrics.handshakeCompleted(System.nanoTime() - start);
+		}
 		clientSocket = sslClientSocket;
 
 		//Replace the buffered streams
-		output = new BufferedWriter(new OutputStreamWriter(
-				clientSocket.getOutputStream()));
-		output.flush();
-
-		fileOutput = new BufferedOutputStream(clientSocket.getOutputStream());
-
-		input = new BufferedReader(new InputStreamReader(
-				clientSocket.getInputStream()));
+		openStreams(clientSocket.getInputStream(),
+				clientSocket.getOutputStream());
 
 		String returnMessage = receiveLine();
 		if (checkServerResponse(returnMessage) == HGDConsts.FAILURE) {
-			throw new JHGDException(returnMessage.substring(returnMessage
-					.indexOf('|') + 1));
+			throw daemonError(returnMessage);
 		}
+		commandDone();
 
+		encrypted = true;
 		return returnMessage;
 	}
+
+	/**
+	 * Returns the TLS session of the connection.
+	 *
+	 * @return The session, or null if the connection is not encrypted.
+	 */
+	SSLSession getTlsSession() {
+		if (clientSocket instanceof SSLSocket) {
+			return ((SSLSocket) clientSocket).getSession();
+		}
+		return null;
+	}
+
+	/**
+	 * Checks, without talking to the daemon, that the connection still looks
+	 * usable: the socket is open, no unexpected data is waiting and, on plain
+	 * connections, the daemon has not closed its side.
+	 * 
+	 * This is meant for idle connections only, such as the ones kept by
+	 * HGDClientPool.
+	 * 
+	 * @return true if the connection looks usable.
+	 */
+	boolean isAlive() {
+		if (!connected || clientSocket == null || clientSocket.isClosed()) {
+			return false;
+		}
+		try {
+			if (input.ready()) {
+				// Nobody is waiting for this data, the stream is out of sync
+				return false;
+			}
+			SocketChannel channel = clientSocket.getChannel();
+			if (channel == null || clientSocket instanceof SSLSocket) {
+				return true;
+			}
+			// Peek for an end of stream without blocking
+			channel.configureBlocking(false);
+			try {
+				return channel.read(ByteBuffer.allocate(1)) == 0;
+			} finally {
+				channel.configureBlocking(true);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reports the bytes read from the connection.
+	 */
+	private final class CountingInputStream extends FilterInputStream {
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			applyTimeout();
+			int b = in.read();
+			if (b >= 0) {
+				bytesReceived++;
+				if (metrics != null) {
+					metrics.bytesTransferred(0, 1);
+				}
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			applyTimeout();
+			int n = in.read(b, off, len);
+			if (n > 0) {
+				bytesReceived += n;
+				if (metrics != null) {
+					metrics.bytesTransferred(0, n);
+				}
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Reports the bytes written to the connection.
+	 */
+	private final class CountingOutputStream extends FilterOutputStream {
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			bytesSent++;
+			if (metrics != null) {
+				metrics.bytesTransferred(1, 0);
+			}
+			if (bandwidth != null) {
+				bandwidth.charge(1);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			bytesSent += len;
+			if (metrics != null) {
+				metrics.bytesTransferred(len, 0);
+			}
+			if (bandwidth != null) {
+				bandwidth.charge(len);
+			}
+		}
+	}
 }
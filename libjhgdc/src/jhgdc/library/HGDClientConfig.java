@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * This class holds the socket settings and timeouts of a HGDClient.
+ *
+ * A configuration is immutable and can be shared by any number of clients.
+ * It is created with a Builder:
+ *
+ * <pre>
+ * HGDClientConfig config = HGDClientConfig.builder()
+ * 		.connectTimeout(5000).readTimeout(10000)
+ * 		.sendBufferSize(1024 * 1024).build();
+ * HGDClient client = new HGDClient(config);
+ * </pre>
+ *
+ * The read timeout is a deadline per command: the daemon must have started
+ * its reply within that time after the command was sent, and each later read
+ * of the same reply, such as the lines of a long playlist, must complete
+ * within it too. When it expires, an HGDTimeoutException is thrown and the
+ * client is disconnected, since the reply may still arrive.
+ *
+ * @since 16/10/2026
+ */
+public final class HGDClientConfig {
+
+	/**
+	 * Default time connecting may take, in milliseconds.
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 30 * 1000;
+
+	/**
+	 * Default time the daemon has to reply to a command, in milliseconds.
+	 */
+	public static final int DEFAULT_READ_TIMEOUT = 60 * 1000;
+
+	/**
+	 * Default size of the buffers of the command reader and writer.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	/**
+	 * The configuration of the clients created without one.
+	 */
+	public static final HGDClientConfig DEFAULT = builder().build();
+
+	/**
+	 * Creates the configurations.
+	 */
+	public static final class Builder {
+
+		private boolean tcpNoDelay = true;
+
+		private boolean keepAlive = false;
+
+		private int sendBufferSize = 0;
+
+		private int receiveBufferSize = 0;
+
+		private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+		private int readTimeout = DEFAULT_READ_TIMEOUT;
+
+		private int readerBufferSize = DEFAULT_BUFFER_SIZE;
+
+		private int writerBufferSize = DEFAULT_BUFFER_SIZE;
+
+		private int maxLineLength = HGDConsts.MAX_LINE;
+
+		Builder() {
+		}
+
+		/**
+		 * Sets whether small writes are sent at once (TCP_NODELAY), instead
+		 * of waiting for the acknowledgement of the previous ones. Enabled by
+		 * default, since commands are short lines waiting for a reply.
+		 *
+		 * @param tcpNoDelay
+		 *            true to disable Nagle's algorithm.
+		 * @return This builder.
+		 */
+		public Builder tcpNoDelay(boolean tcpNoDelay) {
+			this.tcpNoDelay = tcpNoDelay;
+			return this;
+		}
+
+		/**
+		 * Sets whether the operating system probes idle connections
+		 * (SO_KEEPALIVE). Disabled by default; see HGDKeepalive for probes
+		 * at the protocol level.
+		 *
+		 * @param keepAlive
+		 *            true to enable TCP keepalives.
+		 * @return This builder.
+		 */
+		public Builder keepAlive(boolean keepAlive) {
+			this.keepAlive = keepAlive;
+			return this;
+		}
+
+		/**
+		 * Sets the size of the socket send buffer (SO_SNDBUF). A large
+		 * buffer, such as 1 MiB, speeds up uploads over links with a long
+		 * round trip.
+		 *
+		 * @param size
+		 *            The size in bytes, or 0 to let the operating system
+		 *            choose and tune it.
+		 * @return This builder.
+		 */
+		public Builder sendBufferSize(int size) {
+			this.sendBufferSize = checkSize(size, 0);
+			return this;
+		}
+
+		/**
+		 * Sets the size of the socket receive buffer (SO_RCVBUF).
+		 *
+		 * @param size
+		 *            The size in bytes, or 0 to let the operating system
+		 *            choose and tune it.
+		 * @return This builder.
+		 */
+		public Builder receiveBufferSize(int size) {
+			this.receiveBufferSize = checkSize(size, 0);
+			return this;
+		}
+
+		/**
+		 * Sets the time connecting to the daemon may take.
+		 *
+		 * @param millis
+		 *            The timeout in milliseconds, or 0 to wait forever.
+		 * @return This builder.
+		 */
+		public Builder connectTimeout(int millis) {
+			this.connectTimeout = checkSize(millis, 0);
+			return this;
+		}
+
+		/**
+		 * Sets the time the daemon has to reply to a command.
+		 *
+		 * @param millis
+		 *            The timeout in milliseconds, or 0 to wait forever.
+		 * @return This builder.
+		 */
+		public Builder readTimeout(int millis) {
+			this.readTimeout = checkSize(millis, 0);
+			return this;
+		}
+
+		/**
+		 * Sets the size of the buffer the replies are read through.
+		 *
+		 * @param size
+		 *            The size in bytes.
+		 * @return This builder.
+		 */
+		public Builder readerBufferSize(int size) {
+			this.readerBufferSize = checkSize(size, 1);
+			return this;
+		}
+
+		/**
+		 * Sets the size of the buffer the commands are written through.
+		 *
+		 * @param size
+		 *            The size in bytes.
+		 * @return This builder.
+		 */
+		public Builder writerBufferSize(int size) {
+			this.writerBufferSize = checkSize(size, 1);
+			return this;
+		}
+
+		/**
+		 * Sets the longest reply line accepted, padding excluded. A longer
+		 * line fails with an HGDProtocolException. Playlists with long
+		 * titles or file names may need more than the default, the
+		 * HGD_MAX_LINE of the daemon.
+		 *
+		 * @param length
+		 *            The length in bytes.
+		 * @return This builder.
+		 */
+		public Builder maxLineLength(int length) {
+			this.maxLineLength = checkSize(length, 1);
+			return this;
+		}
+
+		/**
+		 * Creates the configuration.
+		 *
+		 * @return The new configuration.
+		 */
+		public HGDClientConfig build() {
+			return new HGDClientConfig(this);
+		}
+
+		private static int checkSize(int value, int min) {
+			if (value < min) {
+				throw new IllegalArgumentException("Invalid value: " + value);
+			}
+			return value;
+		}
+	}
+
+	private final boolean tcpNoDelay;
+
+	private final boolean keepAlive;
+
+	private final int sendBufferSize;
+
+	private final int receiveBufferSize;
+
+	private final int connectTimeout;
+
+	private final int readTimeout;
+
+	private final int readerBufferSize;
+
+	private final int writerBufferSize;
+
+	private final int maxLineLength;
+
+	private HGDClientConfig(Builder builder) {
+		this.tcpNoDelay = builder.tcpNoDelay;
+		this.keepAlive = builder.keepAlive;
+		this.sendBufferSize = builder.sendBufferSize;
+		this.receiveBufferSize = builder.receiveBufferSize;
+		this.connectTimeout = builder.connectTimeout;
+		this.readTimeout = builder.readTimeout;
+		this.readerBufferSize = builder.readerBufferSize;
+		this.writerBufferSize = builder.writerBufferSize;
+		this.maxLineLength = builder.maxLineLength;
+	}
+
+	/**
+	 * Creates a builder with the default settings.
+	 *
+	 * @return The builder.
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Creates a builder with the settings of this configuration.
+	 *
+	 * @return The builder.
+	 */
+	public Builder toBuilder() {
+		Builder builder = new Builder();
+		builder.tcpNoDelay = tcpNoDelay;
+		builder.keepAlive = keepAlive;
+		builder.sendBufferSize = sendBufferSize;
+		builder.receiveBufferSize = receiveBufferSize;
+		builder.connectTimeout = connectTimeout;
+		builder.readTimeout = readTimeout;
+		builder.readerBufferSize = readerBufferSize;
+		builder.writerBufferSize = writerBufferSize;
+		builder.maxLineLength = maxLineLength;
+		return builder;
+	}
+
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public int getReaderBufferSize() {
+		return readerBufferSize;
+	}
+
+	public int getWriterBufferSize() {
+		return writerBufferSize;
+	}
+
+	public int getMaxLineLength() {
+		return maxLineLength;
+	}
+
+	/**
+	 * Applies the socket options, before the socket is connected so that the
+	 * receive buffer size is taken into account by the TCP window.
+	 *
+	 * @param socket
+	 *            The unconnected socket.
+	 */
+	void configure(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(tcpNoDelay);
+		socket.setKeepAlive(keepAlive);
+		if (sendBufferSize > 0) {
+			socket.setSendBufferSize(sendBufferSize);
+		}
+		if (receiveBufferSize > 0) {
+			socket.setReceiveBufferSize(receiveBufferSize);
+		}
+		socket.setSoTimeout(readTimeout);
+	}
+
+	@Override
+	public String toString() {
+		return "HGDClientConfig[tcpNoDelay=" + tcpNoDelay + ", keepAlive="
+				+ keepAlive + ", sendBufferSize=" + sendBufferSize
+				+ ", receiveBufferSize=" + receiveBufferSize
+				+ ", connectTimeout=" + connectTimeout + ", readTimeout="
+				+ readTimeout + ", readerBufferSize=" + readerBufferSize
+				+ ", writerBufferSize=" + writerBufferSize
+				+ ", maxLineLength=" + maxLineLength + "]";
+	}
+}
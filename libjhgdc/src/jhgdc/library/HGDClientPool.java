@@ -0,0 +1,624 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps authenticated HGDClient sessions for reuse.
+ *
+ * Sessions are grouped by daemon host, port, username and encryption. Opening
+ * a session costs a TCP connection, the greeting, the "proto" and "user"
+ * round trips and possibly a TLS handshake; borrowing an idle session skips
+ * all of them.
+ *
+ * Idle sessions are checked without any round trip when borrowed. Sessions
+ * idle for longer than the validation interval are also probed with a
+ * "proto" command. A borrowed session must be given back with release(), or
+ * with invalidate() when an error occurred on it; execute() does this
+ * automatically.
+ *
+ * With a HGDKeepalive, idle sessions are also probed in the background, so
+ * the ones dropped by a firewall are closed before anybody borrows them.
+ *
+ * @since 16/10/2026
+ */
+public class HGDClientPool implements Closeable {
+
+	/**
+	 * Default maximum number of sessions per key.
+	 */
+	public static final int DEFAULT_MAX_SESSIONS = 8;
+
+	/**
+	 * Default time after which idle sessions are closed, in milliseconds.
+	 */
+	public static final long DEFAULT_MAX_IDLE = 5 * 60 * 1000;
+
+	/**
+	 * Default idle time after which a session is probed before being
+	 * borrowed, in milliseconds.
+	 */
+	public static final long DEFAULT_VALIDATION_INTERVAL = 30 * 1000;
+
+	/**
+	 * Default time borrow() waits for a session when the limit is reached,
+	 * in milliseconds.
+	 */
+	public static final long DEFAULT_BORROW_TIMEOUT = 30 * 1000;
+
+	/**
+	 * An operation run with a borrowed session.
+	 *
+	 * @param <T>
+	 *            The result of the operation.
+	 */
+	public interface Operation<T> {
+
+		/**
+		 * Runs the operation.
+		 *
+		 * @param client
+		 *            The connected and authenticated session.
+		 * @return The result.
+		 */
+		T execute(HGDClient client) throws IOException, JHGDException;
+	}
+
+	/**
+	 * Identifies a group of interchangeable sessions.
+	 */
+	public static final class Key {
+
+		private final String host;
+
+		private final int port;
+
+		private final String username;
+
+		private final boolean encrypted;
+
+		/**
+		 * Creates a key.
+		 *
+		 * @param host
+		 *            The host name or address of the daemon.
+		 * @param port
+		 *            The port listened by the daemon.
+		 * @param username
+		 *            The username.
+		 * @param encrypted
+		 *            true if the sessions are encrypted.
+		 */
+		public Key(String host, int port, String username, boolean encrypted) {
+			if (host == null || username == null) {
+				throw new IllegalArgumentException("Null host or username");
+			}
+			this.host = host;
+			this.port = port;
+			this.username = username;
+			this.encrypted = encrypted;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public String getUsername() {
+			return username;
+		}
+
+		public boolean isEncrypted() {
+			return encrypted;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return host.equals(other.host) && port == other.port
+					&& username.equals(other.username)
+					&& encrypted == other.encrypted;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = host.hashCode();
+			hash = 31 * hash + port;
+			hash = 31 * hash + username.hashCode();
+			return 31 * hash + (encrypted ? 1 : 0);
+		}
+
+		@Override
+		public String toString() {
+			return username + "@" + host + ":" + port
+					+ (encrypted ? " (encrypted)" : "");
+		}
+	}
+
+	/**
+	 * The sessions of a key.
+	 */
+	private static final class Partition {
+
+		final Key key;
+
+		final Semaphore permits;
+
+		final ConcurrentLinkedDeque<Session> idle = new ConcurrentLinkedDeque<Session>();
+
+		Partition(Key key, int maxSessions) {
+			this.key = key;
+			this.permits = new Semaphore(maxSessions);
+		}
+	}
+
+	/**
+	 * A session and its bookkeeping.
+	 */
+	private static final class Session {
+
+		final HGDClient client;
+
+		final Partition partition;
+
+		final HGDKeepalive.Registration registration;
+
+		volatile long lastUsed = System.nanoTime();
+
+		Session(HGDClient client, Partition partition, HGDKeepalive keepalive) {
+			this.client = client;
+			this.partition = partition;
+			this.registration = keepalive == null ? null : keepalive
+					.register(client);
+		}
+	}
+
+	private final int maxSessions;
+
+	private final long maxIdleNanos;
+
+	private final long validationNanos;
+
+	private final long borrowTimeout;
+
+	private final ConcurrentHashMap<Key, Partition> partitions = new ConcurrentHashMap<Key, Partition>();
+
+	private final ConcurrentHashMap<HGDClient, Session> borrowed = new ConcurrentHashMap<HGDClient, Session>();
+
+	private volatile HGDKeepalive keepalive;
+
+	private volatile HGDClientConfig clientConfig = HGDClientConfig.DEFAULT;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a pool with the default settings.
+	 */
+	public HGDClientPool() {
+		this(DEFAULT_MAX_SESSIONS, DEFAULT_MAX_IDLE,
+				DEFAULT_VALIDATION_INTERVAL, DEFAULT_BORROW_TIMEOUT);
+	}
+
+	/**
+	 * Creates a pool.
+	 *
+	 * @param maxSessions
+	 *            The maximum number of sessions per key, idle or borrowed.
+	 * @param maxIdle
+	 *            The time after which idle sessions are closed, in
+	 *            milliseconds.
+	 * @param validationInterval
+	 *            The idle time after which a session is probed with "proto"
+	 *            before being borrowed, in milliseconds.
+	 * @param borrowTimeout
+	 *            The time borrow() waits for a session when the limit is
+	 *            reached, in milliseconds.
+	 */
+	public HGDClientPool(int maxSessions, long maxIdle,
+			long validationInterval, long borrowTimeout) {
+		if (maxSessions < 1) {
+			throw new IllegalArgumentException("At least one session required");
+		}
+		this.maxSessions = maxSessions;
+		this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(maxIdle);
+		this.validationNanos = TimeUnit.MILLISECONDS
+				.toNanos(validationInterval);
+		this.borrowTimeout = borrowTimeout;
+	}
+
+	/**
+	 * Makes the pool register the sessions it opens with a keepalive, which
+	 * then probes them while they are idle. The sessions already open are
+	 * not registered.
+	 *
+	 * @param keepalive
+	 *            The keepalive, usually shared by the pools of the process,
+	 *            or null.
+	 */
+	public void setKeepalive(HGDKeepalive keepalive) {
+		this.keepalive = keepalive;
+	}
+
+	/**
+	 * Returns the keepalive probing the idle sessions.
+	 *
+	 * @return The keepalive, or null.
+	 */
+	public HGDKeepalive getKeepalive() {
+		return keepalive;
+	}
+
+	/**
+	 * Sets the socket settings and timeouts of the sessions opened from now
+	 * on.
+	 *
+	 * @param clientConfig
+	 *            The configuration of the new sessions.
+	 */
+	public void setClientConfig(HGDClientConfig clientConfig) {
+		if (clientConfig == null) {
+			throw new IllegalArgumentException("Null configuration");
+		}
+		this.clientConfig = clientConfig;
+	}
+
+	/**
+	 * Returns the socket settings and timeouts of the new sessions.
+	 *
+	 * @return The configuration.
+	 */
+	public HGDClientConfig getClientConfig() {
+		return clientConfig;
+	}
+
+	/**
+	 * Borrows a connected and authenticated session.
+	 *
+	 * @param key
+	 *            The daemon, user and encryption of the session.
+	 * @param password
+	 *            The password of the user.
+	 * @return The session, to be given back with release() or invalidate().
+	 * @throws IllegalStateException
+	 *             If the pool is closed.
+	 * @throws IOException
+	 *             If a new session can not be opened.
+	 * @throws JHGDException
+	 *             If the daemon refuses the new session, or if no session
+	 *             becomes available in time.
+	 */
+	public HGDClient borrow(Key key, String password)
+			throws IllegalStateException, IOException, JHGDException {
+		if (closed) {
+			throw new IllegalStateException("Pool closed");
+		}
+		Partition partition = partitions.get(key);
+		if (partition == null) {
+			Partition created = new Partition(key, maxSessions);
+			partition = partitions.putIfAbsent(key, created);
+			if (partition == null) {
+				partition = created;
+			}
+		}
+
+		try {
+			if (!partition.permits.tryAcquire(borrowTimeout,
+					TimeUnit.MILLISECONDS)) {
+				throw new JHGDException("No session available for " + key);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for "
+					+ key);
+		}
+
+		try {
+			Session session;
+			while ((session = partition.idle.pollFirst()) != null) {
+				if (reserve(session) && validate(session, password)) {
+					return lend(session);
+				}
+				destroy(session, false);
+			}
+			session = new Session(open(key, password), partition, keepalive);
+			reserve(session);
+			return lend(session);
+		} catch (IOException e) {
+			partition.permits.release();
+			throw e;
+		} catch (JHGDException e) {
+			partition.permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			partition.permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Borrows a session.
+	 *
+	 * @param host
+	 *            The host name or address of the daemon.
+	 * @param port
+	 *            The port listened by the daemon.
+	 * @param username
+	 *            The username.
+	 * @param password
+	 *            The password.
+	 * @param encrypted
+	 *            true to use an encrypted session.
+	 * @return The session, to be given back with release() or invalidate().
+	 * @see #borrow(Key, String)
+	 */
+	public HGDClient borrow(String host, int port, String username,
+			String password, boolean encrypted) throws IllegalStateException,
+			IOException, JHGDException {
+		return borrow(new Key(host, port, username, encrypted), password);
+	}
+
+	/**
+	 * Gives a healthy session back to the pool.
+	 *
+	 * @param client
+	 *            A session obtained from borrow().
+	 * @throws IllegalArgumentException
+	 *             If the session does not belong to this pool.
+	 */
+	public void release(HGDClient client) throws IllegalArgumentException {
+		Session session = take(client);
+		if (closed || !client.isConnected() || !client.isAuthenticated()) {
+			destroy(session, client.isConnected());
+		} else {
+			session.lastUsed = System.nanoTime();
+			if (session.registration != null) {
+				session.registration.release();
+			}
+			session.partition.idle.offerFirst(session);
+		}
+		session.partition.permits.release();
+	}
+
+	/**
+	 * Closes a session that failed instead of giving it back to the pool.
+	 *
+	 * @param client
+	 *            A session obtained from borrow().
+	 * @throws IllegalArgumentException
+	 *             If the session does not belong to this pool.
+	 */
+	public void invalidate(HGDClient client) throws IllegalArgumentException {
+		Session session = take(client);
+		destroy(session, false);
+		session.partition.permits.release();
+	}
+
+	/**
+	 * Runs an operation with a borrowed session. The session is given back
+	 * to the pool if the operation succeeds, and closed if it throws.
+	 *
+	 * @param key
+	 *            The daemon, user and encryption of the session.
+	 * @param password
+	 *            The password of the user.
+	 * @param operation
+	 *            The operation.
+	 * @return The result of the operation.
+	 */
+	public <T> T execute(Key key, String password, Operation<T> operation)
+			throws IllegalStateException, IOException, JHGDException {
+		HGDClient client = borrow(key, password);
+		boolean healthy = false;
+		try {
+			T result = operation.execute(client);
+			healthy = true;
+			return result;
+		} finally {
+			if (healthy) {
+				release(client);
+			} else {
+				invalidate(client);
+			}
+		}
+	}
+
+	/**
+	 * Closes the sessions idle for longer than the maximum idle time.
+	 */
+	public void evictIdle() {
+		long now = System.nanoTime();
+		for (Partition partition : partitions.values()) {
+			Iterator<Session> it = partition.idle.descendingIterator();
+			while (it.hasNext()) {
+				Session session = it.next();
+				if (now - session.lastUsed > maxIdleNanos
+						&& partition.idle.remove(session)) {
+					destroy(session, true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of idle sessions.
+	 *
+	 * @return The number of sessions waiting to be borrowed.
+	 */
+	public int getIdleCount() {
+		int count = 0;
+		for (Partition partition : partitions.values()) {
+			count += partition.idle.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of borrowed sessions.
+	 *
+	 * @return The number of sessions in use.
+	 */
+	public int getActiveCount() {
+		return borrowed.size();
+	}
+
+	/**
+	 * Closes the idle sessions. Borrowed sessions are closed when given back.
+	 */
+	public void close() {
+		closed = true;
+		for (Partition partition : partitions.values()) {
+			Session session;
+			while ((session = partition.idle.pollFirst()) != null) {
+				destroy(session, true);
+			}
+		}
+	}
+
+	private HGDClient lend(Session session) {
+		session.lastUsed = System.nanoTime();
+		borrowed.put(session.client, session);
+		return session.client;
+	}
+
+	private Session take(HGDClient client) throws IllegalArgumentException {
+		Session session = borrowed.remove(client);
+		if (session == null) {
+			throw new IllegalArgumentException(
+					"Session not borrowed from this pool");
+		}
+		return session;
+	}
+
+	/**
+	 * Reserves an idle session, so the keepalive leaves it alone.
+	 *
+	 * @return false if the keepalive found the session dead.
+	 */
+	private boolean reserve(Session session) throws InterruptedIOException {
+		if (session.registration == null) {
+			return true;
+		}
+		try {
+			return session.registration.acquire();
+		} catch (InterruptedIOException e) {
+			destroy(session, false);
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks an idle session before lending it.
+	 */
+	private boolean validate(Session session, String password) {
+		HGDClient client = session.client;
+		long now = System.nanoTime();
+		long idle = now - session.lastUsed;
+		if (idle > maxIdleNanos || !client.isAlive()
+				|| !client.isAuthenticated()
+				|| !client.getPassword().equals(password)) {
+			return false;
+		}
+		if (session.registration != null) {
+			// A probe of the keepalive is as good as ours
+			idle = Math.min(idle, now
+					- session.registration.getLastActivity());
+		}
+		if (idle > validationNanos) {
+			try {
+				client.requestProto();
+			} catch (Exception e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Opens a new session, going through the whole handshake.
+	 */
+	private HGDClient open(Key key, String password) throws IOException,
+			JHGDException {
+		HGDClient client = new HGDClient(clientConfig);
+		client.connect(key.getHost(), key.getPort());
+		try {
+			if (key.isEncrypted()) {
+				// Encrypt before sending the password
+				client.requestEncryption();
+			}
+			client.login(key.getUsername(), password);
+		} catch (GeneralSecurityException e) {
+			destroy(client, false);
+			throw new JHGDException("Cannot encrypt the connection", e);
+		} catch (IOException e) {
+			destroy(client, false);
+			throw e;
+		} catch (JHGDException e) {
+			destroy(client, false);
+			throw e;
+		}
+		return client;
+	}
+
+	/**
+	 * Stops probing a session and closes it, ignoring errors.
+	 */
+	private static void destroy(Session session, boolean sendQuitCommand) {
+		if (session.registration != null) {
+			session.registration.cancel();
+		}
+		destroy(session.client, sendQuitCommand);
+	}
+
+	/**
+	 * Closes a session, ignoring errors.
+	 */
+	private static void destroy(HGDClient client, boolean sendQuitCommand) {
+		if (!client.isConnected()) {
+			return;
+		}
+		try {
+			client.disconnect(sendQuitCommand);
+		} catch (Exception e) {
+			if (client.isConnected()) {
+				try {
+					client.disconnect(false);
+				} catch (Exception ignored) {
+					// Nothing else can be done
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class holds the threads that drive HGDAsyncClient sessions.
+ *
+ * Each thread owns a Selector and runs every session assigned to it, so a
+ * handful of threads can serve thousands of connections. Sessions are
+ * assigned to the threads in a round robin fashion.
+ *
+ * @since 16/10/2026
+ */
+public class HGDEventLoopGroup implements Closeable {
+
+	/**
+	 * Receives the readiness events of a registered channel.
+	 */
+	interface Handler {
+
+		/**
+		 * Handles the ready operations of the key.
+		 *
+		 * @param key
+		 *            The selected key.
+		 */
+		void handle(SelectionKey key);
+
+		/**
+		 * Aborts the session, called when the event loop is shut down.
+		 *
+		 * @param cause
+		 *            The reason.
+		 */
+		void abort(IOException cause);
+	}
+
+	/**
+	 * A task run by an event loop, told when it never will be.
+	 */
+	abstract static class Task implements Runnable {
+
+		/**
+		 * Called instead of run() when the event loop has been shut down.
+		 * It may be called from any thread.
+		 *
+		 * @param e
+		 *            The reason.
+		 */
+		abstract void rejected(RejectedExecutionException e);
+	}
+
+	/**
+	 * A thread running a Selector.
+	 */
+	static final class EventLoop extends Thread {
+
+		private final Selector selector;
+
+		private final ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<Task>();
+
+		private volatile boolean running = true;
+
+		EventLoop(String name) throws IOException {
+			super(name);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		Selector selector() {
+			return selector;
+		}
+
+		boolean inEventLoop() {
+			return Thread.currentThread() == this;
+		}
+
+		/**
+		 * Runs the task in this event loop, or rejects it if the event loop
+		 * has been shut down. Each task is either run or rejected, once.
+		 *
+		 * @param task
+		 *            The task.
+		 */
+		void execute(Task task) {
+			if (!running) {
+				task.rejected(new RejectedExecutionException(
+						"Event loop shut down"));
+				return;
+			}
+			tasks.add(task);
+			// The loop may have stopped meanwhile, after its last drain:
+			// whoever removes the task rejects it
+			if (!running && tasks.remove(task)) {
+				task.rejected(new RejectedExecutionException(
+						"Event loop shut down"));
+				return;
+			}
+			if (!inEventLoop()) {
+				selector.wakeup();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					runTasks();
+					try {
+						selector.select();
+					} catch (IOException e) {
+						break;
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys()
+							.iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Handler handler = (Handler) key.attachment();
+						try {
+							if (key.isValid()) {
+								handler.handle(key);
+							}
+						} catch (RuntimeException e) {
+							// A broken session must not stop the others
+							handler.abort(new IOException(e));
+						}
+					}
+				}
+			} finally {
+				running = false;
+			}
+			runTasks();
+			IOException cause = new IOException("Event loop shut down");
+			for (SelectionKey key : selector.keys()) {
+				((Handler) key.attachment()).abort(cause);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Nothing else to release
+			}
+			// Tasks added after the last drain
+			Task task;
+			while ((task = tasks.poll()) != null) {
+				task.rejected(new RejectedExecutionException(
+						"Event loop shut down"));
+			}
+		}
+
+		private void runTasks() {
+			Task task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					// Same as above, tasks belong to independent sessions
+				}
+			}
+		}
+
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+	}
+
+	private final EventLoop[] loops;
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Creates a group with one thread per available processor.
+	 *
+	 * @throws IOException
+	 *             If a selector can not be opened.
+	 */
+	public HGDEventLoopGroup() throws IOException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a group.
+	 *
+	 * @param threads
+	 *            The number of threads.
+	 * @throws IOException
+	 *             If a selector can not be opened.
+	 */
+	public HGDEventLoopGroup(int threads) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread required");
+		}
+		loops = new EventLoop[threads];
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new EventLoop("jhgdc-event-loop-" + (i + 1));
+			loops[i].start();
+		}
+	}
+
+	/**
+	 * Returns the event loop of the next session.
+	 */
+	EventLoop next() {
+		return loops[(next.getAndIncrement() & Integer.MAX_VALUE)
+				% loops.length];
+	}
+
+	/**
+	 * Stops the threads. The sessions still open are aborted.
+	 */
+	public void close() {
+		for (EventLoop loop : loops) {
+			loop.shutdown();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder events emitted by HGDClient.
+ *
+ * Events are only allocated when their type is enabled in a running
+ * recording; callers check the EventType constants first, so a client costs
+ * a single flag test per operation when nothing is recorded.
+ *
+ * @since 16/10/2026
+ */
+final class HGDEvents {
+
+	static final EventType CONNECT = EventType.getEventType(Connect.class);
+
+	static final EventType LOGIN = EventType.getEventType(Login.class);
+
+	static final EventType COMMAND = EventType.getEventType(Command.class);
+
+	static final EventType TLS_UPGRADE = EventType
+			.getEventType(TlsUpgrade.class);
+
+	static final EventType UPLOAD = EventType.getEventType(Upload.class);
+
+	private HGDEvents() {
+	}
+
+	/**
+	 * Returns the address of the daemon as given by the user, without any
+	 * name lookup.
+	 */
+	static String host(Socket socket) {
+		SocketAddress address = socket == null ? null : socket
+				.getRemoteSocketAddress();
+		if (address instanceof InetSocketAddress) {
+			return ((InetSocketAddress) address).getHostString();
+		}
+		return null;
+	}
+
+	@Name("jhgdc.Connect")
+	@Label("HGD Connect")
+	@Category("jhgdc")
+	@Description("Connection to a HGD daemon, from opening the socket to the protocol check")
+	static final class Connect extends Event {
+
+		@Label("Host")
+		String host;
+
+		@Label("Port")
+		int port;
+
+		@Label("Success")
+		boolean success;
+	}
+
+	@Name("jhgdc.Login")
+	@Label("HGD Login")
+	@Category("jhgdc")
+	@Description("Authentication of a user")
+	static final class Login extends Event {
+
+		@Label("Host")
+		String host;
+
+		@Label("Username")
+		String username;
+
+		@Label("Success")
+		boolean success;
+	}
+
+	@Name("jhgdc.Command")
+	@Label("HGD Command")
+	@Category("jhgdc")
+	@Description("A command sent to the daemon and its whole reply")
+	static final class Command extends Event {
+
+		@Label("Host")
+		String host;
+
+		@Label("Command")
+		String command;
+
+		@Label("Bytes Sent")
+		@DataAmount
+		long bytesSent;
+
+		@Label("Bytes Received")
+		@DataAmount
+		long bytesReceived;
+
+		@Label("Failure")
+		@Description("The error message of the daemon or the I/O exception, if the command failed")
+		String failure;
+	}
+
+	@Name("jhgdc.TlsUpgrade")
+	@Label("HGD TLS Upgrade")
+	@Category("jhgdc")
+	@Description("TLS handshake started by the encrypt command")
+	static final class TlsUpgrade extends Event {
+
+		@Label("Host")
+		String host;
+
+		@Label("Protocol")
+		String protocol;
+
+		@Label("Cipher Suite")
+		String cipherSuite;
+
+		@Label("Success")
+		boolean success;
+	}
+
+	@Name("jhgdc.Upload")
+	@Label("HGD Upload")
+	@Category("jhgdc")
+	@Description("A file queued with the q command, including the daemon replies")
+	static final class Upload extends Event {
+
+		@Label("Host")
+		String host;
+
+		@Label("Filename")
+		String filename;
+
+		@Label("Size")
+		@DataAmount
+		long bytes;
+
+		@Label("Success")
+		boolean success;
+	}
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class keeps idle HGDClient sessions alive and finds the dead ones
+ * before they are used.
+ *
+ * Firewalls and NATs silently drop idle connections, and the next command
+ * then blocks until the operating system gives up, which can take minutes.
+ * Each registered session idle for longer than the interval is probed with
+ * a "proto" command, which must be answered within the probe timeout. A
+ * session that fails its probe is disconnected and marked dead.
+ *
+ * All the sessions share one timer wheel, driven by a single thread, and
+ * the probes run on a small pool of threads, so thousands of sessions cost
+ * no more threads than one. A probe is sent at most a sixteenth of the
+ * interval late.
+ *
+ * The keepalive must not probe a session while it is in use, so the thread
+ * using a registered client calls acquire() before and release() after each
+ * use. HGDClientPool does this for the sessions it keeps.
+ *
+ * @since 16/10/2026
+ */
+public class HGDKeepalive implements Closeable {
+
+	/**
+	 * Default idle time after which a session is probed, in milliseconds.
+	 */
+	public static final long DEFAULT_INTERVAL = 30 * 1000;
+
+	/**
+	 * Default time the daemon has to answer a probe, in milliseconds.
+	 */
+	public static final int DEFAULT_PROBE_TIMEOUT = 5 * 1000;
+
+	/**
+	 * Default number of threads sending the probes.
+	 */
+	public static final int DEFAULT_PROBE_THREADS = 2;
+
+	/**
+	 * Number of buckets of the wheel, a power of two.
+	 */
+	private static final int WHEEL_SIZE = 512;
+
+	private static final int IDLE = 0;
+
+	private static final int BUSY = 1;
+
+	private static final int PROBING = 2;
+
+	private static final int DEAD = 3;
+
+	private static final int CANCELLED = 4;
+
+	/**
+	 * A session registered with the keepalive.
+	 */
+	public static final class Registration {
+
+		private final HGDKeepalive keepalive;
+
+		private final HGDClient client;
+
+		private final AtomicInteger state = new AtomicInteger(IDLE);
+
+		/**
+		 * Time the session was last used or probed.
+		 */
+		private volatile long lastActivity = System.nanoTime();
+
+		private volatile long lastRoundTrip = -1;
+
+		/*
+		 * The fields below are set before the registration is queued, then
+		 * only used by the wheel thread.
+		 */
+
+		private long deadline;
+
+		private long rounds;
+
+		Registration(HGDKeepalive keepalive, HGDClient client) {
+			this.keepalive = keepalive;
+			this.client = client;
+		}
+
+		/**
+		 * Returns the registered client.
+		 *
+		 * @return The client.
+		 */
+		public HGDClient getClient() {
+			return client;
+		}
+
+		/**
+		 * Reserves the client for the calling thread, waiting for the probe
+		 * in progress if any.
+		 *
+		 * @return true if the client can be used, false if it failed a probe
+		 *         and has been disconnected.
+		 * @throws IllegalStateException
+		 *             If the client is already reserved.
+		 * @throws InterruptedIOException
+		 *             If interrupted while waiting for a probe.
+		 */
+		public boolean acquire() throws IllegalStateException,
+				InterruptedIOException {
+			for (;;) {
+				int current = state.get();
+				switch (current) {
+				case IDLE:
+					if (state.compareAndSet(IDLE, BUSY)) {
+						return true;
+					}
+					break;
+				case PROBING:
+					awaitProbe();
+					break;
+				case BUSY:
+					throw new IllegalStateException("Session already acquired");
+				case DEAD:
+					return false;
+				default:
+					// No longer probed, the client is the caller's own
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Gives the client back to the keepalive. The interval starts again
+		 * from now.
+		 */
+		public void release() {
+			lastActivity = System.nanoTime();
+			state.compareAndSet(BUSY, IDLE);
+		}
+
+		/**
+		 * Stops probing the client, waiting for the probe in progress if
+		 * any. The client is left as it is.
+		 */
+		public void cancel() {
+			boolean interrupted = false;
+			for (;;) {
+				int current = state.get();
+				if (current == CANCELLED || current == DEAD) {
+					break;
+				}
+				if (current == PROBING) {
+					try {
+						awaitProbe();
+					} catch (InterruptedIOException e) {
+						// Wait again, the interrupt is restored below
+						interrupted = Thread.interrupted();
+					}
+				} else if (state.compareAndSet(current, CANCELLED)) {
+					keepalive.sessions.decrementAndGet();
+					break;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Returns the time the client was last given back or probed.
+		 */
+		long getLastActivity() {
+			return lastActivity;
+		}
+
+		/**
+		 * Tells whether the client failed a probe. It has then been
+		 * disconnected.
+		 *
+		 * @return true if the session is dead.
+		 */
+		public boolean isDead() {
+			return state.get() == DEAD;
+		}
+
+		/**
+		 * Returns the round trip time of the last successful probe.
+		 *
+		 * @return The time in nanoseconds, or -1 if the session has not been
+		 *         probed yet.
+		 */
+		public long getLastRoundTrip() {
+			return lastRoundTrip;
+		}
+
+		private synchronized void awaitProbe() throws InterruptedIOException {
+			try {
+				while (state.get() == PROBING) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted while waiting for a probe");
+			}
+		}
+
+		private synchronized void probed(boolean alive) {
+			lastActivity = System.nanoTime();
+			state.set(alive ? IDLE : DEAD);
+			notifyAll();
+		}
+	}
+
+	private final long intervalNanos;
+
+	private final int probeTimeout;
+
+	private final long tickNanos;
+
+	private final ThreadPoolExecutor probes;
+
+	private final Thread wheel;
+
+	/**
+	 * Registrations waiting to be put in the wheel.
+	 */
+	private final ConcurrentLinkedQueue<Registration> pending = new ConcurrentLinkedQueue<Registration>();
+
+	private final AtomicInteger sessions = new AtomicInteger();
+
+	private final LatencyHistogram probeLatency = new LatencyHistogram();
+
+	private final LongAdder deadSessions = new LongAdder();
+
+	private volatile boolean running = true;
+
+	/**
+	 * Creates a keepalive with the default settings.
+	 */
+	public HGDKeepalive() {
+		this(DEFAULT_INTERVAL, DEFAULT_PROBE_TIMEOUT, DEFAULT_PROBE_THREADS);
+	}
+
+	/**
+	 * Creates a keepalive.
+	 *
+	 * @param interval
+	 *            The idle time after which a session is probed, in
+	 *            milliseconds.
+	 * @param probeTimeout
+	 *            The time the daemon has to answer a probe, in milliseconds.
+	 * @param probeThreads
+	 *            The number of threads sending the probes.
+	 */
+	public HGDKeepalive(long interval, int probeTimeout, int probeThreads) {
+		if (interval <= 0 || probeTimeout <= 0 || probeThreads < 1) {
+			throw new IllegalArgumentException("Invalid keepalive settings");
+		}
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+		this.probeTimeout = probeTimeout;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(10,
+				Math.min(1000, interval / 16)));
+		this.probes = new ThreadPoolExecutor(probeThreads, probeThreads, 0,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "jhgdc-keepalive-probe-"
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.wheel = new Thread("jhgdc-keepalive") {
+			@Override
+			public void run() {
+				turn();
+			}
+		};
+		wheel.setDaemon(true);
+		wheel.start();
+	}
+
+	/**
+	 * Starts probing a connected client. The client is considered idle, and
+	 * as used just now.
+	 *
+	 * @param client
+	 *            The client.
+	 * @return The registration, used to reserve the client and to stop
+	 *         probing it.
+	 * @throws IllegalStateException
+	 *             If the keepalive is closed.
+	 */
+	public Registration register(HGDClient client)
+			throws IllegalStateException {
+		if (!running) {
+			throw new IllegalStateException("Keepalive closed");
+		}
+		Registration registration = new Registration(this, client);
+		sessions.incrementAndGet();
+		schedule(registration, registration.lastActivity + intervalNanos);
+		return registration;
+	}
+
+	/**
+	 * Returns the number of sessions being probed.
+	 *
+	 * @return The number of sessions registered, and neither cancelled nor
+	 *         dead.
+	 */
+	public int getSessionCount() {
+		return sessions.get();
+	}
+
+	/**
+	 * Returns the round trip times of the successful probes.
+	 *
+	 * @return The histogram, in nanoseconds.
+	 */
+	public LatencyHistogram getProbeLatency() {
+		return probeLatency;
+	}
+
+	/**
+	 * Returns the number of sessions found dead.
+	 *
+	 * @return The number of failed probes.
+	 */
+	public long getDeadCount() {
+		return deadSessions.sum();
+	}
+
+	/**
+	 * Stops probing. The probes in progress are completed, the sessions are
+	 * left as they are.
+	 */
+	public void close() {
+		running = false;
+		wheel.interrupt();
+		probes.shutdown();
+	}
+
+	private void schedule(Registration registration, long deadline) {
+		registration.deadline = deadline;
+		pending.add(registration);
+	}
+
+	/**
+	 * Runs the wheel, one bucket per tick.
+	 */
+	private void turn() {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		ArrayList<Registration>[] buckets = new ArrayList[WHEEL_SIZE];
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			buckets[i] = new ArrayList<Registration>();
+		}
+		long start = System.nanoTime();
+		long tick = 0;
+		while (running) {
+			long wait;
+			while ((wait = start + (tick + 1) * tickNanos - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, wait);
+				if (!running) {
+					return;
+				}
+			}
+			tick++;
+
+			Registration registration;
+			while ((registration = pending.poll()) != null) {
+				long ticks = (registration.deadline - start + tickNanos - 1)
+						/ tickNanos;
+				if (ticks < tick) {
+					ticks = tick;
+				}
+				registration.rounds = (ticks - tick) / WHEEL_SIZE;
+				buckets[(int) (ticks & (WHEEL_SIZE - 1))].add(registration);
+			}
+
+			ArrayList<Registration> bucket = buckets[(int) (tick & (WHEEL_SIZE - 1))];
+			int kept = 0;
+			for (int i = 0; i < bucket.size(); i++) {
+				registration = bucket.get(i);
+				if (registration.rounds > 0) {
+					registration.rounds--;
+					bucket.set(kept++, registration);
+				} else {
+					expire(registration);
+				}
+			}
+			bucket.subList(kept, bucket.size()).clear();
+		}
+	}
+
+	/**
+	 * Probes a session whose deadline has come, if it has really been idle
+	 * for the whole interval.
+	 */
+	private void expire(final Registration registration) {
+		int current = registration.state.get();
+		if (current == CANCELLED || current == DEAD) {
+			return;
+		}
+		long now = System.nanoTime();
+		long deadline = registration.lastActivity + intervalNanos;
+		if (current != IDLE) {
+			schedule(registration, now + intervalNanos);
+			return;
+		}
+		if (deadline - now > 0) {
+			schedule(registration, deadline);
+			return;
+		}
+		if (!registration.state.compareAndSet(IDLE, PROBING)) {
+			// Acquired or cancelled meanwhile, look again later
+			schedule(registration, now + intervalNanos);
+			return;
+		}
+		try {
+			probes.execute(new Runnable() {
+				public void run() {
+					probe(registration);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			registration.probed(true);
+		}
+	}
+
+	/**
+	 * Sends a probe, on a probe thread.
+	 */
+	private void probe(Registration registration) {
+		HGDClient client = registration.client;
+		boolean alive = false;
+		try {
+			if (client.isAlive()) {
+				long start = System.nanoTime();
+				int readTimeout = client.getReadTimeout();
+				client.setReadTimeout(probeTimeout);
+				try {
+					client.requestProto();
+				} finally {
+					client.setReadTimeout(readTimeout);
+				}
+				long nanos = System.nanoTime() - start;
+				registration.lastRoundTrip = nanos;
+				probeLatency.record(nanos);
+				alive = true;
+			}
+		} catch (Exception e) {
+			// A late reply would put the stream out of sync, the session is
+			// dead either way
+		} finally {
+			if (!alive) {
+				close(client);
+				sessions.decrementAndGet();
+				deadSessions.increment();
+			}
+			registration.probed(alive);
+		}
+		if (alive && running) {
+			schedule(registration, registration.lastActivity + intervalNanos);
+		}
+	}
+
+	/**
+	 * Closes a dead session, without talking to the daemon.
+	 */
+	private static void close(HGDClient client) {
+		if (client.isConnected()) {
+			try {
+				client.disconnect(false);
+			} catch (Exception e) {
+				// The socket is closed anyway
+			}
+		}
+	}
+}
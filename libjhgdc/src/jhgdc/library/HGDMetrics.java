@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The built-in metrics listener.
+ *
+ * It keeps a LatencyHistogram per command, counters of bytes sent and
+ * received, the upload throughput, the TLS handshake times and the number of
+ * failures by class. Only successful commands are timed: a failure is
+ * counted by class, but its latency is not recorded. Everything is lock-free, so one instance can be shared
+ * by many clients, such as all the sessions of a HGDClientPool.
+ *
+ * Failures are classified by the error message of the daemon, with numbers
+ * replaced by '#' so that messages naming a track or a size fall in the same
+ * class. At most MAX_FAILURE_CLASSES classes are kept; the others are
+ * counted as "other".
+ *
+ * The metrics can be published through JMX with register().
+ *
+ * @since 16/10/2026
+ */
+public class HGDMetrics implements HGDMetricsListener, HGDMetricsMXBean {
+
+	/**
+	 * Maximum number of distinct failure classes.
+	 */
+	public static final int MAX_FAILURE_CLASSES = 64;
+
+	/**
+	 * The class counting the failures beyond MAX_FAILURE_CLASSES.
+	 */
+	public static final String OTHER_FAILURES = "other";
+
+	private static final int MAX_FAILURE_LENGTH = 80;
+
+	private static final double NANOS_PER_MILLI = 1000000.0;
+
+	private static final Function<String, LatencyHistogram> NEW_HISTOGRAM = new Function<String, LatencyHistogram>() {
+		public LatencyHistogram apply(String command) {
+			return new LatencyHistogram();
+		}
+	};
+
+	private static final Function<String, LongAdder> NEW_COUNTER = new Function<String, LongAdder>() {
+		public LongAdder apply(String failure) {
+			return new LongAdder();
+		}
+	};
+
+	private final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	private final ConcurrentHashMap<String, LongAdder> failures = new ConcurrentHashMap<String, LongAdder>();
+
+	private final LongAdder bytesSent = new LongAdder();
+
+	private final LongAdder bytesReceived = new LongAdder();
+
+	private final LongAdder uploadedBytes = new LongAdder();
+
+	private final LongAdder uploadNanos = new LongAdder();
+
+	private final LatencyHistogram handshakes = new LatencyHistogram();
+
+	private ObjectName objectName;
+
+	public void commandCompleted(String command, long nanos) {
+		getLatency(command).record(nanos);
+	}
+
+	public void commandFailed(String command, long nanos, String failure) {
+		String key = classify(failure);
+		LongAdder counter = failures.get(key);
+		if (counter == null) {
+			if (failures.size() >= MAX_FAILURE_CLASSES) {
+				key = OTHER_FAILURES;
+			}
+			counter = failures.computeIfAbsent(key, NEW_COUNTER);
+		}
+		counter.increment();
+	}
+
+	public void bytesTransferred(long sent, long received) {
+		if (sent != 0) {
+			bytesSent.add(sent);
+		}
+		if (received != 0) {
+			bytesReceived.add(received);
+		}
+	}
+
+	public void handshakeCompleted(long nanos) {
+		handshakes.record(nanos);
+	}
+
+	public void uploadCompleted(long bytes, long nanos) {
+		uploadedBytes.add(bytes);
+		uploadNanos.add(nanos);
+	}
+
+	/**
+	 * Returns the latency histogram of a command, creating it if needed.
+	 *
+	 * @param command
+	 *            The command verb, such as "ls".
+	 * @return The histogram of the successful executions of the command.
+	 */
+	public LatencyHistogram getLatency(String command) {
+		LatencyHistogram histogram = latencies.get(command);
+		if (histogram == null) {
+			histogram = latencies.computeIfAbsent(command, NEW_HISTOGRAM);
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return The histogram of the TLS handshake times.
+	 */
+	public LatencyHistogram getHandshakes() {
+		return handshakes;
+	}
+
+	/**
+	 * Returns the number of failures of a class.
+	 *
+	 * @param failure
+	 *            A failure message, classified as by commandFailed().
+	 * @return The number of failures.
+	 */
+	public long getFailureCount(String failure) {
+		LongAdder counter = failures.get(classify(failure));
+		return counter == null ? 0 : counter.sum();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	public long getUploadedBytes() {
+		return uploadedBytes.sum();
+	}
+
+	public double getUploadBytesPerSecond() {
+		long nanos = uploadNanos.sum();
+		return nanos == 0 ? 0 : uploadedBytes.sum() * 1e9 / nanos;
+	}
+
+	public long getHandshakeCount() {
+		return handshakes.getCount();
+	}
+
+	public double getHandshakeMeanMillis() {
+		return handshakes.getMean() / NANOS_PER_MILLI;
+	}
+
+	public double getHandshakeP99Millis() {
+		return handshakes.getPercentile(99) / NANOS_PER_MILLI;
+	}
+
+	public Map<String, Long> getCommandCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().getCount());
+		}
+		return counts;
+	}
+
+	public Map<String, Double> getLatencyMeanMillis() {
+		Map<String, Double> means = new TreeMap<String, Double>();
+		for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+			means.put(entry.getKey(), entry.getValue().getMean()
+					/ NANOS_PER_MILLI);
+		}
+		return means;
+	}
+
+	public Map<String, Double> getLatencyP50Millis() {
+		return percentiles(50);
+	}
+
+	public Map<String, Double> getLatencyP99Millis() {
+		return percentiles(99);
+	}
+
+	public Map<String, Double> getLatencyP999Millis() {
+		return percentiles(99.9);
+	}
+
+	public Map<String, Double> getLatencyMaxMillis() {
+		Map<String, Double> maxima = new TreeMap<String, Double>();
+		for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+			maxima.put(entry.getKey(), entry.getValue().getMax()
+					/ NANOS_PER_MILLI);
+		}
+		return maxima;
+	}
+
+	public Map<String, Long> getFailures() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : failures.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().sum());
+		}
+		return counts;
+	}
+
+	public void reset() {
+		for (LatencyHistogram histogram : latencies.values()) {
+			histogram.reset();
+		}
+		failures.clear();
+		bytesSent.reset();
+		bytesReceived.reset();
+		uploadedBytes.reset();
+		uploadNanos.reset();
+		handshakes.reset();
+	}
+
+	/**
+	 * Publishes these metrics in the platform MBean server, under
+	 * jhgdc:type=HGDMetrics,name=&lt;name&gt;.
+	 *
+	 * @param name
+	 *            The name distinguishing this instance, such as the daemon
+	 *            address.
+	 * @return The name of the MBean.
+	 * @throws JMException
+	 *             If the name is already taken.
+	 */
+	public synchronized ObjectName register(String name) throws JMException {
+		if (objectName != null) {
+			throw new IllegalStateException("Already registered as "
+					+ objectName);
+		}
+		ObjectName candidate = new ObjectName("jhgdc:type=HGDMetrics,name="
+				+ ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				candidate);
+		objectName = candidate;
+		return objectName;
+	}
+
+	/**
+	 * Removes these metrics from the platform MBean server, if registered.
+	 *
+	 * @throws JMException
+	 *             If the MBean can not be unregistered.
+	 */
+	public synchronized void unregister() throws JMException {
+		if (objectName != null) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			objectName = null;
+		}
+	}
+
+	private Map<String, Double> percentiles(double percentile) {
+		Map<String, Double> values = new TreeMap<String, Double>();
+		for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().getPercentile(
+					percentile)
+					/ NANOS_PER_MILLI);
+		}
+		return values;
+	}
+
+	/**
+	 * Turns a failure message into its class.
+	 */
+	static String classify(String failure) {
+		if (failure == null || failure.isEmpty()) {
+			return "unknown";
+		}
+		StringBuilder key = new StringBuilder(Math.min(failure.length(),
+				MAX_FAILURE_LENGTH));
+		boolean digits = false;
+		for (int i = 0; i < failure.length()
+				&& key.length() < MAX_FAILURE_LENGTH; i++) {
+			char c = failure.charAt(i);
+			if (c >= '0' && c <= '9') {
+				if (!digits) {
+					key.append('#');
+				}
+				digits = true;
+			} else {
+				key.append(c);
+				digits = false;
+			}
+		}
+		return key.toString();
+	}
+}
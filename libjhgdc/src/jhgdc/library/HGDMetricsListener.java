@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+/**
+ * Receives the measurements of a HGDClient.
+ *
+ * Commands are named after their protocol verb, such as "ls", "user" or
+ * "q". Opening the TCP connection is reported as "connect" and reading the
+ * greeting of the daemon as "greeting". Commands sent through a HGDPipeline
+ * are not timed individually.
+ *
+ * The methods are called on the thread using the client, while the command
+ * is in progress, so they must be fast and must not throw.
+ *
+ * @see HGDClient#setMetricsListener(HGDMetricsListener)
+ * @see HGDMetrics
+ * @since 16/10/2026
+ */
+public interface HGDMetricsListener {
+
+	/**
+	 * Called when the daemon accepted a command.
+	 *
+	 * @param command
+	 *            The command verb.
+	 * @param nanos
+	 *            The time from sending the command to reading its whole
+	 *            reply, in nanoseconds.
+	 */
+	void commandCompleted(String command, long nanos);
+
+	/**
+	 * Called when a command failed, either refused by the daemon or because
+	 * of an I/O error.
+	 *
+	 * @param command
+	 *            The command verb.
+	 * @param nanos
+	 *            The time until the failure, in nanoseconds.
+	 * @param failure
+	 *            The error message of the daemon, or the simple name of the
+	 *            I/O exception class.
+	 */
+	void commandFailed(String command, long nanos, String failure);
+
+	/**
+	 * Called as bytes go through the connection, including the payload of
+	 * uploads.
+	 *
+	 * @param sent
+	 *            The number of bytes sent.
+	 * @param received
+	 *            The number of bytes received.
+	 */
+	void bytesTransferred(long sent, long received);
+
+	/**
+	 * Called when the TLS handshake of an encrypted connection completed.
+	 *
+	 * @param nanos
+	 *            The duration of the handshake, in nanoseconds.
+	 */
+	void handshakeCompleted(long nanos);
+
+	/**
+	 * Called when the payload of a "q" command has been sent.
+	 *
+	 * @param bytes
+	 *            The size of the file.
+	 * @param nanos
+	 *            The time taken to send it, in nanoseconds.
+	 */
+	void uploadCompleted(long bytes, long nanos);
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.util.Map;
+
+/**
+ * The JMX view of HGDMetrics.
+ *
+ * Durations are reported in milliseconds. Per-command values are keyed by
+ * command verb. The counts and latencies cover successful commands only;
+ * failed commands are counted in getFailures() and their latency is not
+ * recorded.
+ *
+ * @see HGDMetrics#register(String)
+ * @since 16/10/2026
+ */
+public interface HGDMetricsMXBean {
+
+	long getBytesSent();
+
+	long getBytesReceived();
+
+	long getUploadedBytes();
+
+	/**
+	 * @return The mean upload throughput, in bytes per second.
+	 */
+	double getUploadBytesPerSecond();
+
+	long getHandshakeCount();
+
+	double getHandshakeMeanMillis();
+
+	double getHandshakeP99Millis();
+
+	/**
+	 * @return The number of successful commands. Failed commands are not
+	 *         included.
+	 */
+	Map<String, Long> getCommandCounts();
+
+	Map<String, Double> getLatencyMeanMillis();
+
+	Map<String, Double> getLatencyP50Millis();
+
+	Map<String, Double> getLatencyP99Millis();
+
+	Map<String, Double> getLatencyP999Millis();
+
+	Map<String, Double> getLatencyMaxMillis();
+
+	/**
+	 * @return The number of failed commands, by failure class.
+	 */
+	Map<String, Long> getFailures();
+
+	/**
+	 * Forgets every measurement.
+	 */
+	void reset();
+}
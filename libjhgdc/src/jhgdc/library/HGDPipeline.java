@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class sends several commands to a HGD daemon in a single round trip.
+ *
+ * Commands are queued with the request methods, which return a Reply
+ * placeholder. execute() writes all the queued commands with a single flush,
+ * then reads the replies in order and stores each one in its placeholder.
+ *
+ * A command refused by the daemon does not prevent the following ones from
+ * being processed: its Reply holds the error, and the others hold their
+ * results. For example, "np" and "vo|&lt;track-id&gt;" can be sent together,
+ * since the daemon only votes off the given track if it is still playing.
+ *
+ * Instances are obtained from HGDClient.pipeline(), and can be reused once
+ * execute() returns.
+ *
+ * @since 16/10/2026
+ */
+public class HGDPipeline {
+
+	/**
+	 * The result of a pipelined command.
+	 *
+	 * @param <T>
+	 *            The type of the result.
+	 */
+	public static abstract class Reply<T> {
+
+		/**
+		 * The command sent to the daemon.
+		 */
+		private final String command;
+
+		private boolean done = false;
+
+		private T result;
+
+		private Exception error;
+
+		Reply(String command) {
+			this.command = command;
+		}
+
+		/**
+		 * Returns the command line sent to the daemon.
+		 *
+		 * @return The command.
+		 */
+		public String getCommand() {
+			return command;
+		}
+
+		/**
+		 * Tests if the reply of this command has been received.
+		 *
+		 * @return true if the pipeline has processed this command.
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Tests if the daemon accepted this command.
+		 *
+		 * @return true if the command has been processed successfully.
+		 */
+		public boolean isSuccess() {
+			return done && error == null;
+		}
+
+		/**
+		 * Returns the error of this command, if any.
+		 *
+		 * @return The JHGDException sent by the daemon, the IOException that
+		 *         interrupted the pipeline, or null.
+		 */
+		public Exception getError() {
+			return error;
+		}
+
+		/**
+		 * Returns the result of this command.
+		 *
+		 * @return The result, in the same format returned by the
+		 *         corresponding HGDClient method.
+		 * @throws IllegalStateException
+		 *             If the pipeline has not been executed.
+		 * @throws JHGDException
+		 *             If the command failed.
+		 */
+		public T get() throws IllegalStateException, JHGDException {
+			if (!done) {
+				throw new IllegalStateException("Pipeline not executed");
+			}
+			if (error instanceof JHGDException) {
+				throw (JHGDException) error;
+			}
+			if (error != null) {
+				throw new JHGDException(error.getMessage(), error);
+			}
+			return result;
+		}
+
+		/**
+		 * Decodes the reply of this command.
+		 *
+		 * @param client
+		 *            The client, used to read additional lines.
+		 * @param returnMessage
+		 *            The first line of the reply.
+		 * @return The result.
+		 */
+		abstract T read(HGDClient client, String returnMessage)
+				throws IOException, JHGDException;
+
+		void complete(T result) {
+			this.result = result;
+			this.done = true;
+		}
+
+		void fail(Exception error) {
+			this.error = error;
+			this.done = true;
+		}
+	}
+
+	/**
+	 * Reply for commands that return the status line as is.
+	 */
+	private static class LineReply extends Reply<String> {
+
+		LineReply(String command) {
+			super(command);
+		}
+
+		@Override
+		String read(HGDClient client, String returnMessage)
+				throws JHGDException {
+			if (HGDClient.checkServerResponse(returnMessage) != HGDConsts.SUCCESS) {
+				throw new JHGDException(returnMessage.substring(returnMessage
+						.indexOf('|') + 1));
+			}
+			return returnMessage;
+		}
+	}
+
+	/**
+	 * The client used to send the commands.
+	 */
+	private final HGDClient client;
+
+	/**
+	 * The commands waiting to be executed.
+	 */
+	private final List<Reply<?>> pending = new ArrayList<Reply<?>>();
+
+	HGDPipeline(HGDClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Queues the "ls" command.
+	 *
+	 * @return The placeholder of the playlist, in the format returned by
+	 *         HGDClient.requestPlaylist().
+	 * @throws IllegalStateException
+	 *             If the client is not connected.
+	 */
+	public Reply<String[]> requestPlaylist() throws IllegalStateException {
+		checkConnected();
+		return add(playlistReply());
+	}
+
+	/**
+	 * Queues the "np" command.
+	 *
+	 * @return The placeholder of the now playing line, in the format returned
+	 *         by HGDClient.requestNowPlaying().
+	 * @throws IllegalStateException
+	 *             If the client is not connected.
+	 */
+	public Reply<String> requestNowPlaying() throws IllegalStateException {
+		checkConnected();
+		return add(lineReply("np"));
+	}
+
+	/**
+	 * Queues the "id" command.
+	 *
+	 * @return The placeholder of the user information, in the format returned
+	 *         by HGDClient.requestUserInformation().
+	 * @throws IllegalStateException
+	 *             If the client is not connected or not authenticated.
+	 */
+	public Reply<String> requestUserInformation() throws IllegalStateException {
+		checkAuthenticated();
+		return add(lineReply("id"));
+	}
+
+	/**
+	 * Queues the "vo|&lt;track-id&gt;" command.
+	 *
+	 * @param trackId
+	 *            The id of the track.
+	 * @return The placeholder of the status line.
+	 * @throws IllegalArgumentException
+	 *             If the track id contains a '|' or a line break.
+	 * @throws IllegalStateException
+	 *             If the client is not connected or not authenticated.
+	 */
+	public Reply<String> requestVoteOff(String trackId)
+			throws IllegalArgumentException, IllegalStateException {
+		HGDClient.checkArgument("track id", trackId);
+		checkAuthenticated();
+		return add(lineReply("vo|" + trackId));
+	}
+
+	/**
+	 * Queues the "proto" command.
+	 *
+	 * @return The placeholder of the protocol major version of the daemon.
+	 * @throws IllegalStateException
+	 *             If the client is not connected.
+	 */
+	public Reply<String> requestProto() throws IllegalStateException {
+		checkConnected();
+		return add(protoReply());
+	}
+
+	/**
+	 * Returns the number of commands waiting to be executed.
+	 *
+	 * @return The number of queued commands.
+	 */
+	public int size() {
+		return pending.size();
+	}
+
+	/**
+	 * Sends all the queued commands and reads their replies.
+	 *
+	 * @return true if every command succeeded, false if at least one of them
+	 *         has been refused by the daemon.
+	 * @throws IllegalStateException
+	 *             If the client is not connected.
+	 * @throws IOException
+	 *             If an I/O exception occurs. The replies not read yet are
+	 *             failed with this exception.
+	 * @throws HGDProtocolException
+	 *             If a reply can not be parsed. The client is then
+	 *             disconnected, since the replies that follow can not be
+	 *             told apart.
+	 */
+	public boolean execute() throws IllegalStateException, IOException {
+		List<Reply<?>> replies = new ArrayList<Reply<?>>(pending);
+		pending.clear();
+
+		int next = 0;
+		boolean success = true;
+		try {
+			for (Reply<?> reply : replies) {
+				client.writeLineCommand(reply.getCommand());
+			}
+			client.flushCommands();
+
+			for (; next < replies.size(); next++) {
+				if (!receive(replies.get(next))) {
+					success = false;
+				}
+			}
+		} catch (IOException e) {
+			for (; next < replies.size(); next++) {
+				replies.get(next).fail(e);
+			}
+			throw e;
+		}
+		return success;
+	}
+
+	/**
+	 * Reads the reply of a command.
+	 *
+	 * @return true if the command succeeded.
+	 */
+	private <T> boolean receive(Reply<T> reply) throws IOException {
+		String returnMessage = client.receiveLine();
+		try {
+			reply.complete(reply.read(client, returnMessage));
+			return true;
+		} catch (JHGDException e) {
+			reply.fail(e);
+			return false;
+		} catch (RuntimeException e) {
+			// Such as a bad count or a missing field
+			throw client.malformedReply(returnMessage, e);
+		}
+	}
+
+	/**
+	 * Queues a command created by one of the reply factories, without
+	 * checking the state of the client.
+	 */
+	<T> Reply<T> add(Reply<T> reply) {
+		pending.add(reply);
+		return reply;
+	}
+
+	/**
+	 * Creates the reply of the "ls" command.
+	 */
+	static Reply<String[]> playlistReply() {
+		return new Reply<String[]>("ls") {
+			@Override
+			String[] read(HGDClient client, String returnMessage)
+					throws IOException, JHGDException {
+				return client.readPlaylist(returnMessage);
+			}
+		};
+	}
+
+	/**
+	 * Creates the reply of the "proto" command.
+	 */
+	static Reply<String> protoReply() {
+		return new Reply<String>("proto") {
+			@Override
+			String read(HGDClient client, String returnMessage)
+					throws JHGDException {
+				if (HGDClient.checkServerResponse(returnMessage) != HGDConsts.SUCCESS) {
+					throw new JHGDException(returnMessage
+							.substring(returnMessage.indexOf('|') + 1));
+				}
+				return returnMessage.split("\\|")[1];
+			}
+		};
+	}
+
+	/**
+	 * Creates the reply of a command returning its status line.
+	 */
+	static Reply<String> lineReply(String command) {
+		return new LineReply(command);
+	}
+
+	private void checkConnected() throws IllegalStateException {
+		if (!client.isConnected()) {
+			throw new IllegalStateException("Client not connected");
+		}
+	}
+
+	private void checkAuthenticated() throws IllegalStateException {
+		checkConnected();
+		if (!client.isAuthenticated()) {
+			throw new IllegalStateException("Client not authenticated");
+		}
+	}
+}
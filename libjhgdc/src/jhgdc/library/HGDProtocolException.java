@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.IOException;
+
+/**
+ * This class represents a reply of the daemon that can not be framed, such
+ * as a line too long or cut by the end of the connection.
+ *
+ * The client has been disconnected when it is thrown, since the rest of the
+ * reply can not be told apart from the next one.
+ *
+ * @see HGDClientConfig#getMaxLineLength()
+ * @since 16/10/2026
+ */
+public class HGDProtocolException extends IOException {
+
+	public HGDProtocolException(String message) {
+		super(message);
+	}
+
+	public HGDProtocolException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 6001981657262480411L;
+
+}
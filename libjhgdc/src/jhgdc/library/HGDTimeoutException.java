@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * This class represents a daemon that did not connect or reply in time.
+ *
+ * It is an IOException, so existing error handling keeps working. The
+ * client has been disconnected when it is thrown.
+ *
+ * @see HGDClientConfig
+ * @since 16/10/2026
+ */
+public class HGDTimeoutException extends SocketTimeoutException {
+
+	public HGDTimeoutException(String message) {
+		super(message);
+	}
+
+	public HGDTimeoutException(String message, Throwable cause) {
+		super(message);
+		initCause(cause);
+	}
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -4122187304459036123L;
+
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * This class holds the TLS settings used to encrypt HGD connections.
+ *
+ * A context is meant to be created once and shared by every client of the
+ * process: it keeps the sessions negotiated with each daemon, so that the
+ * next connection to the same host and port resumes the session instead of
+ * going through a full handshake.
+ *
+ * Only TLS 1.3 and 1.2 are enabled, and the AES-GCM cipher suites are
+ * offered first. The certificate of the daemon can be checked against
+ * pinned SHA-256 fingerprints, which suits the self-signed certificates
+ * daemons usually have, or against a truststore, in which case the host name
+ * is verified too. The default context, like earlier releases, accepts any
+ * certificate.
+ *
+ * @see HGDClient#setTlsContext(HGDTlsContext)
+ * @since 16/10/2026
+ */
+public class HGDTlsContext {
+
+	/**
+	 * Default number of sessions kept for resumption.
+	 */
+	public static final int DEFAULT_SESSION_CACHE_SIZE = 256;
+
+	/**
+	 * Default lifetime of the sessions kept for resumption, in seconds.
+	 */
+	public static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;
+
+	/**
+	 * The protocols enabled, when supported, by order of preference.
+	 */
+	private static final String[] PROTOCOLS = { "TLSv1.3", "TLSv1.2" };
+
+	private static HGDTlsContext defaultContext;
+
+	private final SSLContext context;
+
+	private final String[] protocols;
+
+	private final String[] cipherSuites;
+
+	private final boolean verifyHost;
+
+	/**
+	 * Creates a context.
+	 *
+	 * @param trustManager
+	 *            Checks the certificates of the daemons.
+	 * @param verifyHost
+	 *            true to check that the certificate names the daemon.
+	 * @param sessionCacheSize
+	 *            The number of sessions kept for resumption, or 0 for no
+	 *            limit.
+	 * @param sessionTimeout
+	 *            The lifetime of the sessions kept for resumption, in
+	 *            seconds.
+	 * @throws GeneralSecurityException
+	 *             If TLS is not available.
+	 */
+	protected HGDTlsContext(X509TrustManager trustManager, boolean verifyHost,
+			int sessionCacheSize, int sessionTimeout)
+			throws GeneralSecurityException {
+		context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] { trustManager },
+				new java.security.SecureRandom());
+		SSLSessionContext sessions = context.getClientSessionContext();
+		sessions.setSessionCacheSize(sessionCacheSize);
+		sessions.setSessionTimeout(sessionTimeout);
+
+		SSLParameters supported = context.getSupportedSSLParameters();
+		List<String> available = Arrays.asList(supported.getProtocols());
+		List<String> enabled = new ArrayList<String>();
+		for (String protocol : PROTOCOLS) {
+			if (available.contains(protocol)) {
+				enabled.add(protocol);
+			}
+		}
+		if (enabled.isEmpty()) {
+			throw new NoSuchAlgorithmException("Neither TLS 1.3 nor 1.2 available");
+		}
+		protocols = enabled.toArray(new String[enabled.size()]);
+		cipherSuites = preferGcm(context.getDefaultSSLParameters()
+				.getCipherSuites());
+		this.verifyHost = verifyHost;
+	}
+
+	/**
+	 * Returns the context used by the clients without one of their own. It
+	 * accepts any certificate, unless replaced with setDefault().
+	 *
+	 * @return The default context.
+	 * @throws GeneralSecurityException
+	 *             If TLS is not available.
+	 */
+	public static synchronized HGDTlsContext getDefault()
+			throws GeneralSecurityException {
+		if (defaultContext == null) {
+			defaultContext = trustAll();
+		}
+		return defaultContext;
+	}
+
+	/**
+	 * Replaces the context used by the clients without one of their own.
+	 *
+	 * @param context
+	 *            The new default context, or null to go back to one
+	 *            accepting any certificate.
+	 */
+	public static synchronized void setDefault(HGDTlsContext context) {
+		defaultContext = context;
+	}
+
+	/**
+	 * Creates a context accepting any certificate. The connection is
+	 * encrypted, but the daemon is not authenticated.
+	 *
+	 * @return The new context.
+	 * @throws GeneralSecurityException
+	 *             If TLS is not available.
+	 */
+	public static HGDTlsContext trustAll() throws GeneralSecurityException {
+		return new HGDTlsContext(new X509TrustManager() {
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+
+			public void checkClientTrusted(X509Certificate[] certs,
+					String authType) {
+			}
+
+			public void checkServerTrusted(X509Certificate[] certs,
+					String authType) {
+			}
+		}, false, DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT);
+	}
+
+	/**
+	 * Creates a context accepting only the given certificates.
+	 *
+	 * @param fingerprints
+	 *            The SHA-256 fingerprints of the accepted certificates, in
+	 *            hexadecimal, with or without colons.
+	 * @return The new context.
+	 * @throws GeneralSecurityException
+	 *             If TLS is not available.
+	 */
+	public static HGDTlsContext pinned(String... fingerprints)
+			throws GeneralSecurityException {
+		if (fingerprints.length == 0) {
+			throw new IllegalArgumentException("No fingerprint");
+		}
+		final Set<String> pins = new HashSet<String>();
+		for (String fingerprint : fingerprints) {
+			pins.add(fingerprint.replace(":", "").toLowerCase(Locale.ROOT));
+		}
+		return new HGDTlsContext(new X509TrustManager() {
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+
+			public void checkClientTrusted(X509Certificate[] certs,
+					String authType) throws CertificateException {
+				throw new CertificateException("Client certificates not accepted");
+			}
+
+			public void checkServerTrusted(X509Certificate[] certs,
+					String authType) throws CertificateException {
+				if (certs == null || certs.length == 0
+						|| !pins.contains(fingerprint(certs[0]))) {
+					throw new CertificateException(
+							"Certificate of the daemon not pinned");
+				}
+			}
+		}, false, DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT);
+	}
+
+	/**
+	 * Creates a context accepting the certificates issued for the daemon by
+	 * the authorities of a truststore.
+	 *
+	 * @param trustStore
+	 *            The truststore, or null for the one of the JRE.
+	 * @return The new context.
+	 * @throws GeneralSecurityException
+	 *             If TLS is not available or the truststore can not be used.
+	 */
+	public static HGDTlsContext trustStore(KeyStore trustStore)
+			throws GeneralSecurityException {
+		TrustManagerFactory factory = TrustManagerFactory
+				.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		factory.init(trustStore);
+		for (TrustManager manager : factory.getTrustManagers()) {
+			if (manager instanceof X509TrustManager) {
+				return new HGDTlsContext((X509TrustManager) manager, true,
+						DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT);
+			}
+		}
+		throw new NoSuchAlgorithmException("No X.509 trust manager");
+	}
+
+	/**
+	 * Returns the SHA-256 fingerprint of a certificate, as used by pinned().
+	 *
+	 * @param certificate
+	 *            The certificate.
+	 * @return The fingerprint, in lower case hexadecimal without colons.
+	 * @throws CertificateException
+	 *             If the certificate can not be encoded.
+	 */
+	public static String fingerprint(X509Certificate certificate)
+			throws CertificateException {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(
+					certificate.getEncoded());
+		} catch (NoSuchAlgorithmException e) {
+			throw new CertificateException(e);
+		}
+		StringBuilder hex = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Returns the cache of the sessions negotiated with the daemons.
+	 *
+	 * @return The client session context.
+	 */
+	public SSLSessionContext getSessionContext() {
+		return context.getClientSessionContext();
+	}
+
+	/**
+	 * Layers TLS over a connected socket. The handshake is not started.
+	 *
+	 * @param socket
+	 *            The plain socket, closed with the TLS one.
+	 * @param host
+	 *            The host name of the daemon, which identifies the sessions
+	 *            to resume.
+	 * @param port
+	 *            The port of the daemon.
+	 * @return The TLS socket, in client mode.
+	 */
+	SSLSocket createSocket(Socket socket, String host, int port)
+			throws IOException {
+		SSLSocket sslSocket = (SSLSocket) context.getSocketFactory()
+				.createSocket(socket, host, port, true);
+		sslSocket.setUseClientMode(true);
+		sslSocket.setSSLParameters(parameters(sslSocket.getSSLParameters()));
+		return sslSocket;
+	}
+
+	/**
+	 * Creates an engine for a non-blocking connection.
+	 *
+	 * @param host
+	 *            The host name of the daemon.
+	 * @param port
+	 *            The port of the daemon.
+	 * @return The engine, in client mode.
+	 */
+	SSLEngine createEngine(String host, int port) {
+		SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		engine.setSSLParameters(parameters(engine.getSSLParameters()));
+		return engine;
+	}
+
+	private SSLParameters parameters(SSLParameters parameters) {
+		parameters.setProtocols(protocols);
+		parameters.setCipherSuites(cipherSuites);
+		if (verifyHost) {
+			parameters.setEndpointIdentificationAlgorithm("HTTPS");
+		}
+		return parameters;
+	}
+
+	/**
+	 * Orders cipher suites with the AES-GCM ones first, keeping the order of
+	 * the JRE otherwise.
+	 */
+	static String[] preferGcm(String[] suites) {
+		List<String> ordered = new ArrayList<String>(suites.length);
+		for (String suite : suites) {
+			if (suite.contains("_AES_") && suite.contains("_GCM_")) {
+				ordered.add(suite);
+			}
+		}
+		for (String suite : suites) {
+			if (!ordered.contains(suite)) {
+				ordered.add(suite);
+			}
+		}
+		return ordered.toArray(new String[ordered.size()]);
+	}
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is a handle on the upload of a file with the "q" command.
+ *
+ * The upload runs on the thread calling call(), or on an executor with
+ * start(); that thread must be the only one using the client meanwhile.
+ * Any other thread may follow its progress, wait for it, or stop it:
+ * cancel() and the timeout close the connection, which unblocks the
+ * writing thread at once. The session can not be used after a stopped
+ * upload, since the daemon still expects the rest of the file; the client
+ * is disconnected by the uploading thread.
+ *
+ * Interrupting the uploading thread cancels the upload too. The class only
+ * blocks on locks from java.util.concurrent, so uploads may run on virtual
+ * threads.
+ *
+ * @since 16/10/2026
+ */
+public class HGDUpload implements Callable<Void> {
+
+	/**
+	 * The states of an upload.
+	 */
+	public enum State {
+		NEW, RUNNING, SUCCEEDED, FAILED, CANCELLED, TIMED_OUT
+	}
+
+	/**
+	 * Minimum time between two samples of the instantaneous rate, in
+	 * nanoseconds.
+	 */
+	private static final long RATE_INTERVAL = TimeUnit.MILLISECONDS
+			.toNanos(100);
+
+	/**
+	 * Weight of the last sample in the instantaneous rate.
+	 */
+	private static final double RATE_SMOOTHING = 0.3;
+
+	/**
+	 * Enforces the timeouts of all the uploads of the process.
+	 */
+	private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(
+			1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "jhgdc-upload-timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	static {
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	private final HGDClient client;
+
+	private final File file;
+
+	private final long size;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition over = lock.newCondition();
+
+	private volatile State state = State.NEW;
+
+	/**
+	 * The state requested by cancel() or the timeout, if any.
+	 */
+	private State stop;
+
+	/**
+	 * Whether the daemon accepted the file, after which the upload can no
+	 * longer be stopped.
+	 */
+	private boolean replied;
+
+	private volatile UploadListener listener;
+
+	/**
+	 * The timeout, in nanoseconds, or 0 for none.
+	 */
+	private long timeout;
+
+	private volatile Throwable failure;
+
+	private volatile long bytesSent;
+
+	private volatile long startTime;
+
+	private volatile long endTime;
+
+	private volatile double rate;
+
+	/**
+	 * The last sample of the instantaneous rate, written by the uploading
+	 * thread only.
+	 */
+	private long sampleTime, sampleBytes;
+
+	/**
+	 * Creates an upload, to be run with call() or start().
+	 *
+	 * @param client
+	 *            The connected and authenticated client.
+	 * @param file
+	 *            The file to queue.
+	 */
+	public HGDUpload(HGDClient client, File file) {
+		this.client = client;
+		this.file = file;
+		this.size = file.length();
+	}
+
+	/**
+	 * Sets the listener told about the progress. Must be called before the
+	 * upload starts.
+	 *
+	 * @param listener
+	 *            The listener, or null.
+	 */
+	public void setListener(UploadListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Bounds the duration of the upload, including the replies of the
+	 * daemon. Must be called before the upload starts.
+	 *
+	 * @param timeout
+	 *            The maximum duration, or 0 for none.
+	 * @param unit
+	 *            The unit of timeout.
+	 */
+	public void setTimeout(long timeout, TimeUnit unit) {
+		lock.lock();
+		try {
+			if (state != State.NEW) {
+				throw new IllegalStateException("Upload already started");
+			}
+			this.timeout = unit.toNanos(timeout);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Runs the upload on the calling thread.
+	 *
+	 * @return null.
+	 * @throws IllegalStateException
+	 *             If the upload was already started, or if the client is not
+	 *             authenticated.
+	 * @throws CancellationException
+	 *             If the upload was cancelled.
+	 * @throws SocketTimeoutException
+	 *             If the timeout expired.
+	 * @throws InterruptedIOException
+	 *             If the thread was interrupted.
+	 * @throws IOException
+	 *             If an I/O exception occurs.
+	 * @throws JHGDException
+	 *             If the daemon refuses the file.
+	 */
+	public Void call() throws IllegalStateException, IOException,
+			JHGDException {
+		ScheduledFuture<?> expiry = null;
+		lock.lock();
+		try {
+			if (state == State.CANCELLED) {
+				throw new CancellationException("Upload cancelled");
+			}
+			if (state != State.NEW) {
+				throw new IllegalStateException("Upload already started");
+			}
+			state = State.RUNNING;
+			startTime = System.nanoTime();
+			sampleTime = startTime;
+			if (timeout > 0) {
+				expiry = timer.schedule(new Runnable() {
+					public void run() {
+						stop(State.TIMED_OUT);
+					}
+				}, timeout, TimeUnit.NANOSECONDS);
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		try {
+			client.requestQueue(file, new UploadEngine.Progress() {
+				public void sent(long sent) throws IOException {
+					progress(sent);
+				}
+			});
+			// Before the timer or cancel() may close a healthy connection
+			lock.lock();
+			try {
+				replied = true;
+			} finally {
+				lock.unlock();
+			}
+		} catch (Exception e) {
+			Exception thrown = stopped(e);
+			if (thrown instanceof IOException) {
+				throw (IOException) thrown;
+			}
+			if (thrown instanceof JHGDException) {
+				throw (JHGDException) thrown;
+			}
+			throw (RuntimeException) thrown;
+		} finally {
+			if (expiry != null) {
+				expiry.cancel(false);
+			}
+		}
+		// Done, unless the connection was closed just before the reply was
+		// recorded
+		finish(State.SUCCEEDED, null);
+		return null;
+	}
+
+	/**
+	 * Runs the upload on an executor, such as one creating a virtual thread
+	 * per task.
+	 *
+	 * @param executor
+	 *            The executor.
+	 * @return This upload.
+	 */
+	public HGDUpload start(Executor executor) {
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					call();
+				} catch (Exception e) {
+					// Kept in getFailure()
+				}
+			}
+		});
+		return this;
+	}
+
+	/**
+	 * Stops the upload, closing the connection if it is running.
+	 *
+	 * @return true if the upload was stopped, false if it was already over
+	 *         or the daemon had already accepted the file.
+	 */
+	public boolean cancel() {
+		return stop(State.CANCELLED);
+	}
+
+	/**
+	 * Waits for the upload to be over.
+	 *
+	 * @throws InterruptedException
+	 *             If the thread is interrupted.
+	 */
+	public void await() throws InterruptedException {
+		lock.lock();
+		try {
+			while (!isDone()) {
+				over.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the upload to be over, at most for the given time.
+	 *
+	 * @param time
+	 *            The maximum time to wait.
+	 * @param unit
+	 *            The unit of time.
+	 * @return true if the upload is over.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted.
+	 */
+	public boolean await(long time, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(time);
+		lock.lock();
+		try {
+			while (!isDone()) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = over.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Tests if the upload is over.
+	 *
+	 * @return true if the upload succeeded, failed, was cancelled or timed
+	 *         out.
+	 */
+	public boolean isDone() {
+		State s = state;
+		return s != State.NEW && s != State.RUNNING;
+	}
+
+	/**
+	 * Returns the exception that ended the upload.
+	 *
+	 * @return The exception, or null if the upload did not fail.
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The size of the file, in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The number of bytes written to the socket so far.
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * Returns the recent transfer rate, smoothed over the last samples.
+	 *
+	 * @return The rate in bytes per second, or 0 if not known yet.
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Returns the transfer rate since the upload started.
+	 *
+	 * @return The rate in bytes per second, or 0 if not started.
+	 */
+	public double getAverageRate() {
+		long nanos = getElapsedTime(TimeUnit.NANOSECONDS);
+		return nanos <= 0 ? 0 : bytesSent * 1e9 / nanos;
+	}
+
+	/**
+	 * Returns the time since the upload started, until it ended.
+	 *
+	 * @param unit
+	 *            The unit of the result.
+	 * @return The elapsed time, or 0 if not started.
+	 */
+	public long getElapsedTime(TimeUnit unit) {
+		long start = startTime;
+		if (start == 0) {
+			return 0;
+		}
+		long end = endTime;
+		return unit.convert((end == 0 ? System.nanoTime() : end) - start,
+				TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Estimates the time left to send the rest of the file, from the recent
+	 * rate.
+	 *
+	 * @param unit
+	 *            The unit of the result.
+	 * @return The estimated time, or -1 if not known.
+	 */
+	public long getRemainingTime(TimeUnit unit) {
+		double r = rate > 0 ? rate : getAverageRate();
+		if (r <= 0) {
+			return -1;
+		}
+		long nanos = (long) ((size - bytesSent) * 1e9 / r);
+		return unit.convert(Math.max(nanos, 0), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Records the bytes sent, and aborts the upload if it was stopped.
+	 */
+	private void progress(long sent) throws IOException {
+		if (Thread.interrupted()) {
+			Thread.currentThread().interrupt();
+			stop(State.CANCELLED);
+			throw new InterruptedIOException("Upload interrupted");
+		}
+		long now = System.nanoTime();
+		long elapsed = now - sampleTime;
+		if (elapsed >= RATE_INTERVAL) {
+			double sample = (sent - sampleBytes) * 1e9 / elapsed;
+			rate = rate == 0 ? sample : rate + (sample - rate)
+					* RATE_SMOOTHING;
+			sampleTime = now;
+			sampleBytes = sent;
+		}
+		bytesSent = sent;
+		UploadListener l = listener;
+		if (l != null) {
+			l.progress(this);
+		}
+	}
+
+	/**
+	 * Requests the upload to stop.
+	 */
+	private boolean stop(State reason) {
+		lock.lock();
+		try {
+			if (state == State.NEW) {
+				stop = reason;
+			} else if (state == State.RUNNING && stop == null && !replied) {
+				stop = reason;
+				client.abort();
+				return true;
+			} else {
+				return false;
+			}
+		} finally {
+			lock.unlock();
+		}
+		// Not started: over at once
+		finish(reason, null);
+		return true;
+	}
+
+	/**
+	 * Ends a failed upload, and returns the exception to be thrown.
+	 */
+	private Exception stopped(Exception e) {
+		State reason;
+		lock.lock();
+		try {
+			reason = stop;
+		} finally {
+			lock.unlock();
+		}
+		if (reason == null && (e instanceof ClosedByInterruptException
+				|| (e instanceof InterruptedIOException
+						&& !(e instanceof SocketTimeoutException)))) {
+			// Interrupted in a channel or stream of the upload engine
+			reason = State.CANCELLED;
+		}
+		if (reason == null) {
+			finish(State.FAILED, e);
+			return e;
+		}
+		Exception thrown;
+		if (reason == State.TIMED_OUT) {
+			thrown = new SocketTimeoutException("Upload timed out");
+		} else if (e instanceof InterruptedIOException) {
+			thrown = e;
+		} else if (e instanceof ClosedByInterruptException) {
+			thrown = new InterruptedIOException("Upload interrupted");
+		} else {
+			thrown = new CancellationException("Upload cancelled");
+		}
+		if (thrown != e) {
+			thrown.initCause(e);
+		}
+		finish(reason, thrown);
+		return thrown;
+	}
+
+	/**
+	 * Sets the final state, disconnecting the client if the connection was
+	 * closed under it, and wakes up the waiting threads.
+	 */
+	private void finish(State result, Throwable error) {
+		lock.lock();
+		try {
+			if (isDone()) {
+				return;
+			}
+			if (stop != null && state == State.RUNNING
+					&& client.isConnected()) {
+				try {
+					client.disconnect(false);
+				} catch (Exception e) {
+					// The connection is already closed
+				}
+			}
+			endTime = System.nanoTime();
+			failure = error;
+			state = result;
+			over.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		UploadListener l = listener;
+		if (l != null) {
+			l.finished(this);
+		}
+	}
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This transform strips embedded metadata, such as cover artwork, from the
+ * files uploaded.
+ *
+ * Two containers are understood: ID3v2 tags, found at the start of MP3 files
+ * and sometimes of FLAC files, whose frames are selected by ID, and the
+ * metadata blocks of FLAC files, selected by type. Only the headers are
+ * read: the plan sends the rest of the file as ranges, with the tag and
+ * block headers rewritten to match the new sizes. Files without anything to
+ * strip, or whose metadata is malformed or uses features that can not be
+ * rewritten this way, such as ID3v2.3 unsynchronisation or extended headers,
+ * are sent unchanged.
+ *
+ * @see HGDClient#setUploadTransform(UploadTransform)
+ * @since 16/10/2026
+ */
+public class MetadataStripper implements UploadTransform {
+
+	/**
+	 * The ID3v2 frames stripped by default: the attached pictures, as named
+	 * by ID3v2.3 and ID3v2.4 and by ID3v2.2.
+	 */
+	public static final Set<String> DEFAULT_ID3_FRAMES = Collections
+			.unmodifiableSet(new HashSet<String>(Arrays.asList("APIC",
+					"PIC")));
+
+	/**
+	 * The FLAC metadata block types stripped by default: PICTURE.
+	 */
+	public static final Set<Integer> DEFAULT_FLAC_BLOCKS = Collections
+			.singleton(Integer.valueOf(6));
+
+	/**
+	 * The FLAC STREAMINFO block, which is never stripped.
+	 */
+	private static final int STREAMINFO = 0;
+
+	private static final int ID3_HEADER = 10;
+
+	private static final int ID3_UNSYNCHRONISATION = 0x80;
+
+	/**
+	 * The extended header flag, or compression in ID3v2.2.
+	 */
+	private static final int ID3_EXTENDED = 0x40;
+
+	private static final int ID3_FOOTER = 0x10;
+
+	private static final int FLAC_LAST = 0x80;
+
+	private static final int FLAC_HEADER = 4;
+
+	/**
+	 * A change to the file: bytes removed, and bytes inserted in their place.
+	 */
+	private static final class Edit {
+
+		final long position;
+
+		final long length;
+
+		final byte[] replacement;
+
+		Edit(long position, long length, byte[] replacement) {
+			this.position = position;
+			this.length = length;
+			this.replacement = replacement;
+		}
+	}
+
+	private final Set<String> id3Frames;
+
+	private final Set<Integer> flacBlocks;
+
+	/**
+	 * Creates a transform stripping the embedded artwork.
+	 */
+	public MetadataStripper() {
+		this(DEFAULT_ID3_FRAMES, DEFAULT_FLAC_BLOCKS);
+	}
+
+	/**
+	 * Creates a transform stripping the given metadata.
+	 * 
+	 * @param id3Frames
+	 *            The IDs of the ID3v2 frames to strip, of three characters
+	 *            for ID3v2.2 and four for later versions.
+	 * @param flacBlocks
+	 *            The types of the FLAC metadata blocks to strip, for instance
+	 *            4 for VORBIS_COMMENT. STREAMINFO is always kept.
+	 */
+	public MetadataStripper(Collection<String> id3Frames,
+			Collection<Integer> flacBlocks) {
+		this.id3Frames = new HashSet<String>(id3Frames);
+		this.flacBlocks = new HashSet<Integer>(flacBlocks);
+		this.flacBlocks.remove(Integer.valueOf(STREAMINFO));
+	}
+
+	public UploadPlan plan(FileChannel file) throws IOException {
+		long size = file.size();
+		List<Edit> edits = new ArrayList<Edit>();
+		long position = stripID3(file, size, edits);
+		stripFLAC(file, position, size, edits);
+		if (edits.isEmpty()) {
+			return null;
+		}
+
+		UploadPlan plan = new UploadPlan();
+		long done = 0;
+		for (Edit edit : edits) {
+			plan.addRange(done, edit.position - done);
+			if (edit.replacement != null) {
+				plan.addBytes(edit.replacement);
+			}
+			done = edit.position + edit.length;
+		}
+		plan.addRange(done, size - done);
+		return plan;
+	}
+
+	/**
+	 * Strips the selected frames of the ID3v2 tag at the start of the file.
+	 * 
+	 * @return The position following the tag, or 0 if there is none.
+	 */
+	private long stripID3(FileChannel file, long size, List<Edit> edits)
+			throws IOException {
+		ByteBuffer header = read(file, 0, ID3_HEADER);
+		if (header == null || header.get(0) != 'I' || header.get(1) != 'D'
+				|| header.get(2) != '3') {
+			return 0;
+		}
+		int version = header.get(3) & 0xff;
+		int flags = header.get(5) & 0xff;
+		long tagSize = syncsafe(header, 6);
+		if (version < 2 || version > 4 || tagSize < 0) {
+			return 0;
+		}
+		boolean footer = version == 4 && (flags & ID3_FOOTER) != 0;
+		long end = ID3_HEADER + tagSize;
+		if (end + (footer ? ID3_HEADER : 0) > size) {
+			return 0;
+		}
+		long next = end + (footer ? ID3_HEADER : 0);
+		if ((version < 4 && (flags & ID3_UNSYNCHRONISATION) != 0)
+				|| (flags & ID3_EXTENDED) != 0) {
+			return next;
+		}
+
+		int idLength = version == 2 ? 3 : 4;
+		int frameHeader = version == 2 ? 6 : 10;
+		List<Edit> frames = new ArrayList<Edit>();
+		long removed = 0;
+		long position = ID3_HEADER;
+		while (position + frameHeader <= end) {
+			ByteBuffer frame = read(file, position, frameHeader);
+			if (frame == null || frame.get(0) == 0) {
+				// Padding
+				break;
+			}
+			long frameSize;
+			if (version == 2) {
+				frameSize = (frame.get(3) & 0xff) << 16
+						| (frame.get(4) & 0xff) << 8 | (frame.get(5) & 0xff);
+			} else if (version == 3) {
+				frameSize = frame.getInt(4) & 0xffffffffL;
+			} else {
+				frameSize = syncsafe(frame, 4);
+			}
+			if (frameSize < 0 || position + frameHeader + frameSize > end) {
+				// Malformed: send the tag as it is
+				return next;
+			}
+			byte[] id = new byte[idLength];
+			frame.get(id);
+			if (id3Frames.contains(new String(id, "ISO-8859-1"))) {
+				frames.add(new Edit(position, frameHeader + frameSize, null));
+				removed += frameHeader + frameSize;
+			}
+			position += frameHeader + frameSize;
+		}
+		if (removed == 0) {
+			return next;
+		}
+
+		edits.add(new Edit(0, ID3_HEADER, id3Header(header, tagSize
+				- removed)));
+		edits.addAll(frames);
+		if (footer) {
+			edits.add(new Edit(end, ID3_HEADER, id3Header(read(file, end,
+					ID3_HEADER), tagSize - removed)));
+		}
+		return next;
+	}
+
+	/**
+	 * Strips the selected metadata blocks of a FLAC stream.
+	 */
+	private void stripFLAC(FileChannel file, long position, long size,
+			List<Edit> edits) throws IOException {
+		ByteBuffer marker = read(file, position, 4);
+		if (marker == null || marker.get(0) != 'f' || marker.get(1) != 'L'
+				|| marker.get(2) != 'a' || marker.get(3) != 'C') {
+			return;
+		}
+		position += 4;
+
+		List<Edit> blocks = new ArrayList<Edit>();
+		long lastKept = -1;
+		int lastKeptHeader = 0;
+		boolean last = false;
+		while (!last) {
+			ByteBuffer block = read(file, position, FLAC_HEADER);
+			if (block == null) {
+				return;
+			}
+			int header = block.getInt(0);
+			last = (header >>> 24 & FLAC_LAST) != 0;
+			int type = header >>> 24 & 0x7f;
+			long length = header & 0xffffff;
+			if (type == 127 || position + FLAC_HEADER + length > size
+					|| (lastKept < 0 && type != STREAMINFO)) {
+				// Malformed: STREAMINFO must come first
+				return;
+			}
+			if (flacBlocks.contains(Integer.valueOf(type))) {
+				blocks.add(new Edit(position, FLAC_HEADER + length, null));
+			} else {
+				lastKept = position;
+				lastKeptHeader = header;
+			}
+			position += FLAC_HEADER + length;
+		}
+		if (blocks.isEmpty()) {
+			return;
+		}
+
+		if ((lastKeptHeader >>> 24 & FLAC_LAST) == 0) {
+			// The last block was stripped: flag the last one kept
+			byte[] header = ByteBuffer.allocate(FLAC_HEADER).putInt(
+					lastKeptHeader | FLAC_LAST << 24).array();
+			Edit flag = new Edit(lastKept, FLAC_HEADER, header);
+			int i = 0;
+			while (i < blocks.size() && blocks.get(i).position < lastKept) {
+				i++;
+			}
+			blocks.add(i, flag);
+		}
+		edits.addAll(blocks);
+	}
+
+	/**
+	 * Returns a copy of an ID3v2 header or footer with another tag size.
+	 */
+	private static byte[] id3Header(ByteBuffer header, long tagSize) {
+		byte[] bytes = new byte[ID3_HEADER];
+		header.duplicate().get(bytes);
+		for (int i = 9; i >= 6; i--) {
+			bytes[i] = (byte) (tagSize & 0x7f);
+			tagSize >>>= 7;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Decodes a 28-bit syncsafe integer.
+	 * 
+	 * @return The integer, or -1 if a byte has its high bit set.
+	 */
+	private static long syncsafe(ByteBuffer buffer, int index) {
+		long value = 0;
+		for (int i = index; i < index + 4; i++) {
+			int b = buffer.get(i) & 0xff;
+			if (b > 0x7f) {
+				return -1;
+			}
+			value = value << 7 | b;
+		}
+		return value;
+	}
+
+	/**
+	 * Reads bytes of the file without changing its position.
+	 * 
+	 * @return The bytes, or null if the file is too short.
+	 */
+	private static ByteBuffer read(FileChannel file, long position, int count)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(count);
+		while (buffer.hasRemaining()) {
+			if (file.read(buffer, position + buffer.position()) < 0) {
+				return null;
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
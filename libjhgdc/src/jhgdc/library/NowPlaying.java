@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+/**
+ * This class represents the reply of the "np" command.
+ *
+ * It wraps a line in the following format:
+ * ok|&lt;playing?&gt;[|&lt;track-id&gt;|&lt;filename&gt;|...|&lt;voted?&gt;]
+ *
+ * The track, if any, is parsed by a PlaylistItem. Like PlaylistItem, an
+ * instance can be reused with reset().
+ *
+ * @since 16/10/2026
+ */
+public class NowPlaying {
+
+	private final PlaylistItem item = new PlaylistItem();
+
+	private boolean playing;
+
+	/**
+	 * Creates an empty instance, to be filled with reset().
+	 */
+	public NowPlaying() {
+	}
+
+	/**
+	 * Parses the reply of the "np" command.
+	 *
+	 * @param line
+	 *            The line returned by HGDClient.requestNowPlaying().
+	 * @return A new instance.
+	 * @throws IllegalArgumentException
+	 *             If the line is malformed.
+	 */
+	public static NowPlaying parse(CharSequence line)
+			throws IllegalArgumentException {
+		return new NowPlaying().reset(line);
+	}
+
+	/**
+	 * Makes this instance wrap another line.
+	 *
+	 * @param line
+	 *            The line returned by HGDClient.requestNowPlaying().
+	 * @return This instance.
+	 * @throws IllegalArgumentException
+	 *             If the line is malformed.
+	 */
+	public NowPlaying reset(CharSequence line) throws IllegalArgumentException {
+		// Skip "ok|"
+		int flag = 3;
+		if (line.length() <= flag || line.charAt(flag - 1) != '|') {
+			throw new IllegalArgumentException("Malformed now playing line: "
+					+ line);
+		}
+		// Only changed once the line is known to be well formed
+		boolean playing = line.charAt(flag) != '0';
+		if (playing) {
+			if (line.length() <= flag + 2 || line.charAt(flag + 1) != '|') {
+				throw new IllegalArgumentException(
+						"Malformed now playing line: " + line);
+			}
+			item.reset(line, flag + 2);
+		}
+		this.playing = playing;
+		return this;
+	}
+
+	/**
+	 * Tests if a track is playing.
+	 *
+	 * @return true if a track is playing.
+	 */
+	public boolean isPlaying() {
+		return playing;
+	}
+
+	/**
+	 * Returns the track playing.
+	 *
+	 * @return The track, or null if nothing is playing. The same instance is
+	 *         returned after a reset().
+	 */
+	public PlaylistItem getItem() {
+		return playing ? item : null;
+	}
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class watches the track being played and the playlist of a daemon,
+ * and publishes their changes.
+ *
+ * Each poll sends "np". The next poll is scheduled from the duration of the
+ * current track: when the start of the track has been observed, the watcher
+ * polls at half the time left until its expected end, so polls get denser
+ * near the track boundary and sparser once it is overdue. The delay is always
+ * kept between the minimum and the maximum interval.
+ *
+ * The playlist is fetched with "ls" at most once per maximum interval, in the
+ * same round trip as "np", and after a track change, which removes the track
+ * that ended. Dense polls near a boundary thus do not transfer the whole
+ * playlist each time; the maximum interval bounds how late the other playlist
+ * changes are seen.
+ *
+ * Successive playlists are compared by track id. Lines identical to the
+ * previous poll are neither parsed nor published.
+ *
+ * The watcher uses the client from its own thread; the client must not be
+ * used by anyone else while watched. If a poll fails, the subscribers receive
+ * the error and the watcher stops.
+ *
+ * @since 16/10/2026
+ */
+public class NowPlayingWatcher implements Flow.Publisher<NowPlayingWatcher.Event>,
+		Closeable {
+
+	/**
+	 * Default minimum delay between polls, in milliseconds.
+	 */
+	public static final long DEFAULT_MIN_INTERVAL = 250;
+
+	/**
+	 * Default maximum delay between polls, in milliseconds.
+	 */
+	public static final long DEFAULT_MAX_INTERVAL = 10 * 1000;
+
+	/**
+	 * A change observed by the watcher.
+	 */
+	public static final class Event {
+
+		/**
+		 * The kinds of change.
+		 */
+		public enum Type {
+			/**
+			 * Another track is playing, or playback stopped.
+			 */
+			TRACK_CHANGED,
+			/**
+			 * The number of votes needed to skip the current track changed.
+			 */
+			VOTES_CHANGED,
+			/**
+			 * Tracks have been added to, removed from or updated in the
+			 * playlist.
+			 */
+			PLAYLIST_CHANGED
+		}
+
+		private final Type type;
+
+		private final PlaylistItem track;
+
+		private final List<PlaylistItem> added;
+
+		private final List<PlaylistItem> updated;
+
+		private final List<Integer> removed;
+
+		Event(Type type, PlaylistItem track) {
+			this(type, track, Collections.<PlaylistItem> emptyList(),
+					Collections.<PlaylistItem> emptyList(), Collections
+							.<Integer> emptyList());
+		}
+
+		Event(Type type, PlaylistItem track, List<PlaylistItem> added,
+				List<PlaylistItem> updated, List<Integer> removed) {
+			this.type = type;
+			this.track = track;
+			this.added = added;
+			this.updated = updated;
+			this.removed = removed;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * Returns the current track.
+		 *
+		 * @return The track playing when the event was observed, or null if
+		 *         nothing was playing.
+		 */
+		public PlaylistItem getTrack() {
+			return track;
+		}
+
+		/**
+		 * @return The tracks new in the playlist, for PLAYLIST_CHANGED.
+		 */
+		public List<PlaylistItem> getAdded() {
+			return added;
+		}
+
+		/**
+		 * @return The tracks whose line changed, for PLAYLIST_CHANGED.
+		 */
+		public List<PlaylistItem> getUpdated() {
+			return updated;
+		}
+
+		/**
+		 * @return The ids of the tracks no longer in the playlist, for
+		 *         PLAYLIST_CHANGED.
+		 */
+		public List<Integer> getRemoved() {
+			return removed;
+		}
+
+		@Override
+		public String toString() {
+			switch (type) {
+			case PLAYLIST_CHANGED:
+				return type + " +" + added.size() + " ~" + updated.size()
+						+ " -" + removed.size();
+			default:
+				return type + " " + track;
+			}
+		}
+	}
+
+	private final HGDClient client;
+
+	private final long minInterval;
+
+	private final long maxInterval;
+
+	private final SubmissionPublisher<Event> publisher = new SubmissionPublisher<Event>();
+
+	private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+			1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "jhgdc-now-playing-watcher");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final NowPlaying nowPlaying = new NowPlaying();
+
+	private boolean started = false;
+
+	/*
+	 * The fields below are only used by the scheduler thread.
+	 */
+
+	/**
+	 * Time of the previous poll, if any.
+	 */
+	private long lastPoll;
+
+	private boolean polled = false;
+
+	/**
+	 * Time the playlist was last fetched.
+	 */
+	private long lastPlaylist;
+
+	/**
+	 * Id of the current track, or -1 if nothing is playing.
+	 */
+	private int trackId = -1;
+
+	private int votesNeeded;
+
+	/**
+	 * Estimated start of the current track, if known.
+	 */
+	private long trackStart;
+
+	private boolean trackStartKnown = false;
+
+	private long trackDuration;
+
+	/**
+	 * The lines of the previous playlist, by track id.
+	 */
+	private Map<Integer, String> playlist = new HashMap<Integer, String>();
+
+	private volatile long polls = 0;
+
+	/**
+	 * Creates a watcher with the default intervals.
+	 *
+	 * @param client
+	 *            A connected client.
+	 */
+	public NowPlayingWatcher(HGDClient client) {
+		this(client, DEFAULT_MIN_INTERVAL, DEFAULT_MAX_INTERVAL);
+	}
+
+	/**
+	 * Creates a watcher.
+	 *
+	 * @param client
+	 *            A connected client.
+	 * @param minInterval
+	 *            The minimum delay between polls, in milliseconds.
+	 * @param maxInterval
+	 *            The maximum delay between polls, in milliseconds.
+	 */
+	public NowPlayingWatcher(HGDClient client, long minInterval,
+			long maxInterval) {
+		if (minInterval <= 0 || maxInterval < minInterval) {
+			throw new IllegalArgumentException("Invalid intervals");
+		}
+		this.client = client;
+		this.minInterval = TimeUnit.MILLISECONDS.toNanos(minInterval);
+		this.maxInterval = TimeUnit.MILLISECONDS.toNanos(maxInterval);
+		scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+
+	/**
+	 * Subscribes to the changes. Subscribers only receive the changes
+	 * observed after they subscribed.
+	 */
+	public void subscribe(Flow.Subscriber<? super Event> subscriber) {
+		publisher.subscribe(subscriber);
+	}
+
+	/**
+	 * Starts polling. The first poll publishes the current track and the
+	 * whole playlist.
+	 *
+	 * @throws IllegalStateException
+	 *             If the watcher has already been started.
+	 */
+	public synchronized void start() throws IllegalStateException {
+		if (started) {
+			throw new IllegalStateException("Watcher already started");
+		}
+		started = true;
+		scheduler.execute(new Runnable() {
+			public void run() {
+				poll();
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of polls done.
+	 *
+	 * @return The number of polls.
+	 */
+	public long getPollCount() {
+		return polls;
+	}
+
+	/**
+	 * Stops polling and completes the subscriptions. A poll in progress is
+	 * waited for, so the client can be used again once this method returns;
+	 * it is left connected.
+	 */
+	public void close() {
+		// Not shutdownNow(): interrupting a poll would close the channel
+		scheduler.shutdown();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (scheduler.awaitTermination(1, TimeUnit.SECONDS)) {
+					break;
+				}
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		publisher.close();
+	}
+
+	private void poll() {
+		long delay;
+		try {
+			HGDPipeline pipeline = client.pipeline();
+			HGDPipeline.Reply<String> np = pipeline.requestNowPlaying();
+			HGDPipeline.Reply<String[]> ls = null;
+			if (!polled || System.nanoTime() - lastPlaylist >= maxInterval) {
+				ls = pipeline.requestPlaylist();
+			}
+			pipeline.execute();
+			long now = System.nanoTime();
+			polls++;
+
+			boolean changed = updateTrack(np.get(), now);
+			String[] lines = ls != null ? ls.get()
+					: changed ? client.requestPlaylist() : null;
+			if (lines != null) {
+				updatePlaylist(lines);
+				lastPlaylist = now;
+			}
+			delay = nextDelay(now);
+			lastPoll = now;
+			polled = true;
+		} catch (Exception e) {
+			if (!scheduler.isShutdown()) {
+				publisher.closeExceptionally(e);
+				scheduler.shutdown();
+			}
+			return;
+		}
+
+		try {
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					poll();
+				}
+			}, delay, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			// Closed during the poll
+		}
+	}
+
+	/**
+	 * Publishes the changes of the current track.
+	 *
+	 * @return true if another track is playing, or playback stopped.
+	 */
+	private boolean updateTrack(String line, long now) {
+		nowPlaying.reset(line);
+		PlaylistItem item = nowPlaying.getItem();
+		if (item == null) {
+			if (trackId != -1 || !polled) {
+				trackId = -1;
+				publisher.submit(new Event(Event.Type.TRACK_CHANGED, null));
+				return true;
+			}
+			return false;
+		}
+
+		if (item.getTrackId() != trackId) {
+			trackId = item.getTrackId();
+			votesNeeded = item.getVotesNeeded();
+			trackDuration = TimeUnit.SECONDS.toNanos(item.getDuration());
+			// The track started between the previous poll and this one
+			trackStartKnown = polled;
+			trackStart = lastPoll + (now - lastPoll) / 2;
+			publisher.submit(new Event(Event.Type.TRACK_CHANGED, item.copy()));
+			return true;
+		}
+		if (item.getVotesNeeded() != votesNeeded) {
+			votesNeeded = item.getVotesNeeded();
+			publisher.submit(new Event(Event.Type.VOTES_CHANGED, item.copy()));
+		}
+		return false;
+	}
+
+	private void updatePlaylist(String[] lines) {
+		Map<Integer, String> current = new HashMap<Integer, String>(
+				lines.length * 2);
+		List<PlaylistItem> added = new ArrayList<PlaylistItem>();
+		List<PlaylistItem> updated = new ArrayList<PlaylistItem>();
+		for (String line : lines) {
+			Integer id = Integer.valueOf(trackId(line));
+			current.put(id, line);
+			String previous = playlist.remove(id);
+			if (previous == null) {
+				added.add(PlaylistItem.parse(line));
+			} else if (!previous.equals(line)) {
+				updated.add(PlaylistItem.parse(line));
+			}
+		}
+		List<Integer> removed = new ArrayList<Integer>(playlist.keySet());
+		playlist = current;
+
+		if (!added.isEmpty() || !updated.isEmpty() || !removed.isEmpty()) {
+			PlaylistItem track = nowPlaying.getItem();
+			publisher.submit(new Event(Event.Type.PLAYLIST_CHANGED,
+					track == null ? null : track.copy(), added, updated,
+					removed));
+		}
+	}
+
+	/**
+	 * Computes the delay until the next poll.
+	 */
+	private long nextDelay(long now) {
+		if (trackId == -1 || !trackStartKnown || trackDuration <= 0) {
+			// Unknown boundary
+			return maxInterval;
+		}
+		return delay(trackStart + trackDuration - now, minInterval,
+				maxInterval);
+	}
+
+	/**
+	 * Returns half the time to the expected end of a track, or past it,
+	 * bounded by the intervals.
+	 *
+	 * @param remaining
+	 *            The time left until the expected end, negative if overdue.
+	 */
+	static long delay(long remaining, long minInterval, long maxInterval) {
+		long delay = Math.abs(remaining) / 2;
+		return Math.max(minInterval, Math.min(maxInterval, delay));
+	}
+
+	/**
+	 * Decodes the track id of a playlist line without parsing the line.
+	 */
+	static int trackId(String line) throws IllegalArgumentException {
+		int value = 0;
+		int i = 0;
+		for (; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '|') {
+				break;
+			}
+			if (c < '0' || c > '9') {
+				throw new IllegalArgumentException("Malformed playlist item: "
+						+ line);
+			}
+			value = value * 10 + (c - '0');
+		}
+		if (i == 0 || i == line.length()) {
+			throw new IllegalArgumentException("Malformed playlist item: "
+					+ line);
+		}
+		return value;
+	}
+}
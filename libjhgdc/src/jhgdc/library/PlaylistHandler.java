@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.IOException;
+
+/**
+ * Receives the playlist one track at a time, as it is read from the daemon.
+ *
+ * @see HGDClient#requestPlaylist(PlaylistHandler)
+ * @since 16/10/2026
+ */
+public interface PlaylistHandler {
+
+	/**
+	 * Handles a track of the playlist.
+	 *
+	 * @param item
+	 *            The track, in the format returned by
+	 *            HGDClient.requestPlaylist().
+	 * @return true to receive the next track, false to stop. The remaining
+	 *         tracks are then read and discarded.
+	 * @throws IOException
+	 *             To stop with an error. The remaining tracks are discarded
+	 *             as well.
+	 */
+	boolean handle(String item) throws IOException;
+}
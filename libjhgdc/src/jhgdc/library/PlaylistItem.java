@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This class represents a track of the playlist.
+ *
+ * It wraps a line in the following format:
+ * &lt;track-id&gt;|&lt;filename&gt;|&lt;artist&gt;|&lt;title&gt;|&lt;user&gt;|&lt;album&gt;|&lt;genre&gt;|&lt;duration&gt;|&lt;bitrate&gt;|&lt;samplerate&gt;|&lt;channels&gt;|&lt;year&gt;|&lt;votesneeded&gt;|&lt;voted?&gt;
+ *
+ * The line is scanned once to find the field boundaries; nothing else is
+ * allocated. Numeric fields are decoded on first access, and text fields are
+ * extracted each time they are requested.
+ *
+ * An instance can be reused with reset(), which lets a whole playlist be
+ * walked with a single object (see flyweight()). Such an instance is only
+ * valid until the next reset; use copy() to keep it.
+ *
+ * @since 16/10/2026
+ */
+public class PlaylistItem {
+
+	/**
+	 * Number of fields of a playlist line.
+	 */
+	public static final int FIELDS = 14;
+
+	public static final int TRACK_ID = 0;
+	public static final int FILENAME = 1;
+	public static final int ARTIST = 2;
+	public static final int TITLE = 3;
+	public static final int USER = 4;
+	public static final int ALBUM = 5;
+	public static final int GENRE = 6;
+	public static final int DURATION = 7;
+	public static final int BITRATE = 8;
+	public static final int SAMPLERATE = 9;
+	public static final int CHANNELS = 10;
+	public static final int YEAR = 11;
+	public static final int VOTES_NEEDED = 12;
+	public static final int VOTED = 13;
+
+	/**
+	 * The wrapped line.
+	 */
+	private CharSequence line;
+
+	/**
+	 * Start offset of each field.
+	 */
+	private final int[] starts = new int[FIELDS];
+
+	/**
+	 * End offset (exclusive) of each field.
+	 */
+	private final int[] ends = new int[FIELDS];
+
+	/**
+	 * The numeric fields decoded so far.
+	 */
+	private final int[] numbers = new int[FIELDS];
+
+	/**
+	 * Bit mask of the fields already decoded in numbers.
+	 */
+	private int decoded;
+
+	/**
+	 * Creates an empty item, to be filled with reset().
+	 */
+	public PlaylistItem() {
+	}
+
+	/**
+	 * Parses a playlist line.
+	 *
+	 * @param line
+	 *            A line returned by the "ls" command.
+	 * @return A new item.
+	 * @throws IllegalArgumentException
+	 *             If the line does not have 14 fields.
+	 */
+	public static PlaylistItem parse(CharSequence line)
+			throws IllegalArgumentException {
+		return new PlaylistItem().reset(line);
+	}
+
+	/**
+	 * Makes this item wrap another line.
+	 *
+	 * @param line
+	 *            A line returned by the "ls" command.
+	 * @return This item.
+	 * @throws IllegalArgumentException
+	 *             If the line does not have 14 fields. The item then keeps
+	 *             wrapping the previous line.
+	 */
+	public PlaylistItem reset(CharSequence line)
+			throws IllegalArgumentException {
+		return reset(line, 0);
+	}
+
+	/**
+	 * Makes this item wrap the record starting at the given offset of the
+	 * line. A malformed record leaves the item unchanged.
+	 */
+	PlaylistItem reset(CharSequence line, int offset)
+			throws IllegalArgumentException {
+		int length = line.length();
+		// Counted first, so that the fields of the current line are kept
+		int separators = 0;
+		for (int i = offset; i < length; i++) {
+			if (line.charAt(i) == '|') {
+				separators++;
+			}
+		}
+		if (separators != FIELDS - 1) {
+			throw new IllegalArgumentException(
+					(separators < FIELDS - 1 ? "Malformed" : "Too many fields in")
+							+ " playlist item: " + line);
+		}
+		int field = 0;
+		starts[0] = offset;
+		for (int i = offset; i < length; i++) {
+			if (line.charAt(i) == '|') {
+				ends[field++] = i;
+				starts[field] = i + 1;
+			}
+		}
+		ends[field] = length;
+		this.line = line;
+		this.decoded = 0;
+		return this;
+	}
+
+	/**
+	 * Returns a copy of this item that is not affected by reset().
+	 *
+	 * @return A new item.
+	 */
+	public PlaylistItem copy() {
+		// The record may not start the line, as in a now playing reply
+		return parse(toString());
+	}
+
+	/**
+	 * Returns a field as text.
+	 *
+	 * @param field
+	 *            The field index, such as FILENAME.
+	 * @return The field.
+	 */
+	public String getField(int field) {
+		return line.subSequence(starts[field], ends[field]).toString();
+	}
+
+	/**
+	 * Tests if a field has the given value, without extracting it.
+	 *
+	 * @param field
+	 *            The field index, such as USER.
+	 * @param value
+	 *            The expected value.
+	 * @return true if the field is equal to value.
+	 */
+	public boolean fieldEquals(int field, CharSequence value) {
+		int start = starts[field];
+		int length = ends[field] - start;
+		if (length != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (line.charAt(start + i) != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a numeric field. Empty fields are decoded as 0.
+	 *
+	 * @param field
+	 *            The field index, such as DURATION.
+	 * @return The value.
+	 * @throws NumberFormatException
+	 *             If the field is not a number.
+	 */
+	public int getInt(int field) throws NumberFormatException {
+		int bit = 1 << field;
+		if ((decoded & bit) == 0) {
+			numbers[field] = decode(field);
+			decoded |= bit;
+		}
+		return numbers[field];
+	}
+
+	private int decode(int field) throws NumberFormatException {
+		int i = starts[field];
+		int end = ends[field];
+		boolean negative = i < end && line.charAt(i) == '-';
+		if (negative) {
+			i++;
+		}
+		int value = 0;
+		for (; i < end; i++) {
+			int digit = line.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException("Field " + field
+						+ " is not a number: " + getField(field));
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	public int getTrackId() {
+		return getInt(TRACK_ID);
+	}
+
+	public String getFilename() {
+		return getField(FILENAME);
+	}
+
+	public String getArtist() {
+		return getField(ARTIST);
+	}
+
+	public String getTitle() {
+		return getField(TITLE);
+	}
+
+	public String getUser() {
+		return getField(USER);
+	}
+
+	public String getAlbum() {
+		return getField(ALBUM);
+	}
+
+	public String getGenre() {
+		return getField(GENRE);
+	}
+
+	/**
+	 * @return The duration in seconds.
+	 */
+	public int getDuration() {
+		return getInt(DURATION);
+	}
+
+	/**
+	 * @return The bitrate in kbit/s.
+	 */
+	public int getBitrate() {
+		return getInt(BITRATE);
+	}
+
+	/**
+	 * @return The sample rate in Hz.
+	 */
+	public int getSampleRate() {
+		return getInt(SAMPLERATE);
+	}
+
+	public int getChannels() {
+		return getInt(CHANNELS);
+	}
+
+	public int getYear() {
+		return getInt(YEAR);
+	}
+
+	public int getVotesNeeded() {
+		return getInt(VOTES_NEEDED);
+	}
+
+	/**
+	 * @return true if the current user voted off this track.
+	 */
+	public boolean hasVoted() {
+		return getInt(VOTED) != 0;
+	}
+
+	/**
+	 * Returns the wrapped line.
+	 *
+	 * @return The record, in the format of the "ls" command.
+	 */
+	@Override
+	public String toString() {
+		return line.subSequence(starts[0], line.length()).toString();
+	}
+
+	/**
+	 * Walks playlist lines with a single, reused PlaylistItem.
+	 *
+	 * @param lines
+	 *            The lines returned by HGDClient.requestPlaylist().
+	 * @return An iterable whose iterators return the same instance for every
+	 *         line.
+	 */
+	public static Iterable<PlaylistItem> flyweight(final String[] lines) {
+		return new Iterable<PlaylistItem>() {
+			public Iterator<PlaylistItem> iterator() {
+				return new Iterator<PlaylistItem>() {
+					private final PlaylistItem item = new PlaylistItem();
+
+					private int next = 0;
+
+					public boolean hasNext() {
+						return next < lines.length;
+					}
+
+					public PlaylistItem next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						return item.reset(lines[next++]);
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+}
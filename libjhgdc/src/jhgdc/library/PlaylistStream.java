@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This class reads the playlist lazily, one line at a time, off the
+ * connection.
+ *
+ * Instances are returned by HGDClient.openPlaylist(). While a stream is
+ * open, the connection is busy with the "ls" reply: closing the stream, or
+ * sending any other command with the client, reads and discards the tracks
+ * not consumed yet, so the connection stays in sync.
+ *
+ * I/O errors during the iteration are thrown as UncheckedIOException.
+ *
+ * @since 16/10/2026
+ */
+public class PlaylistStream implements Iterator<String>, Closeable {
+
+	private final HGDClient client;
+
+	private final int size;
+
+	private int read = 0;
+
+	PlaylistStream(HGDClient client, int size) {
+		this.client = client;
+		this.size = size;
+	}
+
+	/**
+	 * Returns the number of tracks announced by the daemon.
+	 *
+	 * @return The playlist size.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean hasNext() {
+		return read < size;
+	}
+
+	/**
+	 * Reads the next track.
+	 *
+	 * @return The track, in the format returned by
+	 *         HGDClient.requestPlaylist().
+	 * @throws UncheckedIOException
+	 *             If an I/O exception occurs.
+	 */
+	public String next() throws UncheckedIOException {
+		try {
+			return readNext();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Reads the next track into a reusable item, without copying the line.
+	 * Like the items of PlaylistItem.flyweight(), it is only valid until the
+	 * next read.
+	 *
+	 * @param item
+	 *            The item to reset with the track.
+	 * @return The item.
+	 * @throws IOException
+	 *             If an I/O exception occurs.
+	 * @throws IllegalArgumentException
+	 *             If the track is malformed.
+	 */
+	public PlaylistItem nextItem(PlaylistItem item) throws IOException,
+			IllegalArgumentException {
+		return item.reset(readText());
+	}
+
+	/**
+	 * Reads the next track.
+	 */
+	String readNext() throws IOException {
+		return readText().toString();
+	}
+
+	/**
+	 * Reads the next track, as a line valid until the next read.
+	 */
+	private CharSequence readText() throws IOException {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		CharSequence item = client.receiveText();
+		read++;
+		if (read == size) {
+			client.playlistDone(this);
+		}
+		return item;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Discards the tracks not read yet.
+	 *
+	 * @throws IOException
+	 *             If an I/O exception occurs.
+	 */
+	public void close() throws IOException {
+		while (hasNext()) {
+			readText();
+		}
+		client.playlistDone(this);
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the replies of the daemon in lines, straight from a reusable byte
+ * buffer.
+ *
+ * Lines end with CR, LF or both. Whitespace and NUL bytes around a line are
+ * skipped, which strips the padding of encrypted replies (the daemon pads
+ * them to 512 bytes) and makes empty lines disappear, as trim() used to.
+ *
+ * The line returned is a view of the buffer, valid until the next read. Pure
+ * ASCII lines, the vast majority, are not decoded at all; the others are
+ * decoded as UTF-8.
+ *
+ * @since 16/10/2026
+ */
+final class ReplyFramer {
+
+	/**
+	 * Smallest buffer, enough for a padded line.
+	 */
+	private static final int MIN_BUFFER = 1024;
+
+	private final InputStream in;
+
+	private final byte[] buffer;
+
+	private final int maxLine;
+
+	/**
+	 * The bytes received and not framed yet.
+	 */
+	private int start, end;
+
+	/**
+	 * Where the search of the line terminator resumes.
+	 */
+	private int scanned;
+
+	private final Line line = new Line();
+
+	/**
+	 * Creates a framer.
+	 *
+	 * @param in
+	 *            The replies of the daemon.
+	 * @param bufferSize
+	 *            The size of the buffer.
+	 * @param maxLine
+	 *            The longest line accepted, padding excluded, in bytes.
+	 */
+	ReplyFramer(InputStream in, int bufferSize, int maxLine) {
+		this.in = in;
+		this.buffer = new byte[Math.max(bufferSize, Math.max(MIN_BUFFER,
+				maxLine + 2))];
+		this.maxLine = maxLine;
+	}
+
+	/**
+	 * Reads the next line.
+	 *
+	 * @return The line, without padding, valid until the next read, or null
+	 *         if the daemon closed the connection between two lines.
+	 * @throws HGDProtocolException
+	 *             If the line is too long or cut by the end of the stream.
+	 * @throws IOException
+	 *             If an I/O exception occurs.
+	 */
+	CharSequence readLine() throws IOException {
+		for (;;) {
+			while (start < end && (buffer[start] & 0xff) <= ' ') {
+				start++;
+			}
+			if (scanned < start) {
+				scanned = start;
+			}
+			for (int i = scanned; i < end; i++) {
+				byte b = buffer[i];
+				if (b == '\n' || b == '\r') {
+					return frame(i);
+				}
+			}
+			scanned = end;
+			if (!fill()) {
+				if (start < end) {
+					throw new HGDProtocolException(
+							"Connection closed in the middle of a reply");
+				}
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Tells whether bytes other than padding are waiting to be framed.
+	 *
+	 * @return true if data was received and not read yet.
+	 */
+	boolean ready() throws IOException {
+		while (start < end && (buffer[start] & 0xff) <= ' ') {
+			start++;
+		}
+		return start < end || in.available() > 0;
+	}
+
+	void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Frames the line ending at the given terminator.
+	 */
+	private CharSequence frame(int terminator) throws HGDProtocolException {
+		int last = terminator;
+		while (last > start && (buffer[last - 1] & 0xff) <= ' ') {
+			last--;
+		}
+		if (last - start > maxLine) {
+			throw overlong();
+		}
+		boolean ascii = true;
+		for (int i = start; i < last; i++) {
+			if (buffer[i] < 0) {
+				ascii = false;
+				break;
+			}
+		}
+		line.set(start, last - start, ascii);
+		start = terminator + 1;
+		scanned = start;
+		return line.text;
+	}
+
+	/**
+	 * Reads more bytes, making room first.
+	 *
+	 * @return false at the end of the stream.
+	 */
+	private boolean fill() throws IOException {
+		if (start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			scanned -= start;
+			start = 0;
+		}
+		if (end == buffer.length) {
+			throw overlong();
+		}
+		int n = in.read(buffer, end, buffer.length - end);
+		if (n < 0) {
+			return false;
+		}
+		end += n;
+		return true;
+	}
+
+	private HGDProtocolException overlong() {
+		return new HGDProtocolException("Reply line longer than " + maxLine
+				+ " bytes");
+	}
+
+	/**
+	 * The line last framed.
+	 */
+	private final class Line implements CharSequence {
+
+		private int offset;
+
+		private int length;
+
+		/**
+		 * The line itself if ASCII, or its decoded copy.
+		 */
+		private CharSequence text;
+
+		void set(int offset, int length, boolean ascii) {
+			this.offset = offset;
+			this.length = length;
+			this.text = ascii ? this : new String(buffer, offset, length,
+					StandardCharsets.UTF_8);
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public char charAt(int index) {
+			if (index < 0 || index >= length) {
+				throw new IndexOutOfBoundsException(Integer.toString(index));
+			}
+			return (char) buffer[offset + index];
+		}
+
+		public String subSequence(int from, int to) {
+			if (from < 0 || to > length || from > to) {
+				throw new IndexOutOfBoundsException(from + ", " + to);
+			}
+			return new String(buffer, offset + from, to - from,
+					StandardCharsets.ISO_8859_1);
+		}
+
+		@Override
+		public String toString() {
+			return new String(buffer, offset, length,
+					StandardCharsets.ISO_8859_1);
+		}
+	}
+}
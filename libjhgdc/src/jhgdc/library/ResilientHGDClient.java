@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class restores the session of a HGDClient when its connection breaks,
+ * for instance when the daemon restarts or a NAT drops an idle connection.
+ *
+ * The session is taken from the client when it is wrapped: the host and
+ * port, the credentials of login() and whether requestEncryption() was used.
+ * When the connection is found broken, the client reconnects, which checks
+ * the protocol version again with "proto", then encrypts the connection and
+ * logs in as before. Failed attempts are repeated after an exponential
+ * backoff with full jitter, so that clients cut off together do not
+ * reconnect together.
+ *
+ * Commands without side effects ("ls", "np", "id" and "proto") are sent again
+ * on the new connection when the reply is lost. "q" and "vo" are sent at
+ * most once: the connection is checked before sending them, but if it breaks
+ * while they are in flight, the daemon may or may not have executed them,
+ * and the IOException is given to the caller instead of retrying.
+ *
+ * Like HGDClient, this class must be used by one thread at a time, and the
+ * client must not be used directly while wrapped.
+ *
+ * @since 16/10/2026
+ */
+public class ResilientHGDClient {
+
+	/**
+	 * Default number of connection attempts before giving up.
+	 */
+	public static final int DEFAULT_MAX_ATTEMPTS = 6;
+
+	/**
+	 * Default upper bound of the first backoff, in milliseconds.
+	 */
+	public static final long DEFAULT_INITIAL_BACKOFF = 100;
+
+	/**
+	 * Default upper bound of any backoff, in milliseconds.
+	 */
+	public static final long DEFAULT_MAX_BACKOFF = 10000;
+
+	private final HGDClient client;
+
+	private final int maxAttempts;
+
+	private final long initialBackoff;
+
+	private final long maxBackoff;
+
+	private final String host;
+
+	private final int port;
+
+	private final String username;
+
+	private final String password;
+
+	private final boolean encrypted;
+
+	private long reconnects;
+
+	/**
+	 * Wraps a client with the default backoff.
+	 * 
+	 * @param client
+	 *            The connected client.
+	 * @throws IllegalStateException
+	 *             If the client is not connected.
+	 */
+	public ResilientHGDClient(HGDClient client) throws IllegalStateException {
+		this(client, DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF,
+				DEFAULT_MAX_BACKOFF);
+	}
+
+	/**
+	 * Wraps a client.
+	 * 
+	 * @param client
+	 *            The connected client.
+	 * @param maxAttempts
+	 *            The number of connection attempts before giving up, and of
+	 *            times a command without side effects is sent.
+	 * @param initialBackoff
+	 *            The upper bound of the first backoff, in milliseconds. Each
+	 *            failed attempt doubles it.
+	 * @param maxBackoff
+	 *            The upper bound of any backoff, in milliseconds.
+	 * @throws IllegalStateException
+	 *             If the client is not connected.
+	 */
+	public ResilientHGDClient(HGDClient client, int maxAttempts,
+			long initialBackoff, long maxBackoff) throws IllegalStateException {
+		if (!client.isConnected()) {
+			throw new IllegalStateException("Client not connected");
+		}
+		if (maxAttempts < 1 || initialBackoff < 0 || maxBackoff < 0) {
+			throw new IllegalArgumentException("Invalid backoff");
+		}
+		this.client = client;
+		this.maxAttempts = maxAttempts;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.host = client.getHost();
+		this.port = client.getPort();
+		this.username = client.isAuthenticated() ? client.getUsername() : null;
+		this.password = client.isAuthenticated() ? client.getPassword() : null;
+		this.encrypted = client.isEncrypted();
+	}
+
+	/**
+	 * Returns the wrapped client.
+	 * 
+	 * @return The client.
+	 */
+	public HGDClient getClient() {
+		return client;
+	}
+
+	/**
+	 * Returns the number of times the session has been restored.
+	 * 
+	 * @return The number of successful reconnections.
+	 */
+	public long getReconnectCount() {
+		return reconnects;
+	}
+
+	/**
+	 * Returns the playlist, sending "ls" again if the connection breaks.
+	 * 
+	 * @see HGDClient#requestPlaylist()
+	 */
+	public String[] requestPlaylist() throws IOException, JHGDException {
+		return retry(new HGDClientPool.Operation<String[]>() {
+			public String[] execute(HGDClient client) throws IOException,
+					JHGDException {
+				return client.requestPlaylist();
+			}
+		});
+	}
+
+	/**
+	 * Returns the now playing line, sending "np" again if the connection
+	 * breaks.
+	 * 
+	 * @see HGDClient#requestNowPlaying()
+	 */
+	public String requestNowPlaying() throws IOException, JHGDException {
+		return retry(new HGDClientPool.Operation<String>() {
+			public String execute(HGDClient client) throws IOException,
+					JHGDException {
+				return client.requestNowPlaying();
+			}
+		});
+	}
+
+	/**
+	 * Returns the information about the user, sending "id" again if the
+	 * connection breaks.
+	 * 
+	 * @see HGDClient#requestUserInformation()
+	 */
+	public String requestUserInformation() throws IOException, JHGDException {
+		return retry(new HGDClientPool.Operation<String>() {
+			public String execute(HGDClient client) throws IOException,
+					JHGDException {
+				return client.requestUserInformation();
+			}
+		});
+	}
+
+	/**
+	 * Returns the protocol major version of the daemon, sending "proto" again
+	 * if the connection breaks.
+	 * 
+	 * @see HGDClient#requestProto()
+	 */
+	public String requestProto() throws IOException, JHGDException {
+		return retry(new HGDClientPool.Operation<String>() {
+			public String execute(HGDClient client) throws IOException,
+					JHGDException {
+				return client.requestProto();
+			}
+		});
+	}
+
+	/**
+	 * Votes off the current track, at most once.
+	 * 
+	 * @throws IOException
+	 *             If the connection broke while the command was sent; the
+	 *             vote may have been counted.
+	 * @see HGDClient#requestVoteOff()
+	 */
+	public void requestVoteOff() throws IOException, JHGDException {
+		once(new HGDClientPool.Operation<Void>() {
+			public Void execute(HGDClient client) throws IOException,
+					JHGDException {
+				client.requestVoteOff();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Votes off a track if it is playing, at most once.
+	 * 
+	 * @throws IOException
+	 *             If the connection broke while the command was sent; the
+	 *             vote may have been counted.
+	 * @see HGDClient#requestVoteOff(String)
+	 */
+	public void requestVoteOff(final String trackId) throws IOException,
+			JHGDException {
+		once(new HGDClientPool.Operation<Void>() {
+			public Void execute(HGDClient client) throws IOException,
+					JHGDException {
+				client.requestVoteOff(trackId);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Sends a file to the daemon, at most once.
+	 * 
+	 * @throws IOException
+	 *             If the connection broke during the upload; the file may
+	 *             have been queued.
+	 * @see HGDClient#requestQueue(File)
+	 */
+	public void requestQueue(final File file) throws IOException,
+			JHGDException {
+		once(new HGDClientPool.Operation<Void>() {
+			public Void execute(HGDClient client) throws IOException,
+					JHGDException {
+				client.requestQueue(file);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Reconnects the client and restores the session, unless it is already
+	 * connected.
+	 * 
+	 * @throws IOException
+	 *             If the last connection attempt failed.
+	 * @throws JHGDException
+	 *             If the daemon refused the session, which is not retried.
+	 */
+	public void restore() throws IOException, JHGDException {
+		if (client.isConnected()) {
+			return;
+		}
+		for (int attempt = 0;; attempt++) {
+			if (attempt > 0) {
+				backoff(attempt);
+			}
+			try {
+				reconnect();
+				reconnects++;
+				return;
+			} catch (IOException e) {
+				close();
+				if (attempt + 1 >= maxAttempts) {
+					throw e;
+				}
+			} catch (JHGDException e) {
+				close();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Runs a command without side effects, again on a new connection if the
+	 * connection breaks.
+	 */
+	private <T> T retry(HGDClientPool.Operation<T> command)
+			throws IOException, JHGDException {
+		for (int attempt = 1;; attempt++) {
+			restore();
+			try {
+				return command.execute(client);
+			} catch (IOException e) {
+				close();
+				if (attempt >= maxAttempts) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs a command with side effects on a connection checked beforehand,
+	 * and never again.
+	 */
+	private <T> T once(HGDClientPool.Operation<T> command) throws IOException,
+			JHGDException {
+		if (client.isConnected() && !client.isAlive()) {
+			close();
+		}
+		restore();
+		try {
+			return command.execute(client);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Connects the client and replays the session.
+	 */
+	private void reconnect() throws IOException, JHGDException {
+		client.connect(host, port);
+		if (encrypted) {
+			try {
+				client.requestEncryption();
+			} catch (GeneralSecurityException e) {
+				throw new JHGDException(e.getMessage(), e);
+			}
+		}
+		if (username != null) {
+			client.login(username, password);
+		}
+	}
+
+	/**
+	 * Closes a broken connection, without talking to the daemon.
+	 */
+	private void close() {
+		if (client.isConnected()) {
+			try {
+				client.disconnect(false);
+			} catch (Exception e) {
+				// The socket is closed anyway
+			}
+		}
+	}
+
+	/**
+	 * Sleeps for a random time up to the backoff of an attempt.
+	 */
+	private void backoff(int attempt) throws InterruptedIOException {
+		long bound = initialBackoff << Math.min(attempt - 1, 30);
+		if (bound > maxBackoff || bound < 0) {
+			bound = maxBackoff;
+		}
+		try {
+			TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(
+					bound + 1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reconnecting");
+		}
+	}
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class lets many threads share the connection of a HGDClient.
+ *
+ * Each command is put in a lock-free queue together with the thread waiting
+ * for it. One of the waiting threads, the combiner, takes the commands
+ * queued so far and sends them as a pipeline, with a single flush, then
+ * gives each reply to its thread in the order the commands were sent. The
+ * other threads wait without holding any lock. Once its own reply is
+ * complete, the combiner hands its role over to the thread of the oldest
+ * queued command and returns. A burst of requests from many threads thus
+ * costs a few round trips instead of one per request.
+ *
+ * Uploads and the operations given to execute() need the stream for
+ * themselves: the combiner sends the commands queued before them, then hands
+ * the connection over to their thread, which runs them and resumes
+ * combining. The commands queued meanwhile wait for the operation to end.
+ *
+ * The client must be connected, and authenticated for the commands that
+ * require it, before being wrapped, and must not be used directly
+ * afterwards.
+ *
+ * @see HGDPipeline
+ * @since 16/10/2026
+ */
+public class SharedHGDClient {
+
+	/**
+	 * The maximum number of commands sent in one pipeline, so that a
+	 * combiner under constant load still returns to its own caller.
+	 */
+	public static final int MAX_BATCH = 64;
+
+	/**
+	 * A queued command or exclusive operation, and the thread waiting for
+	 * it.
+	 */
+	private static final class Request {
+
+		final Thread thread = Thread.currentThread();
+
+		final HGDPipeline.Reply<?> reply;
+
+		final HGDClientPool.Operation<?> operation;
+
+		/**
+		 * Set once the reply is complete; publishes it to the waiting thread.
+		 */
+		volatile boolean done;
+
+		/**
+		 * Set when the connection is handed over to the operation.
+		 */
+		volatile boolean granted;
+
+		Request(HGDPipeline.Reply<?> reply, HGDClientPool.Operation<?> operation) {
+			this.reply = reply;
+			this.operation = operation;
+		}
+	}
+
+	/**
+	 * The shared client.
+	 */
+	private final HGDClient client;
+
+	/**
+	 * The requests not sent yet.
+	 */
+	private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<Request>();
+
+	/**
+	 * Held by the combiner, or by the thread the connection is handed over
+	 * to.
+	 */
+	private final AtomicBoolean combining = new AtomicBoolean();
+
+	private final AtomicLong batches = new AtomicLong();
+
+	private final AtomicLong commands = new AtomicLong();
+
+	/**
+	 * Wraps a client.
+	 * 
+	 * @param client
+	 *            The connected client.
+	 */
+	public SharedHGDClient(HGDClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Returns the wrapped client.
+	 * 
+	 * @return The client.
+	 */
+	public HGDClient getClient() {
+		return client;
+	}
+
+	/**
+	 * Returns the playlist.
+	 * 
+	 * @see HGDClient#requestPlaylist()
+	 */
+	public String[] requestPlaylist() throws IllegalStateException,
+			IOException, JHGDException {
+		return send(HGDPipeline.playlistReply());
+	}
+
+	/**
+	 * Returns the now playing line.
+	 * 
+	 * @see HGDClient#requestNowPlaying()
+	 */
+	public String requestNowPlaying() throws IllegalStateException,
+			IOException, JHGDException {
+		return send(HGDPipeline.lineReply("np"));
+	}
+
+	/**
+	 * Returns the information about the user.
+	 * 
+	 * @see HGDClient#requestUserInformation()
+	 */
+	public String requestUserInformation() throws IllegalStateException,
+			IOException, JHGDException {
+		return send(HGDPipeline.lineReply("id"));
+	}
+
+	/**
+	 * Returns the protocol major version of the daemon.
+	 * 
+	 * @see HGDClient#requestProto()
+	 */
+	public String requestProto() throws IllegalStateException, IOException,
+			JHGDException {
+		return send(HGDPipeline.protoReply());
+	}
+
+	/**
+	 * Votes off the current track.
+	 * 
+	 * @see HGDClient#requestVoteOff()
+	 */
+	public void requestVoteOff() throws IllegalStateException, IOException,
+			JHGDException {
+		send(HGDPipeline.lineReply("vo"));
+	}
+
+	/**
+	 * Votes off a track if it is playing.
+	 * 
+	 * @see HGDClient#requestVoteOff(String)
+	 */
+	public void requestVoteOff(String trackId) throws IllegalStateException,
+			IOException, JHGDException {
+		send(HGDPipeline.lineReply("vo|" + trackId));
+	}
+
+	/**
+	 * Sends a file to the daemon, with exclusive use of the connection.
+	 * 
+	 * @see HGDClient#requestQueue(File)
+	 */
+	public void requestQueue(final File file) throws IllegalStateException,
+			IOException, JHGDException {
+		execute(new HGDClientPool.Operation<Void>() {
+			public Void execute(HGDClient client) throws IOException,
+					JHGDException {
+				client.requestQueue(file);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Runs an operation with exclusive use of the client, once the commands
+	 * queued before it have been answered. The operation runs in the calling
+	 * thread.
+	 * 
+	 * @param operation
+	 *            The operation, which must leave the client ready for the
+	 *            next command.
+	 * @return The result of the operation.
+	 */
+	public <T> T execute(HGDClientPool.Operation<T> operation)
+			throws IOException, JHGDException {
+		Request request = new Request(null, operation);
+		queue.add(request);
+		await(request);
+		try {
+			return operation.execute(client);
+		} finally {
+			combine(null);
+		}
+	}
+
+	/**
+	 * Returns the number of pipelines sent.
+	 * 
+	 * @return The number of round trips used by the commands.
+	 */
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	/**
+	 * Returns the number of commands sent.
+	 * 
+	 * @return The number of commands, not counting the operations.
+	 */
+	public long getCommandCount() {
+		return commands.get();
+	}
+
+	/**
+	 * Queues a command and waits for its reply.
+	 */
+	private <T> T send(HGDPipeline.Reply<T> reply) throws IOException,
+			JHGDException {
+		Request request = new Request(reply, null);
+		queue.add(request);
+		await(request);
+		Exception error = reply.getError();
+		if (error instanceof IOException) {
+			throw (IOException) error;
+		}
+		if (error instanceof RuntimeException) {
+			throw (RuntimeException) error;
+		}
+		return reply.get();
+	}
+
+	/**
+	 * Waits until a request is answered, combining the requests of the other
+	 * threads when no other thread does. Returns when the reply is complete,
+	 * or when the connection has been handed over to the request.
+	 */
+	private void await(Request request) {
+		boolean interrupted = false;
+		while (!request.done && !request.granted) {
+			if (combining.compareAndSet(false, true)) {
+				if (queue.peek() == request && request.operation != null) {
+					// Nothing to send before it
+					queue.poll();
+					request.granted = true;
+				} else {
+					combine(request);
+				}
+			} else {
+				LockSupport.park(this);
+				interrupted |= Thread.interrupted();
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Sends the queued commands in batches, until the given request is
+	 * answered or an operation is reached. Called while holding the combining
+	 * flag, which is released or handed over on return.
+	 *
+	 * @param own
+	 *            The request of the calling thread, or null to send a single
+	 *            batch.
+	 */
+	private void combine(Request own) {
+		for (;;) {
+			HGDPipeline pipeline = client.pipeline();
+			Request[] batch = new Request[MAX_BATCH];
+			int size = 0;
+			Request exclusive = null;
+			Request request;
+			while (size < MAX_BATCH && (request = queue.poll()) != null) {
+				if (request.operation != null) {
+					exclusive = request;
+					break;
+				}
+				pipeline.add(request.reply);
+				batch[size++] = request;
+			}
+
+			if (size > 0) {
+				execute(pipeline, batch, size);
+			}
+			if (exclusive != null) {
+				exclusive.granted = true;
+				LockSupport.unpark(exclusive.thread);
+				return;
+			}
+
+			if (own == null || own.done) {
+				break;
+			}
+		}
+
+		combining.set(false);
+		// Wake the thread of the oldest request to take over; a request
+		// queued after this check finds the flag free
+		Request next = queue.peek();
+		if (next != null) {
+			LockSupport.unpark(next.thread);
+		}
+	}
+
+	/**
+	 * Sends a batch of commands and wakes their threads.
+	 */
+	private void execute(HGDPipeline pipeline, Request[] batch, int size) {
+		batches.incrementAndGet();
+		commands.addAndGet(size);
+		try {
+			pipeline.execute();
+		} catch (IOException e) {
+			// Already given to the replies not read
+		} catch (RuntimeException e) {
+			for (int i = 0; i < size; i++) {
+				if (!batch[i].reply.isDone()) {
+					batch[i].reply.fail(e);
+				}
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			batch[i].done = true;
+			LockSupport.unpark(batch[i].thread);
+		}
+	}
+}
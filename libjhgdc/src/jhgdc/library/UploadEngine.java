@@ -0,0 +1,699 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * This class moves the binary payload of the "q" command to the daemon.
+ *
+ * Plain sockets are fed with FileChannel.transferTo(), so the kernel copies
+ * the file straight to the socket. Encrypted sockets can not do that, so the
+ * file is read ahead on a separate thread into large pooled buffers, which are
+ * written to the socket and flushed once at the end. The size of the chunks
+ * is tuned from the throughput measured while writing.
+ *
+ * When a BandwidthScheduler share is given, the file is written in slices of
+ * MIN_CHUNK, each one granted by the scheduler. When a MessageDigest is
+ * given, it is updated with the bytes as they are sent, so hashing an upload
+ * does not read the file twice.
+ *
+ * @since 16/10/2026
+ */
+final class UploadEngine {
+
+	/**
+	 * Smallest chunk used by the buffered path.
+	 */
+	static final int MIN_CHUNK = 64 * 1024;
+
+	/**
+	 * Largest chunk used by the buffered path, and the capacity of the pooled
+	 * buffers.
+	 */
+	static final int MAX_CHUNK = 1024 * 1024;
+
+	/**
+	 * Maximum number of bytes handed to a single transferTo() call.
+	 */
+	static final long TRANSFER_SLICE = 8L * 1024 * 1024;
+
+	/**
+	 * Number of chunks the reader thread may have ready ahead of the writer.
+	 */
+	private static final int READ_AHEAD = 2;
+
+	/**
+	 * Number of reads in a row returning no data after which a source is
+	 * deemed non-blocking.
+	 */
+	private static final int MAX_EMPTY_READS = 1000;
+
+	/**
+	 * Number of idle buffers kept in the pool.
+	 */
+	private static final int POOL_SIZE = 8;
+
+	/**
+	 * Idle buffers, shared by all the uploads of the process.
+	 */
+	private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * Approximate number of buffers in the pool.
+	 */
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * Marks the end of the data produced by the reader thread.
+	 */
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	/**
+	 * Threads used to read files ahead of the socket.
+	 */
+	private static final ExecutorService readers = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "jhgdc-upload-reader-"
+							+ count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private UploadEngine() {
+	}
+
+	/**
+	 * Told about the bytes sent after each chunk. It may stop the upload by
+	 * throwing an exception.
+	 */
+	interface Progress {
+
+		/**
+		 * @param sent
+		 *            The number of bytes sent so far.
+		 */
+		void sent(long sent) throws IOException;
+	}
+
+	/**
+	 * The destination of an upload, and the hooks watching it.
+	 */
+	static final class Target {
+
+		final Socket socket;
+
+		/**
+		 * The binary output stream of the socket. It must have no pending
+		 * data.
+		 */
+		final OutputStream output;
+
+		/**
+		 * Told about the bytes sent, or null.
+		 */
+		Progress progress;
+
+		/**
+		 * The share of bandwidth granting the writes, or null.
+		 */
+		BandwidthScheduler.Share share;
+
+		/**
+		 * Updated with the bytes sent, or null.
+		 */
+		MessageDigest digest;
+
+		/**
+		 * Bytes sent before the current segment of a multi-part source.
+		 */
+		long offset;
+
+		Target(Socket socket, OutputStream output) {
+			this.socket = socket;
+			this.output = output;
+		}
+
+		/**
+		 * Returns the channel of a plain socket, which may be written
+		 * directly.
+		 *
+		 * @return The channel, or null if the output stream must be used.
+		 */
+		SocketChannel plainChannel() {
+			SocketChannel channel = socket.getChannel();
+			return socket instanceof SSLSocket ? null : channel;
+		}
+
+		void sent(long sent) throws IOException {
+			if (progress != null) {
+				progress.sent(offset + sent);
+			}
+		}
+	}
+
+	/**
+	 * The content of an upload.
+	 */
+	interface Source {
+
+		/**
+		 * Returns the number of bytes left in the source, if known before
+		 * reading it.
+		 *
+		 * @return The number of bytes, or -1 if unknown.
+		 */
+		long available() throws IOException;
+
+		/**
+		 * Sends exactly count bytes to the daemon.
+		 *
+		 * @throws EOFException
+		 *             If the source is shorter than count.
+		 * @throws IOException
+		 *             If an I/O exception occurs, or if the source is longer
+		 *             than count.
+		 * @see UploadEngine#send(FileChannel, long, long, Target)
+		 */
+		void send(long count, Target target) throws IOException;
+	}
+
+	/**
+	 * Returns a source reading a channel. A FileChannel is sent from its
+	 * position with the zero-copy path, other channels are copied and must
+	 * end after the count bytes.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the channel is in non-blocking mode.
+	 */
+	static Source source(final ReadableByteChannel channel) {
+		if (channel instanceof SelectableChannel
+				&& !((SelectableChannel) channel).isBlocking()) {
+			throw new IllegalArgumentException(
+					"The channel must be in blocking mode");
+		}
+		if (channel instanceof FileChannel) {
+			final FileChannel file = (FileChannel) channel;
+			return new Source() {
+				public long available() throws IOException {
+					return Math.max(0, file.size() - file.position());
+				}
+
+				public void send(long count, Target target)
+						throws IOException {
+					long position = file.position();
+					UploadEngine.send(file, position, count, target);
+					file.position(position + count);
+				}
+			};
+		}
+		return new Source() {
+			public long available() {
+				return -1;
+			}
+
+			public void send(long count, Target target) throws IOException {
+				copy(channel, count, target);
+			}
+		};
+	}
+
+	/**
+	 * Returns a source sending the remaining bytes of a buffer.
+	 */
+	static Source source(final ByteBuffer data) {
+		return new Source() {
+			public long available() {
+				return data.remaining();
+			}
+
+			public void send(long count, Target target) throws IOException {
+				// Checked first, so that the daemon never gets a part
+				if (count > data.remaining()) {
+					throw new EOFException(
+							"Source shorter than the declared size");
+				}
+				if (count < data.remaining()) {
+					throw new IOException(
+							"Source longer than the declared size");
+				}
+				UploadEngine.send(data, target);
+			}
+		};
+	}
+
+	/**
+	 * Sends count bytes of the source, starting at position, to the daemon.
+	 *
+	 * @param source
+	 *            The file being uploaded.
+	 * @param position
+	 *            The position of the first byte to be sent.
+	 * @param count
+	 *            The number of bytes to be sent.
+	 * @param target
+	 *            The socket connected to the daemon, and the hooks.
+	 * @return The number of bytes sent.
+	 * @throws IOException
+	 *             If an I/O exception occurs, or if the file is shorter than
+	 *             expected.
+	 */
+	static long send(FileChannel source, long position, long count,
+			Target target) throws IOException {
+		SocketChannel channel = target.plainChannel();
+		if (channel != null) {
+			return transferPlain(source, position, count, channel, target);
+		}
+		if (count <= 2 * MIN_CHUNK) {
+			return copy(source, position, count, target);
+		}
+		return copyReadAhead(source, position, count, target);
+	}
+
+	/**
+	 * Sends the remaining bytes of a buffer. Plain sockets are written from
+	 * the buffer itself, without copy when it is direct.
+	 */
+	private static void send(ByteBuffer data, Target target)
+			throws IOException {
+		int count = data.remaining();
+		int limit = data.limit();
+		SocketChannel channel = target.plainChannel();
+		boolean plain = channel != null;
+		OutputStream output = target.output;
+		int slice = target.share != null ? MIN_CHUNK : MAX_CHUNK;
+		ByteBuffer buffer = plain || data.hasArray() ? null : acquire();
+		try {
+			while (data.hasRemaining()) {
+				int length = Math.min(data.remaining(), slice);
+				if (target.share != null) {
+					target.share.acquire(length);
+				}
+				data.limit(data.position() + length);
+				if (target.digest != null) {
+					target.digest.update(data.duplicate());
+				}
+				if (plain) {
+					while (data.hasRemaining()) {
+						channel.write(data);
+					}
+				} else if (buffer == null) {
+					output.write(data.array(), data.arrayOffset()
+							+ data.position(), length);
+					data.position(data.limit());
+				} else {
+					buffer.clear();
+					buffer.put(data);
+					output.write(buffer.array(), 0, length);
+				}
+				data.limit(limit);
+				target.sent(count - data.remaining());
+			}
+			if (!plain) {
+				output.flush();
+			}
+		} finally {
+			data.limit(limit);
+			if (buffer != null) {
+				release(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Copies count bytes of a channel of unknown size. The last chunk is
+	 * only written once the end of the channel has been checked, so the
+	 * daemon never gets a file of the wrong content.
+	 */
+	private static void copy(ReadableByteChannel source, long count,
+			Target target) throws IOException {
+		ByteBuffer buffer = acquire();
+		try {
+			long sent = 0;
+			do {
+				buffer.clear();
+				buffer.limit((int) Math.min(count - sent, MAX_CHUNK));
+				while (buffer.hasRemaining()) {
+					if (read(source, buffer) < 0) {
+						throw new EOFException(
+								"Source shorter than the declared size");
+					}
+				}
+				buffer.flip();
+				if (sent + buffer.limit() == count) {
+					checkEnd(source);
+				}
+				write(target, buffer);
+				sent += buffer.limit();
+				target.sent(sent);
+			} while (sent < count);
+			target.output.flush();
+		} finally {
+			release(buffer);
+		}
+	}
+
+	/**
+	 * Checks the channel has no more data.
+	 */
+	private static void checkEnd(ReadableByteChannel source)
+			throws IOException {
+		if (read(source, ByteBuffer.allocate(1)) > 0) {
+			throw new IOException("Source longer than the declared size");
+		}
+	}
+
+	/**
+	 * Reads from a channel which should block until data is available,
+	 * giving up on one which keeps returning none, as a non-blocking channel
+	 * that is not a SelectableChannel would.
+	 */
+	private static int read(ReadableByteChannel source, ByteBuffer buffer)
+			throws IOException {
+		for (int i = 0; i < MAX_EMPTY_READS; i++) {
+			int n = source.read(buffer);
+			if (n != 0) {
+				return n;
+			}
+			Thread.yield();
+		}
+		throw new IOException("No data from the source in "
+				+ MAX_EMPTY_READS + " reads, it must be in blocking mode");
+	}
+
+	/**
+	 * Zero-copy path for plain sockets.
+	 */
+	private static long transferPlain(FileChannel source, long position,
+			long count, SocketChannel channel, Target target)
+			throws IOException {
+		// Smaller slices when someone watches the progress or the rate
+		long slice = target.share != null ? MIN_CHUNK
+				: target.progress != null || target.digest != null ? MAX_CHUNK
+						: TRANSFER_SLICE;
+		long sent = 0;
+		// Bytes acquired and not sent yet, after a short transfer
+		long granted = 0;
+		while (sent < count) {
+			long length = Math.min(count - sent, slice);
+			if (target.share != null && granted < length) {
+				target.share.acquire((int) (length - granted));
+				granted = length;
+			}
+			long n = source.transferTo(position + sent, length, channel);
+			if (n <= 0 && position + sent >= source.size()) {
+				throw new EOFException("File shrank during upload");
+			}
+			if (target.digest != null && n > 0) {
+				// The pages were just read by the transfer
+				target.digest.update(source.map(FileChannel.MapMode.READ_ONLY,
+						position + sent, n));
+			}
+			granted -= n;
+			sent += n;
+			target.sent(sent);
+		}
+		return sent;
+	}
+
+	/**
+	 * Buffered path used for small files, without the reader thread.
+	 */
+	private static long copy(FileChannel source, long position, long count,
+			Target target) throws IOException {
+		ByteBuffer buffer = acquire();
+		try {
+			long sent = 0;
+			while (sent < count) {
+				fill(buffer, source, position + sent,
+						(int) Math.min(count - sent, MAX_CHUNK));
+				write(target, buffer);
+				sent += buffer.limit();
+				target.sent(sent);
+			}
+			target.output.flush();
+			return sent;
+		} finally {
+			release(buffer);
+		}
+	}
+
+	/**
+	 * Buffered path with the file read ahead on a separate thread.
+	 *
+	 * The reader is stopped with a flag rather than interrupted, since an
+	 * interrupt during FileChannel.read() would close the channel, which may
+	 * belong to the caller. The reader is always over on return, so the
+	 * caller may use its channel again.
+	 */
+	private static long copyReadAhead(final FileChannel source,
+			final long position, final long count, Target target)
+			throws IOException {
+		final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<ByteBuffer>(
+				READ_AHEAD + 1);
+		final ChunkTuner tuner = new ChunkTuner();
+		final IOException[] readError = new IOException[1];
+		final AtomicBoolean stopped = new AtomicBoolean();
+
+		Future<?> reader = readers.submit(new Runnable() {
+			public void run() {
+				long read = 0;
+				try {
+					while (read < count && !stopped.get()) {
+						ByteBuffer buffer = acquire();
+						try {
+							fill(buffer, source, position + read, (int) Math
+									.min(count - read, tuner.chunk()));
+						} catch (IOException e) {
+							release(buffer);
+							throw e;
+						}
+						read += buffer.limit();
+						filled.put(buffer);
+					}
+				} catch (IOException e) {
+					readError[0] = e;
+				} catch (InterruptedException e) {
+					// Only when the pool shuts down; nobody waits for the data
+					return;
+				}
+				try {
+					if (!stopped.get()) {
+						filled.put(END);
+					}
+				} catch (InterruptedException e) {
+					// Same as above
+				}
+			}
+		});
+
+		long sent = 0;
+		try {
+			while (true) {
+				ByteBuffer buffer;
+				try {
+					buffer = filled.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Upload interrupted");
+				}
+				if (buffer == END) {
+					break;
+				}
+				long start = System.nanoTime();
+				write(target, buffer);
+				tuner.record(buffer.limit(), System.nanoTime() - start);
+				sent += buffer.limit();
+				release(buffer);
+				target.sent(sent);
+			}
+			if (readError[0] != null) {
+				throw readError[0];
+			}
+			target.output.flush();
+			return sent;
+		} finally {
+			stopped.set(true);
+			// Unblocks the reader, which puts at most one more chunk
+			drain(filled);
+			boolean interrupted = false;
+			while (true) {
+				try {
+					reader.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					break;
+				}
+			}
+			drain(filled);
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Gives the chunks left in the queue back to the pool.
+	 */
+	private static void drain(BlockingQueue<ByteBuffer> filled) {
+		ByteBuffer buffer;
+		while ((buffer = filled.poll()) != null) {
+			if (buffer != END) {
+				release(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Writes a chunk, in slices granted by the share if any.
+	 */
+	private static void write(Target target, ByteBuffer buffer)
+			throws IOException {
+		if (target.digest != null) {
+			target.digest.update(buffer.array(), 0, buffer.limit());
+		}
+		if (target.share == null) {
+			target.output.write(buffer.array(), 0, buffer.limit());
+			return;
+		}
+		for (int off = 0; off < buffer.limit(); off += MIN_CHUNK) {
+			int length = Math.min(MIN_CHUNK, buffer.limit() - off);
+			target.share.acquire(length);
+			target.output.write(buffer.array(), off, length);
+		}
+	}
+
+	/**
+	 * Reads exactly length bytes of the source into the buffer.
+	 */
+	private static void fill(ByteBuffer buffer, FileChannel source,
+			long position, int length) throws IOException {
+		buffer.clear();
+		buffer.limit(length);
+		while (buffer.hasRemaining()) {
+			if (source.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("File shrank during upload");
+			}
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Takes a buffer from the pool, or allocates a new one.
+	 */
+	private static ByteBuffer acquire() {
+		ByteBuffer buffer = pool.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocate(MAX_CHUNK);
+		}
+		pooled.decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to the pool.
+	 */
+	private static void release(ByteBuffer buffer) {
+		if (pooled.incrementAndGet() <= POOL_SIZE) {
+			pool.offer(buffer);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Chooses the chunk size of the buffered path.
+	 *
+	 * The chunk starts at MIN_CHUNK and doubles while the measured write
+	 * throughput keeps improving, up to MAX_CHUNK.
+	 */
+	static final class ChunkTuner {
+
+		/**
+		 * Minimum improvement, in percent, needed to grow the chunk.
+		 */
+		private static final int GAIN = 10;
+
+		/**
+		 * Number of writes measured before each decision.
+		 */
+		private static final int SAMPLES = 4;
+
+		private volatile int chunk = MIN_CHUNK;
+
+		private double best;
+
+		private long bytes;
+
+		private long nanos;
+
+		private int samples;
+
+		int chunk() {
+			return chunk;
+		}
+
+		void record(int length, long elapsed) {
+			bytes += length;
+			nanos += Math.max(elapsed, 1);
+			if (++samples < SAMPLES) {
+				return;
+			}
+			double throughput = (double) bytes / nanos;
+			if (throughput * 100 >= best * (100 + GAIN)
+					&& chunk < MAX_CHUNK) {
+				chunk = Math.min(chunk * 2, MAX_CHUNK);
+			}
+			best = Math.max(best, throughput);
+			bytes = 0;
+			nanos = 0;
+			samples = 0;
+		}
+	}
+}
@@ -0,0 +1,600 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class remembers the files uploaded to each daemon, by content.
+ *
+ * The index is a hash table stored in a memory-mapped file. Each entry holds
+ * the SHA-256 hash and the size of a file, the daemon it was uploaded to and
+ * the time of the upload, and the path and modification time it was read
+ * from. A file whose path, size and modification time are known is looked up
+ * without reading it; other files must be hashed first, with hash() or, for
+ * many files, with scan(), which hashes them in parallel. Entries without a
+ * daemon only remember the hash of a file.
+ *
+ * An HGDClient given an index with setUploadIndex() hashes the files while
+ * sending them, and records each accepted upload. Callers can then warn
+ * about, or skip, files recently uploaded to the same daemon.
+ *
+ * The file is locked while open, so only one process uses an index at a
+ * time. Within the process, the index may be shared by several threads.
+ *
+ * @since 16/10/2026
+ */
+public class UploadIndex implements Closeable {
+
+	/**
+	 * The algorithm hashing the files.
+	 */
+	public static final String DIGEST = "SHA-256";
+
+	/**
+	 * "JHGDIDX1".
+	 */
+	private static final long MAGIC = 0x4a48474449445831L;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER = 64;
+
+	private static final int HASH_LENGTH = 32;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/*
+	 * Layout of an entry.
+	 */
+	private static final int USED = 0;
+	private static final int SIZE = 8;
+	private static final int DAEMON = 16;
+	private static final int TIME = 24;
+	private static final int PATH = 32;
+	private static final int MODIFIED = 40;
+	private static final int HASH = 48;
+	private static final int ENTRY = HASH + HASH_LENGTH;
+
+	/*
+	 * Layout of the header.
+	 */
+	private static final int HEADER_VERSION = 8;
+	private static final int HEADER_CAPACITY = 12;
+	private static final int HEADER_COUNT = 16;
+
+	/**
+	 * Identifies a version of a file.
+	 */
+	private static final class Stamp {
+
+		final long path;
+
+		final long size;
+
+		final long modified;
+
+		Stamp(long path, long size, long modified) {
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Stamp)) {
+				return false;
+			}
+			Stamp other = (Stamp) obj;
+			return path == other.path && size == other.size
+					&& modified == other.modified;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(path * 31 + size) * 31
+					+ Long.hashCode(modified);
+		}
+	}
+
+	/**
+	 * Hashes a range of files, splitting it among the pool.
+	 */
+	private final class Scan extends RecursiveTask<Integer> {
+
+		private static final long serialVersionUID = -3508712285309615842L;
+
+		private final List<File> files;
+
+		private final int from, to;
+
+		Scan(List<File> files, int from, int to) {
+			this.files = files;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Integer compute() {
+			if (to - from == 1) {
+				File file = files.get(from);
+				if (getHash(file) != null) {
+					return 0;
+				}
+				try {
+					hash(file);
+					return 1;
+				} catch (IOException e) {
+					// Unreadable files are not indexed
+					return 0;
+				}
+			}
+			int middle = (from + to) >>> 1;
+			Scan left = new Scan(files, from, middle);
+			left.fork();
+			int right = new Scan(files, middle, to).compute();
+			return left.join() + right;
+		}
+	}
+
+	private final Path path;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private FileChannel channel;
+
+	private FileLock fileLock;
+
+	private MappedByteBuffer map;
+
+	private int capacity;
+
+	private int count;
+
+	/**
+	 * The hash of the files known by path, size and modification time.
+	 */
+	private final ConcurrentHashMap<Stamp, byte[]> hashes = new ConcurrentHashMap<Stamp, byte[]>();
+
+	/**
+	 * Opens an index, creating it if needed.
+	 *
+	 * @param file
+	 *            The index file.
+	 * @throws IOException
+	 *             If the file can not be opened, is not an index, or is used
+	 *             by another process.
+	 */
+	public UploadIndex(File file) throws IOException {
+		this.path = file.toPath();
+		FileChannel opened = FileChannel.open(path, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		try {
+			open(opened);
+		} catch (IOException e) {
+			opened.close();
+			throw e;
+		}
+		for (int i = 0; i < capacity; i++) {
+			int entry = HEADER + i * ENTRY;
+			if (map.get(entry + USED) != 0) {
+				hashes.put(new Stamp(map.getLong(entry + PATH), map
+						.getLong(entry + SIZE), map.getLong(entry + MODIFIED)),
+						hashAt(entry));
+			}
+		}
+	}
+
+	/**
+	 * Creates a digest computing the hashes used by the index.
+	 *
+	 * @return A new digest.
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the time a file was last uploaded to a daemon.
+	 *
+	 * @param file
+	 *            The file, which is not read: its hash must be known from a
+	 *            previous hash(), scan() or upload.
+	 * @param host
+	 *            The host of the daemon, as given to HGDClient.connect().
+	 * @param port
+	 *            The port of the daemon.
+	 * @return The time in milliseconds since the epoch, or -1 if unknown.
+	 */
+	public long getLastUpload(File file, String host, int port) {
+		byte[] hash = getHash(file);
+		return hash == null ? -1 : getLastUpload(hash, file.length(), host,
+				port);
+	}
+
+	/**
+	 * Returns the time a content was last uploaded to a daemon.
+	 *
+	 * @param hash
+	 *            The SHA-256 hash of the content.
+	 * @param size
+	 *            The size of the content.
+	 * @param host
+	 *            The host of the daemon.
+	 * @param port
+	 *            The port of the daemon.
+	 * @return The time in milliseconds since the epoch, or -1 if unknown.
+	 */
+	public long getLastUpload(byte[] hash, long size, String host, int port) {
+		lock.lock();
+		try {
+			checkOpen();
+			int entry = find(hash, size, daemonKey(host, port));
+			return map.get(entry + USED) == 0 ? -1 : map.getLong(entry + TIME);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the hash of a file if known, without reading it.
+	 *
+	 * @param file
+	 *            The file.
+	 * @return The hash, or null if the file, as it is now, was never hashed.
+	 */
+	public byte[] getHash(File file) {
+		byte[] hash = hashes.get(stamp(file, file.length(), file
+				.lastModified()));
+		return hash == null ? null : hash.clone();
+	}
+
+	/**
+	 * Returns the hash of a file, reading it if not known.
+	 *
+	 * @param file
+	 *            The file.
+	 * @return The hash.
+	 * @throws IOException
+	 *             If the file can not be read.
+	 */
+	public byte[] hash(File file) throws IOException {
+		byte[] hash = getHash(file);
+		if (hash != null) {
+			return hash;
+		}
+		long modified = file.lastModified();
+		MessageDigest digest = newDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+		long size = 0;
+		FileChannel input = FileChannel.open(file.toPath());
+		try {
+			int n;
+			while ((n = input.read(buffer)) >= 0) {
+				digest.update(buffer.array(), 0, n);
+				size += n;
+				buffer.clear();
+			}
+		} finally {
+			input.close();
+		}
+		hash = digest.digest();
+		record(file, size, modified, hash, 0, 0);
+		return hash;
+	}
+
+	/**
+	 * Hashes the files not known yet, in parallel, such as a whole library
+	 * before its first upload. Files about to be uploaded need not be
+	 * scanned: the client hashes them as they are sent.
+	 *
+	 * @param files
+	 *            The files. Those that can not be read are ignored.
+	 * @return The number of files hashed.
+	 */
+	public int scan(Collection<File> files) {
+		if (files.isEmpty()) {
+			return 0;
+		}
+		List<File> list = new ArrayList<File>(files);
+		return ForkJoinPool.commonPool().invoke(
+				new Scan(list, 0, list.size()));
+	}
+
+	/**
+	 * Records the upload of a file.
+	 *
+	 * @param file
+	 *            The file uploaded.
+	 * @param size
+	 *            The size of the file, when it was read.
+	 * @param modified
+	 *            The modification time of the file, taken before it was read.
+	 * @param hash
+	 *            The SHA-256 hash of the bytes sent.
+	 * @param host
+	 *            The host of the daemon.
+	 * @param port
+	 *            The port of the daemon.
+	 * @param time
+	 *            The time of the upload, in milliseconds since the epoch.
+	 * @throws IOException
+	 *             If the index can not grow.
+	 */
+	public void recordUpload(File file, long size, long modified,
+			byte[] hash, String host, int port, long time) throws IOException {
+		record(file, size, modified, hash, daemonKey(host, port), time);
+	}
+
+	/**
+	 * Returns the number of entries.
+	 *
+	 * @return The number of files hashed or uploaded, counting once per
+	 *         daemon.
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the index to the disk and closes it.
+	 */
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (channel == null) {
+				return;
+			}
+			map.force();
+			channel.close();
+			channel = null;
+			map = null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void record(File file, long size, long modified, byte[] hash,
+			long daemon, long time) throws IOException {
+		if (hash.length != HASH_LENGTH) {
+			throw new IllegalArgumentException("Not a SHA-256 hash");
+		}
+		Stamp stamp = stamp(file, size, modified);
+		lock.lock();
+		try {
+			checkOpen();
+			if ((count + 1) * 2 > capacity) {
+				grow();
+			}
+			int entry = find(hash, size, daemon);
+			if (map.get(entry + USED) == 0) {
+				map.put(entry + USED, (byte) 1);
+				map.putLong(entry + SIZE, size);
+				map.putLong(entry + DAEMON, daemon);
+				for (int i = 0; i < HASH_LENGTH; i++) {
+					map.put(entry + HASH + i, hash[i]);
+				}
+				map.putInt(HEADER_COUNT, ++count);
+			}
+			map.putLong(entry + TIME, time);
+			map.putLong(entry + PATH, stamp.path);
+			map.putLong(entry + MODIFIED, modified);
+		} finally {
+			lock.unlock();
+		}
+		hashes.put(stamp, hash.clone());
+	}
+
+	/**
+	 * Returns the entry holding a key, or the free entry where it belongs.
+	 */
+	private int find(byte[] hash, long size, long daemon) {
+		int mask = capacity - 1;
+		int i = (int) mix(ByteBuffer.wrap(hash).getLong() ^ size ^ daemon)
+				& mask;
+		while (true) {
+			int entry = HEADER + i * ENTRY;
+			if (map.get(entry + USED) == 0
+					|| (map.getLong(entry + SIZE) == size
+							&& map.getLong(entry + DAEMON) == daemon && Arrays
+							.equals(hashAt(entry), hash))) {
+				return entry;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	private byte[] hashAt(int entry) {
+		byte[] hash = new byte[HASH_LENGTH];
+		for (int i = 0; i < HASH_LENGTH; i++) {
+			hash[i] = map.get(entry + HASH + i);
+		}
+		return hash;
+	}
+
+	/**
+	 * Maps an index file, formatting it if empty.
+	 */
+	private void open(FileChannel opened) throws IOException {
+		FileLock acquired = tryLock(opened);
+		if (acquired == null) {
+			throw new IOException("Upload index in use: " + path);
+		}
+		long length = opened.size();
+		if (length == 0) {
+			length = HEADER + (long) INITIAL_CAPACITY * ENTRY;
+			map = opened.map(FileChannel.MapMode.READ_WRITE, 0, length);
+			map.putLong(0, MAGIC);
+			map.putInt(HEADER_VERSION, VERSION);
+			map.putInt(HEADER_CAPACITY, INITIAL_CAPACITY);
+			map.putInt(HEADER_COUNT, 0);
+		} else {
+			map = opened.map(FileChannel.MapMode.READ_WRITE, 0, length);
+			int cap = length < HEADER ? 0 : map.getInt(HEADER_CAPACITY);
+			if (length < HEADER || map.getLong(0) != MAGIC
+					|| map.getInt(HEADER_VERSION) != VERSION || cap <= 0
+					|| Integer.bitCount(cap) != 1
+					|| length != HEADER + (long) cap * ENTRY) {
+				throw new IOException("Not an upload index: " + path);
+			}
+		}
+		channel = opened;
+		fileLock = acquired;
+		capacity = map.getInt(HEADER_CAPACITY);
+		count = map.getInt(HEADER_COUNT);
+	}
+
+	/**
+	 * Doubles the capacity, rewriting the index to a new file.
+	 */
+	private void grow() throws IOException {
+		Path grown = path.resolveSibling(path.getFileName() + ".tmp");
+		int newCapacity = capacity * 2;
+		FileChannel opened = FileChannel.open(grown,
+				StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		MappedByteBuffer old = map;
+		int oldCapacity = capacity;
+		try {
+			MappedByteBuffer copy = opened.map(FileChannel.MapMode.READ_WRITE,
+					0, HEADER + (long) newCapacity * ENTRY);
+			copy.putLong(0, MAGIC);
+			copy.putInt(HEADER_VERSION, VERSION);
+			copy.putInt(HEADER_CAPACITY, newCapacity);
+			copy.putInt(HEADER_COUNT, count);
+			map = copy;
+			capacity = newCapacity;
+			for (int i = 0; i < oldCapacity; i++) {
+				int entry = HEADER + i * ENTRY;
+				if (old.get(entry + USED) == 0) {
+					continue;
+				}
+				byte[] hash = new byte[HASH_LENGTH];
+				for (int j = 0; j < HASH_LENGTH; j++) {
+					hash[j] = old.get(entry + HASH + j);
+				}
+				int target = find(hash, old.getLong(entry + SIZE), old
+						.getLong(entry + DAEMON));
+				for (int j = 0; j < ENTRY; j++) {
+					copy.put(target + j, old.get(entry + j));
+				}
+			}
+			copy.force();
+			FileLock acquired = tryLock(opened);
+			if (acquired == null) {
+				throw new IOException("Upload index in use: " + grown);
+			}
+			Files.move(grown, path, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			channel.close();
+			channel = opened;
+			fileLock = acquired;
+		} catch (IOException e) {
+			map = old;
+			capacity = oldCapacity;
+			opened.close();
+			Files.deleteIfExists(grown);
+			throw e;
+		}
+	}
+
+	/**
+	 * Locks a file against the other processes and the other indexes.
+	 */
+	private static FileLock tryLock(FileChannel opened) throws IOException {
+		try {
+			return opened.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// Already opened by this process
+			return null;
+		}
+	}
+
+	private void checkOpen() {
+		if (channel == null) {
+			throw new IllegalStateException("Upload index closed");
+		}
+	}
+
+	private static Stamp stamp(File file, long size, long modified) {
+		String name = file.getAbsoluteFile().toPath().normalize().toString();
+		return new Stamp(fnv(name), size, modified);
+	}
+
+	private static long daemonKey(String host, int port) {
+		long key = fnv(host + ":" + port);
+		// 0 marks the entries without upload
+		return key == 0 ? 1 : key;
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of a string.
+	 */
+	private static long fnv(String s) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			hash ^= s.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Spreads the bits of a key, so any of them selects the entry.
+	 */
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return key;
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+/**
+ * Follows the progress of a HGDUpload.
+ *
+ * progress() is called on the thread running the upload, after each chunk
+ * written to the socket, so it must be fast. finished() is called once,
+ * when the upload succeeded, failed, was cancelled or timed out.
+ *
+ * @see HGDUpload#setListener(UploadListener)
+ * @since 16/10/2026
+ */
+public interface UploadListener {
+
+	/**
+	 * Called as bytes are sent.
+	 *
+	 * @param upload
+	 *            The upload, whose getters give the bytes sent, the rates
+	 *            and the remaining time.
+	 */
+	void progress(HGDUpload upload);
+
+	/**
+	 * Called when the upload is over.
+	 *
+	 * @param upload
+	 *            The upload, whose getState() tells how it ended.
+	 */
+	void finished(HGDUpload upload);
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The bytes to send for a file, as planned by an UploadTransform.
+ *
+ * A plan is a sequence of segments: ranges of the file, which are not read
+ * until sent, and new bytes, such as rewritten headers. Adjacent ranges are
+ * merged.
+ *
+ * @since 16/10/2026
+ */
+public final class UploadPlan {
+
+	/**
+	 * A range of the file, or new bytes.
+	 */
+	private static final class Segment {
+
+		final long position;
+
+		long length;
+
+		final byte[] bytes;
+
+		Segment(long position, long length, byte[] bytes) {
+			this.position = position;
+			this.length = length;
+			this.bytes = bytes;
+		}
+	}
+
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	private long length;
+
+	/**
+	 * Appends a range of the file.
+	 *
+	 * @param position
+	 *            The position of the first byte.
+	 * @param count
+	 *            The number of bytes.
+	 * @return This plan.
+	 */
+	public UploadPlan addRange(long position, long count) {
+		if (position < 0 || count < 0) {
+			throw new IllegalArgumentException("Invalid range");
+		}
+		if (count == 0) {
+			return this;
+		}
+		Segment last = segments.isEmpty() ? null : segments.get(segments
+				.size() - 1);
+		if (last != null && last.bytes == null
+				&& last.position + last.length == position) {
+			last.length += count;
+		} else {
+			segments.add(new Segment(position, count, null));
+		}
+		length += count;
+		return this;
+	}
+
+	/**
+	 * Appends new bytes.
+	 *
+	 * @param bytes
+	 *            The bytes, which must not be changed afterwards.
+	 * @return This plan.
+	 */
+	public UploadPlan addBytes(byte[] bytes) {
+		if (bytes.length > 0) {
+			segments.add(new Segment(-1, bytes.length, bytes));
+			length += bytes.length;
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the number of bytes to send.
+	 *
+	 * @return The length of the planned content.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Writes the planned content, for instance to keep a transformed copy
+	 * of the file.
+	 *
+	 * @param file
+	 *            The file the plan was made for.
+	 * @param out
+	 *            The destination.
+	 * @throws IOException
+	 *             If an I/O exception occurs, or if the file is shorter than
+	 *             planned.
+	 */
+	public void transferTo(FileChannel file, WritableByteChannel out)
+			throws IOException {
+		for (Segment segment : segments) {
+			if (segment.bytes != null) {
+				ByteBuffer buffer = ByteBuffer.wrap(segment.bytes);
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				continue;
+			}
+			long done = 0;
+			while (done < segment.length) {
+				long n = file.transferTo(segment.position + done,
+						segment.length - done, out);
+				if (n <= 0 && segment.position + done >= file.size()) {
+					throw new EOFException("File shorter than planned");
+				}
+				done += n;
+			}
+		}
+	}
+
+	/**
+	 * Tells whether the ranges of the file come in order and do not
+	 * overlap, so that the file may be hashed as the plan is sent.
+	 */
+	boolean isOrdered() {
+		long end = 0;
+		for (Segment segment : segments) {
+			if (segment.bytes == null) {
+				if (segment.position < end) {
+					return false;
+				}
+				end = segment.position + segment.length;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the source sending the planned content.
+	 */
+	UploadEngine.Source source(FileChannel file) {
+		return source(file, null);
+	}
+
+	/**
+	 * Returns the source sending the planned content, and hashing the whole
+	 * file as it goes: the ranges are hashed as they are sent, and only the
+	 * bytes left out are read for the digest.
+	 *
+	 * @param file
+	 *            The file the plan was made for.
+	 * @param digest
+	 *            Updated with the content of the file, or null. The plan must
+	 *            then be ordered.
+	 */
+	UploadEngine.Source source(final FileChannel file,
+			final MessageDigest digest) {
+		if (digest != null && !isOrdered()) {
+			throw new IllegalStateException("Ranges out of order");
+		}
+		return new UploadEngine.Source() {
+			public long available() {
+				return length;
+			}
+
+			public void send(long count, UploadEngine.Target target)
+					throws IOException {
+				MessageDigest sent = target.digest;
+				long hashed = 0;
+				try {
+					for (Segment segment : segments) {
+						if (segment.bytes != null) {
+							target.digest = null;
+							UploadEngine.source(ByteBuffer.wrap(segment.bytes))
+									.send(segment.length, target);
+						} else {
+							if (digest != null) {
+								hash(file, hashed, segment.position, digest);
+								hashed = segment.position + segment.length;
+							}
+							target.digest = digest;
+							UploadEngine.send(file, segment.position,
+									segment.length, target);
+						}
+						target.offset += segment.length;
+					}
+					if (digest != null) {
+						hash(file, hashed, file.size(), digest);
+					}
+				} finally {
+					target.offset = 0;
+					target.digest = sent;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Updates the digest with the bytes of the file from start to end.
+	 */
+	private static void hash(FileChannel file, long start, long end,
+			MessageDigest digest) throws IOException {
+		if (start >= end) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(end - start,
+				64 * 1024));
+		while (start < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - start));
+			int n = file.read(buffer, start);
+			if (n < 0) {
+				throw new EOFException("File shorter than planned");
+			}
+			digest.update(buffer.array(), 0, n);
+			start += n;
+		}
+	}
+}
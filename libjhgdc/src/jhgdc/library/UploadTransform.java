@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>, Matthew Mole <code@gairne.co.uk>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A stage of the upload path that changes the content of the files sent.
+ *
+ * Since the size of the file is sent before its content, a transform
+ * decides up front which bytes will be sent: it scans the file and returns
+ * an UploadPlan made of ranges of the file and of new bytes. The ranges are
+ * sent with the same zero-copy or buffered path as a whole file.
+ *
+ * @see HGDClient#setUploadTransform(UploadTransform)
+ * @see MetadataStripper
+ * @since 16/10/2026
+ */
+public interface UploadTransform {
+
+	/**
+	 * Plans the bytes to send for a file.
+	 *
+	 * @param file
+	 *            The file about to be sent. Its position must not be
+	 *            changed.
+	 * @return The plan, or null to send the file unchanged.
+	 * @throws IOException
+	 *             If the file can not be read.
+	 */
+	UploadPlan plan(FileChannel file) throws IOException;
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ * 
+ *  This file is part of libjhgdc.
+ * 
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the bandwidth scheduler.
+ *
+ * @version 0.1.0
+ *
+ */
+public class BandwidthSchedulerTest {
+
+	/**
+	 * Test that the rate is not exceeded after the burst.
+	 * @throws Exception
+	 */
+	@Test
+	public void testRate() throws Exception {
+		BandwidthScheduler scheduler = new BandwidthScheduler(1024 * 1024,
+				64 * 1024);
+		BandwidthScheduler.Share share = scheduler.getShare("a");
+		long start = System.nanoTime();
+		for (int i = 0; i < 8; i++) {
+			share.acquire(64 * 1024);
+		}
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		// 448 KB over the burst at 1 MB/s
+		assertTrue("Too fast: " + millis, millis >= 400);
+		assertEquals(512 * 1024, share.getBytesGranted());
+	}
+
+	/**
+	 * Test that waiting shares are served in proportion to their weights.
+	 * @throws Exception
+	 */
+	@Test
+	public void testWeights() throws Exception {
+		BandwidthScheduler scheduler = new BandwidthScheduler(2 * 1024 * 1024,
+				16 * 1024);
+		final BandwidthScheduler.Share heavy = scheduler.getShare("heavy", 3);
+		final BandwidthScheduler.Share light = scheduler.getShare("light", 1);
+		final CountDownLatch stop = new CountDownLatch(1);
+		Thread[] threads = new Thread[2];
+		for (int i = 0; i < threads.length; i++) {
+			final BandwidthScheduler.Share share = i == 0 ? heavy : light;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						while (stop.getCount() > 0) {
+							share.acquire(16 * 1024);
+						}
+					} catch (Exception e) {
+						// Interrupted at the end of the test
+					}
+				}
+			};
+			threads[i].start();
+		}
+		Thread.sleep(1000);
+		stop.countDown();
+		for (Thread thread : threads) {
+			thread.join(5000);
+		}
+		double ratio = (double) heavy.getBytesGranted()
+				/ light.getBytesGranted();
+		assertTrue("Unfair ratio: " + ratio, ratio > 2 && ratio < 4);
+	}
+
+	/**
+	 * Test that control traffic never waits, but delays the uploads.
+	 * @throws Exception
+	 */
+	@Test
+	public void testControlPriority() throws Exception {
+		BandwidthScheduler scheduler = new BandwidthScheduler(1024 * 1024,
+				64 * 1024);
+		BandwidthScheduler.Share share = scheduler.getShare("a");
+		long start = System.nanoTime();
+		share.charge(64 * 1024 + 256 * 1024);
+		share.charge(100);
+		assertTrue("Control traffic waited", System.nanoTime() - start
+				< TimeUnit.MILLISECONDS.toNanos(100));
+		share.acquire(1024);
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("Upload not delayed: " + millis, millis >= 200);
+	}
+
+	/**
+	 * Test that a share of the same name is reused.
+	 */
+	@Test
+	public void testSharedByName() {
+		BandwidthScheduler scheduler = new BandwidthScheduler(0, 1024);
+		assertSame(scheduler.getShare("kaduardo"),
+				scheduler.getShare("kaduardo", 2));
+		assertEquals(2, scheduler.getShare("kaduardo").getWeight());
+	}
+
+	/**
+	 * Test that an upload through a client follows the rate.
+	 * @throws Exception
+	 */
+	@Test
+	public void testClientUpload() throws Exception {
+		FakeHGDDaemon.startShared();
+		File file = File.createTempFile("bandwidth", ".ogg");
+		HGDClient client = new HGDClient();
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(new byte[1024 * 1024]);
+			} finally {
+				out.close();
+			}
+			BandwidthScheduler scheduler = new BandwidthScheduler(
+					4 * 1024 * 1024, 64 * 1024);
+			client.setBandwidthShare(scheduler.getShare("kaduardo"));
+			client.connect(HGDConsts.DEFAULT_HOST);
+			client.login("kaduardo", "");
+
+			long start = System.nanoTime();
+			client.requestQueue(file);
+			long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+					- start);
+			assertTrue("Too fast: " + millis, millis >= 200);
+			assertEquals(1024 * 1024,
+					client.getBandwidthShare().getBytesGranted());
+		} finally {
+			if (client.isConnected())
+				client.disconnect(true);
+			file.delete();
+		}
+	}
+
+	/**
+	 * Test that the bytes of a transfer cut short are only granted once.
+	 * @throws Exception
+	 */
+	@Test
+	public void testShortTransfers() throws Exception {
+		FakeHGDDaemon daemon = new FakeHGDDaemon(0);
+		File file = File.createTempFile("bandwidth", ".ogg");
+		HGDClient client = new HGDClient();
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(new byte[200 * 1000 + 17]);
+			} finally {
+				out.close();
+			}
+			BandwidthScheduler scheduler = new BandwidthScheduler(
+					64 * 1024 * 1024, 64 * 1024);
+			client.setBandwidthShare(scheduler.getShare("kaduardo"));
+			client.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+			client.login(FakeHGDDaemon.DEFAULT_USER,
+					FakeHGDDaemon.DEFAULT_PASSWORD);
+
+			FileChannel channel = FileChannel.open(file.toPath());
+			try {
+				client.requestQueue(file.getName(), file.length(),
+						new UploadEngineTest.SlowChannel(channel) {
+							@Override
+							public long transferTo(long position, long count,
+									WritableByteChannel target)
+									throws IOException {
+								return super.transferTo(position, Math.min(
+										count, 1000), target);
+							}
+						});
+			} finally {
+				channel.close();
+			}
+			assertEquals(file.length(), daemon.getBytesReceived());
+			assertEquals(file.length(), client.getBandwidthShare()
+					.getBytesGranted());
+		} finally {
+			if (client.isConnected())
+				client.disconnect(true);
+			file.delete();
+			daemon.close();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ * 
+ *  This file is part of libjhgdc.
+ * 
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the playlist cache.
+ *
+ * @version 0.1.0
+ *
+ */
+public class CachingHGDClientTest extends SharedDaemonFixture {
+
+	/**
+	 * The wrapped client.
+	 */
+	HGDClient client;
+
+	/**
+	 * Connects and authenticates the client.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		client = new HGDClient();
+		client.connect(HGDConsts.DEFAULT_HOST);
+		client.login("kaduardo", "");
+	}
+
+	/**
+	 * Disconnects the client.
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected()) {
+			client.disconnect(true);
+		}
+	}
+
+	/**
+	 * Test that replies are served from the cache within the time to live.
+	 * @throws Exception
+	 */
+	@Test
+	public void testHit() throws Exception {
+		CachingHGDClient cache = new CachingHGDClient(client, 60000);
+		String[] first = cache.requestPlaylist();
+		String[] second = cache.requestPlaylist();
+		assertArrayEquals("Playlist changed", first, second);
+		assertNotSame("Cached array shared", first, second);
+		cache.requestNowPlaying();
+		cache.requestNowPlaying();
+		assertEquals("Wrong misses", 2, cache.getMisses());
+		assertEquals("Wrong hits", 2, cache.getHits());
+	}
+
+	/**
+	 * Test that expired replies are requested again.
+	 * @throws Exception
+	 */
+	@Test
+	public void testExpiry() throws Exception {
+		CachingHGDClient cache = new CachingHGDClient(client, 0);
+		cache.requestPlaylist();
+		cache.requestPlaylist();
+		assertEquals("Wrong misses", 2, cache.getMisses());
+		assertEquals("Wrong hits", 0, cache.getHits());
+	}
+
+	/**
+	 * Test that voting off a track clears the cache, even if refused.
+	 * @throws Exception
+	 */
+	@Test
+	public void testInvalidation() throws Exception {
+		CachingHGDClient cache = new CachingHGDClient(client, 60000);
+		cache.requestPlaylist();
+		cache.requestNowPlaying();
+		try {
+			cache.requestVoteOff();
+		} catch (JHGDException e) {
+			// Nothing may be playing
+		}
+		cache.requestPlaylist();
+		cache.requestNowPlaying();
+		assertEquals("Wrong misses", 4, cache.getMisses());
+		assertEquals("Wrong hits", 0, cache.getHits());
+	}
+
+	/**
+	 * Test that concurrent requests share the commands sent.
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentRequests() throws Exception {
+		final CachingHGDClient cache = new CachingHGDClient(client, 0);
+		final int threads = 16;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						cache.requestPlaylist();
+					} catch (Throwable e) {
+						error.compareAndSet(null, e);
+					}
+				}
+			};
+			workers[i].start();
+		}
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+		assertEquals("Requests lost", threads,
+				cache.getMisses() + cache.getCoalesced());
+		// The client is still in a consistent state
+		client.requestProto();
+	}
+}
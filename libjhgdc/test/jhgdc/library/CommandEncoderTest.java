@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the command encoding.
+ *
+ * @version 0.1.0
+ *
+ */
+public class CommandEncoderTest {
+
+	/**
+	 * The bytes of each write, in order, one char per byte.
+	 */
+	List<String> writes;
+
+	/**
+	 * An encoder recording its writes, with a small buffer.
+	 */
+	CommandEncoder encoder;
+
+	/**
+	 * Creates the encoder.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		writes = new ArrayList<String>();
+		encoder = new CommandEncoder(new ByteArrayOutputStream() {
+			@Override
+			public void write(byte[] b, int off, int len) {
+				writes.add(new String(b, off, len,
+						StandardCharsets.ISO_8859_1));
+			}
+		}, 64);
+	}
+
+	/**
+	 * Test the verbs, the arguments and the terminator.
+	 * @throws Exception
+	 */
+	@Test
+	public void testCommands() throws Exception {
+		encoder.begin(CommandEncoder.LS).end();
+		encoder.flush();
+		encoder.begin(CommandEncoder.VO).arg("1234").end();
+		encoder.flush();
+		encoder.begin(CommandEncoder.QUEUE).arg("song.ogg").arg(0).end();
+		encoder.flush();
+		encoder.begin(CommandEncoder.QUEUE).arg("song.ogg")
+				.arg(Long.MAX_VALUE).end();
+		encoder.flush();
+		encoder.line("encrypt?");
+		encoder.flush();
+
+		assertEquals(5, writes.size());
+		assertEquals("ls\r\n", writes.get(0));
+		assertEquals("vo|1234\r\n", writes.get(1));
+		assertEquals("q|song.ogg|0\r\n", writes.get(2));
+		assertEquals("q|song.ogg|" + Long.MAX_VALUE + "\r\n", writes.get(3));
+		assertEquals("encrypt?\r\n", writes.get(4));
+	}
+
+	/**
+	 * Test that the arguments are encoded as UTF-8, as String.getBytes()
+	 * does.
+	 * @throws Exception
+	 */
+	@Test
+	public void testUtf8() throws Exception {
+		String name = "Bj\u00f6rk \u2013 J\u00f3ga \ud83c\udfb5 \ud83c.ogg";
+		encoder.begin(CommandEncoder.QUEUE).arg(name).arg(42).end();
+		encoder.flush();
+		assertEquals(1, writes.size());
+		assertEquals("q|" + new String(name.getBytes(StandardCharsets.UTF_8),
+				StandardCharsets.ISO_8859_1) + "|42\r\n", writes.get(0));
+	}
+
+	/**
+	 * Test that the commands overflowing the buffer are written whole, and
+	 * that a command longer than the buffer is still written at once.
+	 * @throws Exception
+	 */
+	@Test
+	public void testOverflow() throws Exception {
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 10; i++) {
+			encoder.line("vo|" + i);
+			expected.append("vo|" + i + "\r\n");
+		}
+		StringBuilder name = new StringBuilder();
+		while (name.length() < 200) {
+			name.append("long name ");
+		}
+		encoder.begin(CommandEncoder.QUEUE).arg(name).arg(1).end();
+		encoder.flush();
+
+		StringBuilder received = new StringBuilder();
+		for (String write : writes) {
+			assertEquals("Command split: " + write, "\n",
+					write.substring(write.length() - 1));
+			received.append(write);
+		}
+		assertEquals(expected + "q|" + name + "|1\r\n", received.toString());
+		assertEquals("q|" + name + "|1\r\n", writes.get(writes.size() - 1));
+	}
+}
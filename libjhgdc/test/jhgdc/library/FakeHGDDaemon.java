@@ -0,0 +1,740 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * An in-process stand-in for the HGD network daemon, speaking protocol 17.
+ *
+ * It serves every connection on its own thread, and implements the greeting,
+ * "proto", "user", "ls", "np", "vo", "q" (including the binary transfer),
+ * "id", "encrypt?", "encrypt" (with a self-signed certificate) and "bye".
+ *
+ * The playlist is generated with a configurable number of entries, and an
+ * artificial latency can be added to each command, so the daemon can be used
+ * both by the unit tests and by benchmarks.
+ *
+ * @version 0.1.0
+ *
+ */
+public class FakeHGDDaemon implements Closeable {
+
+	/**
+	 * The user accepted by default, matching the one used by the tests.
+	 */
+	public static final String DEFAULT_USER = "kaduardo";
+
+	/**
+	 * The password of the default user.
+	 */
+	public static final String DEFAULT_PASSWORD = "";
+
+	/**
+	 * System property that, when true, makes the tests use a real daemon
+	 * listening on HGDConsts.DEFAULT_HOST instead of the shared fake one.
+	 */
+	public static final String EXTERNAL_PROPERTY = "jhgdc.test.external";
+
+	private static final String KEYSTORE = "fakedaemon.p12";
+
+	private static final char[] KEYSTORE_PASSWORD = "jhgdc-test".toCharArray();
+
+	private final ServerSocket serverSocket;
+
+	/**
+	 * The daemon shared by the test cases, see startShared().
+	 */
+	private static FakeHGDDaemon shared;
+
+	private final ExecutorService workers = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "fake-hgd-session");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final Set<Socket> sockets = Collections
+			.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+	private final Map<String, String> users = new ConcurrentHashMap<String, String>();
+
+	private final Map<String, Long> latencies = new ConcurrentHashMap<String, Long>();
+
+	private final Map<String, String> replies = new ConcurrentHashMap<String, String>();
+
+	private final List<String[]> playlist = Collections
+			.synchronizedList(new ArrayList<String[]>());
+
+	private final AtomicInteger nextTrackId = new AtomicInteger(1);
+
+	private final AtomicInteger connections = new AtomicInteger();
+
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+	private final Map<String, byte[]> uploadDigests = new ConcurrentHashMap<String, byte[]>();
+
+	private final Map<String, Integer> commandCounts = new ConcurrentHashMap<String, Integer>();
+
+	private volatile SSLContext sslContext;
+
+	private volatile boolean playing = true;
+
+	private volatile boolean closed;
+
+	private volatile long uploadLimit = -1;
+
+	private volatile int votesNeeded = HGDConsts.DEFAULT_REQ_VOTES;
+
+	/**
+	 * Starts a daemon with a playlist of 5 tracks on an ephemeral port.
+	 *
+	 * @throws IOException
+	 *             If the port can not be bound.
+	 */
+	public FakeHGDDaemon() throws IOException {
+		this(5);
+	}
+
+	/**
+	 * Starts a daemon on an ephemeral port.
+	 *
+	 * @param playlistSize
+	 *            The number of tracks of the playlist.
+	 * @throws IOException
+	 *             If the port can not be bound.
+	 */
+	public FakeHGDDaemon(int playlistSize) throws IOException {
+		this(playlistSize, 0);
+	}
+
+	/**
+	 * Starts a daemon.
+	 *
+	 * @param playlistSize
+	 *            The number of tracks of the playlist.
+	 * @param port
+	 *            The port to listen to, or 0 for an ephemeral port.
+	 * @throws IOException
+	 *             If the port can not be bound.
+	 */
+	public FakeHGDDaemon(int playlistSize, int port) throws IOException {
+		users.put(DEFAULT_USER, DEFAULT_PASSWORD);
+		setPlaylistSize(playlistSize);
+		serverSocket = new ServerSocket(port, 512,
+				InetAddress.getByName(HGDConsts.DEFAULT_HOST));
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "fake-hgd-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Starts the daemon shared by the test cases on HGDConsts.DEFAULT_HOST
+	 * and HGDConsts.DEFAULT_PORT, unless it is already running or the
+	 * jhgdc.test.external property asks for a real daemon. The shared daemon
+	 * lives until the JVM exits.
+	 *
+	 * @throws IOException
+	 *             If the default port can not be bound.
+	 */
+	public static synchronized void startShared() throws IOException {
+		if (shared == null && !Boolean.getBoolean(EXTERNAL_PROPERTY)) {
+			shared = new FakeHGDDaemon(5, HGDConsts.DEFAULT_PORT);
+		}
+	}
+
+	/**
+	 * Returns the port the daemon listens to.
+	 *
+	 * @return The port.
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Adds a user allowed to log in.
+	 *
+	 * @param username
+	 *            The username.
+	 * @param password
+	 *            The password.
+	 */
+	public void addUser(String username, String password) {
+		users.put(username, password);
+	}
+
+	/**
+	 * Replaces the playlist with generated tracks.
+	 *
+	 * @param size
+	 *            The number of tracks.
+	 */
+	public void setPlaylistSize(int size) {
+		synchronized (playlist) {
+			playlist.clear();
+			for (int i = 0; i < size; i++) {
+				addTrack("track" + i + ".ogg", DEFAULT_USER);
+			}
+		}
+	}
+
+	/**
+	 * Sets the duration of the tracks in the playlist.
+	 *
+	 * @param seconds
+	 *            The duration in seconds.
+	 */
+	public void setTrackDuration(int seconds) {
+		synchronized (playlist) {
+			for (String[] track : playlist) {
+				track[7] = Integer.toString(seconds);
+			}
+		}
+	}
+
+	/**
+	 * Sets the artificial latency added before replying to a command.
+	 *
+	 * @param verb
+	 *            The command, such as "ls", or "*" for every command.
+	 * @param millis
+	 *            The latency in milliseconds.
+	 */
+	public void setLatency(String verb, long millis) {
+		latencies.put(verb, millis);
+	}
+
+	/**
+	 * Makes the daemon answer a command with the given line, such as a
+	 * malformed reply, instead of processing it.
+	 *
+	 * @param verb
+	 *            The command, such as "ls".
+	 * @param reply
+	 *            The line sent, or null to process the command again.
+	 */
+	public void setReply(String verb, String reply) {
+		if (reply == null) {
+			replies.remove(verb);
+		} else {
+			replies.put(verb, reply);
+		}
+	}
+
+	/**
+	 * Makes the daemon drop the connection once it has received the given
+	 * number of bytes of a file, as a crashed daemon would.
+	 *
+	 * @param bytes
+	 *            The number of bytes, or -1 to receive whole files.
+	 */
+	public void setUploadLimit(long bytes) {
+		this.uploadLimit = bytes;
+	}
+
+	/**
+	 * Sets whether a track is playing. When playing, the first track of the
+	 * playlist is the current one.
+	 *
+	 * @param playing
+	 *            The new status.
+	 */
+	public void setPlaying(boolean playing) {
+		this.playing = playing;
+	}
+
+	/**
+	 * Returns the id of the track playing, or null.
+	 *
+	 * @return The track id.
+	 */
+	public String getPlayingTrackId() {
+		synchronized (playlist) {
+			if (!playing || playlist.isEmpty()) {
+				return null;
+			}
+			return playlist.get(0)[0];
+		}
+	}
+
+	/**
+	 * Returns the number of connections accepted so far.
+	 *
+	 * @return The number of connections.
+	 */
+	public int getConnectionCount() {
+		return connections.get();
+	}
+
+	/**
+	 * Returns how many times a command has been received.
+	 *
+	 * @param verb
+	 *            The command, such as "ls".
+	 * @return The number of commands received.
+	 */
+	public int getCommandCount(String verb) {
+		Integer count = commandCounts.get(verb);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Returns the number of file bytes received by the "q" command.
+	 *
+	 * @return The number of bytes.
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * Returns the SHA-256 digest of the last file queued with a name.
+	 *
+	 * @param filename
+	 *            The name given to the "q" command.
+	 * @return The digest, or null if no such file was received entirely.
+	 */
+	public byte[] getUploadDigest(String filename) {
+		return uploadDigests.get(filename);
+	}
+
+	/**
+	 * Returns the number of tracks of the playlist.
+	 *
+	 * @return The playlist size.
+	 */
+	public int getPlaylistSize() {
+		return playlist.size();
+	}
+
+	/**
+	 * Returns the self-signed certificate presented by "encrypt".
+	 *
+	 * @return The certificate.
+	 * @throws IOException
+	 *             If the keystore can not be read.
+	 */
+	public static X509Certificate getCertificate() throws IOException {
+		try {
+			KeyStore keyStore = loadKeyStore();
+			return (X509Certificate) keyStore.getCertificate(keyStore
+					.aliases().nextElement());
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Stops the daemon and closes every connection.
+	 */
+	public void close() throws IOException {
+		closed = true;
+		serverSocket.close();
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Drops every open connection without notice, as a restarted daemon or a
+	 * NAT timeout would.
+	 */
+	public void dropConnections() throws IOException {
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+	}
+
+	private void addTrack(String filename, String user) {
+		int id = nextTrackId.getAndIncrement();
+		playlist.add(new String[] { Integer.toString(id), filename,
+				"Artist " + id, "Title " + id, user, "Album " + id, "Genre",
+				Integer.toString(180 + id % 120), "192", "44100", "2",
+				Integer.toString(1990 + id % 30),
+				Integer.toString(votesNeeded), "0" });
+	}
+
+	private static String join(String[] fields) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0) {
+				builder.append('|');
+			}
+			builder.append(fields[i]);
+		}
+		return builder.toString();
+	}
+
+	private void accept() {
+		while (!serverSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				return;
+			}
+			connections.incrementAndGet();
+			sockets.add(socket);
+			// Either close() sees the socket, or the socket sees close()
+			if (closed) {
+				closeQuietly(socket);
+				return;
+			}
+			try {
+				workers.execute(new Runnable() {
+					public void run() {
+						try {
+							new Session(socket).run();
+						} catch (IOException e) {
+							// Client gone
+						} finally {
+							sockets.remove(socket);
+							closeQuietly(socket);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Closed meanwhile
+				sockets.remove(socket);
+				closeQuietly(socket);
+				return;
+			}
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+	}
+
+	private SSLContext sslContext() throws IOException {
+		if (sslContext == null) {
+			try {
+				KeyStore keyStore = loadKeyStore();
+				KeyManagerFactory kmf = KeyManagerFactory
+						.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+				kmf.init(keyStore, KEYSTORE_PASSWORD);
+				SSLContext context = SSLContext.getInstance("TLS");
+				context.init(kmf.getKeyManagers(), null, null);
+				sslContext = context;
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+		return sslContext;
+	}
+
+	private static KeyStore loadKeyStore() throws IOException,
+			GeneralSecurityException {
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		InputStream in = FakeHGDDaemon.class.getResourceAsStream(KEYSTORE);
+		try {
+			keyStore.load(in, KEYSTORE_PASSWORD);
+		} finally {
+			in.close();
+		}
+		return keyStore;
+	}
+
+	/**
+	 * A client connection.
+	 */
+	private class Session {
+
+		private Socket socket;
+
+		private InputStream in;
+
+		private OutputStream out;
+
+		private String user;
+
+		private boolean voted = false;
+
+		Session(Socket socket) throws IOException {
+			setSocket(socket);
+		}
+
+		private void setSocket(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		void run() throws IOException {
+			send("ok|HGD-fake-" + HGDConsts.PROTOCOLVERSION);
+			int badCommands = 0;
+			String line;
+			while ((line = readLine()) != null) {
+				String[] tokens = line.split("\\|", -1);
+				String verb = tokens[0];
+				commandCounts.merge(verb, 1, Integer::sum);
+				delay(verb);
+				if (!handle(verb, tokens)) {
+					return;
+				}
+				if (!isKnown(verb) && ++badCommands >= HGDConsts.MAX_BAD_COMMANDS) {
+					return;
+				}
+			}
+		}
+
+		private boolean isKnown(String verb) {
+			return verb.equals("proto") || verb.equals("user")
+					|| verb.equals("ls") || verb.equals("np")
+					|| verb.equals("vo") || verb.equals("q")
+					|| verb.equals("id") || verb.equals("encrypt?")
+					|| verb.equals("encrypt") || verb.equals("bye");
+		}
+
+		private boolean handle(String verb, String[] tokens) throws IOException {
+			String canned = replies.get(verb);
+			if (canned != null) {
+				send(canned);
+			} else if (verb.equals("proto")) {
+				send("ok|" + HGDConsts.PROTOCOLVERSION);
+			} else if (verb.equals("user")) {
+				String password = tokens.length == 3 ? users.get(tokens[1])
+						: null;
+				if (password != null && password.equals(tokens[2])) {
+					user = tokens[1];
+					send("ok");
+				} else {
+					user = null;
+					send("err|Authentication failed");
+				}
+			} else if (verb.equals("ls")) {
+				List<String[]> copy;
+				synchronized (playlist) {
+					copy = new ArrayList<String[]>(playlist);
+				}
+				StringBuilder reply = new StringBuilder();
+				reply.append("ok|").append(copy.size()).append("\r\n");
+				for (String[] track : copy) {
+					reply.append(join(track)).append("\r\n");
+				}
+				out.write(reply.toString().getBytes(StandardCharsets.UTF_8));
+				out.flush();
+			} else if (verb.equals("np")) {
+				String[] track = null;
+				synchronized (playlist) {
+					if (playing && !playlist.isEmpty()) {
+						track = playlist.get(0);
+					}
+				}
+				send(track == null ? "ok|0" : "ok|1|" + join(track));
+			} else if (verb.equals("vo")) {
+				voteOff(tokens);
+			} else if (verb.equals("q")) {
+				queue(tokens);
+			} else if (verb.equals("id")) {
+				if (user == null) {
+					send("err|Not authenticated");
+				} else {
+					send("ok|" + user + "|0|" + (voted ? 1 : 0));
+				}
+			} else if (verb.equals("encrypt?")) {
+				send("ok|TLS");
+			} else if (verb.equals("encrypt")) {
+				startTls();
+			} else if (verb.equals("bye")) {
+				send("ok");
+				return false;
+			} else {
+				send("err|Invalid command");
+			}
+			return true;
+		}
+
+		private void voteOff(String[] tokens) throws IOException {
+			if (user == null) {
+				send("err|Not authenticated");
+				return;
+			}
+			String playingId = getPlayingTrackId();
+			if (playingId == null) {
+				send("err|Nothing playing");
+			} else if (tokens.length > 1 && !tokens[1].equals(playingId)) {
+				send("err|Track not playing");
+			} else if (voted) {
+				send("err|Already voted");
+			} else {
+				voted = true;
+				send("ok");
+			}
+		}
+
+		private void queue(String[] tokens) throws IOException {
+			if (user == null) {
+				send("err|Not authenticated");
+				return;
+			}
+			long size;
+			try {
+				size = Long.parseLong(tokens[2]);
+			} catch (RuntimeException e) {
+				send("err|Invalid command");
+				return;
+			}
+			if (size > HGDConsts.DEFAULT_MAX_UPLOAD) {
+				send("err|File too large");
+				return;
+			}
+			send("ok");
+			MessageDigest digest = sha256();
+			byte[] buffer = new byte[HGDConsts.BINARY_RECEIV_SIZE];
+			long remaining = size;
+			while (remaining > 0) {
+				int n = in.read(buffer, 0, (int) Math.min(buffer.length,
+						remaining));
+				if (n < 0) {
+					throw new EOFException();
+				}
+				digest.update(buffer, 0, n);
+				remaining -= n;
+				bytesReceived.addAndGet(n);
+				long limit = uploadLimit;
+				if (limit >= 0 && size - remaining >= limit) {
+					socket.close();
+					throw new EOFException("Upload limit reached");
+				}
+			}
+			uploadDigests.put(tokens[1], digest.digest());
+			addTrack(tokens[1], user);
+			send("ok");
+		}
+
+		private MessageDigest sha256() throws IOException {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e);
+			}
+		}
+
+		private void startTls() throws IOException {
+			// The client starts the handshake without waiting for a reply,
+			// so its first bytes may already be in the buffer
+			byte[] consumed = new byte[in.available()];
+			int n = 0;
+			while (n < consumed.length) {
+				int read = in.read(consumed, n, consumed.length - n);
+				if (read < 0) {
+					throw new EOFException();
+				}
+				n += read;
+			}
+			SSLSocket sslSocket = (SSLSocket) sslContext().getSocketFactory()
+					.createSocket(socket, new ByteArrayInputStream(consumed),
+							true);
+			sslSocket.setUseClientMode(false);
+			sslSocket.startHandshake();
+			sockets.add(sslSocket);
+			setSocket(sslSocket);
+			send("ok|");
+		}
+
+		private void delay(String verb) {
+			Long millis = latencies.get(verb);
+			if (millis == null) {
+				millis = latencies.get("*");
+			}
+			if (millis != null && millis > 0) {
+				try {
+					Thread.sleep(millis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		private String readLine() throws IOException {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int b;
+			try {
+				while ((b = in.read()) != '\n') {
+					if (b < 0) {
+						return null;
+					}
+					if (b != '\r') {
+						line.write(b);
+					}
+				}
+			} catch (SocketException e) {
+				return null;
+			}
+			return new String(line.toByteArray(), StandardCharsets.UTF_8);
+		}
+
+		private void send(String line) throws IOException {
+			out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ * 
+ *  This file is part of libjhgdc.
+ * 
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the non-blocking client.
+ *
+ * @version 0.1.0
+ *
+ */
+public class HGDAsyncClientTest extends SharedDaemonFixture {
+
+	/**
+	 * The event loops shared by the clients.
+	 */
+	HGDEventLoopGroup group;
+
+	/**
+	 * The client.
+	 */
+	HGDAsyncClient client;
+
+	/**
+	 * Creates a new client, and opens a connection before execution 
+	 * of each test case.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		group = new HGDEventLoopGroup(1);
+		client = new HGDAsyncClient(group);
+		client.connect(HGDConsts.DEFAULT_HOST).get(5, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Disconnects the client and stops the event loops.
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected())
+			client.disconnect(true).get(5, TimeUnit.SECONDS);
+		group.close();
+	}
+
+	/**
+	 * Test the connection.
+	 */
+	@Test
+	public void testConnect() {
+		assertTrue("The connection has not been established.", client.isConnected());
+		assertEquals("Wrong host", HGDConsts.DEFAULT_HOST, client.getHost());
+	}
+
+	/**
+	 * Test several commands issued without waiting for each other.
+	 * @throws Exception
+	 */
+	@Test
+	public void testCommandsInOrder() throws Exception {
+		CompletableFuture<String> proto = client.requestProto();
+		CompletableFuture<String[]> playlist = client.requestPlaylist();
+		CompletableFuture<String> nowPlaying = client.requestNowPlaying();
+
+		assertEquals("Wrong protocol", HGDConsts.PROTOCOLVERSION, proto.get(5, TimeUnit.SECONDS));
+		assertNotNull("Method returned null playlist", playlist.get(5, TimeUnit.SECONDS));
+		assertTrue("np returned a wrong line", nowPlaying.get(5, TimeUnit.SECONDS).startsWith("ok|"));
+	}
+
+	/**
+	 * Test the login command, followed by an authenticated command.
+	 * @throws Exception
+	 */
+	@Test
+	public void testLogin() throws Exception {
+		client.login("kaduardo", "").get(5, TimeUnit.SECONDS);
+		assertTrue("Client not authenticated", client.isAuthenticated());
+		assertTrue("id returned a wrong line",
+				client.requestUserInformation().get(5, TimeUnit.SECONDS).startsWith("ok|kaduardo"));
+	}
+
+	/**
+	 * Test an authenticated command without login.
+	 * @throws Exception
+	 */
+	@Test
+	public void testNotAuthenticated() throws Exception {
+		try {
+			client.requestUserInformation().get(5, TimeUnit.SECONDS);
+			fail("IllegalStateException expected");
+		} catch (ExecutionException e) {
+			assertTrue("Wrong error", e.getCause() instanceof IllegalStateException);
+		}
+		// The connection must still be usable
+		assertEquals("Wrong protocol", HGDConsts.PROTOCOLVERSION,
+				client.requestProto().get(5, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Test that the commands issued while the event loops stop all complete,
+	 * run or failed, and that the later ones fail at once.
+	 * @throws Exception
+	 */
+	@Test
+	public void testShutdown() throws Exception {
+		for (int round = 0; round < 20; round++) {
+			HGDEventLoopGroup other = new HGDEventLoopGroup(1);
+			final HGDAsyncClient idle = new HGDAsyncClient(other);
+			final List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+			Thread issuer = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 2000; i++) {
+						futures.add(idle.requestProto());
+					}
+				}
+			};
+			issuer.start();
+			other.close();
+			issuer.join();
+			for (CompletableFuture<String> future : futures) {
+				try {
+					future.get(5, TimeUnit.SECONDS);
+				} catch (ExecutionException e) {
+					// Not connected, or shut down
+				}
+			}
+			assertTrue("Command accepted after shutdown", idle.requestProto()
+					.isCompletedExceptionally());
+		}
+	}
+
+	/**
+	 * Test that a name which can not be resolved fails the connection and the
+	 * commands queued after it, without blocking the event loop.
+	 * @throws Exception
+	 */
+	@Test
+	public void testUnknownHost() throws Exception {
+		HGDAsyncClient other = new HGDAsyncClient(group);
+		CompletableFuture<Void> connect = other.connect("no-such-host.invalid");
+		CompletableFuture<String> proto = other.requestProto();
+		// The event loop keeps serving the other client
+		assertEquals("Wrong protocol", HGDConsts.PROTOCOLVERSION,
+				client.requestProto().get(5, TimeUnit.SECONDS));
+		try {
+			connect.get(30, TimeUnit.SECONDS);
+			fail("UnknownHostException expected");
+		} catch (ExecutionException e) {
+			assertTrue("Wrong error", e.getCause() instanceof UnknownHostException);
+		}
+		try {
+			proto.get(5, TimeUnit.SECONDS);
+			fail("Command sent without connection");
+		} catch (ExecutionException e) {
+			// Expected
+		}
+		assertFalse(other.isConnected());
+	}
+
+	/**
+	 * Test the TLS handshake with the SSLEngine, followed by commands.
+	 * @throws Exception
+	 */
+	@Test
+	public void testEncryption() throws Exception {
+		FakeHGDDaemon daemon = new FakeHGDDaemon(5);
+		HGDAsyncClient other = connect(daemon);
+		try {
+			assertTrue("Not ok", other.requestEncryption()
+					.get(5, TimeUnit.SECONDS).startsWith("ok"));
+			assertTrue("Not encrypted", other.isEncrypted());
+			other.login(FakeHGDDaemon.DEFAULT_USER,
+					FakeHGDDaemon.DEFAULT_PASSWORD).get(5, TimeUnit.SECONDS);
+			assertEquals(5, other.requestPlaylist().get(5, TimeUnit.SECONDS).length);
+			other.disconnect(true).get(5, TimeUnit.SECONDS);
+		} finally {
+			daemon.close();
+		}
+	}
+
+	/**
+	 * Test uploads over plain and encrypted connections, checking the bytes
+	 * received by the daemon.
+	 * @throws Exception
+	 */
+	@Test
+	public void testRequestQueue() throws Exception {
+		FakeHGDDaemon daemon = new FakeHGDDaemon(0);
+		File small = UploadEngineTest.createFile(300 * 1024);
+		File large = UploadEngineTest.createFile(3 * 1024 * 1024 + 7);
+		try {
+			for (boolean encrypted : new boolean[] { false, true }) {
+				HGDAsyncClient other = connect(daemon);
+				if (encrypted) {
+					other.requestEncryption().get(5, TimeUnit.SECONDS);
+				}
+				other.login(FakeHGDDaemon.DEFAULT_USER,
+						FakeHGDDaemon.DEFAULT_PASSWORD).get(5, TimeUnit.SECONDS);
+				for (File file : new File[] { small, large }) {
+					other.requestQueue(file).get(30, TimeUnit.SECONDS);
+					assertArrayEquals("Wrong content, encrypted: " + encrypted,
+							UploadEngineTest.sha256(file),
+							daemon.getUploadDigest(file.getName()));
+				}
+				assertEquals(encrypted ? 4 : 2, other.requestPlaylist().get(5,
+						TimeUnit.SECONDS).length);
+				other.disconnect(true).get(5, TimeUnit.SECONDS);
+			}
+			assertEquals(2 * (small.length() + large.length()),
+					daemon.getBytesReceived());
+		} finally {
+			small.delete();
+			large.delete();
+			daemon.close();
+		}
+	}
+
+	/**
+	 * Test that a reply line longer than the limit fails the session and the
+	 * commands queued after it.
+	 * @throws Exception
+	 */
+	@Test
+	public void testLineTooLong() throws Exception {
+		FakeHGDDaemon daemon = new FakeHGDDaemon(0);
+		try {
+			daemon.setPlaylistSize(3);
+			HGDAsyncClient other = connect(daemon);
+			assertEquals(3, other.requestPlaylist().get(5, TimeUnit.SECONDS).length);
+			other.setMaxLineLength(40);
+			CompletableFuture<String[]> playlist = other.requestPlaylist();
+			CompletableFuture<String> proto = other.requestProto();
+			try {
+				playlist.get(5, TimeUnit.SECONDS);
+				fail("HGDProtocolException expected");
+			} catch (ExecutionException e) {
+				assertTrue("Wrong error: " + e.getCause(),
+						e.getCause() instanceof HGDProtocolException);
+			}
+			try {
+				proto.get(5, TimeUnit.SECONDS);
+				fail("Next command not failed");
+			} catch (ExecutionException e) {
+				// Expected
+			}
+			assertFalse("Session not closed", other.isConnected());
+		} finally {
+			daemon.close();
+		}
+	}
+
+	/**
+	 * Connects another client to a daemon of the test.
+	 */
+	private HGDAsyncClient connect(FakeHGDDaemon daemon) throws Exception {
+		HGDAsyncClient other = new HGDAsyncClient(group);
+		other.setTlsContext(HGDTlsContext.trustAll());
+		other.connect(HGDConsts.DEFAULT_HOST, daemon.getPort()).get(5,
+				TimeUnit.SECONDS);
+		return other;
+	}
+
+	/**
+	 * Test the disconnection.
+	 * @throws Exception
+	 */
+	@Test
+	public void testDisconnect() throws Exception {
+		client.disconnect(true).get(5, TimeUnit.SECONDS);
+		assertFalse("The connection can not be closed.", client.isConnected());
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the client configuration.
+ *
+ * @version 0.1.0
+ *
+ */
+public class HGDClientConfigTest {
+
+	/**
+	 * A daemon whose replies are delayed by the tests.
+	 */
+	FakeHGDDaemon daemon;
+
+	/**
+	 * A client whose daemon has 200 ms to reply.
+	 */
+	HGDClient client;
+
+	/**
+	 * Starts the daemon and logs the client in.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		daemon = new FakeHGDDaemon(1000);
+		client = new HGDClient(HGDClientConfig.builder().readTimeout(200)
+				.sendBufferSize(256 * 1024).readerBufferSize(512).build());
+		client.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+		client.login(FakeHGDDaemon.DEFAULT_USER, FakeHGDDaemon.DEFAULT_PASSWORD);
+	}
+
+	/**
+	 * Disconnects the client and stops the daemon.
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected())
+			client.disconnect(false);
+		daemon.close();
+	}
+
+	/**
+	 * Test that the builder keeps the settings and checks them.
+	 */
+	@Test
+	public void testBuilder() {
+		HGDClientConfig config = HGDClientConfig.builder().tcpNoDelay(false)
+				.keepAlive(true).connectTimeout(0).writerBufferSize(128)
+				.build();
+		assertFalse(config.isTcpNoDelay());
+		assertTrue(config.isKeepAlive());
+		assertEquals(0, config.getConnectTimeout());
+		assertEquals(HGDClientConfig.DEFAULT_READ_TIMEOUT,
+				config.getReadTimeout());
+
+		HGDClientConfig copy = config.toBuilder().readTimeout(5).build();
+		assertEquals(128, copy.getWriterBufferSize());
+		assertEquals(5, copy.getReadTimeout());
+		assertEquals(HGDClientConfig.DEFAULT_READ_TIMEOUT,
+				config.getReadTimeout());
+
+		try {
+			HGDClientConfig.builder().readerBufferSize(0);
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Test that the replies arriving in time are read, including a playlist
+	 * longer than the reader buffer.
+	 * @throws Exception
+	 */
+	@Test
+	public void testWithinDeadline() throws Exception {
+		daemon.setLatency("ls", 50);
+		assertEquals(1000, client.requestPlaylist().length);
+		client.requestNowPlaying();
+		assertTrue(client.isConnected());
+	}
+
+	/**
+	 * Test that a late reply fails with a timeout and closes the connection.
+	 * @throws Exception
+	 */
+	@Test
+	public void testDeadlineExpired() throws Exception {
+		daemon.setLatency("np", 2000);
+		long start = System.currentTimeMillis();
+		try {
+			client.requestNowPlaying();
+			fail("HGDTimeoutException expected");
+		} catch (HGDTimeoutException e) {
+			// Expected
+		}
+		assertTrue("Timeout too late",
+				System.currentTimeMillis() - start < 1500);
+		assertFalse("Client still connected", client.isConnected());
+	}
+
+	/**
+	 * Test that a pool opens its sessions with its configuration.
+	 * @throws Exception
+	 */
+	@Test
+	public void testPoolConfig() throws Exception {
+		HGDClientPool pool = new HGDClientPool();
+		HGDClientConfig config = HGDClientConfig.builder().readTimeout(100)
+				.build();
+		pool.setClientConfig(config);
+		try {
+			HGDClient session = pool.borrow(HGDConsts.DEFAULT_HOST,
+					daemon.getPort(), FakeHGDDaemon.DEFAULT_USER,
+					FakeHGDDaemon.DEFAULT_PASSWORD, false);
+			assertTrue(session.getConfig() == config);
+			pool.release(session);
+		} finally {
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ * 
+ *  This file is part of libjhgdc.
+ * 
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the session pool.
+ *
+ * @version 0.1.0
+ *
+ */
+public class HGDClientPoolTest extends SharedDaemonFixture {
+
+	/**
+	 * The pool.
+	 */
+	HGDClientPool pool;
+
+	/**
+	 * The key of the sessions used by the tests.
+	 */
+	HGDClientPool.Key key;
+
+	/**
+	 * Creates a pool allowing two sessions per key.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		pool = new HGDClientPool(2, HGDClientPool.DEFAULT_MAX_IDLE,
+				HGDClientPool.DEFAULT_VALIDATION_INTERVAL, 100);
+		key = new HGDClientPool.Key(HGDConsts.DEFAULT_HOST, HGDConsts.DEFAULT_PORT, "kaduardo", false);
+	}
+
+	/**
+	 * Closes the pool.
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		pool.close();
+	}
+
+	/**
+	 * Test that a released session is reused.
+	 * @throws Exception
+	 */
+	@Test
+	public void testReuse() throws Exception {
+		HGDClient client = pool.borrow(key, "");
+		assertTrue("Client not authenticated", client.isAuthenticated());
+		assertEquals("Wrong number of active sessions", 1, pool.getActiveCount());
+		pool.release(client);
+		assertEquals("Wrong number of idle sessions", 1, pool.getIdleCount());
+
+		assertSame("Session not reused", client, pool.borrow(key, ""));
+		pool.release(client);
+	}
+
+	/**
+	 * Test that an invalidated session is not reused.
+	 * @throws Exception
+	 */
+	@Test
+	public void testInvalidate() throws Exception {
+		HGDClient client = pool.borrow(key, "");
+		pool.invalidate(client);
+		assertFalse("Invalidated session still connected", client.isConnected());
+		assertEquals("Wrong number of idle sessions", 0, pool.getIdleCount());
+
+		HGDClient other = pool.borrow(key, "");
+		assertNotSame("Invalidated session reused", client, other);
+		pool.release(other);
+	}
+
+	/**
+	 * Test that a session closed while idle is detected.
+	 * @throws Exception
+	 */
+	@Test
+	public void testBrokenIdleSession() throws Exception {
+		HGDClient client = pool.borrow(key, "");
+		pool.release(client);
+		client.disconnect(true);
+
+		HGDClient other = pool.borrow(key, "");
+		assertNotSame("Closed session reused", client, other);
+		assertTrue("Client not authenticated", other.isAuthenticated());
+		pool.release(other);
+	}
+
+	/**
+	 * Test the limit of sessions per key.
+	 * @throws Exception
+	 */
+	@Test
+	public void testLimit() throws Exception {
+		HGDClient first = pool.borrow(key, "");
+		HGDClient second = pool.borrow(key, "");
+		try {
+			pool.borrow(key, "");
+			fail("JHGDException expected");
+		} catch (JHGDException e) {
+			// Expected
+		}
+		pool.release(first);
+		pool.release(second);
+	}
+
+	/**
+	 * Test that a failed operation evicts the session.
+	 * @throws Exception
+	 */
+	@Test
+	public void testExecuteEvictsOnError() throws Exception {
+		try {
+			pool.execute(key, "", new HGDClientPool.Operation<Void>() {
+				public Void execute(HGDClient client) throws JHGDException {
+					throw new JHGDException("Failure");
+				}
+			});
+			fail("JHGDException expected");
+		} catch (JHGDException e) {
+			// Expected
+		}
+		assertEquals("Failed session kept", 0, pool.getIdleCount());
+		assertEquals("Failed session still active", 0, pool.getActiveCount());
+	}
+
+	/**
+	 * Test a session borrowed with a wrong password.
+	 * @throws Exception
+	 */
+	@Test (expected=JHGDException.class)
+	public void testWrongPassword() throws Exception {
+		pool.release(pool.borrow(key, ""));
+		pool.borrow(key, "password");
+	}
+}
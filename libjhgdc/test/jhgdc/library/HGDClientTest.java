@@ -28,7 +28,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
-public class HGDClientTest {
+public class HGDClientTest extends SharedDaemonFixture {
 
 	HGDClient client;
 	
@@ -38,7 +38,7 @@ import org.junit.Test;
  * @version 0.1.0
  *
  */
-public class HGDClientTestConnect {
+public class HGDClientTestConnect extends SharedDaemonFixture {
 
 	/**
 	 * The client.
@@ -35,7 +35,7 @@ import org.junit.Test;
  * @version 0.1.0
  *
  */
-public class HGDClientTestDisconnect {
+public class HGDClientTestDisconnect extends SharedDaemonFixture {
 
 	/**
 	 * The client.
@@ -21,8 +21,14 @@
 package jhgdc.library;
 
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Test;
 
 /**
  * This class contains the test cases of the login command.
@@ -31,7 +37,7 @@ import org.junit.Before;
  * @version 0.1.0
  *
  */
-public class HGDClientTestLogin {
+public class HGDClientTestLogin extends SharedDaemonFixture {
 
 	/**
 	 * The client.
@@ -60,5 +66,39 @@ public class HGDClientTestLogin {
 			client.disconnect(true);
 	}
 	
+	/**
+	 * Test the login with a valid user.
+	 * @throws Exception
+	 */
+	@Test
+	public void testLogin() throws Exception {
+		client.login("kaduardo", "");
+		assertTrue("Client not authenticated", client.isAuthenticated());
+		assertEquals("Wrong username", "kaduardo", client.getUsername());
+	}
+
+	/**
+	 * Test the login with a wrong password.
+	 * @throws Exception
+	 */
+	@Test
+	public void testLoginWrongPassword() throws Exception {
+		try {
+			client.login("kaduardo", "password");
+			fail("Wrong password accepted");
+		} catch (JHGDException e) {
+			assertFalse("Client authenticated", client.isAuthenticated());
+		}
+	}
+
+	/**
+	 * Test the login of a client not connected.
+	 * @throws Exception
+	 */
+	@Test (expected=IllegalStateException.class)
+	public void testLoginNotConnected() throws Exception {
+		client.disconnect(true);
+		client.login("kaduardo", "");
+	}
 
 }
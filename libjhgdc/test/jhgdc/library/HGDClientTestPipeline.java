@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ * 
+ *  This file is part of libjhgdc.
+ * 
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the command pipeline.
+ *
+ * @version 0.1.0
+ *
+ */
+public class HGDClientTestPipeline extends SharedDaemonFixture {
+
+	/**
+	 * The client.
+	 */
+	HGDClient client;
+	
+	/**
+	 * Creates a new client, and opens a connection before execution 
+	 * of each test case.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		client = new HGDClient();
+		client.connect(HGDConsts.DEFAULT_HOST);
+	}
+
+	/**
+	 * Disconnects the client, in case it is still connected at
+	 * the end of the test case.
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected())
+			client.disconnect(true);
+	}
+
+	/**
+	 * Test several commands sent in a single round trip.
+	 * @throws Exception
+	 */
+	@Test
+	public void testPipeline() throws Exception {
+		HGDPipeline pipeline = client.pipeline();
+		HGDPipeline.Reply<String> nowPlaying = pipeline.requestNowPlaying();
+		HGDPipeline.Reply<String[]> playlist = pipeline.requestPlaylist();
+		HGDPipeline.Reply<String> proto = pipeline.requestProto();
+		assertEquals("Wrong number of queued commands", 3, pipeline.size());
+
+		assertTrue("Pipeline failed", pipeline.execute());
+		assertEquals("Pipeline not emptied", 0, pipeline.size());
+
+		assertTrue("np not processed", nowPlaying.isSuccess());
+		assertTrue("np returned a wrong line", nowPlaying.get().startsWith("ok|"));
+		assertNotNull("ls returned null playlist", playlist.get());
+		assertEquals("Wrong protocol", HGDConsts.PROTOCOLVERSION, proto.get());
+
+		// The connection must still be in sync
+		assertEquals("Wrong protocol", HGDConsts.PROTOCOLVERSION, client.requestProto());
+	}
+
+	/**
+	 * Test a pipeline where one of the commands is refused.
+	 * @throws Exception
+	 */
+	@Test
+	public void testPipelinePartialFailure() throws Exception {
+		client.login("kaduardo", "");
+
+		HGDPipeline pipeline = client.pipeline();
+		HGDPipeline.Reply<String> nowPlaying = pipeline.requestNowPlaying();
+		HGDPipeline.Reply<String> voteOff = pipeline.requestVoteOff("-1");
+		HGDPipeline.Reply<String> proto = pipeline.requestProto();
+
+		assertFalse("Invalid vote off accepted", pipeline.execute());
+		assertTrue("np not processed", nowPlaying.isSuccess());
+		assertTrue("vo not processed", voteOff.isDone());
+		assertFalse("Invalid vote off accepted", voteOff.isSuccess());
+		assertTrue("Wrong error", voteOff.getError() instanceof JHGDException);
+		assertEquals("Wrong protocol", HGDConsts.PROTOCOLVERSION, proto.get());
+	}
+
+	/**
+	 * Test reading a reply before the pipeline is executed.
+	 * @throws Exception
+	 */
+	@Test (expected=IllegalStateException.class)
+	public void testReplyBeforeExecute() throws Exception {
+		client.pipeline().requestNowPlaying().get();
+		fail("IllegalStateException expected");
+	}
+
+	/**
+	 * Test queuing an authenticated command without login.
+	 * @throws Exception
+	 */
+	@Test (expected=IllegalStateException.class)
+	public void testPipelineNotAuthenticated() throws Exception {
+		client.pipeline().requestUserInformation();
+		fail("IllegalStateException expected");
+	}
+
+	/**
+	 * Test that a reply which can not be parsed fails the rest of the
+	 * pipeline and disconnects the client.
+	 * @throws Exception
+	 */
+	@Test
+	public void testMalformedReply() throws Exception {
+		FakeHGDDaemon daemon = new FakeHGDDaemon(0);
+		HGDClient other = new HGDClient();
+		try {
+			daemon.setReply("ls", "ok|many");
+			other.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+			HGDPipeline pipeline = other.pipeline();
+			HGDPipeline.Reply<String> nowPlaying = pipeline.requestNowPlaying();
+			HGDPipeline.Reply<String[]> playlist = pipeline.requestPlaylist();
+			HGDPipeline.Reply<String> proto = pipeline.requestProto();
+			try {
+				pipeline.execute();
+				fail("HGDProtocolException expected");
+			} catch (HGDProtocolException e) {
+				// Expected
+			}
+			assertTrue("np not processed", nowPlaying.isSuccess());
+			assertTrue("ls not failed", playlist.getError() instanceof HGDProtocolException);
+			assertTrue("proto not failed", proto.getError() instanceof HGDProtocolException);
+			assertFalse("Client still connected", other.isConnected());
+		} finally {
+			if (other.isConnected())
+				other.disconnect(false);
+			daemon.close();
+		}
+	}
+
+	/**
+	 * Test that a track id which would break the command line is refused.
+	 * @throws Exception
+	 */
+	@Test (expected=IllegalArgumentException.class)
+	public void testInvalidTrackId() throws Exception {
+		client.login("kaduardo", "");
+		client.pipeline().requestVoteOff("1\r\nbye");
+	}
+}
@@ -21,9 +21,15 @@
 package jhgdc.library;
 
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -36,7 +42,7 @@ import org.junit.Test;
  * @version 0.1.0
  *
  */
-public class HGDClientTestPlaylist {
+public class HGDClientTestPlaylist extends SharedDaemonFixture {
 
 	/**
 	 * The client.
@@ -87,6 +93,54 @@ public class HGDClientTestPlaylist {
 		}
 	}
 
+	/**
+	 * Test the streamed playlist, handled one item at a time.
+	 * @throws Exception
+	 */
+	@Test
+	public void testRequestPlaylistHandler() throws Exception {
+		String[] playlist = client.requestPlaylist();
+		final List<String> received = new ArrayList<String>();
+		int size = client.requestPlaylist(new PlaylistHandler() {
+			public boolean handle(String item) throws IOException {
+				received.add(item);
+				return true;
+			}
+		});
+		assertEquals("Wrong playlist size", playlist.length, size);
+		assertEquals("Wrong number of items", playlist.length, received.size());
+	}
+
+	/**
+	 * Test a handler stopping before the end of the playlist.
+	 * @throws Exception
+	 */
+	@Test
+	public void testRequestPlaylistHandlerStop() throws Exception {
+		client.requestPlaylist(new PlaylistHandler() {
+			public boolean handle(String item) throws IOException {
+				return false;
+			}
+		});
+		// The remaining items must have been discarded
+		assertEquals("Wrong protocol", HGDConsts.PROTOCOLVERSION, client.requestProto());
+	}
+
+	/**
+	 * Test a playlist stream left open before the next command.
+	 * @throws Exception
+	 */
+	@Test
+	public void testOpenPlaylistNotConsumed() throws Exception {
+		PlaylistStream stream = client.openPlaylist();
+		if (stream.hasNext()) {
+			assertNotNull("Item is null", stream.next());
+		}
+		// The remaining items must be discarded by the next command
+		assertEquals("Wrong protocol", HGDConsts.PROTOCOLVERSION, client.requestProto());
+		assertFalse("Stream not drained", stream.hasNext());
+	}
+
 	/**
 	 * Test the request playlist command in an invalid state.
 	 * @throws Exception
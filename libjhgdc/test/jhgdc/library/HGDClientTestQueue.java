@@ -2,23 +2,130 @@ package jhgdc.library;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
-public class HGDClientTestQueue {
+public class HGDClientTestQueue extends SharedDaemonFixture {
+
+	HGDClient client;
+
+	File file;
 
 	@Before
 	public void setUp() throws Exception {
+		byte[] data = new byte[100 * 1024];
+		new Random(17).nextBytes(data);
+		file = File.createTempFile("queue", ".ogg");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+
+		client = new HGDClient();
+		client.connect(HGDConsts.DEFAULT_HOST);
+		client.login("kaduardo", "");
 	}
 
 	@After
 	public void tearDown() throws Exception {
+		if (client.isConnected())
+			client.disconnect(true);
+		file.delete();
+	}
+
+	@Test
+	public void testRequestQueue() throws Exception {
+		int before = client.requestPlaylist().length;
+		client.requestQueue(file);
+
+		String[] playlist = client.requestPlaylist();
+		assertEquals("File not queued", before + 1, playlist.length);
+		assertEquals("Wrong filename", file.getName(),
+				PlaylistItem.parse(playlist[before]).getFilename());
+	}
+
+	@Test
+	public void testRequestQueueStream() throws Exception {
+		int before = client.requestPlaylist().length;
+		client.requestQueue("stream.ogg", 1000, new ByteArrayInputStream(
+				new byte[1000]));
+
+		String[] playlist = client.requestPlaylist();
+		assertEquals("Stream not queued", before + 1, playlist.length);
+		assertEquals("Wrong filename", "stream.ogg",
+				PlaylistItem.parse(playlist[before]).getFilename());
 	}
 
 	@Test
-	public void testRequestQueue() {
-		fail("Not yet implemented"); // TODO
+	public void testRequestQueueStreamTooShort() throws Exception {
+		try {
+			client.requestQueue("short.ogg", 1000, new ByteArrayInputStream(
+					new byte[999]));
+			fail("Short stream queued");
+		} catch (EOFException e) {
+			assertFalse("Client still connected", client.isConnected());
+		}
+	}
+
+	@Test
+	public void testRequestQueueStreamTooLong() throws Exception {
+		try {
+			client.requestQueue("long.ogg", 200 * 1024,
+					new ByteArrayInputStream(new byte[200 * 1024 + 1]));
+			fail("Long stream queued");
+		} catch (IOException e) {
+			assertFalse("Client still connected", client.isConnected());
+		}
+	}
+
+	@Test
+	public void testRequestQueueBuffer() throws Exception {
+		int before = client.requestPlaylist().length;
+		ByteBuffer data = ByteBuffer.allocateDirect(300 * 1024);
+		client.requestQueue("buffer.ogg", data);
+
+		assertFalse("Buffer not consumed", data.hasRemaining());
+		assertEquals("Buffer not queued", before + 1,
+				client.requestPlaylist().length);
+	}
+
+	@Test
+	public void testRequestQueueFileChannel() throws Exception {
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			channel.position(1024);
+			try {
+				client.requestQueue("channel.ogg", file.length(), channel);
+				fail("Wrong size accepted");
+			} catch (IllegalArgumentException e) {
+				assertTrue("Client disconnected", client.isConnected());
+			}
+			client.requestQueue("channel.ogg", file.length() - 1024, channel);
+			assertEquals("Channel not consumed", file.length(),
+					channel.position());
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRequestQueueNotAuthenticated() throws Exception {
+		client.disconnect(true);
+		client.connect(HGDConsts.DEFAULT_HOST);
+		client.requestQueue(file);
 	}
 
 }
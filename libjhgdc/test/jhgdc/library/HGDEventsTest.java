@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ * 
+ *  This file is part of libjhgdc.
+ * 
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the flight recorder events.
+ *
+ * @version 0.1.0
+ *
+ */
+public class HGDEventsTest extends SharedDaemonFixture {
+
+	/**
+	 * The recorded client.
+	 */
+	HGDClient client;
+
+	/**
+	 * The recording of the jhgdc events.
+	 */
+	Recording recording;
+
+	/**
+	 * Starts a recording of every jhgdc event.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		client = new HGDClient();
+		recording = new Recording();
+		for (String name : new String[] { "jhgdc.Connect", "jhgdc.Login",
+				"jhgdc.Command", "jhgdc.TlsUpgrade", "jhgdc.Upload" }) {
+			recording.enable(name).withoutThreshold();
+		}
+		recording.start();
+	}
+
+	/**
+	 * Disconnects the client and discards the recording.
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected())
+			client.disconnect(true);
+		recording.close();
+	}
+
+	/**
+	 * Test that a session emits connect, login and command events.
+	 * @throws Exception
+	 */
+	@Test
+	public void testSessionEvents() throws Exception {
+		client.connect(HGDConsts.DEFAULT_HOST);
+		client.login("kaduardo", "");
+		client.requestPlaylist();
+		client.disconnect(true);
+
+		List<RecordedEvent> events = stop();
+		RecordedEvent connect = find(events, "jhgdc.Connect", null);
+		assertTrue("Connect failed", connect.getBoolean("success"));
+		assertEquals(HGDConsts.DEFAULT_PORT, connect.getInt("port"));
+		assertTrue("Login failed", find(events, "jhgdc.Login", null)
+				.getBoolean("success"));
+
+		RecordedEvent ls = find(events, "jhgdc.Command", "ls");
+		assertTrue("Nothing sent", ls.getLong("bytesSent") >= 3);
+		assertTrue("Nothing received", ls.getLong("bytesReceived") > 0);
+		assertEquals(null, ls.getString("failure"));
+		assertFalse("No host", ls.getString("host") == null);
+	}
+
+	/**
+	 * Test that a refused command is recorded with its error.
+	 * @throws Exception
+	 */
+	@Test
+	public void testFailedLogin() throws Exception {
+		client.connect(HGDConsts.DEFAULT_HOST);
+		try {
+			client.login("kaduardo", "password");
+		} catch (JHGDException e) {
+			// expected
+		}
+
+		List<RecordedEvent> events = stop();
+		assertFalse("Login succeeded", find(events, "jhgdc.Login", null)
+				.getBoolean("success"));
+		RecordedEvent user = find(events, "jhgdc.Command", "user");
+		assertTrue("No failure", user.getString("failure") != null);
+	}
+
+	/**
+	 * Stops the recording and reads its events.
+	 */
+	private List<RecordedEvent> stop() throws Exception {
+		recording.stop();
+		File file = File.createTempFile("jhgdc", ".jfr");
+		try {
+			recording.dump(file.toPath());
+			List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+			for (RecordedEvent event : RecordingFile.readAllEvents(file
+					.toPath())) {
+				if (event.getEventType().getName().startsWith("jhgdc.")) {
+					events.add(event);
+				}
+			}
+			return events;
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Returns the first event of a type, and of a command if given.
+	 */
+	private static RecordedEvent find(List<RecordedEvent> events, String type,
+			String command) {
+		for (RecordedEvent event : events) {
+			if (event.getEventType().getName().equals(type)
+					&& (command == null || command.equals(event
+							.getString("command")))) {
+				return event;
+			}
+		}
+		throw new AssertionError("No " + type + " event for " + command);
+	}
+}
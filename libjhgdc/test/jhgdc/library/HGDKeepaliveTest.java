@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the keepalive.
+ *
+ * @version 0.1.0
+ *
+ */
+public class HGDKeepaliveTest {
+
+	/**
+	 * A daemon whose replies are delayed by some tests.
+	 */
+	FakeHGDDaemon daemon;
+
+	/**
+	 * A keepalive probing sessions idle for 200 ms.
+	 */
+	HGDKeepalive keepalive;
+
+	/**
+	 * The probed client.
+	 */
+	HGDClient client;
+
+	/**
+	 * Starts a daemon, a keepalive and logs a client in.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		daemon = new FakeHGDDaemon(5);
+		keepalive = new HGDKeepalive(200, 300, 1);
+		client = new HGDClient();
+		client.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+		client.login(FakeHGDDaemon.DEFAULT_USER, FakeHGDDaemon.DEFAULT_PASSWORD);
+	}
+
+	/**
+	 * Stops the keepalive, the client and the daemon.
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		keepalive.close();
+		if (client.isConnected())
+			client.disconnect(false);
+		daemon.close();
+	}
+
+	/**
+	 * Test that an idle session is probed and its round trip recorded.
+	 * @throws Exception
+	 */
+	@Test
+	public void testProbeIdleSession() throws Exception {
+		int protos = daemon.getCommandCount("proto");
+		HGDKeepalive.Registration registration = keepalive.register(client);
+		Thread.sleep(700);
+		assertTrue("Session not probed", daemon.getCommandCount("proto") > protos);
+		assertTrue(registration.getLastRoundTrip() >= 0);
+		assertTrue(keepalive.getProbeLatency().getCount() > 0);
+
+		assertTrue(registration.acquire());
+		assertEquals(5, client.requestPlaylist().length);
+		registration.release();
+		assertEquals(1, keepalive.getSessionCount());
+	}
+
+	/**
+	 * Test that a session in use is not probed.
+	 * @throws Exception
+	 */
+	@Test
+	public void testBusySessionNotProbed() throws Exception {
+		HGDKeepalive.Registration registration = keepalive.register(client);
+		assertTrue(registration.acquire());
+		int protos = daemon.getCommandCount("proto");
+		Thread.sleep(700);
+		assertEquals("Busy session probed", protos,
+				daemon.getCommandCount("proto"));
+		registration.release();
+
+		registration.cancel();
+		Thread.sleep(700);
+		assertEquals("Cancelled session probed", protos,
+				daemon.getCommandCount("proto"));
+		assertEquals(0, keepalive.getSessionCount());
+	}
+
+	/**
+	 * Test that a session whose probe is not answered in time is closed.
+	 * @throws Exception
+	 */
+	@Test
+	public void testDeadPeer() throws Exception {
+		daemon.setLatency("proto", 2000);
+		HGDKeepalive.Registration registration = keepalive.register(client);
+		for (int i = 0; i < 50 && !registration.isDead(); i++) {
+			Thread.sleep(50);
+		}
+		assertTrue("Session not found dead", registration.isDead());
+		assertFalse("Dead session connected", client.isConnected());
+		assertFalse(registration.acquire());
+		assertEquals(1, keepalive.getDeadCount());
+		assertEquals(0, keepalive.getSessionCount());
+	}
+
+	/**
+	 * Test that a pool does not lend a session found dead.
+	 * @throws Exception
+	 */
+	@Test
+	public void testPoolSkipsDeadSession() throws Exception {
+		HGDClientPool pool = new HGDClientPool();
+		pool.setKeepalive(keepalive);
+		try {
+			HGDClientPool.Key key = new HGDClientPool.Key(
+					HGDConsts.DEFAULT_HOST, daemon.getPort(),
+					FakeHGDDaemon.DEFAULT_USER, false);
+			HGDClient first = pool.borrow(key, FakeHGDDaemon.DEFAULT_PASSWORD);
+			pool.release(first);
+
+			daemon.setLatency("proto", 2000);
+			for (int i = 0; i < 50 && first.isConnected(); i++) {
+				Thread.sleep(50);
+			}
+			assertFalse("Session not found dead", first.isConnected());
+			daemon.setLatency("proto", 0);
+
+			HGDClient second = pool.borrow(key, FakeHGDDaemon.DEFAULT_PASSWORD);
+			assertNotSame(first, second);
+			assertEquals(5, second.requestPlaylist().length);
+			pool.release(second);
+		} finally {
+			pool.close();
+		}
+	}
+}
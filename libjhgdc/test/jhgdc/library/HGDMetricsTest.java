@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ * 
+ *  This file is part of libjhgdc.
+ * 
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the client metrics.
+ *
+ * @version 0.1.0
+ *
+ */
+public class HGDMetricsTest extends SharedDaemonFixture {
+
+	/**
+	 * The measured client.
+	 */
+	HGDClient client;
+
+	/**
+	 * The metrics.
+	 */
+	HGDMetrics metrics;
+
+	/**
+	 * Creates a client reporting to a new metrics instance.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		metrics = new HGDMetrics();
+		client = new HGDClient();
+		client.setMetricsListener(metrics);
+	}
+
+	/**
+	 * Disconnects the client and unregisters the metrics.
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected())
+			client.disconnect(true);
+		metrics.unregister();
+	}
+
+	/**
+	 * Test that each step of a session is timed.
+	 * @throws Exception
+	 */
+	@Test
+	public void testCommandLatencies() throws Exception {
+		client.connect(HGDConsts.DEFAULT_HOST);
+		client.login("kaduardo", "");
+		client.requestPlaylist();
+		client.requestNowPlaying();
+		client.disconnect(true);
+
+		Map<String, Long> counts = metrics.getCommandCounts();
+		for (String command : new String[] { "connect", "greeting", "proto",
+				"user", "ls", "np", "bye" }) {
+			assertEquals("Wrong count for " + command, Long.valueOf(1),
+					counts.get(command));
+		}
+		LatencyHistogram ls = metrics.getLatency("ls");
+		assertTrue("No latency", ls.getMax() > 0);
+		assertTrue("Percentile above max",
+				ls.getPercentile(99) <= ls.getMax());
+		assertTrue("No bytes sent", metrics.getBytesSent() > 0);
+		assertTrue("No bytes received", metrics.getBytesReceived() > 0);
+	}
+
+	/**
+	 * Test that refused commands are counted by failure class.
+	 * @throws Exception
+	 */
+	@Test
+	public void testFailures() throws Exception {
+		client.connect(HGDConsts.DEFAULT_HOST);
+		for (int i = 0; i < 2; i++) {
+			try {
+				client.login("kaduardo", "password");
+			} catch (JHGDException e) {
+				assertEquals("Wrong failure count", i + 1,
+						metrics.getFailureCount(e.getMessage()));
+			}
+		}
+		assertEquals("Failed command timed", null,
+				metrics.getCommandCounts().get("user"));
+	}
+
+	/**
+	 * Test that the failure classes ignore numbers.
+	 */
+	@Test
+	public void testClassify() {
+		assertEquals("Track # not playing",
+				HGDMetrics.classify("Track 1234 not playing"));
+		assertEquals("unknown", HGDMetrics.classify(null));
+	}
+
+	/**
+	 * Test the accuracy of the histogram percentiles.
+	 */
+	@Test
+	public void testHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500500.0, histogram.getMean(), 0.001);
+		assertEquals(1000000, histogram.getMax());
+		long p50 = histogram.getPercentile(50);
+		assertTrue("p50 " + p50, p50 >= 500000 && p50 <= 500000 * 1.125);
+		long p99 = histogram.getPercentile(99);
+		assertTrue("p99 " + p99, p99 >= 990000 && p99 <= 1000000);
+
+		for (long value = 0; value < 1L << 40; value = value * 3 + 1) {
+			int index = LatencyHistogram.index(value);
+			assertTrue("Value above its bucket: " + value,
+					value <= LatencyHistogram.upperBound(index));
+			assertTrue("Value in a later bucket: " + value, index == 0
+					|| value > LatencyHistogram.upperBound(index - 1));
+		}
+	}
+
+	/**
+	 * Test that the metrics are readable through JMX.
+	 * @throws Exception
+	 */
+	@Test
+	public void testJmx() throws Exception {
+		ObjectName name = metrics.register("test");
+		client.connect(HGDConsts.DEFAULT_HOST);
+		client.requestProto();
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		Long sent = (Long) server.getAttribute(name, "BytesSent");
+		assertTrue("No bytes sent", sent > 0);
+		assertTrue("No command counts",
+				server.getAttribute(name, "CommandCounts") != null);
+		server.getAttribute(name, "LatencyP99Millis");
+	}
+}
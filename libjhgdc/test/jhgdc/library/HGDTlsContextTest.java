@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import javax.net.ssl.SSLSession;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the TLS settings.
+ *
+ * @version 0.1.0
+ *
+ */
+public class HGDTlsContextTest {
+
+	/**
+	 * A daemon of its own, so no other test resumes its sessions.
+	 */
+	FakeHGDDaemon daemon;
+
+	/**
+	 * The client.
+	 */
+	HGDClient client;
+
+	/**
+	 * Starts the daemon.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		daemon = new FakeHGDDaemon(5);
+		client = new HGDClient();
+	}
+
+	/**
+	 * Disconnects the client and stops the daemon.
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected())
+			client.disconnect(false);
+		daemon.close();
+	}
+
+	/**
+	 * Test that a second connection with the same context resumes the
+	 * session of the first one.
+	 * @throws Exception
+	 */
+	@Test
+	public void testResumption() throws Exception {
+		HGDTlsContext tls = HGDTlsContext.trustAll();
+		client.setTlsContext(tls);
+		client.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+		client.requestEncryption();
+		SSLSession first = client.getTlsSession();
+		assertTrue("Old protocol", first.getProtocol().equals("TLSv1.3")
+				|| first.getProtocol().equals("TLSv1.2"));
+		assertTrue("Not AES-GCM", first.getCipherSuite().contains("_GCM_"));
+		client.login(FakeHGDDaemon.DEFAULT_USER, FakeHGDDaemon.DEFAULT_PASSWORD);
+		client.disconnect(true);
+
+		client.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+		client.requestEncryption();
+		SSLSession second = client.getTlsSession();
+		assertEquals("Session not resumed", first.getCreationTime(),
+				second.getCreationTime());
+		client.login(FakeHGDDaemon.DEFAULT_USER, FakeHGDDaemon.DEFAULT_PASSWORD);
+		assertEquals(5, client.requestPlaylist().length);
+	}
+
+	/**
+	 * Test that a pinned certificate is accepted.
+	 * @throws Exception
+	 */
+	@Test
+	public void testPinned() throws Exception {
+		String fingerprint = HGDTlsContext.fingerprint(FakeHGDDaemon
+				.getCertificate());
+		client.setTlsContext(HGDTlsContext.pinned(fingerprint.toUpperCase()));
+		client.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+		client.requestEncryption();
+		client.login(FakeHGDDaemon.DEFAULT_USER, FakeHGDDaemon.DEFAULT_PASSWORD);
+		assertTrue(client.isEncrypted());
+	}
+
+	/**
+	 * Test that a certificate not pinned is refused.
+	 * @throws Exception
+	 */
+	@Test
+	public void testNotPinned() throws Exception {
+		StringBuilder other = new StringBuilder();
+		for (int i = 0; i < 32; i++) {
+			other.append(i == 0 ? "" : ":").append("ab");
+		}
+		client.setTlsContext(HGDTlsContext.pinned(other.toString()));
+		client.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+		try {
+			client.requestEncryption();
+			fail("IOException expected");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertFalse(client.isEncrypted());
+	}
+
+	/**
+	 * Test that the AES-GCM suites come first.
+	 */
+	@Test
+	public void testPreferGcm() {
+		assertArrayEquals(new String[] { "TLS_AES_128_GCM_SHA256",
+				"TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+				"TLS_CHACHA20_POLY1305_SHA256",
+				"TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256" },
+				HGDTlsContext.preferGcm(new String[] {
+						"TLS_CHACHA20_POLY1305_SHA256",
+						"TLS_AES_128_GCM_SHA256",
+						"TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256",
+						"TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384" }));
+	}
+}
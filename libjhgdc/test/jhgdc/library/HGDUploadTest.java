@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ * 
+ *  This file is part of libjhgdc.
+ * 
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the upload handle.
+ *
+ * @version 0.1.0
+ *
+ */
+public class HGDUploadTest extends SharedDaemonFixture {
+
+	/**
+	 * The uploading client.
+	 */
+	HGDClient client;
+
+	/**
+	 * The file to upload.
+	 */
+	File file;
+
+	/**
+	 * A daemon that never answers the "q" command, if created.
+	 */
+	FakeHGDDaemon stalled;
+
+	/**
+	 * Creates a 3 MB file and a client.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		byte[] data = new byte[3 * 1024 * 1024];
+		new Random(17).nextBytes(data);
+		file = File.createTempFile("upload", ".ogg");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		client = new HGDClient();
+	}
+
+	/**
+	 * Disconnects the client and stops the stalled daemon.
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected())
+			client.disconnect(true);
+		if (stalled != null)
+			stalled.close();
+		file.delete();
+	}
+
+	/**
+	 * Test that the progress is reported until the file is queued.
+	 * @throws Exception
+	 */
+	@Test
+	public void testProgress() throws Exception {
+		client.connect(HGDConsts.DEFAULT_HOST);
+		client.login("kaduardo", "");
+		final AtomicLong last = new AtomicLong();
+		final AtomicInteger finished = new AtomicInteger();
+		HGDUpload upload = new HGDUpload(client, file);
+		upload.setListener(new UploadListener() {
+			public void progress(HGDUpload upload) {
+				assertTrue("Progress went back",
+						upload.getBytesSent() >= last.get());
+				last.set(upload.getBytesSent());
+			}
+
+			public void finished(HGDUpload upload) {
+				finished.incrementAndGet();
+			}
+		});
+		upload.call();
+
+		assertSame(HGDUpload.State.SUCCEEDED, upload.getState());
+		assertEquals(file.length(), last.get());
+		assertEquals(file.length(), upload.getBytesSent());
+		assertEquals(1, finished.get());
+		assertTrue("No average rate", upload.getAverageRate() > 0);
+		assertEquals(0, upload.getRemainingTime(TimeUnit.MILLISECONDS));
+		assertTrue("Client unusable", client.requestPlaylist().length > 0);
+	}
+
+	/**
+	 * Test that an upload cancelled before it starts does not run.
+	 * @throws Exception
+	 */
+	@Test
+	public void testCancelBeforeStart() throws Exception {
+		HGDUpload upload = new HGDUpload(client, file);
+		assertTrue("Not cancelled", upload.cancel());
+		assertTrue("Not over", upload.await(0, TimeUnit.SECONDS));
+		try {
+			upload.call();
+			fail("Cancelled upload ran");
+		} catch (CancellationException e) {
+			assertSame(HGDUpload.State.CANCELLED, upload.getState());
+		}
+	}
+
+	/**
+	 * Test that a stuck upload is stopped by its timeout.
+	 * @throws Exception
+	 */
+	@Test
+	public void testTimeout() throws Exception {
+		connectStalled();
+		HGDUpload upload = new HGDUpload(client, file);
+		upload.setTimeout(200, TimeUnit.MILLISECONDS);
+		long start = System.nanoTime();
+		try {
+			upload.call();
+			fail("Upload not timed out");
+		} catch (SocketTimeoutException e) {
+			assertSame(HGDUpload.State.TIMED_OUT, upload.getState());
+		}
+		assertTrue("Timeout too late",
+				System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		assertFalse("Client still connected", client.isConnected());
+	}
+
+	/**
+	 * Test that a stuck upload is stopped by another thread.
+	 * @throws Exception
+	 */
+	@Test
+	public void testCancel() throws Exception {
+		connectStalled();
+		HGDUpload upload = new HGDUpload(client, file);
+		upload.start(new Executor() {
+			public void execute(Runnable command) {
+				new Thread(command).start();
+			}
+		});
+		assertFalse("Upload over", upload.await(200, TimeUnit.MILLISECONDS));
+		assertTrue("Not cancelled", upload.cancel());
+		assertTrue("Not over", upload.await(5, TimeUnit.SECONDS));
+		assertSame(HGDUpload.State.CANCELLED, upload.getState());
+		assertTrue("No failure",
+				upload.getFailure() instanceof CancellationException);
+		assertFalse("Cancelled twice", upload.cancel());
+	}
+
+	/**
+	 * Test that an error of the listener fails the upload and disconnects the
+	 * client, whose daemon still waits for the rest of the file.
+	 * @throws Exception
+	 */
+	@Test
+	public void testListenerError() throws Exception {
+		client.connect(HGDConsts.DEFAULT_HOST);
+		client.login("kaduardo", "");
+		final RuntimeException error = new IllegalStateException("Listener");
+		HGDUpload upload = new HGDUpload(client, file);
+		upload.setListener(new UploadListener() {
+			public void progress(HGDUpload upload) {
+				throw error;
+			}
+
+			public void finished(HGDUpload upload) {
+			}
+		});
+		try {
+			upload.call();
+			fail("Listener error ignored");
+		} catch (IllegalStateException e) {
+			assertSame(error, e);
+		}
+		assertSame(HGDUpload.State.FAILED, upload.getState());
+		assertFalse("Client still connected", client.isConnected());
+
+		client.connect(HGDConsts.DEFAULT_HOST);
+		client.login("kaduardo", "");
+		assertTrue("Client unusable", client.requestPlaylist().length > 0);
+	}
+
+	/**
+	 * Test that interrupting the uploading thread cancels the upload.
+	 * @throws Exception
+	 */
+	@Test
+	public void testInterrupt() throws Exception {
+		client.connect(HGDConsts.DEFAULT_HOST);
+		client.login("kaduardo", "");
+		HGDUpload upload = new HGDUpload(client, file);
+		upload.setListener(new UploadListener() {
+			public void progress(HGDUpload upload) {
+				// Stops the next write of the engine
+				Thread.currentThread().interrupt();
+			}
+
+			public void finished(HGDUpload upload) {
+			}
+		});
+		try {
+			upload.call();
+			fail("Upload not interrupted");
+		} catch (InterruptedIOException e) {
+			assertSame(HGDUpload.State.CANCELLED, upload.getState());
+		} finally {
+			Thread.interrupted();
+		}
+		assertFalse("Client still connected", client.isConnected());
+	}
+
+	/**
+	 * Connects the client to a daemon that delays the "q" reply.
+	 */
+	private void connectStalled() throws Exception {
+		stalled = new FakeHGDDaemon(0);
+		stalled.setLatency("q", 10000);
+		client.connect(HGDConsts.DEFAULT_HOST, stalled.getPort());
+		client.login(FakeHGDDaemon.DEFAULT_USER,
+				FakeHGDDaemon.DEFAULT_PASSWORD);
+	}
+}
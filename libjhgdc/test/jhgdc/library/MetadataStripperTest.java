@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ * 
+ *  This file is part of libjhgdc.
+ * 
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the metadata stripping transform.
+ *
+ * @version 0.1.0
+ *
+ */
+public class MetadataStripperTest {
+
+	/**
+	 * The file transformed.
+	 */
+	File file;
+
+	/**
+	 * Creates the file.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("track", ".mp3");
+	}
+
+	/**
+	 * Deletes the file.
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+	}
+
+	/**
+	 * Test that the pictures of an ID3v2.3 tag are stripped.
+	 * @throws Exception
+	 */
+	@Test
+	public void testID3() throws Exception {
+		byte[] title = frame("TIT2", 12);
+		byte[] audio = bytes(5000, 1);
+		write(id3(title, frame("APIC", 3000), new byte[100]), audio);
+
+		byte[] expected = concat(id3(title, new byte[100]), audio);
+		assertArrayEquals(expected, transform(new MetadataStripper()));
+	}
+
+	/**
+	 * Test that the last picture block of a FLAC file is stripped, and the
+	 * block before it flagged as the last one.
+	 * @throws Exception
+	 */
+	@Test
+	public void testFLAC() throws Exception {
+		byte[] streamInfo = block(0, false, 34);
+		byte[] comment = block(4, false, 40);
+		byte[] frames = bytes(2000, 2);
+		write("fLaC".getBytes("US-ASCII"), streamInfo, comment,
+				block(6, true, 4000), frames);
+
+		byte[] last = block(4, true, 40);
+		byte[] expected = concat("fLaC".getBytes("US-ASCII"), streamInfo,
+				last, frames);
+		assertArrayEquals(expected, transform(new MetadataStripper()));
+
+		// Strip the comments too
+		expected = concat("fLaC".getBytes("US-ASCII"), block(0, true, 34),
+				frames);
+		assertArrayEquals(expected, transform(new MetadataStripper(
+				Collections.<String> emptySet(), Arrays.asList(4, 6))));
+	}
+
+	/**
+	 * Test that files without anything to strip, or malformed, are sent
+	 * unchanged.
+	 * @throws Exception
+	 */
+	@Test
+	public void testUnchanged() throws Exception {
+		write(id3(frame("TIT2", 12)), bytes(100, 3));
+		assertNull(plan(new MetadataStripper()));
+
+		// A frame larger than the tag
+		byte[] tag = id3(frame("APIC", 20));
+		tag[14] = 0x7f;
+		write(tag, bytes(100, 3));
+		assertNull(plan(new MetadataStripper()));
+
+		write(bytes(1000, 4));
+		assertNull(plan(new MetadataStripper()));
+	}
+
+	/**
+	 * Test that the daemon receives the stripped file.
+	 * @throws Exception
+	 */
+	@Test
+	public void testUpload() throws Exception {
+		write(id3(frame("TIT2", 12), frame("APIC", 3000)), bytes(5000, 1));
+		long expected = plan(new MetadataStripper()).getLength();
+
+		FakeHGDDaemon daemon = new FakeHGDDaemon(0);
+		HGDClient client = new HGDClient();
+		try {
+			client.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+			client.login(FakeHGDDaemon.DEFAULT_USER,
+					FakeHGDDaemon.DEFAULT_PASSWORD);
+			client.setUploadTransform(new MetadataStripper());
+			client.requestQueue(file);
+			assertEquals(expected, daemon.getBytesReceived());
+		} finally {
+			if (client.isConnected())
+				client.disconnect(true);
+			daemon.close();
+		}
+	}
+
+	/**
+	 * Test that the index records the hash of the whole file, not of the
+	 * stripped content sent.
+	 * @throws Exception
+	 */
+	@Test
+	public void testIndexedUpload() throws Exception {
+		write(id3(frame("TIT2", 12), frame("APIC", 3000), frame("TALB", 7)),
+				bytes(3 * 1024 * 1024 + 5, 1));
+		File indexFile = File.createTempFile("uploads", ".idx");
+		indexFile.delete();
+		UploadIndex index = new UploadIndex(indexFile);
+
+		FakeHGDDaemon daemon = new FakeHGDDaemon(0);
+		HGDClient client = new HGDClient();
+		try {
+			client.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+			client.login(FakeHGDDaemon.DEFAULT_USER,
+					FakeHGDDaemon.DEFAULT_PASSWORD);
+			client.setUploadTransform(new MetadataStripper());
+			client.setUploadIndex(index);
+			client.requestQueue(file);
+			assertEquals(plan(new MetadataStripper()).getLength(), daemon
+					.getBytesReceived());
+			assertArrayEquals(UploadEngineTest.sha256(file), index
+					.getHash(file));
+		} finally {
+			if (client.isConnected())
+				client.disconnect(true);
+			daemon.close();
+			index.close();
+			indexFile.delete();
+		}
+	}
+
+	private UploadPlan plan(UploadTransform transform) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath());
+		try {
+			return transform.plan(channel);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private byte[] transform(UploadTransform transform) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath());
+		try {
+			UploadPlan plan = transform.plan(channel);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			plan.transferTo(channel, Channels.newChannel(out));
+			assertEquals(plan.getLength(), out.size());
+			return out.toByteArray();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void write(byte[]... parts) throws IOException {
+		Files.write(file.toPath(), concat(parts));
+	}
+
+	/**
+	 * Returns an ID3v2.3 tag holding the given frames.
+	 */
+	private static byte[] id3(byte[]... frames) {
+		byte[] body = concat(frames);
+		ByteBuffer header = ByteBuffer.allocate(10);
+		header.put(new byte[] { 'I', 'D', '3', 3, 0, 0 });
+		for (int shift = 21; shift >= 0; shift -= 7) {
+			header.put((byte) (body.length >>> shift & 0x7f));
+		}
+		return concat(header.array(), body);
+	}
+
+	private static byte[] frame(String id, int size) throws IOException {
+		ByteBuffer frame = ByteBuffer.allocate(10 + size);
+		frame.put(id.getBytes("US-ASCII")).putInt(size).putShort((short) 0);
+		frame.put(bytes(size, id.charAt(0)));
+		return frame.array();
+	}
+
+	private static byte[] block(int type, boolean last, int size) {
+		ByteBuffer block = ByteBuffer.allocate(4 + size);
+		block.putInt((last ? 0x80000000 : 0) | type << 24 | size);
+		block.put(bytes(size, type + 10));
+		return block.array();
+	}
+
+	private static byte[] bytes(int size, int value) {
+		byte[] bytes = new byte[size];
+		Arrays.fill(bytes, (byte) value);
+		return bytes;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] part : parts) {
+			out.write(part, 0, part.length);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ * 
+ *  This file is part of libjhgdc.
+ * 
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the now playing watcher.
+ *
+ * @version 0.1.0
+ *
+ */
+public class NowPlayingWatcherTest extends SharedDaemonFixture {
+
+	/**
+	 * The watched client.
+	 */
+	HGDClient client;
+
+	/**
+	 * The watcher.
+	 */
+	NowPlayingWatcher watcher;
+
+	/**
+	 * The events received.
+	 */
+	BlockingQueue<NowPlayingWatcher.Event> events;
+
+	/**
+	 * Connects the client and subscribes to the watcher.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		client = new HGDClient();
+		client.connect(HGDConsts.DEFAULT_HOST);
+		watcher = new NowPlayingWatcher(client, 10, 100);
+		events = new LinkedBlockingQueue<NowPlayingWatcher.Event>();
+		watcher.subscribe(new Flow.Subscriber<NowPlayingWatcher.Event>() {
+			public void onSubscribe(Flow.Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			public void onNext(NowPlayingWatcher.Event item) {
+				events.add(item);
+			}
+
+			public void onError(Throwable throwable) {
+			}
+
+			public void onComplete() {
+			}
+		});
+	}
+
+	/**
+	 * Stops the watcher and disconnects the client.
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		watcher.close();
+		if (client.isConnected()) {
+			client.disconnect(true);
+		}
+	}
+
+	/**
+	 * Test that the first poll publishes the current track and playlist, and
+	 * that later polls publish nothing while the daemon does not change.
+	 * @throws Exception
+	 */
+	@Test
+	public void testFirstPoll() throws Exception {
+		watcher.start();
+		NowPlayingWatcher.Event event = events.poll(5, TimeUnit.SECONDS);
+		assertNotNull("No event published", event);
+		assertEquals("Wrong event", NowPlayingWatcher.Event.Type.TRACK_CHANGED,
+				event.getType());
+		PlaylistItem track = event.getTrack();
+		assertNotNull("No track published", track);
+
+		while (watcher.getPollCount() < 3) {
+			Thread.sleep(10);
+		}
+		int playlistEvents = 0;
+		while ((event = events.poll()) != null) {
+			assertEquals("Unexpected event",
+					NowPlayingWatcher.Event.Type.PLAYLIST_CHANGED,
+					event.getType());
+			assertEquals("Tracks removed", 0, event.getRemoved().size());
+			assertEquals("Tracks updated", 0, event.getUpdated().size());
+			assertEquals("Wrong track id", track.getTrackId(),
+					event.getTrack().getTrackId());
+			assertEquals("Wrong filename", track.getFilename(),
+					event.getTrack().getFilename());
+
+			// The playlist is parsed from "ls", not copied from "np"
+			PlaylistItem listed = null;
+			for (PlaylistItem item : event.getAdded()) {
+				if (item.getTrackId() == track.getTrackId()) {
+					listed = item;
+				}
+			}
+			assertNotNull("Track not in the playlist", listed);
+			assertEquals("Wrong filename", listed.getFilename(),
+					track.getFilename());
+			playlistEvents++;
+		}
+		if (playlistEvents > 1) {
+			fail("Unchanged playlist published again");
+		}
+	}
+
+	/**
+	 * Test that the dense polls near the end of a track do not fetch the
+	 * whole playlist each time.
+	 * @throws Exception
+	 */
+	@Test
+	public void testDensePolls() throws Exception {
+		FakeHGDDaemon daemon = new FakeHGDDaemon(0);
+		HGDClient other = new HGDClient();
+		NowPlayingWatcher dense = new NowPlayingWatcher(other, 20, 1000);
+		try {
+			daemon.setPlaylistSize(3);
+			daemon.setTrackDuration(1);
+			daemon.setPlaying(false);
+			other.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+			dense.start();
+			while (dense.getPollCount() < 1) {
+				Thread.sleep(10);
+			}
+			// The start of the track is observed, its end is near
+			daemon.setPlaying(true);
+			long deadline = System.currentTimeMillis() + 10000;
+			while (dense.getPollCount() < 12
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			dense.close();
+			int np = daemon.getCommandCount("np");
+			int ls = daemon.getCommandCount("ls");
+			assertTrue("Too few polls: " + np, np >= 12);
+			assertTrue("Playlist fetched " + ls + " times in " + np
+					+ " polls", ls * 2 < np);
+		} finally {
+			dense.close();
+			if (other.isConnected()) {
+				other.disconnect(true);
+			}
+			daemon.close();
+		}
+	}
+
+	/**
+	 * Test that the watcher can only be started once.
+	 */
+	@Test(expected = IllegalStateException.class)
+	public void testStartTwice() {
+		watcher.start();
+		watcher.start();
+	}
+
+	/**
+	 * Test that polls get denser near the expected end of a track.
+	 */
+	@Test
+	public void testDelay() {
+		long min = 250;
+		long max = 10000;
+		assertEquals(max, NowPlayingWatcher.delay(180000, min, max));
+		assertEquals(5000, NowPlayingWatcher.delay(10000, min, max));
+		assertEquals(min, NowPlayingWatcher.delay(100, min, max));
+		assertEquals(min, NowPlayingWatcher.delay(0, min, max));
+		assertEquals(2000, NowPlayingWatcher.delay(-4000, min, max));
+		assertEquals(max, NowPlayingWatcher.delay(-60000, min, max));
+	}
+
+	/**
+	 * Test that the track id is read without parsing the line.
+	 */
+	@Test
+	public void testTrackId() {
+		assertEquals(42, NowPlayingWatcher.trackId("42|a.mp3|||kaduardo|||0|0|0|0|0|1|0"));
+		try {
+			NowPlayingWatcher.trackId("x|a.mp3");
+			fail("Malformed line accepted");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			NowPlayingWatcher.trackId("42");
+			fail("Malformed line accepted");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ * 
+ *  This file is part of libjhgdc.
+ * 
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the playlist and now playing
+ * parsers.
+ *
+ * @version 0.1.0
+ *
+ */
+public class PlaylistItemTest {
+
+	private static final String LINE = "42|song.ogg|Artist|Title|kaduardo|Album|Rock|215|192|44100|2|1999|3|1";
+
+	/**
+	 * Test the parsing of every field.
+	 */
+	@Test
+	public void testParse() {
+		PlaylistItem item = PlaylistItem.parse(LINE);
+		assertEquals("Wrong track id", 42, item.getTrackId());
+		assertEquals("Wrong filename", "song.ogg", item.getFilename());
+		assertEquals("Wrong artist", "Artist", item.getArtist());
+		assertEquals("Wrong title", "Title", item.getTitle());
+		assertEquals("Wrong user", "kaduardo", item.getUser());
+		assertEquals("Wrong album", "Album", item.getAlbum());
+		assertEquals("Wrong genre", "Rock", item.getGenre());
+		assertEquals("Wrong duration", 215, item.getDuration());
+		assertEquals("Wrong bitrate", 192, item.getBitrate());
+		assertEquals("Wrong samplerate", 44100, item.getSampleRate());
+		assertEquals("Wrong channels", 2, item.getChannels());
+		assertEquals("Wrong year", 1999, item.getYear());
+		assertEquals("Wrong votes needed", 3, item.getVotesNeeded());
+		assertTrue("Wrong voted flag", item.hasVoted());
+		assertTrue("Wrong user", item.fieldEquals(PlaylistItem.USER, "kaduardo"));
+		assertEquals("Wrong line", LINE, item.toString());
+	}
+
+	/**
+	 * Test empty fields, as sent for files without tags.
+	 */
+	@Test
+	public void testEmptyFields() {
+		PlaylistItem item = PlaylistItem.parse("7|a.mp3|||bob|||0|||||3|0");
+		assertEquals("Wrong artist", "", item.getArtist());
+		assertEquals("Wrong bitrate", 0, item.getBitrate());
+		assertFalse("Wrong voted flag", item.hasVoted());
+	}
+
+	/**
+	 * Test a line with missing fields.
+	 */
+	@Test (expected=IllegalArgumentException.class)
+	public void testMalformed() {
+		PlaylistItem.parse("42|song.ogg|Artist");
+	}
+
+	/**
+	 * Test a line with more fields than a playlist item.
+	 */
+	@Test (expected=IllegalArgumentException.class)
+	public void testTooManyFields() {
+		PlaylistItem.parse(LINE + "|1");
+	}
+
+	/**
+	 * Test that a malformed line leaves a reused instance unchanged.
+	 */
+	@Test
+	public void testFailedReset() {
+		PlaylistItem item = PlaylistItem.parse(LINE);
+		assertEquals("Wrong track id", 42, item.getTrackId());
+		String[] malformed = { "43|other.ogg|Artist", LINE.replace("42|", "43|") + "|1" };
+		for (String line : malformed) {
+			try {
+				item.reset(line);
+				fail("IllegalArgumentException expected");
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+			assertEquals("Item changed", LINE, item.toString());
+			assertEquals("Wrong track id", 42, item.getTrackId());
+		}
+	}
+
+	/**
+	 * Test the reuse of a single instance.
+	 */
+	@Test
+	public void testFlyweight() {
+		String[] lines = { LINE, LINE.replace("42|", "43|") };
+		PlaylistItem previous = null;
+		int expected = 42;
+		for (PlaylistItem item : PlaylistItem.flyweight(lines)) {
+			if (previous != null) {
+				assertSame("Instance not reused", previous, item);
+			}
+			assertEquals("Wrong track id", expected++, item.getTrackId());
+			previous = item;
+		}
+		PlaylistItem copy = previous.copy();
+		assertNotSame("Copy not created", previous, copy);
+		assertEquals("Wrong copy", previous.toString(), copy.toString());
+	}
+
+	/**
+	 * Test the now playing reply.
+	 */
+	@Test
+	public void testNowPlaying() {
+		NowPlaying nowPlaying = NowPlaying.parse("ok|1|" + LINE);
+		assertTrue("Nothing playing", nowPlaying.isPlaying());
+		assertEquals("Wrong track id", 42, nowPlaying.getItem().getTrackId());
+		assertEquals("Wrong line", LINE, nowPlaying.getItem().toString());
+
+		nowPlaying.reset("ok|0");
+		assertFalse("Something playing", nowPlaying.isPlaying());
+		assertNull("Track returned", nowPlaying.getItem());
+	}
+
+	/**
+	 * Test that the copy of a now playing track keeps the track, and is not
+	 * affected by a reset of the reply.
+	 */
+	@Test
+	public void testNowPlayingCopy() {
+		NowPlaying nowPlaying = NowPlaying.parse("ok|1|" + LINE);
+		PlaylistItem copy = nowPlaying.getItem().copy();
+		nowPlaying.reset("ok|1|" + LINE.replace("42|song", "43|other"));
+		assertEquals("Wrong track id", 42, copy.getTrackId());
+		assertEquals("Wrong filename", "song.ogg", copy.getFilename());
+		assertEquals("Wrong line", LINE, copy.toString());
+	}
+}
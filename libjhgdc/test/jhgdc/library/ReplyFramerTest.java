@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the reply framing.
+ *
+ * @version 0.1.0
+ *
+ */
+public class ReplyFramerTest {
+
+	/**
+	 * Creates a framer over the given replies.
+	 */
+	private static ReplyFramer framer(String replies, int maxLine) {
+		return new ReplyFramer(new ByteArrayInputStream(
+				replies.getBytes(StandardCharsets.UTF_8)), 16, maxLine);
+	}
+
+	/**
+	 * Test the line terminators and the padding.
+	 * @throws Exception
+	 */
+	@Test
+	public void testTerminators() throws Exception {
+		ReplyFramer framer = framer("ok|1\r\nok|2\nok|3\rok|4 \0\0\0\r\n"
+				+ "\r\n\0\0  ok|5\r\n", 512);
+		for (int i = 1; i <= 5; i++) {
+			assertEquals("ok|" + i, framer.readLine().toString());
+		}
+		assertNull(framer.readLine());
+	}
+
+	/**
+	 * Test that a line is read one byte at a time, and that lines which are
+	 * not ASCII are decoded as UTF-8.
+	 * @throws Exception
+	 */
+	@Test
+	public void testSlowUtf8() throws Exception {
+		final InputStream in = new ByteArrayInputStream(
+				"ok|Sigur R\u00f3s \u2013 Hopp\u00edpolla\r\nok\r\n"
+						.getBytes(StandardCharsets.UTF_8));
+		ReplyFramer framer = new ReplyFramer(new FilterInputStream(in) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, 1));
+			}
+		}, 16, 512);
+		CharSequence line = framer.readLine();
+		assertEquals("ok|Sigur R\u00f3s \u2013 Hopp\u00edpolla", line.toString());
+		assertEquals('\u2013', line.charAt(13));
+		line = framer.readLine();
+		assertEquals(2, line.length());
+		assertEquals("k", line.subSequence(1, 2));
+		assertNull(framer.readLine());
+	}
+
+	/**
+	 * Test that a line longer than the limit fails, whether it is in the
+	 * buffer already or not.
+	 * @throws Exception
+	 */
+	@Test
+	public void testOverlong() throws Exception {
+		StringBuilder line = new StringBuilder("ok|");
+		while (line.length() < 100) {
+			line.append('x');
+		}
+		ReplyFramer framer = framer(line + "\r\n", 99);
+		try {
+			framer.readLine();
+			fail("HGDProtocolException expected");
+		} catch (HGDProtocolException e) {
+			// Expected
+		}
+
+		while (line.length() < 4096) {
+			line.append('x');
+		}
+		framer = framer(line + "\r\n", 512);
+		try {
+			framer.readLine();
+			fail("HGDProtocolException expected");
+		} catch (HGDProtocolException e) {
+			// Expected
+		}
+
+		framer = framer(line.substring(0, 99) + "\0\0\0\r\n", 99);
+		assertEquals(99, framer.readLine().length());
+	}
+
+	/**
+	 * Test that a line cut by the end of the stream fails.
+	 * @throws Exception
+	 */
+	@Test
+	public void testTruncated() throws Exception {
+		ReplyFramer framer = framer("ok|1\r\nok|", 512);
+		assertEquals("ok|1", framer.readLine().toString());
+		try {
+			framer.readLine();
+			fail("HGDProtocolException expected");
+		} catch (HGDProtocolException e) {
+			// Expected
+		}
+	}
+}
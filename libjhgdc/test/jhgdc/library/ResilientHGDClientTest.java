@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ * 
+ *  This file is part of libjhgdc.
+ * 
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the session restoration.
+ *
+ * @version 0.1.0
+ *
+ */
+public class ResilientHGDClientTest {
+
+	/**
+	 * A daemon whose connections are dropped by the tests.
+	 */
+	FakeHGDDaemon daemon;
+
+	/**
+	 * The wrapped client.
+	 */
+	HGDClient client;
+
+	/**
+	 * Starts a daemon and logs a client in.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		daemon = new FakeHGDDaemon(5);
+		client = new HGDClient();
+		client.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+		client.login(FakeHGDDaemon.DEFAULT_USER, FakeHGDDaemon.DEFAULT_PASSWORD);
+	}
+
+	/**
+	 * Disconnects the client and stops the daemon.
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected())
+			client.disconnect(false);
+		daemon.close();
+	}
+
+	/**
+	 * Test that a connection closed by the daemon is reported as such.
+	 * @throws Exception
+	 */
+	@Test
+	public void testConnectionClosed() throws Exception {
+		daemon.dropConnections();
+		try {
+			client.requestNowPlaying();
+			fail("EOFException expected");
+		} catch (EOFException e) {
+			// Expected
+		}
+		assertFalse("Client still connected", client.isConnected());
+		assertFalse("Client still authenticated", client.isAuthenticated());
+	}
+
+	/**
+	 * Test that a command without side effects is sent again on a restored
+	 * session.
+	 * @throws Exception
+	 */
+	@Test
+	public void testRetry() throws Exception {
+		ResilientHGDClient resilient = new ResilientHGDClient(client);
+		daemon.dropConnections();
+		assertEquals(5, resilient.requestPlaylist().length);
+		assertEquals(1, resilient.getReconnectCount());
+		assertTrue("Session not restored", resilient.requestUserInformation()
+				.startsWith("ok|" + FakeHGDDaemon.DEFAULT_USER + "|"));
+	}
+
+	/**
+	 * Test that the encryption is restored.
+	 * @throws Exception
+	 */
+	@Test
+	public void testRestoreEncryption() throws Exception {
+		client.disconnect(false);
+		client.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+		client.requestEncryption();
+		client.login(FakeHGDDaemon.DEFAULT_USER, FakeHGDDaemon.DEFAULT_PASSWORD);
+		ResilientHGDClient resilient = new ResilientHGDClient(client);
+
+		daemon.dropConnections();
+		resilient.requestNowPlaying();
+		assertTrue("Encryption not restored", client.isEncrypted());
+		assertTrue("Login not restored", client.isAuthenticated());
+	}
+
+	/**
+	 * Test that a vote is not sent again when its reply is lost, but that
+	 * the next command reconnects.
+	 * @throws Exception
+	 */
+	@Test
+	public void testVoteOffAtMostOnce() throws Exception {
+		ResilientHGDClient resilient = new ResilientHGDClient(client);
+		daemon.setLatency("vo", 500);
+		Thread dropper = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+					daemon.dropConnections();
+				} catch (Exception e) {
+					// The vote then succeeds, and the test fails
+				}
+			}
+		};
+		dropper.start();
+		try {
+			resilient.requestVoteOff();
+			fail("IOException expected");
+		} catch (IOException e) {
+			// Expected
+		}
+		dropper.join();
+		assertEquals("Vote sent again", 1, daemon.getCommandCount("vo"));
+
+		daemon.setLatency("vo", 0);
+		resilient.requestVoteOff();
+		assertEquals(2, daemon.getCommandCount("vo"));
+		assertEquals(1, resilient.getReconnectCount());
+	}
+
+	/**
+	 * Test that a dropped idle connection is replaced before a vote is sent.
+	 * @throws Exception
+	 */
+	@Test
+	public void testVoteOffAfterDrop() throws Exception {
+		ResilientHGDClient resilient = new ResilientHGDClient(client);
+		daemon.dropConnections();
+		Thread.sleep(100);
+		resilient.requestVoteOff();
+		assertEquals(1, daemon.getCommandCount("vo"));
+		assertEquals(1, resilient.getReconnectCount());
+	}
+
+	/**
+	 * Test that the client gives up once the attempts are exhausted.
+	 * @throws Exception
+	 */
+	@Test
+	public void testGiveUp() throws Exception {
+		// Outside of the ephemeral range, so the client can not connect to
+		// itself once the daemon is closed
+		daemon.close();
+		daemon = new FakeHGDDaemon(5, HGDConsts.DEFAULT_PORT + 1);
+		client.disconnect(false);
+		client.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+		ResilientHGDClient resilient = new ResilientHGDClient(client, 3, 10,
+				20);
+		daemon.close();
+		try {
+			resilient.requestProto();
+			fail("IOException expected");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertFalse("Client connected", client.isConnected());
+		assertEquals(0, resilient.getReconnectCount());
+	}
+}
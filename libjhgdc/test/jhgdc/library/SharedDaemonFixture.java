@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ * 
+ *  This file is part of libjhgdc.
+ * 
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package jhgdc.library;
+
+import org.junit.BeforeClass;
+
+/**
+ * Base class of the test cases talking to the daemon on
+ * HGDConsts.DEFAULT_HOST and HGDConsts.DEFAULT_PORT.
+ *
+ * @version 0.1.0
+ *
+ */
+public abstract class SharedDaemonFixture {
+
+	/**
+	 * Starts the fake daemon, unless a real one is used.
+	 * @throws java.lang.Exception
+	 */
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		FakeHGDDaemon.startShared();
+	}
+}
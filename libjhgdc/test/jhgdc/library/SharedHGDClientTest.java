@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ * 
+ *  This file is part of libjhgdc.
+ * 
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the client shared by several
+ * threads.
+ *
+ * @version 0.1.0
+ *
+ */
+public class SharedHGDClientTest {
+
+	/**
+	 * The number of threads sharing the client.
+	 */
+	static final int THREADS = 32;
+
+	/**
+	 * A daemon with some latency, so that commands queue up.
+	 */
+	FakeHGDDaemon daemon;
+
+	/**
+	 * The wrapped client.
+	 */
+	HGDClient client;
+
+	/**
+	 * The shared client.
+	 */
+	SharedHGDClient shared;
+
+	/**
+	 * The threads.
+	 */
+	ExecutorService executor;
+
+	/**
+	 * Starts a daemon and connects a client to it.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		daemon = new FakeHGDDaemon(5);
+		daemon.setLatency("np", 2);
+		client = new HGDClient();
+		client.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+		shared = new SharedHGDClient(client);
+		executor = Executors.newFixedThreadPool(THREADS);
+	}
+
+	/**
+	 * Stops the threads, the client and the daemon.
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+		if (client.isConnected())
+			client.disconnect(true);
+		daemon.close();
+	}
+
+	/**
+	 * Test that the replies of concurrent commands reach their callers, and
+	 * that the commands are pipelined.
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentCommands() throws Exception {
+		client.login(FakeHGDDaemon.DEFAULT_USER, FakeHGDDaemon.DEFAULT_PASSWORD);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int t = 0; t < THREADS; t++) {
+			futures.add(executor.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					for (int i = 0; i < 10; i++) {
+						assertEquals(HGDConsts.PROTOCOLVERSION, shared
+								.requestProto());
+						assertTrue(shared.requestUserInformation().startsWith(
+								"ok|" + FakeHGDDaemon.DEFAULT_USER + "|"));
+						assertEquals(5, shared.requestPlaylist().length);
+						assertTrue(shared.requestNowPlaying().startsWith("ok"));
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> future : futures) {
+			future.get();
+		}
+		assertEquals(THREADS * 40, shared.getCommandCount());
+		assertTrue("Commands not pipelined: " + shared.getBatchCount(),
+				shared.getBatchCount() < shared.getCommandCount());
+	}
+
+	/**
+	 * Test that a refused command only fails its own caller.
+	 * @throws Exception
+	 */
+	@Test
+	public void testErrorReachesCaller() throws Exception {
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		for (int t = 0; t < THREADS; t++) {
+			final boolean refused = t % 2 == 0;
+			futures.add(executor.submit(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					try {
+						if (refused) {
+							shared.requestUserInformation();
+						} else {
+							shared.requestNowPlaying();
+						}
+						return !refused;
+					} catch (JHGDException e) {
+						return refused;
+					}
+				}
+			}));
+		}
+		for (Future<Boolean> future : futures) {
+			assertTrue("Reply given to the wrong caller", future.get());
+		}
+	}
+
+	/**
+	 * Test that uploads get the connection for themselves while other
+	 * threads send commands.
+	 * @throws Exception
+	 */
+	@Test
+	public void testExclusiveUpload() throws Exception {
+		client.login(FakeHGDDaemon.DEFAULT_USER, FakeHGDDaemon.DEFAULT_PASSWORD);
+		final File file = File.createTempFile("shared", ".ogg");
+		try {
+			Files.write(file.toPath(), new byte[64 * 1024]);
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int t = 0; t < THREADS; t++) {
+				final boolean upload = t % 4 == 0;
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						for (int i = 0; i < 5; i++) {
+							if (upload) {
+								shared.requestQueue(file);
+							} else {
+								shared.requestPlaylist();
+								assertTrue(shared.requestNowPlaying()
+										.startsWith("ok"));
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+			assertEquals(THREADS / 4 * 5 * file.length(), daemon
+					.getBytesReceived());
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Test that a combiner returns to its caller once its reply is complete,
+	 * while more threads than fit in a batch keep sending commands.
+	 * @throws Exception
+	 */
+	@Test
+	public void testCombinerReturns() throws Exception {
+		daemon.setLatency("proto", 200);
+		Future<String> caller = executor.submit(new Callable<String>() {
+			public String call() throws Exception {
+				return shared.requestProto();
+			}
+		});
+		// Let the caller become the combiner
+		Thread.sleep(50);
+
+		final AtomicBoolean stop = new AtomicBoolean();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 2 * SharedHGDClient.MAX_BATCH; t++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						while (!stop.get()) {
+							shared.requestNowPlaying();
+						}
+					} catch (Exception e) {
+						// Reported by the caller
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		try {
+			assertEquals(HGDConsts.PROTOCOLVERSION,
+					caller.get(10, TimeUnit.SECONDS));
+		} catch (TimeoutException e) {
+			fail("Combiner kept sending the other requests");
+		} finally {
+			stop.set(true);
+		}
+		for (Thread thread : threads) {
+			thread.join(10000);
+		}
+	}
+
+	/**
+	 * Test that a failed operation does not block the other threads.
+	 * @throws Exception
+	 */
+	@Test
+	public void testFailedOperation() throws Exception {
+		try {
+			shared.execute(new HGDClientPool.Operation<Void>() {
+				public Void execute(HGDClient client) throws JHGDException {
+					throw new JHGDException("Failure");
+				}
+			});
+			fail("JHGDException expected");
+		} catch (JHGDException e) {
+			// Expected
+		}
+		assertEquals(HGDConsts.PROTOCOLVERSION, shared.requestProto());
+	}
+}
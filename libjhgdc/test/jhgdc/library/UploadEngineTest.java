@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ *
+ *  This file is part of libjhgdc.
+ *
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the upload engine.
+ *
+ * @version 0.1.0
+ *
+ */
+public class UploadEngineTest {
+
+	/**
+	 * A daemon of its own, to check the bytes it receives.
+	 */
+	FakeHGDDaemon daemon;
+
+	/**
+	 * An authenticated client.
+	 */
+	HGDClient client;
+
+	/**
+	 * Starts the daemon and logs the client in.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		daemon = new FakeHGDDaemon(0);
+		client = new HGDClient();
+		client.setTlsContext(HGDTlsContext.trustAll());
+		client.connect(HGDConsts.DEFAULT_HOST, daemon.getPort());
+	}
+
+	/**
+	 * Disconnects the client and stops the daemon.
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected())
+			client.disconnect(false);
+		daemon.close();
+	}
+
+	/**
+	 * Test that the files sent over TLS, with the read-ahead thread for the
+	 * large ones, reach the daemon unchanged.
+	 * @throws Exception
+	 */
+	@Test
+	public void testEncryptedUpload() throws Exception {
+		client.requestEncryption();
+		client.login(FakeHGDDaemon.DEFAULT_USER, FakeHGDDaemon.DEFAULT_PASSWORD);
+		long total = 0;
+		int[] sizes = { 1000, 2 * UploadEngine.MIN_CHUNK,
+				2 * UploadEngine.MIN_CHUNK + 1, 5 * 1024 * 1024 + 17 };
+		for (int size : sizes) {
+			File file = createFile(size);
+			try {
+				client.requestQueue(file);
+				assertArrayEquals("Wrong content for " + size + " bytes",
+						sha256(file), daemon.getUploadDigest(file.getName()));
+			} finally {
+				file.delete();
+			}
+			total += size;
+		}
+		assertEquals(total, daemon.getBytesReceived());
+		assertTrue("Client unusable", client.requestPlaylist().length > 0);
+	}
+
+	/**
+	 * Test that a failed encrypted upload leaves the channel of the caller
+	 * open, even when the reader thread is in the middle of a read.
+	 * @throws Exception
+	 */
+	@Test
+	public void testFailedUploadKeepsChannel() throws Exception {
+		client.requestEncryption();
+		client.login(FakeHGDDaemon.DEFAULT_USER, FakeHGDDaemon.DEFAULT_PASSWORD);
+		daemon.setUploadLimit(UploadEngine.MAX_CHUNK);
+		File file = createFile(16 * 1024 * 1024);
+		FileChannel channel = new SlowChannel(new FileInputStream(file)
+				.getChannel());
+		try {
+			try {
+				client.requestQueue("failed.ogg", file.length(), channel);
+				fail("Upload not failed");
+			} catch (IOException e) {
+				assertFalse("Client still connected", client.isConnected());
+			}
+			assertTrue("Channel closed", channel.isOpen());
+			assertEquals(0, channel.position());
+			assertTrue(channel.read(ByteBuffer.allocate(1024), 0) > 0);
+		} finally {
+			channel.close();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Test that a channel which never blocks is refused or given up on,
+	 * rather than spun on.
+	 * @throws Exception
+	 */
+	@Test
+	public void testNonBlockingChannel() throws Exception {
+		client.login(FakeHGDDaemon.DEFAULT_USER, FakeHGDDaemon.DEFAULT_PASSWORD);
+		Pipe pipe = Pipe.open();
+		try {
+			pipe.source().configureBlocking(false);
+			client.requestQueue("pipe.ogg", 10, pipe.source());
+			fail("IllegalArgumentException expected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		} finally {
+			pipe.source().close();
+			pipe.sink().close();
+		}
+
+		ReadableByteChannel empty = new ReadableByteChannel() {
+			public int read(ByteBuffer dst) {
+				return 0;
+			}
+
+			public boolean isOpen() {
+				return true;
+			}
+
+			public void close() {
+			}
+		};
+		try {
+			client.requestQueue("empty.ogg", 10, empty);
+			fail("IOException expected");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Test that a buffer source sends exactly the declared size.
+	 * @throws Exception
+	 */
+	@Test
+	public void testBufferSize() throws Exception {
+		UploadEngine.Source source = UploadEngine.source(ByteBuffer
+				.allocate(10));
+		for (long count : new long[] { 9, 11 }) {
+			try {
+				source.send(count, null);
+				fail("IOException expected");
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+	}
+
+	/**
+	 * Test that the chunk grows while the throughput improves, and only then.
+	 */
+	@Test
+	public void testChunkTuner() {
+		UploadEngine.ChunkTuner tuner = new UploadEngine.ChunkTuner();
+		assertEquals(UploadEngine.MIN_CHUNK, tuner.chunk());
+
+		// Each round twice as fast as the previous one
+		long nanos = 1000000;
+		while (tuner.chunk() < UploadEngine.MAX_CHUNK) {
+			int chunk = tuner.chunk();
+			for (int i = 0; i < 4; i++) {
+				tuner.record(chunk, nanos);
+			}
+			assertTrue("Chunk not grown", tuner.chunk() > chunk);
+			nanos /= 2;
+		}
+
+		// Flat throughput afterwards
+		tuner = new UploadEngine.ChunkTuner();
+		for (int round = 0; round < 4; round++) {
+			for (int i = 0; i < 4; i++) {
+				tuner.record(tuner.chunk(), tuner.chunk() * 10L);
+			}
+		}
+		assertEquals("Chunk grown without gain", 2 * UploadEngine.MIN_CHUNK,
+				tuner.chunk());
+	}
+
+	/**
+	 * A file channel whose reads are slow and interruptible, as on a slow
+	 * disk: an interrupt during a read closes it.
+	 */
+	static class SlowChannel extends FileChannel {
+
+		private final FileChannel file;
+
+		SlowChannel(FileChannel file) {
+			this.file = file;
+		}
+
+		@Override
+		public int read(ByteBuffer dst, long position) throws IOException {
+			boolean completed = false;
+			begin();
+			try {
+				Thread.sleep(20);
+				completed = true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				end(completed);
+			}
+			return file.read(dst, position);
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			return file.read(dst);
+		}
+
+		@Override
+		public long read(ByteBuffer[] dsts, int offset, int length)
+				throws IOException {
+			return file.read(dsts, offset, length);
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			return file.write(src);
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length)
+				throws IOException {
+			return file.write(srcs, offset, length);
+		}
+
+		@Override
+		public int write(ByteBuffer src, long position) throws IOException {
+			return file.write(src, position);
+		}
+
+		@Override
+		public long position() throws IOException {
+			return file.position();
+		}
+
+		@Override
+		public FileChannel position(long newPosition) throws IOException {
+			file.position(newPosition);
+			return this;
+		}
+
+		@Override
+		public long size() throws IOException {
+			return file.size();
+		}
+
+		@Override
+		public FileChannel truncate(long size) throws IOException {
+			file.truncate(size);
+			return this;
+		}
+
+		@Override
+		public void force(boolean metaData) throws IOException {
+			file.force(metaData);
+		}
+
+		@Override
+		public long transferTo(long position, long count,
+				WritableByteChannel target) throws IOException {
+			return file.transferTo(position, count, target);
+		}
+
+		@Override
+		public long transferFrom(ReadableByteChannel src, long position,
+				long count) throws IOException {
+			return file.transferFrom(src, position, count);
+		}
+
+		@Override
+		public MappedByteBuffer map(MapMode mode, long position, long size)
+				throws IOException {
+			return file.map(mode, position, size);
+		}
+
+		@Override
+		public FileLock lock(long position, long size, boolean shared)
+				throws IOException {
+			return file.lock(position, size, shared);
+		}
+
+		@Override
+		public FileLock tryLock(long position, long size, boolean shared)
+				throws IOException {
+			return file.tryLock(position, size, shared);
+		}
+
+		@Override
+		protected void implCloseChannel() throws IOException {
+			file.close();
+		}
+	}
+
+	/**
+	 * Creates a file of random bytes.
+	 */
+	static File createFile(int size) throws Exception {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		File file = File.createTempFile("engine", ".ogg");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Returns the SHA-256 digest of a file.
+	 */
+	static byte[] sha256(File file) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		digest.update(Files.readAllBytes(file.toPath()));
+		return digest.digest();
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2011, Carlos Eduardo da Silva <kaduardo@gmail.com>
+ *
+ * 
+ *  This file is part of libjhgdc.
+ * 
+ *  libjhgdc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Lesser General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  libjhgdc is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with libjhgdc.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package jhgdc.library;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class contains the test cases of the upload index.
+ *
+ * @version 0.1.0
+ *
+ */
+public class UploadIndexTest {
+
+	/**
+	 * The directory holding the index and the files.
+	 */
+	File dir;
+
+	/**
+	 * The index.
+	 */
+	UploadIndex index;
+
+	/**
+	 * Opens an index in a new directory.
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("index", "");
+		dir.delete();
+		dir.mkdir();
+		index = new UploadIndex(new File(dir, "uploads.idx"));
+	}
+
+	/**
+	 * Closes the index and deletes the directory.
+	 * @throws java.lang.Exception
+	 */
+	@After
+	public void tearDown() throws Exception {
+		index.close();
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Test that uploads are found again after reopening the index.
+	 * @throws Exception
+	 */
+	@Test
+	public void testRecordAndReopen() throws Exception {
+		File file = createFile("a.ogg", 1000, 1);
+		byte[] hash = index.hash(file);
+		assertEquals(-1, index.getLastUpload(file, "localhost", 6633));
+		index.recordUpload(file, file.length(), file.lastModified(), hash,
+				"localhost", 6633, 1234);
+		assertEquals(1234, index.getLastUpload(file, "localhost", 6633));
+		assertEquals(-1, index.getLastUpload(file, "localhost", 6634));
+
+		index.close();
+		index = new UploadIndex(new File(dir, "uploads.idx"));
+		assertArrayEquals(hash, index.getHash(file));
+		assertEquals(1234, index.getLastUpload(file, "localhost", 6633));
+
+		// A copy is found by content once hashed
+		File copy = createFile("b.ogg", 1000, 1);
+		assertNull(index.getHash(copy));
+		index.hash(copy);
+		assertEquals(1234, index.getLastUpload(copy, "localhost", 6633));
+	}
+
+	/**
+	 * Test that the index grows and keeps its entries.
+	 * @throws Exception
+	 */
+	@Test
+	public void testGrow() throws Exception {
+		byte[] hash = new byte[32];
+		File file = new File(dir, "none.ogg");
+		for (int i = 0; i < 3000; i++) {
+			hash[0] = (byte) i;
+			hash[1] = (byte) (i >> 8);
+			index.recordUpload(file, i, 0, hash, "localhost", 6633, i + 1);
+		}
+		assertEquals(3000, index.size());
+		index.close();
+		index = new UploadIndex(new File(dir, "uploads.idx"));
+		assertEquals(3000, index.size());
+		for (int i = 0; i < 3000; i++) {
+			hash[0] = (byte) i;
+			hash[1] = (byte) (i >> 8);
+			assertEquals(i + 1, index.getLastUpload(hash, i, "localhost", 6633));
+		}
+	}
+
+	/**
+	 * Test that a scan hashes each new file once.
+	 * @throws Exception
+	 */
+	@Test
+	public void testScan() throws Exception {
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < 20; i++) {
+			files.add(createFile(i + ".ogg", 10000 + i, i));
+		}
+		assertEquals(20, index.scan(files));
+		assertEquals(0, index.scan(files));
+		MessageDigest digest = UploadIndex.newDigest();
+		digest.update(Files.readAllBytes(files.get(7).toPath()));
+		assertArrayEquals(digest.digest(), index.getHash(files.get(7)));
+	}
+
+	/**
+	 * Test that a second process can not open the index.
+	 * @throws Exception
+	 */
+	@Test
+	public void testLocked() throws Exception {
+		try {
+			new UploadIndex(new File(dir, "uploads.idx"));
+			fail("Index opened twice");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Test that a client hashes and records the files it uploads.
+	 * @throws Exception
+	 */
+	@Test
+	public void testClientUpload() throws Exception {
+		FakeHGDDaemon.startShared();
+		File file = createFile("upload.ogg", 3 * 1024 * 1024 + 5, 3);
+		HGDClient client = new HGDClient();
+		client.setUploadIndex(index);
+		client.connect(HGDConsts.DEFAULT_HOST);
+		try {
+			client.login("kaduardo", "");
+			long start = System.currentTimeMillis();
+			client.requestQueue(file);
+			assertTrue("Upload not recorded", index.getLastUpload(file,
+					HGDConsts.DEFAULT_HOST, HGDConsts.DEFAULT_PORT) >= start);
+		} finally {
+			client.disconnect(true);
+		}
+		byte[] uploaded = index.getHash(file);
+		index.close();
+		index = new UploadIndex(new File(dir, "other.idx"));
+		assertArrayEquals("Wrong hash", index.hash(file), uploaded);
+	}
+
+	private File createFile(String name, int size, long seed)
+			throws IOException {
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		File file = new File(dir, name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}